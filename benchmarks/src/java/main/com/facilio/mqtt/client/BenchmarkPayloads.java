@@ -0,0 +1,36 @@
+package com.facilio.mqtt.client;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Builds the telemetry like payloads published by the benchmarks.
+ */
+public final class BenchmarkPayloads {
+
+    private BenchmarkPayloads() {
+    }
+
+    /**
+     * Builds a telemetry like message of a device reporting the given number of points.
+     * @param points number of points
+     * @return message
+     */
+    @SuppressWarnings("unchecked")
+    public static JSONObject createMessage(int points) {
+        JSONObject message = new JSONObject();
+        message.put("deviceId", "ahu-001");
+        message.put("timestamp", 1700000000000L);
+        JSONArray values = new JSONArray();
+        for (int i = 0; i < points; i++) {
+            JSONObject point = new JSONObject();
+            point.put("name", "point-" + i);
+            point.put("value", 20.5 + i);
+            point.put("unit", "\u00b0C");
+            point.put("alarm", i % 5 == 0);
+            values.add(point);
+        }
+        message.put("points", values);
+        return message;
+    }
+}
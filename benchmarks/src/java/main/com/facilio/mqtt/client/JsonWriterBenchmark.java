@@ -0,0 +1,51 @@
+package com.facilio.mqtt.client;
+
+import com.facilio.mqtt.util.JsonWriter;
+import org.json.simple.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares JSONObject.toJSONString().getBytes() with {@link JsonWriter} on a telemetry like payload of the given
+ * number of points. Run with <code>-prof gc</code> to read the bytes allocated per operation from gc.alloc.rate.norm.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonWriterBenchmark {
+
+    @Param({"1", "20"})
+    private int points;
+
+    private JSONObject message;
+
+    @Setup
+    public void setUp() {
+        message = BenchmarkPayloads.createMessage(points);
+    }
+
+    @Benchmark
+    public byte[] toJSONString() {
+        return message.toJSONString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] jsonWriter() {
+        return JsonWriter.toJson(message);
+    }
+}
@@ -0,0 +1,126 @@
+package com.facilio.mqtt.client;
+
+import com.facilio.mqtt.client.impl.MappedLogPersistence;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays the put / remove pattern of QOS 1 publishes against the file, memory and mapped log persistence: each
+ * operation persists one message and removes the one sent max inflight messages earlier, as its acknowledgement
+ * would. Keys wrap around at 65535 like the message ids of Paho.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistenceBenchmark {
+
+    private static final int KEYS = 65535;
+
+    @Param({"MqttDefaultFilePersistence", "MemoryPersistence", "MappedLogPersistence"})
+    private String persistenceType;
+
+    @Param({"1024"})
+    private int payloadSize;
+
+    @Param({"10"})
+    private int maxInflight;
+
+    private MqttClientPersistence persistence;
+    private Data data;
+    private String[] keys;
+    private int next;
+
+    @Setup
+    public void setUp() throws MqttException {
+        String directory = System.getProperty("java.io.tmpdir") + File.separator + "facilio-persistence-benchmark";
+        switch (persistenceType) {
+            case "MqttDefaultFilePersistence":
+                persistence = new MqttDefaultFilePersistence(directory);
+                break;
+            case "MemoryPersistence":
+                persistence = new MemoryPersistence();
+                break;
+            default:
+                persistence = new MappedLogPersistence(directory, 100);
+                break;
+        }
+        persistence.open("benchmark", "tcp://localhost:1883");
+        persistence.clear();
+        data = new Data(new byte[4], new byte[payloadSize]);
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "s-" + i;
+        }
+        for (next = 0; next < maxInflight; next++) {
+            persistence.put(keys[next], data);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws MqttException {
+        persistence.clear();
+        persistence.close();
+    }
+
+    @Benchmark
+    public void putAndRemove() throws MqttException {
+        persistence.put(keys[next], data);
+        persistence.remove(keys[(next - maxInflight + KEYS) % KEYS]);
+        next = (next + 1) % KEYS;
+    }
+
+    private static class Data implements MqttPersistable {
+        private final byte[] header;
+        private final byte[] payload;
+
+        Data(byte[] header, byte[] payload) {
+            this.header = header;
+            this.payload = payload;
+        }
+
+        public byte[] getHeaderBytes() {
+            return header;
+        }
+
+        public int getHeaderLength() {
+            return header.length;
+        }
+
+        public int getHeaderOffset() {
+            return 0;
+        }
+
+        public byte[] getPayloadBytes() {
+            return payload;
+        }
+
+        public int getPayloadLength() {
+            return payload.length;
+        }
+
+        public int getPayloadOffset() {
+            return 0;
+        }
+    }
+}
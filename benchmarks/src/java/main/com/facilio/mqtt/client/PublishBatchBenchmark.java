@@ -0,0 +1,100 @@
+package com.facilio.mqtt.client;
+
+import com.facilio.mqtt.client.impl.MQTTClient;
+import com.facilio.mqtt.util.FacilioProperties;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares blocking QoS1 publishes against publishBatch on the broker given by the endpoint and topic properties
+ * of {@link FacilioProperties}, so it needs a running broker. Scores are messages per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PublishBatchBenchmark {
+
+    private static final int MESSAGES = 2000;
+
+    @Param({"100"})
+    private int maxInflight;
+
+    private FacilioMqttClient client;
+    private String topic;
+    private byte[] payload;
+    private List<OutboundMessage> messages;
+
+    @Setup
+    public void setUp() throws FacilioMqttException {
+        topic = FacilioProperties.getProperty("topic");
+        payload = "{\"value\":21.5,\"unit\":\"C\"}".getBytes();
+        messages = new ArrayList<>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            messages.add(new OutboundMessage(topic, payload, 1));
+        }
+
+        client = new MQTTClient();
+        FacilioMqttConnectOptions connectOptions = new FacilioMqttConnectOptions();
+        connectOptions.setServerURI(FacilioProperties.getProperty("endpoint"));
+        connectOptions.setMaxInflight(maxInflight);
+        client.setConnectOptions(connectOptions);
+        client.setClientId("batch-benchmark");
+        client.setCallback(new MqttCallback());
+        client.connect();
+    }
+
+    @TearDown
+    public void tearDown() throws FacilioMqttException {
+        client.disconnect();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void publish() throws FacilioMqttException {
+        for (int i = 0; i < MESSAGES; i++) {
+            client.publish(topic, payload, 1);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public BatchReceipt publishBatch() throws FacilioMqttException, InterruptedException, ExecutionException {
+        return client.publishBatch(messages).get();
+    }
+
+    private static class MqttCallback implements FacilioMqttCallback {
+        public void onSuccess() {
+        }
+
+        public void onFailure() {
+            System.out.println("failure");
+        }
+
+        public void onTimeout(Throwable cause) {
+            System.out.println("timeout");
+        }
+
+        public void onMessage(String topic, MqttMessage message) {
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.BenchmarkPayloads;
+import com.facilio.mqtt.client.DeliveryReceipt;
+import com.facilio.mqtt.client.FacilioMqttException;
+import com.facilio.mqtt.client.Priority;
+import com.facilio.mqtt.util.JsonWriter;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttToken;
+import org.json.simple.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the client side of the publish path: a String or JSONObject published through the {@link PublishPipeline},
+ * the {@link MqttMessage} handed to the sender and the {@link DeliveryListener} completing the delivery, with and
+ * without the {@link MessagePool}. The sender acknowledges every message right away in place of Paho, so the objects
+ * Paho allocates per publish are not included. Run with <code>-prof gc</code> to read the bytes allocated per publish
+ * from gc.alloc.rate.norm; the future, its completion and the receipt of each publish are still allocated with the pool.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessagePoolBenchmark {
+
+    private static final String TOPIC = "benchmark/ahu-001";
+    private static final String TEXT = "{\"deviceId\":\"ahu-001\",\"value\":21,\"unit\":\"C\"}";
+    private static final IMqttToken TOKEN = new MqttToken("benchmark");
+
+    private JSONObject json;
+    private PublishPipeline pooled;
+    private PublishPipeline unpooled;
+    private MqttMessage sink;
+
+    @Setup
+    public void setUp() {
+        json = BenchmarkPayloads.createMessage(1);
+        pooled = pooledPipeline();
+        unpooled = unpooledPipeline();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pooled.close();
+        unpooled.close();
+    }
+
+    @Benchmark
+    public MqttMessage stringUnpooled() throws FacilioMqttException {
+        unpooled.publish(TOPIC, TEXT.getBytes(StandardCharsets.UTF_8), 1, Priority.NORMAL, false, false);
+        return sink;
+    }
+
+    @Benchmark
+    public MqttMessage stringPooled() throws FacilioMqttException {
+        pooled.publish(TOPIC, pooled.toUtf8(TEXT), 1, Priority.NORMAL, true, false);
+        return sink;
+    }
+
+    @Benchmark
+    public MqttMessage jsonUnpooled() throws FacilioMqttException {
+        unpooled.publish(TOPIC, JsonWriter.toJson(json), 1, Priority.NORMAL, false, false);
+        return sink;
+    }
+
+    @Benchmark
+    public MqttMessage jsonPooled() throws FacilioMqttException {
+        pooled.publish(TOPIC, pooled.toJson(json), 1, Priority.NORMAL, true, false);
+        return sink;
+    }
+
+    /**
+     * Returns a pipeline whose sender takes a pooled message holder and completes the delivery through a
+     * {@link DeliveryListener}, as the clients do.
+     */
+    private PublishPipeline pooledPipeline() {
+        PublishPipeline[] pipeline = new PublishPipeline[1];
+        pipeline[0] = new PublishPipeline((topic, payload, qos, pooled, future) -> {
+            MqttMessage message = pipeline[0].message(payload, qos);
+            sink = message;
+            new DeliveryListener(topic, future, pipeline[0], message, pooled).onSuccess(TOKEN);
+        }, () -> true, () -> null, () -> "benchmark");
+        return pipeline[0];
+    }
+
+    /**
+     * Returns a pipeline whose sender allocates a new message holder for every publish, as the clients did before
+     * the pool.
+     */
+    private PublishPipeline unpooledPipeline() {
+        return new PublishPipeline((topic, payload, qos, pooled, future) -> {
+            MqttMessage message = new MqttMessage(payload);
+            message.setQos(qos);
+            sink = message;
+            complete(future, topic);
+        }, () -> true, () -> null, () -> "benchmark");
+    }
+
+    private static void complete(CompletableFuture<DeliveryReceipt> future, String topic) {
+        future.complete(new DeliveryReceipt(topic, TOKEN.getMessageId(), 0));
+    }
+}
@@ -0,0 +1,23 @@
+package com.facilio.mqtt.client;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Acknowledgement of a received message to the server, returned by {@link ReceivedMessage#getAcknowledgement()}.
+ *
+ * With manual acknowledgements, see {@link FacilioMqttConnectOptions#setManualAcks(boolean)}, the application
+ * acknowledges each QoS 1 or 2 message once it is processed; otherwise the client acknowledges messages itself and
+ * the handle only reports when it did.
+ */
+@FunctionalInterface
+public interface Acknowledgement {
+
+    /**
+     * Acknowledges the message, only the first call has an effect. The returned future completes once the
+     * acknowledgement is handed to the network, which can be later when a batch handler holds the message,
+     * and fails with a {@link FacilioMqttException} if the connection the message was received on is gone,
+     * in which case the server redelivers the message.
+     * @return future completed when the message is acknowledged
+     */
+    CompletableFuture<Void> acknowledge();
+}
@@ -0,0 +1,214 @@
+package com.facilio.mqtt.client;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Aggregates the records published to the same topic into one payload.
+ *
+ * A batch is published through the wrapped {@link FacilioMqttClient} when it holds max records records,
+ * when adding a record would take it over max bytes, or when its first record has waited for the linger time,
+ * whichever happens first. Records are packed as described by {@link BatchFormat}, and subscribers can split
+ * the batches back into records with {@link BatchSplittingCallback}. Batches are published with the highest
+ * qos of their records.
+ *
+ * <code>
+ *  AggregatingPublisher publisher = new AggregatingPublisher(client, BatchFormat.JSON_ARRAY, 100, 5 * 1024, 200);<br>
+ *  publisher.publish("telemetry", reading, 1);<br>
+ * </code>
+ */
+public class AggregatingPublisher implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger(AggregatingPublisher.class.getName());
+
+    static final byte FRAME_MAGIC = (byte) 0xFB;
+    static final int FRAME_HEADER_SIZE = 5;
+
+    private final FacilioMqttClient client;
+    private final BatchFormat format;
+    private final int maxRecords;
+    private final int maxBytes;
+    private final long linger;
+    private final ConcurrentHashMap<String, Batch> batches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService lingerTimer;
+    private final LongAdder batchCount = new LongAdder();
+    private final LongAdder recordCount = new LongAdder();
+
+    /**
+     * Constructs an AggregatingPublisher.
+     * @param client client to publish through
+     * @param format how records are packed into a payload
+     * @param maxRecords maximum number of records in a batch
+     * @param maxBytes maximum size of a batch payload in bytes, a larger record is published as a batch of its own
+     * @param linger maximum time in milliseconds a record waits for the batch to fill up
+     */
+    public AggregatingPublisher(FacilioMqttClient client, BatchFormat format, int maxRecords, int maxBytes, long linger) {
+        if (format == null || maxRecords <= 0 || maxBytes <= 0 || linger <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.client = client;
+        this.format = format;
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+        this.linger = linger;
+        this.lingerTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "facilio-mqtt-batch-linger");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Adds the record to the batch of the topic, publishing the batch if it is full.
+     * @param topic name to publish the batch
+     * @param record record to add, a JSON value for {@link BatchFormat#JSON_ARRAY}
+     * @param qos for this record
+     */
+    public void publish(String topic, byte[] record, int qos) {
+        Batch batch = batches.get(topic);
+        if (batch == null) {
+            batch = batches.computeIfAbsent(topic, Batch::new);
+        }
+        batch.add(record, qos);
+        recordCount.increment();
+    }
+
+    /**
+     * Publishes every pending batch now.
+     */
+    public void flush() {
+        for (Batch batch : batches.values()) {
+            batch.flush(-1);
+        }
+    }
+
+    /**
+     * Returns the number of batches published
+     * @return batch count
+     */
+    public long getBatchCount() {
+        return batchCount.sum();
+    }
+
+    /**
+     * Returns the number of records added
+     * @return record count
+     */
+    public long getRecordCount() {
+        return recordCount.sum();
+    }
+
+    /**
+     * Publishes the pending batches and stops the linger timer.
+     */
+    public void close() {
+        lingerTimer.shutdown();
+        flush();
+    }
+
+    private class Batch {
+        private final String topic;
+        private final ReentrantLock lock = new ReentrantLock();
+        private byte[] buffer;
+        private int size;
+        private int count;
+        private int qos;
+        private long generation;
+
+        Batch(String topic) {
+            this.topic = topic;
+            this.buffer = new byte[Math.min(maxBytes, 4096) + FRAME_HEADER_SIZE];
+        }
+
+        void add(byte[] record, int recordQos) {
+            lock.lock();
+            try {
+                int overhead = format == BatchFormat.JSON_ARRAY ? 1 : 4;
+                if (count > 0 && size + overhead + record.length + 1 > maxBytes) {
+                    publish();
+                }
+                if (count == 0) {
+                    size = format == BatchFormat.JSON_ARRAY ? 1 : FRAME_HEADER_SIZE;
+                    buffer[0] = format == BatchFormat.JSON_ARRAY ? (byte) '[' : FRAME_MAGIC;
+                    qos = recordQos;
+                    long scheduled = generation;
+                    lingerTimer.schedule(() -> flush(scheduled), linger, TimeUnit.MILLISECONDS);
+                } else {
+                    qos = Math.max(qos, recordQos);
+                }
+                ensureCapacity(overhead + record.length + 1);
+                if (format == BatchFormat.JSON_ARRAY) {
+                    if (count > 0) {
+                        buffer[size++] = ',';
+                    }
+                } else {
+                    writeInt(size, record.length);
+                    size += 4;
+                }
+                System.arraycopy(record, 0, buffer, size, record.length);
+                size += record.length;
+                count++;
+                if (count >= maxRecords || size + 1 >= maxBytes) {
+                    publish();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Publishes the batch if it is still the given generation, or in any case if generation is -1.
+         */
+        void flush(long expected) {
+            lock.lock();
+            try {
+                if (count > 0 && (expected < 0 || expected == generation)) {
+                    publish();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void publish() {
+            byte[] payload;
+            if (format == BatchFormat.JSON_ARRAY) {
+                buffer[size++] = ']';
+                payload = Arrays.copyOf(buffer, size);
+            } else {
+                writeInt(1, count);
+                payload = Arrays.copyOf(buffer, size);
+            }
+            count = 0;
+            size = 0;
+            generation++;
+            batchCount.increment();
+            client.publishAsync(topic, payload, qos).whenComplete((receipt, cause) -> {
+                if (cause != null) {
+                    LOGGER.info("Exception while publishing batch to " + topic + " " + cause.getMessage());
+                }
+            });
+        }
+
+        private void ensureCapacity(int length) {
+            if (size + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+            }
+        }
+
+        private void writeInt(int position, int value) {
+            buffer[position] = (byte) (value >>> 24);
+            buffer[position + 1] = (byte) (value >>> 16);
+            buffer[position + 2] = (byte) (value >>> 8);
+            buffer[position + 3] = (byte) value;
+        }
+    }
+}
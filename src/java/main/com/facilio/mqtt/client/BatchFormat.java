@@ -0,0 +1,18 @@
+package com.facilio.mqtt.client;
+
+/**
+ * BatchFormat decides how {@link AggregatingPublisher} packs records into one payload.
+ */
+public enum BatchFormat {
+
+    /**
+     * Records are JSON values written as the elements of one JSON array.
+     */
+    JSON_ARRAY,
+
+    /**
+     * Records are arbitrary bytes, framed as <code>[byte 0xFB][int record count]</code> followed by
+     * <code>[int length][record]</code> for each record.
+     */
+    FRAMED
+}
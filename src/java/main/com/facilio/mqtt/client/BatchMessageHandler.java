@@ -0,0 +1,20 @@
+package com.facilio.mqtt.client;
+
+import java.util.List;
+
+/**
+ * BatchMessageHandler receives the messages of the topic filter it was subscribed with using
+ * {@link FacilioMqttClient#subscribe(String, int, BatchMessageHandler, int, int, long)} in batches.
+ *
+ * The handler is called by one thread at a time, with the batches in the order their messages were dispatched.
+ * The list is reused for a later batch once the handler returns, so the handler must copy it to keep the messages.
+ */
+@FunctionalInterface
+public interface BatchMessageHandler {
+
+    /**
+     * Will be called when a batch of messages matching the topic filter is complete.
+     * @param messages received messages, not empty
+     */
+    void onMessages(List<ReceivedMessage> messages);
+}
@@ -0,0 +1,74 @@
+package com.facilio.mqtt.client;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BatchReceipt summarizes the outcome of {@link FacilioMqttClient#publishBatch(java.util.Collection)}
+ * once every message of the batch has either been acknowledged or failed.
+ */
+public class BatchReceipt {
+
+    private final int deliveredCount;
+    private final List<OutboundMessage> failedMessages;
+    private final long elapsedNanos;
+
+    /**
+     * Constructs a new <code>BatchReceipt</code>.
+     * @param deliveredCount number of messages acknowledged by the server
+     * @param failedMessages messages which could not be delivered
+     * @param elapsedNanos time taken to deliver the batch in nanoseconds
+     */
+    public BatchReceipt(int deliveredCount, List<OutboundMessage> failedMessages, long elapsedNanos) {
+        this.deliveredCount = deliveredCount;
+        this.failedMessages = Collections.unmodifiableList(failedMessages);
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Returns the number of messages in the batch
+     * @return message count
+     */
+    public int getMessageCount() {
+        return deliveredCount + failedMessages.size();
+    }
+
+    /**
+     * Returns the number of messages acknowledged by the server
+     * @return delivered count
+     */
+    public int getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    /**
+     * Returns the number of messages which could not be delivered
+     * @return failed count
+     */
+    public int getFailedCount() {
+        return failedMessages.size();
+    }
+
+    /**
+     * Returns the messages which could not be delivered, so that they can be retried.
+     * @return failed messages
+     */
+    public List<OutboundMessage> getFailedMessages() {
+        return failedMessages;
+    }
+
+    /**
+     * Returns the time taken to deliver the batch in the given unit
+     * @param unit time unit
+     * @return elapsed time
+     */
+    public long getElapsed(TimeUnit unit) {
+        return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "BatchReceipt{delivered=" + deliveredCount + ", failed=" + failedMessages.size() + ", elapsedNanos=" + elapsedNanos + "}";
+    }
+}
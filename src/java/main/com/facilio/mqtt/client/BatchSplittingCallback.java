@@ -0,0 +1,181 @@
+package com.facilio.mqtt.client;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Splits the batches published by {@link AggregatingPublisher} back into records.
+ *
+ * Every record of a batch is passed to the wrapped callback as a {@link ReceivedMessage} of its own, viewing the
+ * batch payload without copying it. Payloads which are not batches of the given format are passed on as they are.
+ * With {@link BatchFormat#JSON_ARRAY} every top level JSON array is split, so it should only be used for topics
+ * carrying batches.
+ *
+ * <code>
+ *  client.setCallback(new BatchSplittingCallback(new MqttCallback(), BatchFormat.JSON_ARRAY));<br>
+ * </code>
+ */
+public class BatchSplittingCallback implements FacilioMqttCallback {
+
+    private final FacilioMqttCallback callback;
+    private final BatchFormat format;
+
+    /**
+     * Constructs a BatchSplittingCallback.
+     * @param callback callback the records are passed to
+     * @param format format the batches are packed in
+     */
+    public BatchSplittingCallback(FacilioMqttCallback callback, BatchFormat format) {
+        this.callback = callback;
+        this.format = format;
+    }
+
+    /**
+     * Will be called when the publish action is success
+     */
+    public void onSuccess() {
+        callback.onSuccess();
+    }
+
+    /**
+     *  Will be called when the publish action is failed
+     */
+    public void onFailure() {
+        callback.onFailure();
+    }
+
+    /**
+     * Will be called on timeout
+     * @param cause if the cause is known it will be passed.
+     */
+    public void onTimeout(Throwable cause) {
+        callback.onTimeout(cause);
+    }
+
+    /**
+     * Splits the message and passes each record to the wrapped callback.
+     * @param topic topic name
+     * @param message Mqtt message object received from the server.
+     */
+    public void onMessage(String topic, MqttMessage message) {
+        onMessage(new ReceivedMessage(topic, message));
+    }
+
+    /**
+     * Splits the message and passes each record to the wrapped callback.
+     * @param message message received from the server.
+     */
+    public void onMessage(ReceivedMessage message) {
+        byte[] payload = message.getPayloadArray();
+        int start = message.getPayloadOffset();
+        int end = start + message.getPayloadLength();
+        boolean split;
+        if (format == BatchFormat.FRAMED) {
+            split = splitFramed(message, payload, start, end, false) && splitFramed(message, payload, start, end, true);
+        } else {
+            split = splitJsonArray(message, payload, start, end, false) && splitJsonArray(message, payload, start, end, true);
+        }
+        if (!split) {
+            callback.onMessage(message);
+        }
+    }
+
+    /**
+     * Walks the records of a framed batch, passing them to the callback if emit is true.
+     * @return true if the payload is a well formed batch
+     */
+    private boolean splitFramed(ReceivedMessage message, byte[] payload, int start, int end, boolean emit) {
+        if (end - start < AggregatingPublisher.FRAME_HEADER_SIZE || payload[start] != AggregatingPublisher.FRAME_MAGIC) {
+            return false;
+        }
+        int count = readInt(payload, start + 1);
+        if (count < 0) {
+            return false;
+        }
+        int position = start + AggregatingPublisher.FRAME_HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            if (position + 4 > end) {
+                return false;
+            }
+            int length = readInt(payload, position);
+            if (length < 0 || length > end - position - 4) {
+                return false;
+            }
+            if (emit) {
+                callback.onMessage(record(message, payload, position + 4, length));
+            }
+            position += 4 + length;
+        }
+        return position == end;
+    }
+
+    /**
+     * Walks the elements of a top level JSON array, passing them to the callback if emit is true.
+     * @return true if the payload is a complete JSON array
+     */
+    private boolean splitJsonArray(ReceivedMessage message, byte[] payload, int start, int end, boolean emit) {
+        start = skipWhitespace(payload, start, end);
+        if (start >= end || payload[start] != '[') {
+            return false;
+        }
+        int depth = 0;
+        boolean inString = false;
+        int recordStart = start + 1;
+        for (int i = start; i < end; i++) {
+            byte b = payload[i];
+            if (inString) {
+                if (b == '\\') {
+                    i++;
+                } else if (b == '"') {
+                    inString = false;
+                }
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == '[' || b == '{') {
+                depth++;
+            } else if (b == ']' || b == '}') {
+                depth--;
+                if (depth == 0) {
+                    if (emit) {
+                        emitJson(message, payload, recordStart, i);
+                    }
+                    return skipWhitespace(payload, i + 1, end) == end;
+                }
+            } else if (b == ',' && depth == 1) {
+                if (emit) {
+                    emitJson(message, payload, recordStart, i);
+                }
+                recordStart = i + 1;
+            }
+        }
+        return false;
+    }
+
+    private void emitJson(ReceivedMessage message, byte[] payload, int start, int end) {
+        start = skipWhitespace(payload, start, end);
+        while (end > start && isWhitespace(payload[end - 1])) {
+            end--;
+        }
+        if (end > start) {
+            callback.onMessage(record(message, payload, start, end - start));
+        }
+    }
+
+    private static ReceivedMessage record(ReceivedMessage message, byte[] payload, int offset, int length) {
+        return new ReceivedMessage(message.getTopic(), payload, offset, length, message.getQos(), message.isRetained(), message.isDuplicate(), message.getMessageId());
+    }
+
+    private static int skipWhitespace(byte[] payload, int position, int end) {
+        while (position < end && isWhitespace(payload[position])) {
+            position++;
+        }
+        return position;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static int readInt(byte[] payload, int position) {
+        return ((payload[position] & 0xFF) << 24) | ((payload[position + 1] & 0xFF) << 16) | ((payload[position + 2] & 0xFF) << 8) | (payload[position + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,168 @@
+package com.facilio.mqtt.client;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Publishes only the latest payload of each point within a window.
+ *
+ * Payloads are kept per topic, or per key extracted from the payload, and the latest one of each is published
+ * through the wrapped {@link FacilioMqttClient} every window, and as soon as the client reconnects. Values
+ * replaced within a window are never sent. While the client is not connected the latest values are kept and
+ * published once it reconnects.
+ *
+ * Publishing does not take any lock: each key has a slot holding its latest payload, which is swapped atomically.
+ * Slots are never removed, so the number of keys should be bounded, like the points of a building.
+ *
+ * <code>
+ *  ConflatingPublisher publisher = ConflatingPublisher.create(client, 1000);<br>
+ *  publisher.publish("vav/1/damper", payload, 1);<br>
+ * </code>
+ */
+public class ConflatingPublisher implements ConnectionListener, AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger(ConflatingPublisher.class.getName());
+
+    private final FacilioMqttClient client;
+    private final Function<byte[], String> keyExtractor;
+    private final ConcurrentHashMap<String, AtomicReference<Pending>> slots = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final LongAdder publishedCount = new LongAdder();
+    private final LongAdder conflatedCount = new LongAdder();
+
+    private ConflatingPublisher(FacilioMqttClient client, long window, Function<byte[], String> keyExtractor) {
+        if (window <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.client = client;
+        this.keyExtractor = keyExtractor;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "facilio-mqtt-conflate-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a ConflatingPublisher keeping the latest payload of each topic.
+     * @param client client to publish through
+     * @param window interval in milliseconds between publishing the latest payloads
+     * @return publisher, flushing every window
+     */
+    public static ConflatingPublisher create(FacilioMqttClient client, long window) {
+        return create(client, window, null);
+    }
+
+    /**
+     * Creates a ConflatingPublisher keeping the latest payload of each key.
+     * Payloads with the same key are conflated even when they are published to different topics,
+     * the latest one is published to its own topic.
+     * @param client client to publish through
+     * @param window interval in milliseconds between publishing the latest payloads
+     * @param keyExtractor returns the key of a payload, null to use the topic as key
+     * @return publisher, flushing every window
+     */
+    public static ConflatingPublisher create(FacilioMqttClient client, long window, Function<byte[], String> keyExtractor) {
+        ConflatingPublisher publisher = new ConflatingPublisher(client, window, keyExtractor);
+        publisher.flusher.scheduleAtFixedRate(publisher::flushSafely, window, window, TimeUnit.MILLISECONDS);
+        client.addConnectionListener(publisher);
+        return publisher;
+    }
+
+    /**
+     * Replaces the pending payload of the topic, or of the key of the payload, it is published at the end of the window.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     */
+    public void publish(String topic, byte[] payload, int qos) {
+        String key = keyExtractor == null ? topic : keyExtractor.apply(payload);
+        AtomicReference<Pending> slot = slots.get(key);
+        if (slot == null) {
+            slot = slots.computeIfAbsent(key, k -> new AtomicReference<>());
+        }
+        if (slot.getAndSet(new Pending(topic, payload, qos)) != null) {
+            conflatedCount.increment();
+        }
+    }
+
+    /**
+     * Publishes the latest pending payloads now. Nothing is published while the client is not connected.
+     */
+    public void flush() {
+        if (!client.isConnected()) {
+            return;
+        }
+        for (AtomicReference<Pending> slot : slots.values()) {
+            Pending pending = slot.getAndSet(null);
+            if (pending != null) {
+                publishedCount.increment();
+                client.publishAsync(pending.topic, pending.payload, pending.qos).whenComplete((receipt, cause) -> {
+                    if (cause != null && slot.compareAndSet(null, pending)) {
+                        publishedCount.decrement();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Flushes the pending payloads once the client reconnects.
+     */
+    public void onConnected() {
+        flusher.execute(this::flushSafely);
+    }
+
+    /**
+     * Returns the number of payloads published
+     * @return published count
+     */
+    public long getPublishedCount() {
+        return publishedCount.sum();
+    }
+
+    /**
+     * Returns the number of payloads replaced by a newer one before they were published
+     * @return conflated count
+     */
+    public long getConflatedCount() {
+        return conflatedCount.sum();
+    }
+
+    /**
+     * Publishes the pending payloads and stops the timer.
+     */
+    public void close() {
+        client.removeConnectionListener(this);
+        flusher.shutdown();
+        flush();
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOGGER.info("Exception while flushing conflated payloads " + e.getMessage());
+        }
+    }
+
+    private static class Pending {
+        private final String topic;
+        private final byte[] payload;
+        private final int qos;
+
+        Pending(String topic, byte[] payload, int qos) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.facilio.mqtt.client;
+
+/**
+ * ConnectionListener is notified when the client connects to and disconnects from the server.
+ * It is registered with {@link FacilioMqttClient#addConnectionListener(ConnectionListener)}.
+ * The methods are called from the threads of the MQTT library and should not block.
+ */
+public interface ConnectionListener {
+
+    /**
+     * Will be called when the connection to the server is established, including automatic reconnects.
+     */
+    void onConnected();
+
+    /**
+     * Will be called when the connection to the server is lost.
+     * @param cause if the cause is known it will be passed.
+     */
+    default void onDisconnected(Throwable cause) {
+    }
+}
@@ -0,0 +1,120 @@
+package com.facilio.mqtt.client;
+
+/**
+ * Predicate on the payload of received messages, given with a subscription to discard the messages its handler
+ * does not need before they are dispatched, see {@link FacilioMqttClient#subscribe(String, int, ContentFilter, MessageHandler)}.
+ *
+ * Filters are evaluated on the raw payload bytes on the thread receiving the messages, so they should be cheap.
+ * The filters created by the static methods read fields of JSON payloads by a dotted path of object field names,
+ * such as "site.id". The path is compiled once and the filters do not allocate while matching. A filter does not
+ * match a payload which is not a JSON object or is malformed before its field, and compressed payloads are matched
+ * once decompressed.
+ *
+ * <code>
+ *  ContentFilter filter = ContentFilter.equalTo("type", "alarm").and(ContentFilter.between("temperature", 30, 120));<br>
+ *  client.subscribe("site/+/readings", 1, filter, message -&gt; raise(message));<br>
+ * </code>
+ */
+@FunctionalInterface
+public interface ContentFilter {
+
+    /**
+     * Returns true if the message should be passed to the handler.
+     * @param payload array holding the payload, not to be modified
+     * @param offset offset of the payload in the array
+     * @param length length of the payload
+     * @return true if the payload matches
+     */
+    boolean matches(byte[] payload, int offset, int length);
+
+    /**
+     * Returns true if the message should be passed to the handler.
+     * @param message received message
+     * @return true if the payload of the message matches
+     */
+    default boolean matches(ReceivedMessage message) {
+        return matches(message.getPayloadArray(), message.getPayloadOffset(), message.getPayloadLength());
+    }
+
+    /**
+     * Returns a filter matching payloads matched by both filters.
+     * @param other filter evaluated if this one matches
+     * @return combined filter
+     */
+    default ContentFilter and(ContentFilter other) {
+        if (other == null) {
+            throw new IllegalArgumentException();
+        }
+        return (payload, offset, length) -> matches(payload, offset, length) && other.matches(payload, offset, length);
+    }
+
+    /**
+     * Returns a filter matching payloads matched by either filter.
+     * @param other filter evaluated if this one does not match
+     * @return combined filter
+     */
+    default ContentFilter or(ContentFilter other) {
+        if (other == null) {
+            throw new IllegalArgumentException();
+        }
+        return (payload, offset, length) -> matches(payload, offset, length) || other.matches(payload, offset, length);
+    }
+
+    /**
+     * Returns a filter matching the payloads this filter does not match.
+     * @return negated filter
+     */
+    default ContentFilter negate() {
+        return (payload, offset, length) -> !matches(payload, offset, length);
+    }
+
+    /**
+     * Returns a filter matching JSON payloads having the field, whatever its value, including null.
+     * @param path dotted path of the field
+     * @return filter
+     */
+    static ContentFilter exists(String path) {
+        return JsonPathFilter.exists(path);
+    }
+
+    /**
+     * Returns a filter matching JSON payloads whose field is the given string.
+     * @param path dotted path of the field
+     * @param value expected value
+     * @return filter
+     */
+    static ContentFilter equalTo(String path, String value) {
+        return JsonPathFilter.equalTo(path, value);
+    }
+
+    /**
+     * Returns a filter matching JSON payloads whose field is a number equal to the given value.
+     * @param path dotted path of the field
+     * @param value expected value
+     * @return filter
+     */
+    static ContentFilter equalTo(String path, long value) {
+        return JsonPathFilter.equalTo(path, value);
+    }
+
+    /**
+     * Returns a filter matching JSON payloads whose field is the given boolean.
+     * @param path dotted path of the field
+     * @param value expected value
+     * @return filter
+     */
+    static ContentFilter equalTo(String path, boolean value) {
+        return JsonPathFilter.equalTo(path, value);
+    }
+
+    /**
+     * Returns a filter matching JSON payloads whose field is a number from min to max, both included.
+     * @param path dotted path of the field
+     * @param min smallest value matched
+     * @param max largest value matched
+     * @return filter
+     */
+    static ContentFilter between(String path, double min, double max) {
+        return JsonPathFilter.between(path, min, max);
+    }
+}
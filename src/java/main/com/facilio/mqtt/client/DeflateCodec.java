@@ -0,0 +1,115 @@
+package com.facilio.mqtt.client;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link PayloadCodec} using deflate from java.util.zip.
+ *
+ * A preset dictionary of byte sequences that are common in the payloads, for example the field names of the
+ * telemetry JSON, makes small payloads compress far better. Publishers and subscribers must use the same dictionary.
+ * Deflater and Inflater instances are kept per thread and reused.
+ */
+public class DeflateCodec implements PayloadCodec {
+
+    /**
+     * Id of the deflate codec.
+     */
+    public static final int ID = 1;
+
+    private final int level;
+    private final byte[] dictionary;
+    private final ThreadLocal<Deflater> deflater;
+    private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * Constructs a DeflateCodec with the default compression level and no dictionary.
+     */
+    public DeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION, null);
+    }
+
+    /**
+     * Constructs a DeflateCodec.
+     * @param level compression level from 0 to 9, -1 for the default level
+     * @param dictionary preset dictionary, can be null
+     */
+    public DeflateCodec(int level, byte[] dictionary) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException();
+        }
+        this.level = level;
+        this.dictionary = dictionary == null ? null : dictionary.clone();
+        this.deflater = ThreadLocal.withInitial(() -> new Deflater(this.level));
+    }
+
+    /**
+     * Returns the id of the deflate codec
+     * @return {@link #ID}
+     */
+    public int getId() {
+        return ID;
+    }
+
+    /**
+     * Compresses the source bytes into the target.
+     * @param source bytes to compress
+     * @param offset offset of the first byte in source
+     * @param length number of bytes to compress
+     * @param target array to write the compressed bytes to
+     * @param targetOffset offset in target to start writing at
+     * @param maxLength maximum number of bytes to write
+     * @return number of bytes written, -1 if the compressed bytes do not fit in max length
+     */
+    public int encode(byte[] source, int offset, int length, byte[] target, int targetOffset, int maxLength) {
+        Deflater compressor = deflater.get();
+        compressor.reset();
+        if (dictionary != null) {
+            compressor.setDictionary(dictionary);
+        }
+        compressor.setInput(source, offset, length);
+        compressor.finish();
+        int written = 0;
+        while (!compressor.finished() && written < maxLength) {
+            written += compressor.deflate(target, targetOffset + written, maxLength - written);
+        }
+        return compressor.finished() ? written : -1;
+    }
+
+    /**
+     * Decompresses the source bytes into the target.
+     * @param source bytes to decompress
+     * @param offset offset of the first byte in source
+     * @param length number of bytes to decompress
+     * @param target array to write the decompressed bytes to
+     * @param targetOffset offset in target to start writing at
+     * @param decodedLength number of bytes the source decompresses to
+     * @throws IOException if the source is not valid
+     */
+    public void decode(byte[] source, int offset, int length, byte[] target, int targetOffset, int decodedLength) throws IOException {
+        Inflater decompressor = inflater.get();
+        decompressor.reset();
+        decompressor.setInput(source, offset, length);
+        int read = 0;
+        try {
+            while (!decompressor.finished()) {
+                int count = decompressor.inflate(target, targetOffset + read, decodedLength - read);
+                read += count;
+                if (count == 0) {
+                    if (decompressor.needsDictionary() && dictionary != null) {
+                        decompressor.setDictionary(dictionary);
+                    } else if (decompressor.needsInput() || decompressor.needsDictionary() || read == decodedLength) {
+                        break;
+                    }
+                }
+            }
+        } catch (DataFormatException | IllegalArgumentException e) {
+            throw new IOException(e);
+        }
+        if (!decompressor.finished() || read != decodedLength) {
+            throw new IOException("Deflate payload does not decompress to " + decodedLength + " bytes");
+        }
+    }
+}
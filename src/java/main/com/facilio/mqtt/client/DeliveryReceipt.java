@@ -0,0 +1,65 @@
+package com.facilio.mqtt.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DeliveryReceipt is handed out when a message published through
+ * {@link FacilioMqttClient#publishAsync(String, byte[], int)} has been acknowledged by the server.
+ */
+public class DeliveryReceipt {
+
+    private final String topic;
+    private final int messageId;
+    private final long latencyNanos;
+
+    /**
+     * Constructs a new <code>DeliveryReceipt</code>.
+     * @param topic topic the message was published to
+     * @param messageId MQTT message id of the message, 0 if it is not known
+     * @param latencyNanos time taken between publish and acknowledgement in nanoseconds
+     */
+    public DeliveryReceipt(String topic, int messageId, long latencyNanos) {
+        this.topic = topic;
+        this.messageId = messageId;
+        this.latencyNanos = latencyNanos;
+    }
+
+    /**
+     * Returns the topic the message was published to
+     * @return topic name
+     */
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * Returns the MQTT message id assigned to the message.
+     * For QoS 0 messages and for clients which does not expose the id, 0 is returned.
+     * @return message id
+     */
+    public int getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * Returns the time taken between publish and acknowledgement in nanoseconds
+     * @return ack latency in nanoseconds
+     */
+    public long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    /**
+     * Returns the time taken between publish and acknowledgement in the given unit
+     * @param unit time unit
+     * @return ack latency
+     */
+    public long getLatency(TimeUnit unit) {
+        return unit.convert(latencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "DeliveryReceipt{topic=" + topic + ", messageId=" + messageId + ", latencyNanos=" + latencyNanos + "}";
+    }
+}
@@ -0,0 +1,208 @@
+package com.facilio.mqtt.client;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DispatchMetrics is a snapshot of the delivery of received messages to the callback of a client.
+ *
+ * The time messages waited in the inbound queue is kept as a histogram of {@link #QUEUE_TIME_BUCKETS} buckets:
+ * bucket 0 counts the waits under one microsecond and bucket i the waits from 2^(i-1) up to 2^i microseconds,
+ * the last bucket counting every longer wait as well.
+ */
+public class DispatchMetrics {
+
+    public static final int QUEUE_TIME_BUCKETS = 32;
+
+    private final long dispatchedCount;
+    private final long failedCount;
+    private final int[] queueDepths;
+    private final long totalHandlerNanos;
+    private final long maxHandlerNanos;
+    private final int highWaterMark;
+    private final long droppedCount;
+    private final long conflatedCount;
+    private final long blockedCount;
+    private final long filteredCount;
+    private final long[] queueTimeHistogram;
+
+    /**
+     * Constructs a new <code>DispatchMetrics</code>.
+     * @param dispatchedCount number of messages delivered to the callback
+     * @param failedCount number of messages for which the callback threw an exception
+     * @param queueDepths number of messages waiting in each stripe
+     * @param totalHandlerNanos total time spent in the callback in nanoseconds
+     * @param maxHandlerNanos longest single callback in nanoseconds
+     * @param highWaterMark largest number of messages waiting at the same time
+     * @param droppedCount number of messages dropped because the inbound queue was full
+     * @param conflatedCount number of queued messages replaced by a newer message of their topic
+     * @param blockedCount number of times the receiving thread was parked because the inbound queue was full
+     * @param filteredCount number of messages discarded because the content filters of their subscriptions rejected them
+     * @param queueTimeHistogram number of messages per queue time bucket
+     */
+    public DispatchMetrics(long dispatchedCount, long failedCount, int[] queueDepths, long totalHandlerNanos, long maxHandlerNanos,
+                           int highWaterMark, long droppedCount, long conflatedCount, long blockedCount, long filteredCount, long[] queueTimeHistogram) {
+        this.dispatchedCount = dispatchedCount;
+        this.failedCount = failedCount;
+        this.queueDepths = queueDepths.clone();
+        this.totalHandlerNanos = totalHandlerNanos;
+        this.maxHandlerNanos = maxHandlerNanos;
+        this.highWaterMark = highWaterMark;
+        this.droppedCount = droppedCount;
+        this.conflatedCount = conflatedCount;
+        this.blockedCount = blockedCount;
+        this.filteredCount = filteredCount;
+        this.queueTimeHistogram = Arrays.copyOf(queueTimeHistogram, QUEUE_TIME_BUCKETS);
+    }
+
+    /**
+     * Returns the number of messages delivered to the callback
+     * @return dispatched count
+     */
+    public long getDispatchedCount() {
+        return dispatchedCount;
+    }
+
+    /**
+     * Returns the number of messages for which the callback threw an exception
+     * @return failed count
+     */
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * Returns the number of messages waiting to be delivered
+     * @return queue depth
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (int stripeDepth : queueDepths) {
+            depth += stripeDepth;
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the number of messages waiting in each stripe, empty in {@link DispatchMode#CALLER_RUNS} mode
+     * @return queue depth of each stripe
+     */
+    public int[] getQueueDepths() {
+        return queueDepths.clone();
+    }
+
+    /**
+     * Returns the average time spent in the callback in the given unit
+     * @param unit time unit
+     * @return mean handler time
+     */
+    public long getMeanHandlerTime(TimeUnit unit) {
+        return dispatchedCount == 0 ? 0 : unit.convert(totalHandlerNanos / dispatchedCount, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the total time spent in the callback in the given unit
+     * @param unit time unit
+     * @return total handler time
+     */
+    public long getTotalHandlerTime(TimeUnit unit) {
+        return unit.convert(totalHandlerNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the longest time a single callback took in the given unit
+     * @param unit time unit
+     * @return max handler time
+     */
+    public long getMaxHandlerTime(TimeUnit unit) {
+        return unit.convert(maxHandlerNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the largest number of messages which were waiting to be delivered at the same time
+     * @return high water mark of the inbound queue
+     */
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Returns the number of received messages dropped because the inbound queue was full
+     * @return dropped count
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Returns the number of queued messages replaced by a newer message of their topic
+     * with {@link InboundQueuePolicy#CONFLATE}
+     * @return conflated count
+     */
+    public long getConflatedCount() {
+        return conflatedCount;
+    }
+
+    /**
+     * Returns the number of times the receiving thread was parked because the inbound queue was full
+     * @return blocked count
+     */
+    public long getBlockedCount() {
+        return blockedCount;
+    }
+
+    /**
+     * Returns the number of received messages discarded because the content filters of their subscriptions rejected them,
+     * see {@link ContentFilter}
+     * @return filtered count
+     */
+    public long getFilteredCount() {
+        return filteredCount;
+    }
+
+    /**
+     * Returns the number of delivered messages in each queue time bucket
+     * @return queue time histogram
+     */
+    public long[] getQueueTimeHistogram() {
+        return queueTimeHistogram.clone();
+    }
+
+    /**
+     * Returns the time within which the given share of the delivered messages left the inbound queue.
+     * The value is the upper bound of the histogram bucket holding the percentile.
+     * @param percentile percentile between 0 and 100
+     * @param unit time unit
+     * @return queue time at the percentile, 0 if no message was queued
+     */
+    public long getQueueTimePercentile(double percentile, TimeUnit unit) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException();
+        }
+        long total = 0;
+        for (long count : queueTimeHistogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        int bucket = 0;
+        while (bucket < QUEUE_TIME_BUCKETS - 1) {
+            seen += queueTimeHistogram[bucket];
+            if (seen >= rank) {
+                break;
+            }
+            bucket++;
+        }
+        return unit.convert(1L << bucket, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "DispatchMetrics{dispatched=" + dispatchedCount + ", failed=" + failedCount + ", queueDepths=" + Arrays.toString(queueDepths)
+                + ", totalHandlerNanos=" + totalHandlerNanos + ", maxHandlerNanos=" + maxHandlerNanos + ", highWaterMark=" + highWaterMark
+                + ", dropped=" + droppedCount + ", conflated=" + conflatedCount + ", blocked=" + blockedCount + ", filtered=" + filteredCount + "}";
+    }
+}
@@ -0,0 +1,38 @@
+package com.facilio.mqtt.client;
+
+/**
+ * DispatchMode decides which threads call {@link FacilioMqttCallback#onMessage(ReceivedMessage)}.
+ *
+ * In the pooled modes messages are striped by a hash of their topic, so the messages of a topic are delivered
+ * one at a time and in order, while messages of different topics are delivered in parallel.
+ */
+public enum DispatchMode {
+
+    /**
+     * Delivers messages on the thread of the MQTT library which received them, nothing is queued.
+     * A slow callback holds up every subscription and the keep alive of the connection.
+     */
+    CALLER_RUNS,
+
+    /**
+     * Delivers messages on a fixed pool of dispatch threads, one thread per stripe.
+     */
+    FIXED,
+
+    /**
+     * Delivers messages on a fork join pool, with four stripes per thread so that idle threads steal the
+     * stripes of busy ones.
+     */
+    FORK_JOIN,
+
+    /**
+     * Delivers messages on virtual threads, one virtual thread per stripe: a virtual thread is started for a stripe
+     * when messages are queued to it and delivers them in order, so a callback blocking on I/O holds up only the
+     * topics of its stripe. A virtual thread is deliberately not started for each message, since the messages of a
+     * topic would then be delivered out of order; with the default 1024 stripes the callbacks of different topics
+     * rarely wait on each other. Virtual threads need Java 21 and the Java 21 classes of the multi-release jar. On
+     * runtimes older than Java 21 this mode falls back to {@link #FORK_JOIN}; on Java 21 or later with a jar built
+     * without the Java 21 classes the first message dispatched fails with an IllegalStateException.
+     */
+    VIRTUAL_THREADS
+}
@@ -30,4 +30,14 @@ public interface FacilioMqttCallback {
      */
     void onMessage(String topic, MqttMessage message);
 
+    /**
+     * Will be called when the client receives a message.
+     * The default implementation calls {@link #onMessage(String, MqttMessage)}, override it to read the payload
+     * through a read-only {@link java.nio.ByteBuffer} without creating a {@link MqttMessage}.
+     * @param message message received from the server.
+     */
+    default void onMessage(ReceivedMessage message) {
+        onMessage(message.getTopic(), message.getMqttMessage());
+    }
+
 }
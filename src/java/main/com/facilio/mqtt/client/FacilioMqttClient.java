@@ -2,6 +2,12 @@ package com.facilio.mqtt.client;
 
 import org.json.simple.JSONObject;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 
 /**
  * Enables an application to communicate with an MQTT server.
@@ -23,6 +29,10 @@ import org.json.simple.JSONObject;
  *  client.subscribe("topic");<br>
  *  client.publish("topic", "test payload ", 1);<br>
  * </code>
+ *
+ * Most methods added after the first release are default methods built on the original ones, so that existing
+ * implementations keep compiling. Connection listeners and message handlers can not be built on the original
+ * methods, so those methods are abstract. The clients of this library override all of them.
  */
 public interface FacilioMqttClient {
 
@@ -51,6 +61,18 @@ public interface FacilioMqttClient {
      */
     FacilioMqttCallback getCallback();
 
+    /**
+     * Registers a listener notified when the client connects to and disconnects from the server.
+     * @param listener ConnectionListener object
+     */
+    void addConnectionListener(ConnectionListener listener);
+
+    /**
+     * Removes a listener registered with {@link #addConnectionListener(ConnectionListener)}.
+     * @param listener ConnectionListener object
+     */
+    void removeConnectionListener(ConnectionListener listener);
+
     /**
      * Connects to an MQTT server using the default options.
      * <p>The default options are specified in {@link FacilioMqttConnectOptions} class.
@@ -103,7 +125,8 @@ public interface FacilioMqttClient {
 
 
     /**
-     * publish payload to the mentioned topic with the given QOS
+     * publish payload to the mentioned topic with the given QOS.
+     * The payload array is not copied, so it must not be modified until the message is delivered.
      * @param topic name to publish the message
      * @param payload actual message
      * @param qos for this message
@@ -129,6 +152,137 @@ public interface FacilioMqttClient {
      */
     void publish(String topic, String payload, int qos) throws FacilioMqttException;
 
+    /**
+     * publish the remaining bytes of the buffer to the mentioned topic with the given QOS.
+     * A heap buffer covering exactly its whole array is published without a copy and must not be modified afterwards,
+     * any other buffer, including direct buffers, is copied once and can be reused when this method returns.
+     * The position of the buffer is moved to its limit.
+     * The default implementation copies the bytes and publishes them with {@link #publish(String, byte[], int)}.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    default void publish(String topic, ByteBuffer payload, int qos) throws FacilioMqttException {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        publish(topic, bytes, qos);
+    }
+
+    /**
+     * publish payload to the mentioned topic with the given QOS without waiting for the acknowledgement.
+     * The returned future is completed with a {@link DeliveryReceipt} once the server acknowledges the message,
+     * or exceptionally with {@link FacilioMqttException} if the publish fails or times out.
+     * The payload array is not copied, so it must not be modified until the future is completed.
+     * The calling thread is parked while {@link FacilioMqttConnectOptions#getMaxInflight()} messages are unacknowledged.
+     * The default implementation publishes with {@link #publish(String, byte[], int)} and returns a completed future.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @return future completed when the message is delivered
+     */
+    default CompletableFuture<DeliveryReceipt> publishAsync(String topic, byte[] payload, int qos) {
+        CompletableFuture<DeliveryReceipt> future = new CompletableFuture<>();
+        long startTime = System.nanoTime();
+        try {
+            publish(topic, payload, qos);
+            future.complete(new DeliveryReceipt(topic, 0, System.nanoTime() - startTime));
+        } catch (FacilioMqttException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * publish the remaining bytes of the buffer to the mentioned topic with the given QOS without waiting for the acknowledgement.
+     * The buffer is handled as in {@link #publish(String, ByteBuffer, int)}.
+     * The default implementation copies the bytes and publishes them with {@link #publishAsync(String, byte[], int)}.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @return future completed when the message is delivered
+     */
+    default CompletableFuture<DeliveryReceipt> publishAsync(String topic, ByteBuffer payload, int qos) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return publishAsync(topic, bytes, qos);
+    }
+
+    /**
+     * publish payload to the mentioned topic with the given QOS in the lane of the priority.
+     * Critical messages overtake buffered and in-flight messages of lower priorities.
+     * The call waits for the acknowledgement exactly when {@link #publish(String, byte[], int)} does, and returns
+     * right away if the message is taken by the journal or the offline buffer.
+     * The default implementation ignores the priority and publishes with {@link #publish(String, byte[], int)}.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @param priority priority of the message
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    default void publish(String topic, byte[] payload, int qos, Priority priority) throws FacilioMqttException {
+        publish(topic, payload, qos);
+    }
+
+    /**
+     * publish payload to the mentioned topic with the given QOS in the lane of the priority without waiting for the acknowledgement.
+     * The calling thread is parked only while the in-flight window is full for the lane.
+     * The default implementation ignores the priority and publishes with {@link #publishAsync(String, byte[], int)}.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @param priority priority of the message
+     * @return future completed when the message is delivered
+     */
+    default CompletableFuture<DeliveryReceipt> publishAsync(String topic, byte[] payload, int qos, Priority priority) {
+        return publishAsync(topic, payload, qos);
+    }
+
+    /**
+     * publish the messages keeping at most {@link FacilioMqttConnectOptions#getMaxInflight()} messages unacknowledged.
+     * The calling thread is parked only while the in-flight window is full, so this should not be called from
+     * a {@link FacilioMqttCallback} method.
+     * The default implementation publishes the messages one after the other with
+     * {@link #publish(String, byte[], int, Priority)} and returns a completed future.
+     * @param messages messages to publish
+     * @return future completed with a {@link BatchReceipt} when every message is either acknowledged or failed
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    default CompletableFuture<BatchReceipt> publishBatch(Collection<OutboundMessage> messages) throws FacilioMqttException {
+        long startTime = System.nanoTime();
+        int delivered = 0;
+        List<OutboundMessage> failed = new ArrayList<>();
+        for (OutboundMessage message : messages) {
+            try {
+                publish(message.getTopic(), message.getPayload(), message.getQos(), message.getPriority());
+                delivered++;
+            } catch (FacilioMqttException e) {
+                failed.add(message);
+            }
+        }
+        return CompletableFuture.completedFuture(new BatchReceipt(delivered, failed, System.nanoTime() - startTime));
+    }
+
+    /**
+     * Returns how long publishes waited for the rate limits set with {@link FacilioMqttConnectOptions#setPublishRateLimit(RateLimit)}
+     * and {@link FacilioMqttConnectOptions#addTopicRateLimit(String, RateLimit)}.
+     * The default implementation reports no waits.
+     * @return rate limit metrics
+     */
+    default RateLimitMetrics getRateLimitMetrics() {
+        return new RateLimitMetrics(0, 0, 0, 0);
+    }
+
+    /**
+     * Returns how many received messages were delivered to the callback, how long the callback took
+     * and how many messages are queued for the dispatch threads set with {@link FacilioMqttConnectOptions#setDispatchMode(DispatchMode)}.
+     * The default implementation reports no messages.
+     * @return dispatch metrics
+     */
+    default DispatchMetrics getDispatchMetrics() {
+        return new DispatchMetrics(0, 0, new int[0], 0, 0, 0, 0, 0, 0, 0, new long[0]);
+    }
+
     /**
      * Subscribe to the topic.
      * @param topic to subscribe
@@ -144,10 +298,156 @@ public interface FacilioMqttClient {
      */
     void subscribe(String topic, int qos) throws FacilioMqttException;
 
+    /**
+     * Subscribe to the topic filter with the given QOS and deliver its messages to the handler.
+     * Messages are matched against the filters of all the handlers, with '+' and '#' wildcards, and a message
+     * is passed to every matching handler; messages without a matching handler go to the {@link FacilioMqttCallback}.
+     * Unsubscribing the filter removes its handlers.
+     * @param topic filter to subscribe
+     * @param qos for the topic
+     * @param handler receives the messages matching the filter
+     * @throws FacilioMqttException if any problem was encountered
+     * @throws IllegalArgumentException if the handler is null or the filter is not valid
+     */
+    void subscribe(String topic, int qos, MessageHandler handler) throws FacilioMqttException;
+
+    /**
+     * Subscribe to the topic filter with the given QOS and deliver to the handler the messages its content filter matches.
+     * The content filter is evaluated on the raw payload by the thread receiving the message. A message rejected by the
+     * content filters of every subscription its topic matches is acknowledged and discarded without being dispatched
+     * or passed to the {@link FacilioMqttCallback}, and counted by {@link DispatchMetrics#getFilteredCount()}.
+     * Messages are otherwise matched as for {@link #subscribe(String, int, MessageHandler)}.
+     * The default implementation subscribes with {@link #subscribe(String, int, MessageHandler)} and evaluates the content
+     * filter when the message is delivered, so rejected messages are dispatched and not counted.
+     * @param topic filter to subscribe
+     * @param qos for the topic
+     * @param filter content filter of the messages
+     * @param handler receives the messages matching the topic filter and the content filter
+     * @throws FacilioMqttException if any problem was encountered
+     * @throws IllegalArgumentException if the content filter or the handler is null or the filter is not valid
+     */
+    default void subscribe(String topic, int qos, ContentFilter filter, MessageHandler handler) throws FacilioMqttException {
+        if (filter == null || handler == null) {
+            throw new IllegalArgumentException();
+        }
+        subscribe(topic, qos, message -> {
+            if (filter.matches(message)) {
+                handler.onMessage(message);
+            }
+        });
+    }
+
+    /**
+     * Subscribe to the topic filter with the given QOS and deliver its messages to the handler in batches.
+     * A batch is handed over when it holds max messages messages, when its payloads add up to max bytes, or when its
+     * first message has waited for the linger time. Messages are matched as for {@link #subscribe(String, int, MessageHandler)}.
+     * <p>
+     * The Paho based clients acknowledge a QoS 1 or 2 message only when the handler has returned for its batch, and leave
+     * it unacknowledged if the handler throws, so the server redelivers it when the session is resumed. The server stops
+     * sending once its window of unacknowledged messages is full, so max messages should stay below that window, or the
+     * batches of a QoS 1 subscription will be handed over by the linger time. The AWS IoT client acknowledges messages
+     * as they arrive.
+     * @param topic filter to subscribe
+     * @param qos for the topic
+     * @param handler receives the batches of messages matching the filter
+     * @param maxMessages maximum number of messages in a batch
+     * @param maxBytes payload size in bytes at which a batch is handed over
+     * @param linger maximum time in milliseconds a message waits for the batch to fill up
+     * @throws FacilioMqttException if any problem was encountered
+     * @throws IllegalArgumentException if the handler is null, a limit is not positive or the filter is not valid
+     */
+    void subscribe(String topic, int qos, BatchMessageHandler handler, int maxMessages, int maxBytes, long linger) throws FacilioMqttException;
+
+    /**
+     * Subscribe to the topic filters with the given QOS and wait until the server has acknowledged them.
+     * The default implementation subscribes the filters one after the other with {@link #subscribe(String, int)}.
+     * @param topics filters to subscribe
+     * @param qos for each filter
+     * @throws FacilioMqttException if any filter could not be subscribed or the server did not answer within the subscribe timeout
+     * @throws IllegalArgumentException if a filter is null or the qos are not given for every filter
+     * @see #subscribeAsync(String[], int[])
+     */
+    default void subscribe(String[] topics, int[] qos) throws FacilioMqttException {
+        if (topics == null || qos == null || qos.length != topics.length) {
+            throw new IllegalArgumentException();
+        }
+        for (String topic : topics) {
+            if (topic == null) {
+                throw new IllegalArgumentException();
+            }
+        }
+        for (int i = 0; i < topics.length; i++) {
+            subscribe(topics[i], qos[i]);
+        }
+    }
+
+    /**
+     * Subscribe to the topic filters with the given QOS without waiting for the server.
+     * The Paho based clients send the filters in one request. The AWS IoT client sends one request per filter, all
+     * of them at once unless a subscribe rate limit is set, see {@link FacilioMqttConnectOptions#setSubscribeRateLimit(RateLimit)}.
+     * The future fails if the server refuses any of the filters or does not answer within the subscribe timeout,
+     * see {@link FacilioMqttConnectOptions#setSubscribeTimeout(long)}.
+     * The default implementation subscribes with {@link #subscribe(String[], int[])} and returns a completed future.
+     * @param topics filters to subscribe
+     * @param qos for each filter
+     * @return future completed when every filter is subscribed
+     * @throws IllegalArgumentException if a filter is null or the qos are not given for every filter
+     */
+    default CompletableFuture<Void> subscribeAsync(String[] topics, int[] qos) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            subscribe(topics, qos);
+            future.complete(null);
+        } catch (FacilioMqttException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
     /**
      * Unsubscribe the topic
      * @param topic to unsubscribe
      * @throws FacilioMqttException if any problem was encountered
      */
     void unsubscribe(String topic) throws FacilioMqttException;
+
+    /**
+     * Unsubscribe the topic filters and wait until the server has acknowledged them. The handlers of the filters are removed.
+     * The default implementation unsubscribes the filters one after the other with {@link #unsubscribe(String)}.
+     * @param topics filters to unsubscribe
+     * @throws FacilioMqttException if the filters could not be unsubscribed or the server did not answer within the subscribe timeout
+     * @throws IllegalArgumentException if a filter is null
+     */
+    default void unsubscribe(String[] topics) throws FacilioMqttException {
+        if (topics == null) {
+            throw new IllegalArgumentException();
+        }
+        for (String topic : topics) {
+            if (topic == null) {
+                throw new IllegalArgumentException();
+            }
+        }
+        for (String topic : topics) {
+            unsubscribe(topic);
+        }
+    }
+
+    /**
+     * Unsubscribe the topic filters without waiting for the server, sending them as {@link #subscribeAsync(String[], int[])} does.
+     * The handlers of the filters are removed once the server has acknowledged them.
+     * The default implementation unsubscribes with {@link #unsubscribe(String[])} and returns a completed future.
+     * @param topics filters to unsubscribe
+     * @return future completed when every filter is unsubscribed
+     * @throws IllegalArgumentException if a filter is null
+     */
+    default CompletableFuture<Void> unsubscribeAsync(String[] topics) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            unsubscribe(topics);
+            future.complete(null);
+        } catch (FacilioMqttException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
 }
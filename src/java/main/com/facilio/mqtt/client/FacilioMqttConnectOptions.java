@@ -1,15 +1,20 @@
 package com.facilio.mqtt.client;
 
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.KeyStore;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 
 
 public class FacilioMqttConnectOptions extends MqttConnectOptions {
 
+    public static final int DEFAULT_VIRTUAL_DISPATCH_STRIPES = 1024;
 
     /**
      * Constructs a new <code>FacilioMqttConnectOptions</code> object using the
@@ -27,6 +32,27 @@ public class FacilioMqttConnectOptions extends MqttConnectOptions {
     private String serverUri;
     private KeyStore keyStore;
     private String keyPair;
+    private int offlineBufferSize;
+    private long offlineBufferBytes = Long.MAX_VALUE;
+    private OfflineBufferPolicy offlineBufferPolicy = OfflineBufferPolicy.DROP_OLDEST;
+    private boolean journalEnabled;
+    private String journalDirectory;
+    private int journalSegmentSize = 64 * 1024 * 1024;
+    private long journalFlushInterval = 1000;
+    private MqttClientPersistence persistence;
+    private PayloadCodec payloadCodec;
+    private int compressionThreshold = 512;
+    private RateLimit publishRateLimit;
+    private int reservedInflight = -1;
+    private DispatchMode dispatchMode = DispatchMode.CALLER_RUNS;
+    private int dispatchThreads = -1;
+    private int inboundQueueSize;
+    private InboundQueuePolicy inboundQueuePolicy = InboundQueuePolicy.BLOCK;
+    private boolean manualAcks;
+    private long subscribeTimeout = 10000;
+    private RateLimit subscribeRateLimit;
+    private boolean uncopiedAwsPayloads;
+    private final Map<String, RateLimit> topicRateLimits = new LinkedHashMap<>();
 
     /**
      * Returns the endpoint for the Mqtt server url
@@ -88,4 +114,426 @@ public class FacilioMqttConnectOptions extends MqttConnectOptions {
         this.keyPair = keyPair;
     }
 
+    /**
+     * Returns the maximum number of messages held while the client is not connected
+     * @return offline buffer size, 0 if offline buffering is disabled
+     */
+    public int getOfflineBufferSize() {
+        return offlineBufferSize;
+    }
+
+    /**
+     * Sets the maximum number of messages held while the client is not connected.
+     * Buffered messages are published in order once the connection is established again.
+     * The size applies to each {@link Priority} separately.
+     * The default value is 0, which disables offline buffering.
+     * @param offlineBufferSize offline buffer size
+     */
+    public void setOfflineBufferSize(int offlineBufferSize) {
+        if (offlineBufferSize < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.offlineBufferSize = offlineBufferSize;
+    }
+
+    /**
+     * Returns the maximum number of payload bytes held while the client is not connected
+     * @return offline buffer limit in bytes
+     */
+    public long getOfflineBufferBytes() {
+        return offlineBufferBytes;
+    }
+
+    /**
+     * Sets the maximum number of payload bytes held while the client is not connected.
+     * The default value is unlimited.
+     * @param offlineBufferBytes offline buffer limit in bytes
+     */
+    public void setOfflineBufferBytes(long offlineBufferBytes) {
+        if (offlineBufferBytes <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.offlineBufferBytes = offlineBufferBytes;
+    }
+
+    /**
+     * Returns the policy applied when the offline buffer is full
+     * @return offline buffer policy
+     */
+    public OfflineBufferPolicy getOfflineBufferPolicy() {
+        return offlineBufferPolicy;
+    }
+
+    /**
+     * Sets the policy applied when the offline buffer is full.
+     * The default value is {@link OfflineBufferPolicy#DROP_OLDEST}.
+     * @param offlineBufferPolicy offline buffer policy
+     */
+    public void setOfflineBufferPolicy(OfflineBufferPolicy offlineBufferPolicy) {
+        if (offlineBufferPolicy == null) {
+            throw new IllegalArgumentException();
+        }
+        this.offlineBufferPolicy = offlineBufferPolicy;
+    }
+
+    /**
+     * Returns true if published messages are written to the outbound journal before they are sent
+     * @return true if the journal is enabled
+     */
+    public boolean isJournalEnabled() {
+        return journalEnabled;
+    }
+
+    /**
+     * Sets whether published messages are written to a persistent outbound journal before they are sent.
+     * Journaled messages survive restarts of the application and are replayed once the client is connected.
+     * When enabled, the journal takes the place of the offline buffer. The default value is false.
+     * @param journalEnabled true to enable the journal
+     */
+    public void setJournalEnabled(boolean journalEnabled) {
+        this.journalEnabled = journalEnabled;
+    }
+
+    /**
+     * Returns the directory the outbound journal is kept in
+     * @return journal directory, null if the default directory is used
+     */
+    public String getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    /**
+     * Sets the directory the outbound journal is kept in.
+     * By default the journal is kept in user.home/facilio/journal/clientId. The directory is locked by the client
+     * which opens it, so it can not be shared by several clients or by the connections of a pooled client.
+     * @param journalDirectory journal directory
+     */
+    public void setJournalDirectory(String journalDirectory) {
+        this.journalDirectory = journalDirectory;
+    }
+
+    /**
+     * Returns the size of each journal segment file in bytes
+     * @return journal segment size
+     */
+    public int getJournalSegmentSize() {
+        return journalSegmentSize;
+    }
+
+    /**
+     * Sets the size of each journal segment file in bytes. A message larger than a segment can not be journaled.
+     * The default value is 64 MB.
+     * @param journalSegmentSize journal segment size
+     */
+    public void setJournalSegmentSize(int journalSegmentSize) {
+        if (journalSegmentSize < 1024) {
+            throw new IllegalArgumentException();
+        }
+        this.journalSegmentSize = journalSegmentSize;
+    }
+
+    /**
+     * Returns the interval in milliseconds between forcing the journal to disk
+     * @return journal flush interval
+     */
+    public long getJournalFlushInterval() {
+        return journalFlushInterval;
+    }
+
+    /**
+     * Sets the interval in milliseconds between forcing the journal and its checkpoint to disk.
+     * Messages appended within the last interval can be lost if the machine loses power.
+     * The default value is 1000.
+     * @param journalFlushInterval journal flush interval
+     */
+    public void setJournalFlushInterval(long journalFlushInterval) {
+        if (journalFlushInterval <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.journalFlushInterval = journalFlushInterval;
+    }
+
+    /**
+     * Returns the persistence used to store in-flight QOS 1 and 2 messages
+     * @return persistence, null if the default file persistence is used
+     */
+    public MqttClientPersistence getPersistence() {
+        return persistence;
+    }
+
+    /**
+     * Sets the persistence used by AsyncMqttClient and MQTTClient to store in-flight QOS 1 and 2 messages,
+     * for example {@link com.facilio.mqtt.client.impl.MappedLogPersistence} or
+     * {@link org.eclipse.paho.client.mqttv3.persist.MemoryPersistence}.
+     * It is used when the client is first connected. By default one file is written per in-flight message.
+     * A persistence instance holds the messages of one client, so it can not be shared by several clients or by
+     * the connections of a pooled client.
+     * @param persistence persistence
+     */
+    public void setPersistence(MqttClientPersistence persistence) {
+        this.persistence = persistence;
+    }
+
+    /**
+     * Returns the codec used to compress published payloads and decompress received ones
+     * @return payload codec, null if payloads are not compressed
+     */
+    public PayloadCodec getPayloadCodec() {
+        return payloadCodec;
+    }
+
+    /**
+     * Sets the codec used to compress published payloads and decompress received ones, for example {@link DeflateCodec}.
+     * Received payloads which are not encoded by the same codec are delivered as they are.
+     * @param payloadCodec payload codec, null to disable compression
+     */
+    public void setPayloadCodec(PayloadCodec payloadCodec) {
+        this.payloadCodec = payloadCodec;
+    }
+
+    /**
+     * Returns the size in bytes below which payloads are not compressed
+     * @return compression threshold
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Sets the size in bytes below which payloads are published without compression.
+     * The default value is 512.
+     * @param compressionThreshold compression threshold
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Returns the rate limit applied to every publish of the client
+     * @return publish rate limit, null if publishes are not limited
+     */
+    public RateLimit getPublishRateLimit() {
+        return publishRateLimit;
+    }
+
+    /**
+     * Sets the rate limit applied to every publish of the client, for example 100 per second for AWS IoT.
+     * Publishes over the limit are delayed, blocking publishes park the calling thread and asynchronous ones are sent later.
+     * It is read when the client first publishes.
+     * @param publishRateLimit publish rate limit, null to not limit publishes
+     */
+    public void setPublishRateLimit(RateLimit publishRateLimit) {
+        this.publishRateLimit = publishRateLimit;
+    }
+
+    /**
+     * Returns the rate limits applied to the topics starting with each prefix
+     * @return rate limits by topic prefix
+     */
+    public Map<String, RateLimit> getTopicRateLimits() {
+        return Collections.unmodifiableMap(topicRateLimits);
+    }
+
+    /**
+     * Adds a rate limit applied to the publishes to topics starting with the prefix, on top of the publish rate limit.
+     * When a topic matches several prefixes the longest one applies.
+     * @param topicPrefix prefix of the topics
+     * @param rateLimit rate limit of the topics
+     */
+    public void addTopicRateLimit(String topicPrefix, RateLimit rateLimit) {
+        if (topicPrefix == null || rateLimit == null) {
+            throw new IllegalArgumentException();
+        }
+        topicRateLimits.put(topicPrefix, rateLimit);
+    }
+
+    /**
+     * Returns the number of in-flight slots kept for {@link Priority#CRITICAL} messages
+     * @return reserved in-flight slots, -1 if a tenth of max inflight is reserved
+     */
+    public int getReservedInflight() {
+        return reservedInflight;
+    }
+
+    /**
+     * Sets the number of slots of the in-flight window which only {@link Priority#CRITICAL} messages can use,
+     * so that alarms get through while the other lanes fill the window.
+     * The default value is -1, which reserves a tenth of max inflight and at least one slot.
+     * @param reservedInflight reserved in-flight slots, must be less than max inflight
+     */
+    public void setReservedInflight(int reservedInflight) {
+        if (reservedInflight < -1) {
+            throw new IllegalArgumentException();
+        }
+        this.reservedInflight = reservedInflight;
+    }
+
+    /**
+     * Returns the mode used to deliver received messages to the callback
+     * @return dispatch mode
+     */
+    public DispatchMode getDispatchMode() {
+        return dispatchMode;
+    }
+
+    /**
+     * Sets the mode used to deliver received messages to the callback.
+     * In the pooled modes a message is acknowledged to the server once it is queued, not once the callback returns.
+     * The default value is {@link DispatchMode#CALLER_RUNS}.
+     * @param dispatchMode dispatch mode
+     */
+    public void setDispatchMode(DispatchMode dispatchMode) {
+        if (dispatchMode == null) {
+            throw new IllegalArgumentException();
+        }
+        this.dispatchMode = dispatchMode;
+    }
+
+    /**
+     * Returns the number of threads delivering received messages in the pooled dispatch modes
+     * @return dispatch threads, -1 if one thread per available processor is used
+     */
+    public int getDispatchThreads() {
+        return dispatchThreads;
+    }
+
+    /**
+     * Sets the number of threads delivering received messages in the pooled dispatch modes.
+     * The default value is -1, which uses one thread per available processor.
+     * With {@link DispatchMode#VIRTUAL_THREADS} this is the number of stripes, that is the number of virtual threads
+     * which can run the callback at the same time, and -1 uses {@link #DEFAULT_VIRTUAL_DISPATCH_STRIPES}.
+     * @param dispatchThreads dispatch threads
+     */
+    public void setDispatchThreads(int dispatchThreads) {
+        if (dispatchThreads < -1 || dispatchThreads == 0) {
+            throw new IllegalArgumentException();
+        }
+        this.dispatchThreads = dispatchThreads;
+    }
+
+    /**
+     * Returns the maximum number of received messages waiting for the dispatch threads
+     * @return inbound queue size, 0 if the queue is not bounded
+     */
+    public int getInboundQueueSize() {
+        return inboundQueueSize;
+    }
+
+    /**
+     * Sets the maximum number of received messages waiting for the dispatch threads, over all the stripes.
+     * It only applies to the pooled dispatch modes, in {@link DispatchMode#CALLER_RUNS} nothing is queued.
+     * The default value is 0, which does not bound the queue.
+     * @param inboundQueueSize inbound queue size
+     */
+    public void setInboundQueueSize(int inboundQueueSize) {
+        if (inboundQueueSize < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.inboundQueueSize = inboundQueueSize;
+    }
+
+    /**
+     * Returns the policy applied when the inbound queue is full
+     * @return inbound queue policy
+     */
+    public InboundQueuePolicy getInboundQueuePolicy() {
+        return inboundQueuePolicy;
+    }
+
+    /**
+     * Sets the policy applied when the inbound queue is full.
+     * The default value is {@link InboundQueuePolicy#BLOCK}.
+     * @param inboundQueuePolicy inbound queue policy
+     */
+    public void setInboundQueuePolicy(InboundQueuePolicy inboundQueuePolicy) {
+        if (inboundQueuePolicy == null) {
+            throw new IllegalArgumentException();
+        }
+        this.inboundQueuePolicy = inboundQueuePolicy;
+    }
+
+    /**
+     * Returns true if received messages are acknowledged by the application
+     * @return true if manual acknowledgements are enabled
+     */
+    public boolean isManualAcks() {
+        return manualAcks;
+    }
+
+    /**
+     * Sets whether received messages are acknowledged by the application.
+     * With manual acknowledgements a QoS 1 or 2 message is acknowledged to the server only when
+     * {@link Acknowledgement#acknowledge()} is called on {@link ReceivedMessage#getAcknowledgement()}, from any thread.
+     * The server stops sending once it has max inflight unacknowledged messages, so a slow application holds
+     * back the server instead of queueing messages. Messages dropped by the {@link InboundQueuePolicy} or without a
+     * handler or callback are acknowledged by the client. The setting is read when the client connects.
+     * The default value is false, messages are acknowledged once the callback returns.
+     * @param manualAcks true to acknowledge messages from the application
+     */
+    public void setManualAcks(boolean manualAcks) {
+        this.manualAcks = manualAcks;
+    }
+
+    /**
+     * Returns the time in milliseconds to wait for the server to acknowledge a subscribe or unsubscribe
+     * @return subscribe timeout
+     */
+    public long getSubscribeTimeout() {
+        return subscribeTimeout;
+    }
+
+    /**
+     * Sets the time in milliseconds to wait for the server to acknowledge a subscribe or unsubscribe, after which
+     * the request fails with a timeout. The default value is 10000.
+     * @param subscribeTimeout subscribe timeout in milliseconds
+     */
+    public void setSubscribeTimeout(long subscribeTimeout) {
+        if (subscribeTimeout <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.subscribeTimeout = subscribeTimeout;
+    }
+
+    /**
+     * Returns the limit of subscribe and unsubscribe requests sent by the AWS client
+     * @return subscribe rate limit, null if not limited
+     */
+    public RateLimit getSubscribeRateLimit() {
+        return subscribeRateLimit;
+    }
+
+    /**
+     * Sets the limit of subscribe and unsubscribe requests sent by the AWS client, which sends one request per topic
+     * filter. AWS IoT Core accepts 8 subscribe requests per second on a connection, so subscribing many filters at
+     * once needs <code>new RateLimit(8, 8)</code>, or spreading the filters over a {@link com.facilio.mqtt.client.impl.PooledFacilioMqttClient}.
+     * The Paho based clients send the filters of a call in one request and are not limited.
+     * The default value is null, requests are not limited.
+     * @param subscribeRateLimit subscribe rate limit, null to remove the limit
+     */
+    public void setSubscribeRateLimit(RateLimit subscribeRateLimit) {
+        this.subscribeRateLimit = subscribeRateLimit;
+    }
+
+    /**
+     * Returns whether the AWS client reads the payloads of received messages without copying them
+     * @return true if payloads are not copied
+     */
+    public boolean isUncopiedAwsPayloads() {
+        return uncopiedAwsPayloads;
+    }
+
+    /**
+     * Sets whether the AWS client reads the payload of a received message from the library's message without copying
+     * it. AWSIotMessage.getPayload() copies the payload on every call; this option reads its protected payload field
+     * by reflection instead, as found in aws-iot-device-sdk-java 1.2.0. If the field is missing, is not a byte array
+     * or cannot be made accessible, the payload is copied as by default. The Paho based clients never copy payloads.
+     * The default value is false, payloads are copied.
+     * @param uncopiedAwsPayloads true to read payloads without copying them
+     */
+    public void setUncopiedAwsPayloads(boolean uncopiedAwsPayloads) {
+        this.uncopiedAwsPayloads = uncopiedAwsPayloads;
+    }
 }
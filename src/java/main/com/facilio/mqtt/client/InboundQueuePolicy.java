@@ -0,0 +1,31 @@
+package com.facilio.mqtt.client;
+
+/**
+ * InboundQueuePolicy decides what happens to a received message when the inbound queue is full.
+ * The inbound queue holds the messages waiting for the dispatch threads, see {@link DispatchMode}.
+ */
+public enum InboundQueuePolicy {
+
+    /**
+     * Parks the thread of the MQTT library receiving the message until queued messages are delivered.
+     * No message is lost, and the server is held back once the socket buffers fill up. Callbacks should not
+     * wait for the acknowledgement of a publish meanwhile, as acknowledgements are completed by the same thread.
+     */
+    BLOCK,
+
+    /**
+     * Evicts the message which has been queued longest, over all the dispatch stripes, to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Discards the received message.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Replaces the queued message of the same topic with the received one, so only the latest message of a
+     * topic is delivered. When no message of the topic is queued the receiving thread is parked as with {@link #BLOCK}.
+     */
+    CONFLATE
+}
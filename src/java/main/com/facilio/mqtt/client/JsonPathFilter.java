@@ -0,0 +1,243 @@
+package com.facilio.mqtt.client;
+
+import com.facilio.mqtt.util.JsonScanner;
+import com.facilio.mqtt.util.JsonWriter;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link ContentFilter} testing the value of a field of a JSON payload, found by a dotted path compiled to the
+ * UTF-8 bytes of its field names. Strings and booleans are compared as bytes, numbers are parsed in place, falling
+ * back to {@link Double#parseDouble(String)} only for numbers with more than 15 significant digits or a large exponent.
+ */
+abstract class JsonPathFilter implements ContentFilter {
+
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final String path;
+    private final byte[][] names;
+
+    /**
+     * Constructs a JsonPathFilter.
+     * @param path dotted path of the field
+     * @throws IllegalArgumentException if the path is null or has an empty field name
+     */
+    JsonPathFilter(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException();
+        }
+        String[] segments = path.split("\\.", -1);
+        this.names = new byte[segments.length][];
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i].isEmpty()) {
+                throw new IllegalArgumentException("Empty field name in " + path);
+            }
+            names[i] = segments[i].getBytes(StandardCharsets.UTF_8);
+        }
+        this.path = path;
+    }
+
+    static JsonPathFilter exists(String path) {
+        return new JsonPathFilter(path) {
+            boolean test(byte[] payload, int start, int end) {
+                return true;
+            }
+        };
+    }
+
+    static JsonPathFilter equalTo(String path, String value) {
+        if (value == null) {
+            throw new IllegalArgumentException();
+        }
+        byte[] quoted = JsonWriter.toJson(value);
+        return new JsonPathFilter(path) {
+            boolean test(byte[] payload, int start, int end) {
+                return start + quoted.length <= end && JsonScanner.regionEquals(payload, start, start + quoted.length, quoted);
+            }
+        };
+    }
+
+    static JsonPathFilter equalTo(String path, long value) {
+        return new JsonPathFilter(path) {
+            boolean test(byte[] payload, int start, int end) {
+                int valueEnd = JsonScanner.skipValue(payload, start, end);
+                if (valueEnd < 0) {
+                    return false;
+                }
+                long exact = parseLong(payload, start, valueEnd);
+                if (exact != Long.MIN_VALUE || value == Long.MIN_VALUE) {
+                    return exact == value;
+                }
+                return parseDouble(payload, start, valueEnd) == value;
+            }
+        };
+    }
+
+    static JsonPathFilter equalTo(String path, boolean value) {
+        byte[] literal = value ? TRUE : FALSE;
+        return new JsonPathFilter(path) {
+            boolean test(byte[] payload, int start, int end) {
+                return JsonScanner.regionEquals(payload, start, JsonScanner.skipValue(payload, start, end), literal);
+            }
+        };
+    }
+
+    static JsonPathFilter between(String path, double min, double max) {
+        if (Double.isNaN(min) || Double.isNaN(max) || min > max) {
+            throw new IllegalArgumentException();
+        }
+        return new JsonPathFilter(path) {
+            boolean test(byte[] payload, int start, int end) {
+                int valueEnd = JsonScanner.skipValue(payload, start, end);
+                if (valueEnd < 0) {
+                    return false;
+                }
+                double number = parseDouble(payload, start, valueEnd);
+                return number >= min && number <= max;
+            }
+        };
+    }
+
+    /**
+     * Finds the field and tests its value.
+     * @param payload array holding the payload
+     * @param offset offset of the payload in the array
+     * @param length length of the payload
+     * @return true if the field is found and its value passes the test
+     */
+    public boolean matches(byte[] payload, int offset, int length) {
+        int end = offset + length;
+        int position = offset;
+        for (byte[] name : names) {
+            position = JsonScanner.findField(payload, position, end, name);
+            if (position < 0) {
+                return false;
+            }
+        }
+        return test(payload, position, end);
+    }
+
+    /**
+     * Tests the value of the field.
+     * @param payload array holding the payload
+     * @param start position of the value
+     * @param end end of the payload
+     * @return true if the value passes
+     */
+    abstract boolean test(byte[] payload, int start, int end);
+
+    /**
+     * Parses an integer without a fraction or exponent.
+     * @return the integer, or Long.MIN_VALUE if the value is not such an integer or does not fit a long
+     */
+    static long parseLong(byte[] payload, int start, int end) {
+        int i = start;
+        boolean negative = i < end && payload[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end || end - i > 19) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = payload[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+            if (value < 0) {
+                return Long.MIN_VALUE;
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a JSON number.
+     * @return the number, or NaN if the value is not a number
+     */
+    static double parseDouble(byte[] payload, int start, int end) {
+        int i = start;
+        boolean negative = i < end && payload[i] == '-';
+        if (negative) {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean seenDigit = false;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            byte b = payload[i];
+            if (b >= '0' && b <= '9') {
+                seenDigit = true;
+                if (digits < 18) {
+                    if (mantissa != 0 || b != '0') {
+                        digits++;
+                    }
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (fraction) {
+                        exponent--;
+                    }
+                } else if (!fraction) {
+                    exponent++;
+                    digits++;
+                }
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (!seenDigit) {
+            return Double.NaN;
+        }
+        if (i < end) {
+            if (payload[i] != 'e' && payload[i] != 'E') {
+                return Double.NaN;
+            }
+            i++;
+            boolean negativeExponent = i < end && payload[i] == '-';
+            if (i < end && (payload[i] == '-' || payload[i] == '+')) {
+                i++;
+            }
+            if (i == end) {
+                return Double.NaN;
+            }
+            int written = 0;
+            for (; i < end; i++) {
+                int digit = payload[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    return Double.NaN;
+                }
+                written = Math.min(written * 10 + digit, 100000);
+            }
+            exponent += negativeExponent ? -written : written;
+        }
+        double value;
+        if (digits <= 15 && exponent >= -22 && exponent <= 22) {
+            value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        } else {
+            try {
+                value = Math.abs(Double.parseDouble(new String(payload, start, end - start, StandardCharsets.US_ASCII)));
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    public String toString() {
+        return "JsonPathFilter{path=" + path + "}";
+    }
+}
@@ -0,0 +1,16 @@
+package com.facilio.mqtt.client;
+
+/**
+ * MessageHandler receives the messages of the topic filter it was subscribed with using
+ * {@link FacilioMqttClient#subscribe(String, int, MessageHandler)}.
+ * It is called on the thread the message is dispatched on, see {@link FacilioMqttConnectOptions#setDispatchMode(DispatchMode)}.
+ */
+@FunctionalInterface
+public interface MessageHandler {
+
+    /**
+     * Will be called when a message matching the topic filter arrives.
+     * @param message received message
+     */
+    void onMessage(ReceivedMessage message);
+}
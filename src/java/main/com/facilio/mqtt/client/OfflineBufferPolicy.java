@@ -0,0 +1,22 @@
+package com.facilio.mqtt.client;
+
+/**
+ * OfflineBufferPolicy decides what happens to a publish when the offline buffer is full.
+ */
+public enum OfflineBufferPolicy {
+
+    /**
+     * Evicts the oldest buffered messages to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Discards the message being published.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Parks the publishing thread until buffered messages are drained.
+     */
+    BLOCK
+}
@@ -0,0 +1,72 @@
+package com.facilio.mqtt.client;
+
+/**
+ * OutboundMessage holds a payload to be published along with the topic and QOS.
+ * It is used to hand over a group of messages to {@link FacilioMqttClient#publishBatch(java.util.Collection)}.
+ */
+public class OutboundMessage {
+
+    private final String topic;
+    private final byte[] payload;
+    private final int qos;
+    private final Priority priority;
+
+    /**
+     * Constructs a new <code>OutboundMessage</code> of {@link Priority#NORMAL} priority.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     */
+    public OutboundMessage(String topic, byte[] payload, int qos) {
+        this(topic, payload, qos, Priority.NORMAL);
+    }
+
+    /**
+     * Constructs a new <code>OutboundMessage</code>.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @param priority lane the message takes to the connection
+     */
+    public OutboundMessage(String topic, byte[] payload, int qos, Priority priority) {
+        if (priority == null) {
+            throw new IllegalArgumentException();
+        }
+        this.topic = topic;
+        this.payload = payload;
+        this.qos = qos;
+        this.priority = priority;
+    }
+
+    /**
+     * Returns the topic the message should be published to
+     * @return topic name
+     */
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * Returns the payload of the message
+     * @return payload bytes
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Returns the QOS of the message
+     * @return qos
+     */
+    public int getQos() {
+        return qos;
+    }
+
+    /**
+     * Returns the priority of the message
+     * @return priority
+     */
+    public Priority getPriority() {
+        return priority;
+    }
+}
@@ -0,0 +1,52 @@
+package com.facilio.mqtt.client;
+
+import java.io.IOException;
+
+/**
+ * Compresses the payloads published by the client and decompresses the payloads it receives.
+ *
+ * The client frames every encoded payload with a small header carrying the codec id and the original length,
+ * so the codec only deals with the compressed bytes. Payloads that are smaller than
+ * {@link FacilioMqttConnectOptions#getCompressionThreshold()}, or that do not get smaller, are sent as they are.
+ * Implementations are called from many threads and should keep their compressor instances per thread.
+ *
+ * {@link DeflateCodec} is built in, other algorithms such as LZ4 or zstd can be plugged in by implementing this interface.
+ *
+ * <code>
+ *  FacilioMqttConnectOptions options = new FacilioMqttConnectOptions();<br>
+ *  options.setPayloadCodec(new DeflateCodec());<br>
+ * </code>
+ */
+public interface PayloadCodec {
+
+    /**
+     * Returns the id written in the header of the encoded payloads, between 1 and 255.
+     * Publishers and subscribers must use codecs with the same id.
+     * @return codec id
+     */
+    int getId();
+
+    /**
+     * Compresses the source bytes into the target.
+     * @param source bytes to compress
+     * @param offset offset of the first byte in source
+     * @param length number of bytes to compress
+     * @param target array to write the compressed bytes to
+     * @param targetOffset offset in target to start writing at
+     * @param maxLength maximum number of bytes to write
+     * @return number of bytes written, -1 if the compressed bytes do not fit in max length
+     */
+    int encode(byte[] source, int offset, int length, byte[] target, int targetOffset, int maxLength);
+
+    /**
+     * Decompresses the source bytes into the target.
+     * @param source bytes to decompress
+     * @param offset offset of the first byte in source
+     * @param length number of bytes to decompress
+     * @param target array to write the decompressed bytes to
+     * @param targetOffset offset in target to start writing at
+     * @param decodedLength number of bytes the source decompresses to
+     * @throws IOException if the source is not valid
+     */
+    void decode(byte[] source, int offset, int length, byte[] target, int targetOffset, int decodedLength) throws IOException;
+}
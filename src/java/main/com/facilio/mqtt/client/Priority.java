@@ -0,0 +1,40 @@
+package com.facilio.mqtt.client;
+
+/**
+ * Priority decides the lane a message takes to the connection.
+ *
+ * Each priority has its own offline buffer and in-flight lane. When several lanes are waiting, messages are
+ * scheduled in proportion to the weights of the lanes, and a share of the in-flight window is kept for
+ * {@link #CRITICAL} messages only, so alarms are not held up behind a saturated bulk lane.
+ */
+public enum Priority {
+
+    /**
+     * Alarms and other messages which should overtake everything else.
+     */
+    CRITICAL(8),
+
+    /**
+     * Messages published without a priority.
+     */
+    NORMAL(4),
+
+    /**
+     * Routine readings and backlogs which can wait.
+     */
+    BULK(1);
+
+    private final int weight;
+
+    Priority(int weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * Returns the number of messages scheduled from this lane for each message of a lane of weight 1
+     * @return weight
+     */
+    public int getWeight() {
+        return weight;
+    }
+}
@@ -0,0 +1,175 @@
+package com.facilio.mqtt.client;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reactive Streams {@link Subscriber} publishing a stream of {@link OutboundMessage}s through the wrapped {@link FacilioMqttClient}.
+ * On Java 9 and later it is turned into a <code>java.util.concurrent.Flow.Subscriber</code> with
+ * <code>org.reactivestreams.FlowAdapters.toFlowSubscriber</code>.
+ *
+ * At most max inflight messages are requested ahead of their acknowledgement, one more being requested each time a
+ * publish completes, so a fast stream is held back by the server instead of queueing in the client. The stream is
+ * cancelled at the first message which cannot be published, and the completion then fails with its exception;
+ * otherwise it completes once the stream is complete and every message is acknowledged.
+ *
+ * <code>
+ *  PublishingSubscriber sink = new PublishingSubscriber(client, 100);<br>
+ *  readings.map(reading -&gt; new OutboundMessage("telemetry", reading, 1)).subscribe(sink);<br>
+ *  sink.getCompletion().join();<br>
+ * </code>
+ */
+public class PublishingSubscriber implements Subscriber<OutboundMessage> {
+
+    private final FacilioMqttClient client;
+    private final int maxInflight;
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final AtomicLong pendingRequests = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final LongAdder publishedCount = new LongAdder();
+    private volatile Subscription subscription;
+    private volatile boolean cancelled;
+    private volatile boolean upstreamDone;
+    private boolean cancelSent;
+
+    /**
+     * Constructs a PublishingSubscriber.
+     * @param client client to publish through
+     * @param maxInflight maximum number of messages requested and not yet acknowledged
+     */
+    public PublishingSubscriber(FacilioMqttClient client, int maxInflight) {
+        if (client == null || maxInflight <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.client = client;
+        this.maxInflight = maxInflight;
+    }
+
+    /**
+     * Requests the first max inflight messages. A second subscription is cancelled.
+     * @param subscription subscription to the stream
+     */
+    public void onSubscribe(Subscription subscription) {
+        if (subscription == null) {
+            throw new NullPointerException();
+        }
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        signal(maxInflight);
+    }
+
+    /**
+     * Publishes the message with its priority, requesting one more message once it is acknowledged.
+     * @param message message to publish
+     */
+    public void onNext(OutboundMessage message) {
+        if (message == null) {
+            throw new NullPointerException();
+        }
+        if (cancelled) {
+            return;
+        }
+        inflight.incrementAndGet();
+        CompletableFuture<DeliveryReceipt> future;
+        try {
+            future = client.publishAsync(message.getTopic(), message.getPayload(), message.getQos(), message.getPriority());
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        future.whenComplete((receipt, exception) -> {
+            if (exception != null) {
+                fail(exception instanceof CompletionException && exception.getCause() != null ? exception.getCause() : exception);
+            } else {
+                publishedCount.increment();
+            }
+            if (inflight.decrementAndGet() == 0 && upstreamDone) {
+                completion.complete(null);
+            } else if (exception == null) {
+                signal(1);
+            }
+        });
+    }
+
+    /**
+     * Fails the completion with the error of the stream.
+     * @param throwable error of the stream
+     */
+    public void onError(Throwable throwable) {
+        if (throwable == null) {
+            throw new NullPointerException();
+        }
+        upstreamDone = true;
+        completion.completeExceptionally(throwable);
+    }
+
+    /**
+     * Completes the completion once the messages in flight are acknowledged.
+     */
+    public void onComplete() {
+        upstreamDone = true;
+        if (inflight.get() == 0) {
+            completion.complete(null);
+        }
+    }
+
+    /**
+     * Returns a future completed when the stream is complete and every message is acknowledged, or failed with the
+     * error of the stream or of the first message which could not be published.
+     * @return completion of the stream
+     */
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * Returns the number of messages published and acknowledged
+     * @return published count
+     */
+    public long getPublishedCount() {
+        return publishedCount.sum();
+    }
+
+    private void fail(Throwable throwable) {
+        if (completion.completeExceptionally(throwable)) {
+            cancelled = true;
+            signal(0);
+        }
+    }
+
+    /**
+     * Requests more messages, or cancels the subscription once the stream failed. The calls to the subscription are
+     * made by one thread at a time, as publishes complete on several threads.
+     */
+    private void signal(long n) {
+        pendingRequests.addAndGet(n);
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            if (cancelled) {
+                if (!cancelSent) {
+                    cancelSent = true;
+                    subscription.cancel();
+                }
+            } else {
+                long requests = pendingRequests.getAndSet(0);
+                if (requests > 0) {
+                    subscription.request(requests);
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+}
@@ -0,0 +1,47 @@
+package com.facilio.mqtt.client;
+
+/**
+ * RateLimit is the rate and burst of a publish rate limiter set in {@link FacilioMqttConnectOptions}.
+ *
+ * Publishes are let through at up to permitsPerSecond on average, with up to burst of them back to back after an
+ * idle period. Publishes over the limit are delayed, never failed.
+ */
+public class RateLimit {
+
+    private final double permitsPerSecond;
+    private final int burst;
+
+    /**
+     * Constructs a RateLimit.
+     * @param permitsPerSecond publishes allowed per second
+     * @param burst publishes allowed back to back
+     */
+    public RateLimit(double permitsPerSecond, int burst) {
+        if (!(permitsPerSecond > 0) || burst < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+    }
+
+    /**
+     * Returns the publishes allowed per second
+     * @return permits per second
+     */
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Returns the publishes allowed back to back
+     * @return burst
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimit{permitsPerSecond=" + permitsPerSecond + ", burst=" + burst + "}";
+    }
+}
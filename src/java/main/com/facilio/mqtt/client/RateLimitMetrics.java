@@ -0,0 +1,67 @@
+package com.facilio.mqtt.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RateLimitMetrics is a snapshot of the time publishes of a client waited for the rate limiters.
+ */
+public class RateLimitMetrics {
+
+    private final long permitCount;
+    private final long delayedCount;
+    private final long totalWaitNanos;
+    private final long maxWaitNanos;
+
+    /**
+     * Constructs a new <code>RateLimitMetrics</code>.
+     * @param permitCount number of publishes that went through the rate limiters
+     * @param delayedCount number of publishes that had to wait
+     * @param totalWaitNanos total time waited in nanoseconds
+     * @param maxWaitNanos longest single wait in nanoseconds
+     */
+    public RateLimitMetrics(long permitCount, long delayedCount, long totalWaitNanos, long maxWaitNanos) {
+        this.permitCount = permitCount;
+        this.delayedCount = delayedCount;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    /**
+     * Returns the number of publishes that went through the rate limiters
+     * @return permit count
+     */
+    public long getPermitCount() {
+        return permitCount;
+    }
+
+    /**
+     * Returns the number of publishes that had to wait
+     * @return delayed count
+     */
+    public long getDelayedCount() {
+        return delayedCount;
+    }
+
+    /**
+     * Returns the total time publishes waited in the given unit
+     * @param unit time unit
+     * @return total wait
+     */
+    public long getTotalWait(TimeUnit unit) {
+        return unit.convert(totalWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the longest time a single publish waited in the given unit
+     * @param unit time unit
+     * @return max wait
+     */
+    public long getMaxWait(TimeUnit unit) {
+        return unit.convert(maxWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimitMetrics{permits=" + permitCount + ", delayed=" + delayedCount + ", totalWaitNanos=" + totalWaitNanos + ", maxWaitNanos=" + maxWaitNanos + "}";
+    }
+}
@@ -0,0 +1,181 @@
+package com.facilio.mqtt.client;
+
+import com.facilio.mqtt.util.JsonView;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Message received from the server, passed to {@link FacilioMqttCallback#onMessage(ReceivedMessage)}.
+ *
+ * The payload is exposed as a read-only view over the bytes received, so reading it does not copy them.
+ */
+public class ReceivedMessage {
+
+    private static final Acknowledgement ACKNOWLEDGED = () -> CompletableFuture.completedFuture(null);
+
+    private final String topic;
+    private final byte[] payload;
+    private final int offset;
+    private final int length;
+    private final int qos;
+    private final boolean retained;
+    private final boolean duplicate;
+    private final int messageId;
+    private MqttMessage mqttMessage;
+    private JsonView json;
+
+    /**
+     * Constructs a ReceivedMessage over a message received by the MQTT library.
+     * @param topic name of the topic the message was published to
+     * @param message message received from the server
+     */
+    public ReceivedMessage(String topic, MqttMessage message) {
+        this(topic, message.getPayload(), message.getQos(), message.isRetained(), message.isDuplicate(), message.getId());
+        this.mqttMessage = message;
+    }
+
+    /**
+     * Constructs a ReceivedMessage.
+     * @param topic name of the topic the message was published to
+     * @param payload payload received, not copied
+     * @param qos qos of the message
+     * @param retained true if the message was retained by the server
+     * @param duplicate true if the message may be a redelivery
+     * @param messageId id of the message, 0 if not known
+     */
+    public ReceivedMessage(String topic, byte[] payload, int qos, boolean retained, boolean duplicate, int messageId) {
+        this(topic, payload, 0, payload.length, qos, retained, duplicate, messageId);
+    }
+
+    /**
+     * Constructs a ReceivedMessage over a part of an array, for example one record of a batch.
+     * @param topic name of the topic the message was published to
+     * @param payload array holding the payload, not copied
+     * @param offset offset of the payload in the array
+     * @param length length of the payload
+     * @param qos qos of the message
+     * @param retained true if the message was retained by the server
+     * @param duplicate true if the message may be a redelivery
+     * @param messageId id of the message, 0 if not known
+     */
+    public ReceivedMessage(String topic, byte[] payload, int offset, int length, int qos, boolean retained, boolean duplicate, int messageId) {
+        if (offset < 0 || length < 0 || offset + length > payload.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        this.topic = topic;
+        this.payload = payload;
+        this.offset = offset;
+        this.length = length;
+        this.qos = qos;
+        this.retained = retained;
+        this.duplicate = duplicate;
+        this.messageId = messageId;
+    }
+
+    /**
+     * Returns the name of the topic the message was published to
+     * @return topic name
+     */
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * Returns a read-only view of the payload. Each call returns a new view positioned at the start of the payload.
+     * @return payload
+     */
+    public ByteBuffer getPayload() {
+        return ByteBuffer.wrap(payload, offset, length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns a view of the payload as a JSON object, decoding the fields as they are asked for. The view is created on
+     * first use and shared, so handlers of the same message do not decode a field twice.
+     * @return json view of the payload
+     */
+    public synchronized JsonView getJson() {
+        if (json == null) {
+            json = new JsonView(payload, offset, length);
+        }
+        return json;
+    }
+
+    /**
+     * Returns the length of the payload in bytes
+     * @return payload length
+     */
+    public int getPayloadLength() {
+        return length;
+    }
+
+    byte[] getPayloadArray() {
+        return payload;
+    }
+
+    int getPayloadOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the qos of the message
+     * @return qos
+     */
+    public int getQos() {
+        return qos;
+    }
+
+    /**
+     * Returns true if the message was retained by the server
+     * @return true if retained
+     */
+    public boolean isRetained() {
+        return retained;
+    }
+
+    /**
+     * Returns true if the message may be a redelivery of an earlier one
+     * @return true if duplicate
+     */
+    public boolean isDuplicate() {
+        return duplicate;
+    }
+
+    /**
+     * Returns the id of the message
+     * @return message id, 0 if not known
+     */
+    public int getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * Returns the message as a {@link MqttMessage}, created on first use if the message was not received through the Paho library.
+     * @return mqtt message
+     */
+    public MqttMessage getMqttMessage() {
+        if (mqttMessage == null) {
+            MqttMessage message = new MqttMessage(offset == 0 && length == payload.length ? payload : Arrays.copyOfRange(payload, offset, offset + length));
+            message.setQos(qos);
+            message.setRetained(retained);
+            message.setId(messageId);
+            mqttMessage = message;
+        }
+        return mqttMessage;
+    }
+
+    /**
+     * Returns the handle acknowledging the message to the server, see {@link FacilioMqttConnectOptions#setManualAcks(boolean)}.
+     * The handle of a message which needs no acknowledgement from the client, such as a QoS 0 message, is already acknowledged.
+     * @return acknowledgement of the message
+     */
+    public Acknowledgement getAcknowledgement() {
+        return ACKNOWLEDGED;
+    }
+
+    public String toString() {
+        return "ReceivedMessage{topic=" + topic + ", qos=" + qos + ", payloadLength=" + length + ", messageId=" + messageId + "}";
+    }
+}
@@ -0,0 +1,267 @@
+package com.facilio.mqtt.client;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reactive Streams {@link Publisher} of the messages of a topic filter, for pipelines such as Reactor or Akka Streams.
+ * On Java 9 and later it is turned into a <code>java.util.concurrent.Flow.Publisher</code> with
+ * <code>org.reactivestreams.FlowAdapters.toFlowPublisher</code>.
+ *
+ * The filter is subscribed through the wrapped {@link FacilioMqttClient} with a {@link MessageHandler} when a subscriber
+ * subscribes, and unsubscribed when the subscriber cancels. Messages are passed to the subscriber as it requests them.
+ * Up to buffer size messages wait for demand; when the buffer is full the thread dispatching the message is parked
+ * until the subscriber requests more, as with {@link InboundQueuePolicy#BLOCK}, so the server is held back.
+ * With manual acknowledgements, see {@link FacilioMqttConnectOptions#setManualAcks(boolean)}, a message is
+ * acknowledged once it was passed to the subscriber, so the window of unacknowledged messages follows the demand.
+ *
+ * A publisher serves one subscriber at a time, further subscribers are rejected with an {@link IllegalStateException}
+ * until the current one cancels. The stream does not complete, it ends when the subscriber cancels.
+ *
+ * <code>
+ *  SubscriptionPublisher publisher = new SubscriptionPublisher(client, "site/+/readings", 1, 256);<br>
+ *  Flux.from(publisher).limitRate(64).subscribe(message -&gt; store(message));<br>
+ * </code>
+ */
+public class SubscriptionPublisher implements Publisher<ReceivedMessage> {
+
+    private static final Logger LOGGER = LogManager.getLogger(SubscriptionPublisher.class.getName());
+
+    private final FacilioMqttClient client;
+    private final String topic;
+    private final int qos;
+    private final int bufferSize;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    private enum State {
+        NEW, SUBSCRIBING, ACTIVE, STOPPED
+    }
+
+    /**
+     * Constructs a SubscriptionPublisher.
+     * @param client client to subscribe through
+     * @param topic filter to subscribe, with '+' and '#' wildcards
+     * @param qos for the topic
+     * @param bufferSize maximum number of messages waiting for the demand of the subscriber
+     */
+    public SubscriptionPublisher(FacilioMqttClient client, String topic, int qos, int bufferSize) {
+        if (client == null || topic == null || bufferSize <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.client = client;
+        this.topic = topic;
+        this.qos = qos;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Subscribes the filter and starts passing its messages to the subscriber as it requests them.
+     * @param subscriber subscriber of the messages
+     */
+    public void subscribe(Subscriber<? super ReceivedMessage> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException();
+        }
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Subscription() {
+                public void request(long n) {
+                }
+
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Publisher of " + topic + " already has a subscriber"));
+            return;
+        }
+        FacilioMqttConnectOptions options = client.getConnectOptions();
+        MessageSubscription subscription = new MessageSubscription(subscriber, options != null && options.isManualAcks());
+        subscriber.onSubscribe(subscription);
+        subscription.start();
+    }
+
+    private class MessageSubscription implements Subscription, MessageHandler {
+
+        private final Subscriber<? super ReceivedMessage> subscriber;
+        private final boolean manualAcks;
+        private final ArrayDeque<ReceivedMessage> buffer = new ArrayDeque<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notFull = lock.newCondition();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+        private final AtomicReference<State> state = new AtomicReference<>(State.NEW);
+
+        MessageSubscription(Subscriber<? super ReceivedMessage> subscriber, boolean manualAcks) {
+            this.subscriber = subscriber;
+            this.manualAcks = manualAcks;
+        }
+
+        /**
+         * Subscribes the filter. No lock is held while the client waits for the server; when the subscription is
+         * stopped meanwhile the filter is unsubscribed again here, once the subscribe completed.
+         */
+        void start() {
+            if (cancelled || !state.compareAndSet(State.NEW, State.SUBSCRIBING)) {
+                return;
+            }
+            try {
+                client.subscribe(topic, qos, this);
+            } catch (FacilioMqttException | IllegalArgumentException e) {
+                if (!state.compareAndSet(State.SUBSCRIBING, State.NEW)) {
+                    subscribed.set(false);
+                }
+                error = e;
+                drain();
+                return;
+            }
+            if (!state.compareAndSet(State.SUBSCRIBING, State.ACTIVE)) {
+                unsubscribe();
+                subscribed.set(false);
+            }
+        }
+
+        public void onMessage(ReceivedMessage message) {
+            boolean queued = false;
+            lock.lock();
+            try {
+                while (buffer.size() >= bufferSize && !cancelled) {
+                    notFull.awaitUninterruptibly();
+                }
+                if (!cancelled) {
+                    buffer.offer(message);
+                    queued = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (queued) {
+                drain();
+            } else if (manualAcks) {
+                message.getAcknowledgement().acknowledge();
+            }
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Non-positive request " + n);
+            } else {
+                long current;
+                do {
+                    current = requested.get();
+                } while (current != Long.MAX_VALUE && !requested.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+            }
+            drain();
+        }
+
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            lock.lock();
+            try {
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            drain();
+            ForkJoinPool.commonPool().execute(this::stop);
+        }
+
+        /**
+         * Unsubscribes the filter, off the dispatching thread as the client waits for the server.
+         * A subscribe still in progress is undone by {@link #start()} once it completes.
+         */
+        private void stop() {
+            State previous = state.getAndSet(State.STOPPED);
+            if (previous == State.ACTIVE) {
+                unsubscribe();
+            }
+            if (previous != State.SUBSCRIBING && previous != State.STOPPED) {
+                subscribed.set(false);
+            }
+        }
+
+        private void unsubscribe() {
+            try {
+                client.unsubscribe(topic);
+            } catch (FacilioMqttException e) {
+                LOGGER.info("Exception while unsubscribing " + topic + " " + e.getMessage());
+            }
+        }
+
+        private ReceivedMessage poll() {
+            lock.lock();
+            try {
+                ReceivedMessage message = buffer.poll();
+                if (message != null) {
+                    notFull.signal();
+                }
+                return message;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Passes the buffered messages to the subscriber up to its demand. Only one thread drains at a time,
+         * a thread finding another one draining leaves its work to it.
+         */
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (cancelled) {
+                    clear();
+                } else if (error != null) {
+                    cancel();
+                    subscriber.onError(error);
+                } else {
+                    long demand = requested.get();
+                    long emitted = 0;
+                    ReceivedMessage message;
+                    while (emitted != demand && !cancelled && (message = poll()) != null) {
+                        try {
+                            subscriber.onNext(message);
+                        } catch (RuntimeException e) {
+                            LOGGER.info("Exception in subscriber of " + topic + " " + e.getMessage());
+                            cancel();
+                        }
+                        if (manualAcks) {
+                            message.getAcknowledgement().acknowledge();
+                        }
+                        emitted++;
+                    }
+                    if (emitted > 0 && demand != Long.MAX_VALUE) {
+                        requested.addAndGet(-emitted);
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void clear() {
+            ReceivedMessage message;
+            while ((message = poll()) != null) {
+                if (manualAcks) {
+                    message.getAcknowledgement().acknowledge();
+                }
+            }
+        }
+    }
+}
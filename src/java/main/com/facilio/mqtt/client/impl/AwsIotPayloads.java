@@ -0,0 +1,60 @@
+package com.facilio.mqtt.client.impl;
+
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Reads the payload of messages received by the AWS IoT library without copying it, used only when
+ * {@link com.facilio.mqtt.client.FacilioMqttConnectOptions#setUncopiedAwsPayloads(boolean)} is set.
+ *
+ * {@link AWSIotMessage#getPayload()} returns a copy of the payload on every call. The library creates a new message,
+ * with its own copy of the payload, for each message received, so the protected <code>byte[] payload</code> field of
+ * AWSIotMessage, as declared in aws-iot-device-sdk-java 1.2.0, is read directly instead. The field is looked up and
+ * its type checked once, when this class is loaded; if it is missing, has another type or cannot be made accessible,
+ * for example under a security manager, the copy returned by the library is used.
+ */
+final class AwsIotPayloads {
+
+    private static final Logger LOGGER = LogManager.getLogger(AwsIotPayloads.class.getName());
+    private static final MethodHandle PAYLOAD = payloadGetter();
+
+    private AwsIotPayloads() {
+    }
+
+    private static MethodHandle payloadGetter() {
+        try {
+            Field field = AWSIotMessage.class.getDeclaredField("payload");
+            if (field.getType() != byte[].class || Modifier.isStatic(field.getModifiers())) {
+                LOGGER.info("Payloads of AWS IoT messages will be copied, unexpected payload field " + field);
+                return null;
+            }
+            field.setAccessible(true);
+            return MethodHandles.lookup().unreflectGetter(field);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.info("Payloads of AWS IoT messages will be copied " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the payload of a received message, without copying it when possible.
+     * @param message message received by the library, not used by it afterwards
+     * @return payload of the message
+     */
+    static byte[] of(AWSIotMessage message) {
+        if (PAYLOAD != null) {
+            try {
+                return (byte[]) PAYLOAD.invokeExact(message);
+            } catch (Throwable e) {
+                LOGGER.info("Exception while reading the payload of " + message.getTopic() + " " + e.getMessage());
+            }
+        }
+        return message.getPayload();
+    }
+}
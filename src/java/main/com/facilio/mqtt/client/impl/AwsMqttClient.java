@@ -1,15 +1,34 @@
 package com.facilio.mqtt.client.impl;
 
 import com.amazonaws.services.iot.client.*;
+import com.facilio.mqtt.client.BatchMessageHandler;
+import com.facilio.mqtt.client.BatchReceipt;
+import com.facilio.mqtt.client.ConnectionListener;
+import com.facilio.mqtt.client.ContentFilter;
+import com.facilio.mqtt.client.DeliveryReceipt;
+import com.facilio.mqtt.client.DispatchMetrics;
 import com.facilio.mqtt.client.FacilioMqttCallback;
 import com.facilio.mqtt.client.FacilioMqttClient;
 import com.facilio.mqtt.client.FacilioMqttConnectOptions;
 import com.facilio.mqtt.client.FacilioMqttException;
+import com.facilio.mqtt.client.MessageHandler;
+import com.facilio.mqtt.client.OutboundMessage;
+import com.facilio.mqtt.client.Priority;
+import com.facilio.mqtt.client.RateLimitMetrics;
+import com.facilio.mqtt.client.ReceivedMessage;
 import com.facilio.mqtt.util.FacilioProperties;
 import com.facilio.mqtt.util.SampleUtil;
-import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttException;
 import org.json.simple.JSONObject;
 
+import java.security.KeyStore;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Enables an application to communicate with an MQTT server.
  *
@@ -40,6 +59,13 @@ public class AwsMqttClient implements FacilioMqttClient {
     private FacilioMqttConnectOptions defaultConnectOptions;
     private FacilioMqttCallback mqttCallback;
     private String clientId;
+    private final PublishPipeline publishPipeline = new PublishPipeline(this::send, this::isConnected, this::getConnectOptions, this::getClientId);
+    private final ConnectionNotifier connectionNotifier = new ConnectionNotifier();
+    private final TopicRouter topicRouter = new TopicRouter();
+    private final MessageDispatcher messageDispatcher = new MessageDispatcher(this::getCallback, this::getConnectOptions, topicRouter);
+    private final InboundMessage.Sender permitReleaser = this::releasePermit;
+    private volatile Semaphore unacknowledged;
+    private volatile TokenBucket subscribeBucket;
 
     private FacilioMqttConnectOptions getDefaultConnectOptions() {
 
@@ -81,13 +107,50 @@ public class AwsMqttClient implements FacilioMqttClient {
     }
 
     private void subscribe(AWSIotTopic topic, long timeout) throws FacilioMqttException {
+        TokenBucket bucket = subscribeBucket;
+        long wait = bucket == null ? 0 : bucket.reserve();
         try {
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
             client.subscribe(topic, timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FacilioMqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, e);
         } catch (AWSIotException e) {
             throw new FacilioMqttException(e.getCause());
         }
     }
 
+    /**
+     * Sends the subscribe or unsubscribe request of the topic once the subscribe rate limit allows it.
+     * The request is failed if it cannot be sent or the server does not answer within the timeout.
+     * @param topic topic of the request, completing its future
+     * @param subscribe true to subscribe, false to unsubscribe
+     * @param timeout timeout in milliseconds
+     */
+    private void send(AwsIotTopic topic, boolean subscribe, long timeout) {
+        TokenBucket bucket = subscribeBucket;
+        long wait = bucket == null ? 0 : bucket.reserve();
+        Runnable request = () -> {
+            try {
+                if (subscribe) {
+                    client.subscribe(topic, timeout);
+                } else {
+                    client.unsubscribe(topic, timeout);
+                }
+                SubscriptionRequests.withTimeout(topic.request, timeout);
+            } catch (AWSIotException | RuntimeException e) {
+                topic.request.completeExceptionally(new FacilioMqttException(e));
+            }
+        };
+        if (wait > 0) {
+            SubscriptionRequests.TIMER.schedule(request, wait, TimeUnit.NANOSECONDS);
+        } else {
+            request.run();
+        }
+    }
+
     /**
      * Sets the connect options {@link FacilioMqttConnectOptions} that will be used to connect the Mqtt Server if it has not been already connected.
      * @param connectOptions properties
@@ -121,6 +184,22 @@ public class AwsMqttClient implements FacilioMqttClient {
         return mqttCallback;
     }
 
+    /**
+     * Registers a {@link ConnectionListener} notified when the client connects to and disconnects from the server.
+     * @param listener ConnectionListener object
+     */
+    public void addConnectionListener(ConnectionListener listener) {
+        connectionNotifier.add(listener);
+    }
+
+    /**
+     * Removes a listener registered with {@link #addConnectionListener(ConnectionListener)}.
+     * @param listener ConnectionListener object
+     */
+    public void removeConnectionListener(ConnectionListener listener) {
+        connectionNotifier.remove(listener);
+    }
+
     /**
      * Connects to an MQTT server with the given connect options {@link FacilioMqttConnectOptions}. <br>
      * @param connectOptions properties used to connect
@@ -147,7 +226,7 @@ public class AwsMqttClient implements FacilioMqttClient {
                     connectOptions = getDefaultConnectOptions();
                 }
                 if (client == null) {
-                    client = new AWSIotMqttClient(connectOptions.getServerURI(), clientId, connectOptions.getKeyStore(), connectOptions.getKeyPair());
+                    client = new AwsIotClient(connectOptions.getServerURI(), clientId, connectOptions.getKeyStore(), connectOptions.getKeyPair());
                     if(connectOptions.getConnectionTimeout() > 0 ) {
                         client.setConnectionTimeout(connectOptions.getConnectionTimeout());
                     }
@@ -155,6 +234,12 @@ public class AwsMqttClient implements FacilioMqttClient {
                         client.setKeepAliveInterval(connectOptions.getKeepAliveInterval());
                     }
                 }
+                if (connectOptions.isManualAcks() && unacknowledged == null) {
+                    unacknowledged = new Semaphore(connectOptions.getMaxInflight());
+                }
+                if (connectOptions.getSubscribeRateLimit() != null && subscribeBucket == null) {
+                    subscribeBucket = new TokenBucket(connectOptions.getSubscribeRateLimit());
+                }
                 client.connect();
             }
         } catch (AWSIotException e) {
@@ -188,9 +273,16 @@ public class AwsMqttClient implements FacilioMqttClient {
      */
     public void disconnect() throws FacilioMqttException {
         try {
-            client.disconnect();
+            // advances the connection number, so no acknowledgement is sent for a message of the closed connection
+            connectionNotifier.closed();
+            if (client != null) {
+                client.disconnect();
+            }
         } catch (AWSIotException e) {
             throw new FacilioMqttException(e.getCause());
+        } finally {
+            publishPipeline.close();
+            messageDispatcher.close();
         }
     }
 
@@ -211,14 +303,94 @@ public class AwsMqttClient implements FacilioMqttClient {
     }
 
     /**
-     * Publish payload to the mentioned topic with the given QOS
+     * Publish payload to the mentioned topic with the given QOS.
+     * The call returns once the message is handed to the library, without waiting for the acknowledgement,
+     * and the calling thread is parked while the in-flight window is full.
      * @param topic name to publish the message
      * @param payload actual message
      * @param qos for this message
      * @throws FacilioMqttException if any problem was encountered
      */
     public void publish(String topic, byte[] payload, int qos) throws FacilioMqttException {
-       publish(new AwsIotCallback(topic, AWSIotQos.valueOf(qos), payload));
+        publish(topic, payload, qos, false);
+    }
+
+    private void publish(String topic, byte[] payload, int qos, boolean pooled) throws FacilioMqttException {
+        publishPipeline.publish(topic, payload, qos, Priority.NORMAL, pooled, false);
+    }
+
+    /**
+     * Publish payload to the mentioned topic with the given QOS without waiting for the acknowledgement.
+     * The returned future is completed from the onSuccess, onFailure and onTimeout callbacks of the message.
+     * AWS Iot SDK does not expose the message id, so the receipt carries 0 as message id.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @return future completed when the message is delivered
+     */
+    public CompletableFuture<DeliveryReceipt> publishAsync(String topic, byte[] payload, int qos) {
+        return publishPipeline.publishAsync(topic, payload, qos);
+    }
+
+    /**
+     * Publish payload to the mentioned topic with the given QOS in the lane of the priority.
+     * Like {@link #publish(String, byte[], int)} the call returns once the message is handed to the library,
+     * or taken by the journal or the offline buffer, without waiting for the acknowledgement.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @param priority priority of the message
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void publish(String topic, byte[] payload, int qos, Priority priority) throws FacilioMqttException {
+        publishPipeline.publish(topic, payload, qos, priority, false, false);
+    }
+
+    /**
+     * Publish payload to the mentioned topic with the given QOS in the lane of the priority without waiting for the acknowledgement.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @param priority priority of the message
+     * @return future completed when the message is delivered
+     */
+    public CompletableFuture<DeliveryReceipt> publishAsync(String topic, byte[] payload, int qos, Priority priority) {
+        return publishPipeline.publishAsync(topic, payload, qos, priority);
+    }
+
+    private void send(String topic, byte[] payload, int qos, boolean pooled, CompletableFuture<DeliveryReceipt> future) {
+        try {
+            publish(new AwsIotCallback(topic, AWSIotQos.valueOf(qos), payload, future, pooled));
+        } catch (FacilioMqttException | IllegalArgumentException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Publish the messages keeping at most {@link FacilioMqttConnectOptions#getMaxInflight()} messages unacknowledged.
+     * The calling thread is parked only while the in-flight window is full.
+     * @param messages messages to publish
+     * @return future completed when every message is either acknowledged or failed
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public CompletableFuture<BatchReceipt> publishBatch(Collection<OutboundMessage> messages) throws FacilioMqttException {
+        return publishPipeline.publishBatch(messages);
+    }
+
+    /**
+     * Returns how long publishes waited for the rate limits of the connect options.
+     * @return rate limit metrics
+     */
+    public RateLimitMetrics getRateLimitMetrics() {
+        return publishPipeline.getRateLimitMetrics();
+    }
+
+    /**
+     * Returns the dispatch metrics of the received messages
+     * @return dispatch metrics
+     */
+    public DispatchMetrics getDispatchMetrics() {
+        return messageDispatcher.getMetrics();
     }
 
     /**
@@ -229,7 +401,7 @@ public class AwsMqttClient implements FacilioMqttClient {
      * @throws FacilioMqttException if any problem was encountered
      */
     public void publish(String topic, JSONObject message, int qos) throws FacilioMqttException{
-        publish(topic, message.toJSONString().getBytes(), qos);
+        publish(topic, publishPipeline.toJson(message), qos, true);
     }
 
     /**
@@ -240,7 +412,30 @@ public class AwsMqttClient implements FacilioMqttClient {
      * @throws FacilioMqttException if any problem was encountered
      */
     public void publish(String topic, String payload, int qos) throws FacilioMqttException{
-        publish(topic, payload.getBytes(), qos);
+        publish(topic, publishPipeline.toUtf8(payload), qos, true);
+    }
+
+    /**
+     * Publish the remaining bytes of the buffer to the mentioned topic with the given QOS.
+     * A heap buffer covering exactly its whole array is published without a copy, any other buffer is copied once.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void publish(String topic, ByteBuffer payload, int qos) throws FacilioMqttException {
+        publish(topic, PublishPipeline.toByteArray(payload), qos);
+    }
+
+    /**
+     * Publish the remaining bytes of the buffer to the mentioned topic with the given QOS without waiting for the acknowledgement.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @return future completed when the message is delivered
+     */
+    public CompletableFuture<DeliveryReceipt> publishAsync(String topic, ByteBuffer payload, int qos) {
+        return publishAsync(topic, PublishPipeline.toByteArray(payload), qos);
     }
 
     /**
@@ -259,9 +454,55 @@ public class AwsMqttClient implements FacilioMqttClient {
      * @throws FacilioMqttException if any problem was encountered
      */
     public void subscribe(String topic, int qos) throws FacilioMqttException {
-        subscribe(new AwsIotTopic(topic, AWSIotQos.valueOf(qos)), 10000);
+        subscribe(new AwsIotTopic(topic, AWSIotQos.valueOf(qos)), SubscriptionRequests.timeout(connectOptions));
+    }
+
+
+    /**
+     * Subscribe to the topic filter with the given QOS and deliver its messages to the handler instead of the callback.<br>
+     * @param topic filter to subscribe, with '+' and '#' wildcards
+     * @param qos for the topic
+     * @param handler receives the messages matching the filter
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void subscribe(String topic, int qos, MessageHandler handler) throws FacilioMqttException {
+        if (handler == null) {
+            throw new IllegalArgumentException();
+        }
+        topicRouter.add(topic, handler);
+        try {
+            subscribe(topic, qos);
+        } catch (FacilioMqttException e) {
+            topicRouter.remove(topic, handler);
+            throw e;
+        }
     }
 
+    /**
+     * Subscribe to the topic filter with the given QOS and deliver to the handler the messages its content filter matches.<br>
+     * @param topic filter to subscribe, with '+' and '#' wildcards
+     * @param qos for the topic
+     * @param filter content filter of the messages, evaluated on the receiving thread
+     * @param handler receives the messages matching the topic filter and the content filter
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void subscribe(String topic, int qos, ContentFilter filter, MessageHandler handler) throws FacilioMqttException {
+        subscribe(topic, qos, new FilteredMessageHandler(filter, handler));
+    }
+
+    /**
+     * Subscribe to the topic filter with the given QOS and deliver its messages to the handler in batches.<br>
+     * @param topic filter to subscribe, with '+' and '#' wildcards
+     * @param qos for the topic
+     * @param handler receives the batches of messages matching the filter
+     * @param maxMessages maximum number of messages in a batch
+     * @param maxBytes payload size in bytes at which a batch is handed over
+     * @param linger maximum time in milliseconds a message waits for the batch to fill up
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void subscribe(String topic, int qos, BatchMessageHandler handler, int maxMessages, int maxBytes, long linger) throws FacilioMqttException {
+        subscribe(topic, qos, new MessageBatcher(handler, maxMessages, maxBytes, linger));
+    }
 
     /**
      * Unsubscribe the topic.<br>
@@ -269,7 +510,8 @@ public class AwsMqttClient implements FacilioMqttClient {
      * @throws FacilioMqttException if any problem was encountered
      */
     public void unsubscribe(String topic) throws FacilioMqttException {
-        unsubscribe(topic, 10000);
+        unsubscribe(topic, SubscriptionRequests.timeout(connectOptions));
+        topicRouter.remove(topic, null);
     }
 
     private void unsubscribe(String topic, long timeout) throws FacilioMqttException {
@@ -280,42 +522,228 @@ public class AwsMqttClient implements FacilioMqttClient {
         }
     }
 
+    /**
+     * Subscribe to the topic filters with the given QOS and wait until the server has acknowledged them.<br>
+     * @param topics filters to subscribe, with '+' and '#' wildcards
+     * @param qos for each filter
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void subscribe(String[] topics, int[] qos) throws FacilioMqttException {
+        SubscriptionRequests.await(subscribeAsync(topics, qos));
+    }
+
+    /**
+     * Subscribe to the topic filters with the given QOS without waiting for the server.<br>
+     * The library subscribes one filter per request, so the requests of the filters are sent without waiting
+     * for each other, paced by the subscribe rate limit.
+     * @param topics filters to subscribe, with '+' and '#' wildcards
+     * @param qos for each filter
+     * @return future completed when the server has acknowledged every filter
+     */
+    public CompletableFuture<Void> subscribeAsync(String[] topics, int[] qos) {
+        SubscriptionRequests.validate(topics, qos);
+        if (topics.length == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (client == null) {
+            return SubscriptionRequests.failed(new FacilioMqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED));
+        }
+        AwsIotTopic[] requests = new AwsIotTopic[topics.length];
+        for (int i = 0; i < topics.length; i++) {
+            requests[i] = new AwsIotTopic(topics[i], AWSIotQos.valueOf(qos[i]), new CompletableFuture<>());
+        }
+        return sendAll(requests, true);
+    }
+
+    /**
+     * Unsubscribe the topic filters and wait until the server has acknowledged them.<br>
+     * @param topics filters to unsubscribe
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void unsubscribe(String[] topics) throws FacilioMqttException {
+        SubscriptionRequests.await(unsubscribeAsync(topics));
+    }
+
+    /**
+     * Unsubscribe the topic filters without waiting for the server.<br>
+     * The filters which are not subscribed are skipped, the requests of the others are sent as {@link #subscribeAsync(String[], int[])} does.
+     * @param topics filters to unsubscribe
+     * @return future completed when the server has acknowledged every filter
+     */
+    public CompletableFuture<Void> unsubscribeAsync(String[] topics) {
+        SubscriptionRequests.validate(topics, null);
+        if (topics.length == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (client == null) {
+            return SubscriptionRequests.failed(new FacilioMqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED));
+        }
+        AwsIotTopic[] requests = new AwsIotTopic[topics.length];
+        int count = 0;
+        for (String topic : topics) {
+            if (client.getSubscriptions().containsKey(topic)) {
+                requests[count++] = new AwsIotTopic(topic, AWSIotQos.QOS0, new CompletableFuture<>());
+            }
+        }
+        CompletableFuture<Void> future = count == 0 ? CompletableFuture.completedFuture(null) : sendAll(Arrays.copyOf(requests, count), false);
+        return future.thenRun(() -> {
+            for (String topic : topics) {
+                topicRouter.remove(topic, null);
+            }
+        });
+    }
+
+    private CompletableFuture<Void> sendAll(AwsIotTopic[] requests, boolean subscribe) {
+        long timeout = SubscriptionRequests.timeout(connectOptions);
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[requests.length];
+        for (int i = 0; i < requests.length; i++) {
+            futures[i] = requests[i].request;
+            send(requests[i], subscribe, timeout);
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    private class AwsIotClient extends AWSIotMqttClient {
+
+        AwsIotClient(String clientEndpoint, String clientId, KeyStore keyStore, String keyPassword) {
+            super(clientEndpoint, clientId, keyStore, keyPassword);
+        }
+
+        public void onConnectionSuccess() {
+            super.onConnectionSuccess();
+            publishPipeline.connectComplete();
+            connectionNotifier.connected();
+        }
+
+        public void onConnectionFailure() {
+            super.onConnectionFailure();
+            connectionNotifier.disconnected(null);
+        }
+
+        public void onConnectionClosed() {
+            super.onConnectionClosed();
+            connectionNotifier.disconnected(null);
+        }
+    }
+
     private class AwsIotCallback extends AWSIotMessage {
 
-        AwsIotCallback(String topic, AWSIotQos qos, byte[] payload) {
+        private final CompletableFuture<DeliveryReceipt> future;
+        private final boolean pooled;
+        private final long startTime;
+
+        AwsIotCallback(String topic, AWSIotQos qos, byte[] payload, CompletableFuture<DeliveryReceipt> future, boolean pooled) {
             super(topic, qos, payload);
+            this.future = future;
+            this.pooled = pooled;
+            this.startTime = System.nanoTime();
         }
 
         public void onSuccess() {
+            if(pooled) {
+                publishPipeline.release(payload);
+            }
+            if(future != null) {
+                future.complete(new DeliveryReceipt(getTopic(), 0, System.nanoTime() - startTime));
+            }
             if(mqttCallback != null) {
                 mqttCallback.onSuccess();
             }
         }
 
         public void onFailure() {
+            if(future != null) {
+                future.completeExceptionally(new FacilioMqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, new Throwable(getErrorMessage())));
+            }
             if(mqttCallback != null) {
                 mqttCallback.onFailure();
             }
         }
 
         public void onTimeout() {
+            if(future != null) {
+                future.completeExceptionally(new FacilioMqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT));
+            }
             if(mqttCallback != null) {
                 mqttCallback.onTimeout(new Throwable("unknown"));
             }
         }
     }
 
+    private void releasePermit(InboundMessage message, int connection) {
+        unacknowledged.release();
+        message.sent(null);
+    }
+
     private class AwsIotTopic extends AWSIotTopic {
 
+        private final CompletableFuture<Void> request;
+
         AwsIotTopic(String topic, AWSIotQos qos) {
+            this(topic, qos, null);
+        }
+
+        /**
+         * Constructs an AwsIotTopic completing the future when the library reports the result of its subscribe or unsubscribe request.
+         * @param topic topic filter
+         * @param qos qos of the subscription
+         * @param request future of the request, can be null
+         */
+        AwsIotTopic(String topic, AWSIotQos qos, CompletableFuture<Void> request) {
             super(topic, qos);
+            this.request = request;
+        }
+
+        public void onSuccess() {
+            if (request != null) {
+                request.complete(null);
+            }
+        }
+
+        public void onFailure() {
+            if (request != null) {
+                request.completeExceptionally(new FacilioMqttException(MqttException.REASON_CODE_SUBSCRIBE_FAILED,
+                        new AWSIotException(getErrorCode(), getErrorMessage())));
+            }
+        }
+
+        public void onTimeout() {
+            if (request != null) {
+                request.completeExceptionally(new FacilioMqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT));
+            }
         }
 
+        /**
+         * Dispatches the message over its payload, without copying it if the options ask for it, unless the content filters of its subscriptions
+         * reject it. The library has acknowledged the message already, so with manual acknowledgements
+         * the number of messages waiting for the application is bounded by max inflight instead, parking the
+         * delivery threads of the library while the bound is reached.
+         * @param message received message
+         */
         public void onMessage(AWSIotMessage message) {
-            MqttMessage mqttMessage = new MqttMessage(message.getPayload());
-            mqttMessage.setQos(message.getQos().getValue());
-            if(mqttCallback != null) {
-                mqttCallback.onMessage(message.getTopic(), mqttMessage);
+            FacilioMqttConnectOptions options = connectOptions;
+            boolean uncopied = options != null && options.isUncopiedAwsPayloads();
+            byte[] payload = publishPipeline.decode(uncopied ? AwsIotPayloads.of(message) : message.getPayload());
+            if (messageDispatcher.rejects(message.getTopic(), payload)) {
+                return;
+            }
+            int qos = message.getQos().getValue();
+            Semaphore permits = unacknowledged;
+            if (permits == null || qos == 0) {
+                messageDispatcher.dispatch(new ReceivedMessage(message.getTopic(), payload, qos, false, false, 0));
+                return;
+            }
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            InboundMessage inbound = new InboundMessage(message.getTopic(), payload, qos, permitReleaser, true);
+            try {
+                messageDispatcher.dispatch(inbound);
+            } finally {
+                inbound.release();
             }
         }
     }
@@ -0,0 +1,124 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.ConnectionListener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Holds the {@link ConnectionListener}s registered with a client and notifies them of connection changes.
+ * Threads waiting for the connection park on a lock condition rather than polling, so they do not pin
+ * the carrier when they are virtual threads.
+ */
+class ConnectionNotifier {
+
+    private static final Logger LOGGER = LogManager.getLogger(ConnectionNotifier.class.getName());
+
+    private final List<ConnectionListener> listeners = new CopyOnWriteArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition stateChanged = lock.newCondition();
+    private final AtomicInteger connection = new AtomicInteger();
+
+    /**
+     * Registers the listener.
+     * @param listener listener to notify
+     */
+    void add(ConnectionListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes the listener.
+     * @param listener listener to remove
+     */
+    void remove(ConnectionListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Notifies the listeners that the connection is established.
+     */
+    void connected() {
+        signal();
+        for (ConnectionListener listener : listeners) {
+            try {
+                listener.onConnected();
+            } catch (RuntimeException e) {
+                LOGGER.info("Exception in connection listener " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Notifies the listeners that the connection is lost.
+     * @param cause reason behind the loss of connection, can be null
+     */
+    void disconnected(Throwable cause) {
+        connection.incrementAndGet();
+        signal();
+        for (ConnectionListener listener : listeners) {
+            try {
+                listener.onDisconnected(cause);
+            } catch (RuntimeException e) {
+                LOGGER.info("Exception in connection listener " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Called when the client is disconnected on request, the listeners are not notified.
+     */
+    void closed() {
+        connection.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of the current connection, incremented whenever the connection is lost or closed.
+     * Messages are acknowledged on the connection they were received on only, as the server redelivers the
+     * unacknowledged messages of a resumed session.
+     * @return connection number
+     */
+    int getConnection() {
+        return connection.get();
+    }
+
+    /**
+     * Waits until the client is connected or the timeout elapses.
+     * @param connected returns the connection state of the client
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return true if the client is connected
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    boolean awaitConnected(BooleanSupplier connected, long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (!connected.getAsBoolean()) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = stateChanged.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signal() {
+        lock.lock();
+        try {
+            stateChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.DeliveryReceipt;
+import com.facilio.mqtt.client.FacilioMqttException;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Correlates a Paho delivery token with the future returned to the caller of publishAsync.
+ * Once the message is delivered its holder, and its payload if it was pooled, are returned to the pool of the pipeline.
+ */
+class DeliveryListener implements IMqttActionListener {
+
+    private final String topic;
+    private final CompletableFuture<DeliveryReceipt> future;
+    private final PublishPipeline publishPipeline;
+    private final MqttMessage message;
+    private final boolean pooled;
+    private final long startTime;
+
+    /**
+     * Constructs a DeliveryListener for a message which is about to be published.
+     * @param topic topic the message is published to
+     * @param future future to complete when the message is acknowledged
+     * @param publishPipeline pipeline the message holder was taken from
+     * @param message pooled message holder
+     * @param pooled true if the payload of the message was taken from the pool
+     */
+    DeliveryListener(String topic, CompletableFuture<DeliveryReceipt> future, PublishPipeline publishPipeline, MqttMessage message, boolean pooled) {
+        this.topic = topic;
+        this.future = future;
+        this.publishPipeline = publishPipeline;
+        this.message = message;
+        this.pooled = pooled;
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * This method is invoked when the message has been acknowledged by the server.
+     * @param token the token associated with the publish.
+     */
+    public void onSuccess(IMqttToken token) {
+        if (future.complete(new DeliveryReceipt(topic, token.getMessageId(), System.nanoTime() - startTime))) {
+            publishPipeline.release(message, pooled);
+        }
+    }
+
+    /**
+     * This method is invoked when the publish has failed.
+     * @param token the token associated with the publish.
+     * @param exception the reason for the failure.
+     */
+    public void onFailure(IMqttToken token, Throwable exception) {
+        future.completeExceptionally(toFacilioMqttException(exception));
+    }
+
+    static FacilioMqttException toFacilioMqttException(Throwable exception) {
+        if (exception instanceof FacilioMqttException) {
+            return (FacilioMqttException) exception;
+        }
+        if (exception instanceof MqttException) {
+            MqttException e = (MqttException) exception;
+            return new FacilioMqttException(e.getReasonCode(), e.getCause());
+        }
+        return new FacilioMqttException(exception);
+    }
+}
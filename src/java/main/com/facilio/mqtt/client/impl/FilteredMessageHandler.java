@@ -0,0 +1,39 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.ContentFilter;
+import com.facilio.mqtt.client.MessageHandler;
+import com.facilio.mqtt.client.ReceivedMessage;
+
+/**
+ * Handler of a subscription with a {@link ContentFilter}, passing the handler only the messages the filter matches.
+ * The {@link TopicRouter} also evaluates the filter on the receiving thread, see {@link TopicRouter#rejects(String, byte[], int, int)},
+ * so the messages rejected by every matching subscription are not dispatched at all.
+ */
+class FilteredMessageHandler implements MessageHandler {
+
+    private final ContentFilter filter;
+    private final MessageHandler handler;
+
+    /**
+     * Constructs a FilteredMessageHandler.
+     * @param filter filter of the messages
+     * @param handler handler of the messages matching the filter
+     */
+    FilteredMessageHandler(ContentFilter filter, MessageHandler handler) {
+        if (filter == null || handler == null) {
+            throw new IllegalArgumentException();
+        }
+        this.filter = filter;
+        this.handler = handler;
+    }
+
+    boolean matches(byte[] payload, int offset, int length) {
+        return filter.matches(payload, offset, length);
+    }
+
+    public void onMessage(ReceivedMessage message) {
+        if (filter.matches(message)) {
+            handler.onMessage(message);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.facilio.mqtt.client.impl;
+
+import java.util.Arrays;
+
+/**
+ * Consistent hash ring mapping topics to the members of a {@link PooledFacilioMqttClient}.
+ *
+ * Each member owns {@link #POINTS_PER_MEMBER} points on the ring and a topic belongs to the member owning the
+ * first point at or after the hash of the topic. Leaving a member out of the ring moves only the topics it owned,
+ * to the members owning the next points, so the other topics keep their member and their order.
+ * The ring is immutable, a new ring is built whenever the members change.
+ */
+class HashRing {
+
+    static final int POINTS_PER_MEMBER = 128;
+
+    private final int[] points;
+    private final int[] owners;
+
+    /**
+     * Constructs a ring of the given members.
+     * @param included true at the index of every member to place on the ring
+     */
+    HashRing(boolean[] included) {
+        int count = 0;
+        for (boolean member : included) {
+            if (member) {
+                count++;
+            }
+        }
+        long[] entries = new long[count * POINTS_PER_MEMBER];
+        int index = 0;
+        for (int member = 0; member < included.length; member++) {
+            if (included[member]) {
+                for (int point = 0; point < POINTS_PER_MEMBER; point++) {
+                    entries[index++] = ((long) mix((member << 16) | point) << 32) | member;
+                }
+            }
+        }
+        Arrays.sort(entries);
+        this.points = new int[entries.length];
+        this.owners = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            points[i] = (int) (entries[i] >> 32);
+            owners[i] = (int) entries[i];
+        }
+    }
+
+    /**
+     * Returns true if no member is on the ring
+     * @return true if the ring is empty
+     */
+    boolean isEmpty() {
+        return points.length == 0;
+    }
+
+    /**
+     * Returns the member the topic belongs to.
+     * @param topic topic to look up
+     * @return index of the member, -1 if the ring is empty
+     */
+    int owner(String topic) {
+        if (points.length == 0) {
+            return -1;
+        }
+        int hash = mix(topic.hashCode());
+        int low = 0;
+        int high = points.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (points[middle] < hash) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return owners[low == points.length ? 0 : low];
+    }
+
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
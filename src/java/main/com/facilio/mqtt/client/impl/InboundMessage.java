@@ -0,0 +1,163 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.Acknowledgement;
+import com.facilio.mqtt.client.FacilioMqttException;
+import com.facilio.mqtt.client.ReceivedMessage;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * QoS 1 or 2 message acknowledged once every hold on it is released. Messages received through
+ * {@link MqttCallbackListener} are then acknowledged to the server; {@link AwsMqttClient}, whose library acknowledges
+ * messages itself, uses the holds to bound the messages waiting for the application.
+ *
+ * The listener holds the message while it is dispatched, and with manual acknowledgements the application holds it
+ * until it calls {@link #acknowledge()}. The pooled dispatch modes hold it while it is queued and {@link MessageBatcher}
+ * until its batch is handled, when batch handlers are subscribed. A hold can only be taken while another one is held,
+ * so a message is acknowledged once.
+ */
+class InboundMessage extends ReceivedMessage implements Acknowledgement {
+
+    private final Sender sender;
+    private final int connection;
+    private final boolean manual;
+    private final AtomicInteger holds;
+    private CompletableFuture<Void> result;
+    private boolean sent;
+    private FacilioMqttException failure;
+    boolean queued;
+
+    /**
+     * Constructs an InboundMessage held by the listener, and by the application with manual acknowledgements.
+     * @param topic name of the topic the message was published to
+     * @param message message received from the server
+     * @param sender sends the acknowledgement, the listener which received the message
+     * @param connection connection the message was received on, see {@link ConnectionNotifier#getConnection()}
+     * @param manual true if the application acknowledges the message
+     */
+    InboundMessage(String topic, MqttMessage message, Sender sender, int connection, boolean manual) {
+        super(topic, message);
+        this.sender = sender;
+        this.connection = connection;
+        this.manual = manual;
+        this.holds = new AtomicInteger(manual ? 2 : 1);
+    }
+
+    /**
+     * Constructs an InboundMessage held by its receiver, and by the application with manual acknowledgements.
+     * @param topic name of the topic the message was published to
+     * @param payload payload received, not copied
+     * @param qos qos of the message
+     * @param sender called when no hold is left
+     * @param manual true if the application acknowledges the message
+     */
+    InboundMessage(String topic, byte[] payload, int qos, Sender sender, boolean manual) {
+        super(topic, payload, qos, false, false, 0);
+        this.sender = sender;
+        this.connection = 0;
+        this.manual = manual;
+        this.holds = new AtomicInteger(manual ? 2 : 1);
+    }
+
+    @Override
+    public Acknowledgement getAcknowledgement() {
+        return this;
+    }
+
+    /**
+     * Releases the hold of the application with manual acknowledgements, and returns a future completed when the
+     * acknowledgement is sent.
+     * @return future completed when the message is acknowledged
+     */
+    public CompletableFuture<Void> acknowledge() {
+        CompletableFuture<Void> future;
+        boolean done;
+        synchronized (this) {
+            if (result != null) {
+                return result;
+            }
+            future = new CompletableFuture<>();
+            result = future;
+            done = sent;
+        }
+        if (done) {
+            complete(future, failure);
+        } else if (manual) {
+            release();
+        }
+        return future;
+    }
+
+    /**
+     * Takes a hold on the message, deferring its acknowledgement.
+     * @return true if the hold was taken, false if the message was already acknowledged
+     */
+    boolean retain() {
+        int current;
+        do {
+            current = holds.get();
+            if (current == 0) {
+                return false;
+            }
+        } while (!holds.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Releases a hold on the message, acknowledging it when no hold is left.
+     */
+    void release() {
+        if (holds.decrementAndGet() == 0) {
+            sender.acknowledge(this, connection);
+        }
+    }
+
+    /**
+     * Called when the message was dropped before reaching the application, acknowledges it in place of the application.
+     */
+    void dropped() {
+        if (manual) {
+            acknowledge();
+        }
+    }
+
+    /**
+     * Called by the sender once the acknowledgement is sent or could not be sent.
+     * @param failure reason the acknowledgement was not sent, null if it was sent
+     */
+    void sent(FacilioMqttException failure) {
+        CompletableFuture<Void> future;
+        synchronized (this) {
+            this.sent = true;
+            this.failure = failure;
+            future = result;
+        }
+        if (future != null) {
+            complete(future, failure);
+        }
+    }
+
+    private static void complete(CompletableFuture<Void> future, FacilioMqttException failure) {
+        if (failure == null) {
+            future.complete(null);
+        } else {
+            future.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Sends the acknowledgement of a message once no hold is left on it.
+     */
+    @FunctionalInterface
+    interface Sender {
+
+        /**
+         * Acknowledges the message and reports the outcome with {@link InboundMessage#sent(FacilioMqttException)}.
+         * @param message message to acknowledge
+         * @param connection connection the message was received on
+         */
+        void acknowledge(InboundMessage message, int connection);
+    }
+}
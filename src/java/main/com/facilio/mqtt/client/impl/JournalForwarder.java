@@ -0,0 +1,275 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.DeliveryReceipt;
+import com.facilio.mqtt.client.FacilioMqttException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Replays the {@link OutboundJournal} to the server whenever the client is connected.
+ *
+ * Records are published through the {@link PublishWindow} in journal order. The checkpoint is advanced over
+ * the records acknowledged so far, and when a publish fails the forwarder waits for the in-flight records to
+ * settle and resumes from the checkpoint, so every record is delivered at least once. A record the client rejects
+ * outright, such as one with an invalid topic, is logged and skipped so that it cannot stall the journal.
+ */
+class JournalForwarder {
+
+    private static final Logger LOGGER = LogManager.getLogger(JournalForwarder.class.getName());
+
+    private final OutboundJournal journal;
+    private final PublishWindow publishWindow;
+    private final BooleanSupplier connected;
+    private final Map<Long, CompletableFuture<DeliveryReceipt>> futures = new ConcurrentHashMap<>();
+    private final ArrayDeque<InflightRecord> inflight = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition stateChanged = lock.newCondition();
+    private final ScheduledExecutorService flusher;
+    private final Thread thread;
+
+    private volatile boolean rewind;
+    private volatile boolean closed;
+
+    /**
+     * Constructs and starts a JournalForwarder.
+     * @param journal journal to replay
+     * @param publishWindow window used to publish the records
+     * @param connected returns the state of client and server connection
+     * @param flushInterval interval in milliseconds between forcing the journal and checkpoint to disk
+     */
+    JournalForwarder(OutboundJournal journal, PublishWindow publishWindow, BooleanSupplier connected, long flushInterval) {
+        this.journal = journal;
+        this.publishWindow = publishWindow;
+        this.connected = connected;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread flushThread = new Thread(runnable, "facilio-mqtt-journal-flush");
+            flushThread.setDaemon(true);
+            return flushThread;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        this.thread = new Thread(this::forward, "facilio-mqtt-journal-forward");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Appends the message to the journal, it is published by the forwarder thread.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @param future future to complete once the message is delivered, can be null
+     * @throws FacilioMqttException if the topic is invalid or the message could not be written to the journal
+     */
+    void append(String topic, byte[] payload, int qos, CompletableFuture<DeliveryReceipt> future) throws FacilioMqttException {
+        PublishPipeline.validate(topic);
+        long offset;
+        try {
+            offset = journal.append(topic, payload, qos);
+        } catch (IOException e) {
+            throw new FacilioMqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, e);
+        }
+        if (future != null) {
+            futures.put(offset, future);
+            if (offset < journal.getCheckpoint() && futures.remove(offset) != null) {
+                future.complete(new DeliveryReceipt(topic, 0, 0));
+            }
+        }
+    }
+
+    /**
+     * Wakes up the forwarder once the client is connected.
+     */
+    void connectComplete() {
+        signal();
+    }
+
+    /**
+     * Stops forwarding and closes the journal.
+     */
+    void close() {
+        closed = true;
+        thread.interrupt();
+        flusher.shutdown();
+        try {
+            journal.close();
+        } catch (IOException e) {
+            LOGGER.info("Exception while closing journal " + e.getMessage());
+        }
+    }
+
+    private void forward() {
+        OutboundJournal.Record record = new OutboundJournal.Record();
+        long readOffset = journal.getCheckpoint();
+        while (!closed) {
+            try {
+                if (!connected.getAsBoolean()) {
+                    await();
+                    continue;
+                }
+                if (rewind) {
+                    if (!isInflightSettled()) {
+                        await();
+                        continue;
+                    }
+                    clearInflight();
+                    readOffset = journal.getCheckpoint();
+                    rewind = false;
+                }
+                boolean read = journal.read(readOffset, record);
+                readOffset = record.nextOffset;
+                if (!read) {
+                    journal.awaitAppend(readOffset, 1, TimeUnit.SECONDS);
+                    continue;
+                }
+                send(record);
+            } catch (InterruptedException | FacilioMqttException e) {
+                if (!closed) {
+                    LOGGER.info("Journal forwarder stopped " + e.getMessage());
+                }
+                return;
+            } catch (RuntimeException e) {
+                LOGGER.info("Exception while forwarding journal record at offset " + record.offset + " " + e.getMessage());
+            }
+        }
+    }
+
+    private void send(OutboundJournal.Record record) throws FacilioMqttException {
+        InflightRecord inflightRecord = new InflightRecord(record.offset, record.nextOffset);
+        lock.lock();
+        try {
+            inflight.addLast(inflightRecord);
+        } finally {
+            lock.unlock();
+        }
+        String topic = record.topic;
+        CompletableFuture<DeliveryReceipt> future = new CompletableFuture<>();
+        future.whenComplete((receipt, cause) -> complete(inflightRecord, topic, receipt, cause));
+        try {
+            publishWindow.send(topic, record.payload, record.qos, future);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private void complete(InflightRecord record, String topic, DeliveryReceipt receipt, Throwable cause) {
+        boolean rejected = cause != null && isRejected(cause);
+        if (rejected) {
+            LOGGER.info("Skipping journal record at offset " + record.offset + " rejected by the client " + cause.getMessage());
+        }
+        lock.lock();
+        try {
+            record.settled = true;
+            if (cause != null && !rejected) {
+                rewind = true;
+            } else {
+                record.acked = true;
+                while (!inflight.isEmpty() && inflight.peekFirst().acked) {
+                    journal.checkpoint(inflight.pollFirst().nextOffset);
+                }
+            }
+            stateChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (cause == null) {
+            CompletableFuture<DeliveryReceipt> future = futures.remove(record.offset);
+            if (future != null) {
+                future.complete(new DeliveryReceipt(topic, receipt.getMessageId(), receipt.getLatencyNanos()));
+            }
+        } else if (rejected) {
+            CompletableFuture<DeliveryReceipt> future = futures.remove(record.offset);
+            if (future != null) {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the publish failed because the client threw on the record itself, for instance on an invalid
+     * topic, rather than because of the connection. Such a record would fail again on every replay, so the
+     * checkpoint is moved past it instead of rewinding.
+     * @param cause failure of the publish
+     * @return true if the record is rejected
+     */
+    private static boolean isRejected(Throwable cause) {
+        if (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof RuntimeException || cause.getCause() instanceof RuntimeException;
+    }
+
+    private boolean isInflightSettled() {
+        lock.lock();
+        try {
+            for (InflightRecord record : inflight) {
+                if (!record.settled) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void clearInflight() {
+        lock.lock();
+        try {
+            inflight.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void await() throws InterruptedException {
+        lock.lock();
+        try {
+            stateChanged.await(1, TimeUnit.SECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signal() {
+        lock.lock();
+        try {
+            stateChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flush() {
+        try {
+            journal.flush();
+        } catch (IOException e) {
+            LOGGER.info("Exception while flushing journal " + e.getMessage());
+        }
+    }
+
+    private static class InflightRecord {
+        private final long offset;
+        private final long nextOffset;
+        private boolean acked;
+        private boolean settled;
+
+        InflightRecord(long offset, long nextOffset) {
+            this.offset = offset;
+            this.nextOffset = nextOffset;
+        }
+    }
+}
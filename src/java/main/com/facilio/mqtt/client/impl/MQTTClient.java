@@ -1,15 +1,30 @@
 package com.facilio.mqtt.client.impl;
 
+import com.facilio.mqtt.client.BatchMessageHandler;
+import com.facilio.mqtt.client.BatchReceipt;
+import com.facilio.mqtt.client.ConnectionListener;
+import com.facilio.mqtt.client.ContentFilter;
+import com.facilio.mqtt.client.DeliveryReceipt;
+import com.facilio.mqtt.client.DispatchMetrics;
 import com.facilio.mqtt.client.FacilioMqttCallback;
 import com.facilio.mqtt.client.FacilioMqttClient;
 import com.facilio.mqtt.client.FacilioMqttConnectOptions;
 import com.facilio.mqtt.client.FacilioMqttException;
+import com.facilio.mqtt.client.MessageHandler;
+import com.facilio.mqtt.client.OutboundMessage;
+import com.facilio.mqtt.client.Priority;
+import com.facilio.mqtt.client.RateLimitMetrics;
 import com.facilio.mqtt.util.FacilioProperties;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.eclipse.paho.client.mqttv3.*;
 import org.json.simple.JSONObject;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Enables an application to communicate with an MQTT server.
  *
@@ -35,11 +50,17 @@ public class MQTTClient implements FacilioMqttClient {
 
     private static final Logger LOGGER = LogManager.getLogger(MQTTClient.class.getName());
 
-    private MqttClient mqttClient;
+    private static final long CONNECT_TIMEOUT_SECONDS = 10;
+
+    private SyncClient mqttClient;
     private FacilioMqttConnectOptions connectOptions;
     private FacilioMqttConnectOptions defaultConnectOptions;
     private FacilioMqttCallback mqttCallback;
     private String clientId;
+    private final PublishPipeline publishPipeline = new PublishPipeline(this::send, this::isConnected, this::getConnectOptions, this::getClientId);
+    private final ConnectionNotifier connectionNotifier = new ConnectionNotifier();
+    private final TopicRouter topicRouter = new TopicRouter();
+    private final MessageDispatcher messageDispatcher = new MessageDispatcher(this::getCallback, this::getConnectOptions, topicRouter);
 
 
     /**
@@ -75,6 +96,22 @@ public class MQTTClient implements FacilioMqttClient {
         return mqttCallback;
     }
 
+    /**
+     * Registers a {@link ConnectionListener} notified when the client connects to and disconnects from the server.
+     * @param listener ConnectionListener object
+     */
+    public void addConnectionListener(ConnectionListener listener) {
+        connectionNotifier.add(listener);
+    }
+
+    /**
+     * Removes a listener registered with {@link #addConnectionListener(ConnectionListener)}.
+     * @param listener ConnectionListener object
+     */
+    public void removeConnectionListener(ConnectionListener listener) {
+        connectionNotifier.remove(listener);
+    }
+
     /**
      * Connects to an MQTT server with the given connect options {@link FacilioMqttConnectOptions}. <br>
      * @param connectOptions properties used to connect
@@ -83,7 +120,9 @@ public class MQTTClient implements FacilioMqttClient {
     public void connect(FacilioMqttConnectOptions connectOptions) throws FacilioMqttException {
         try {
             if(mqttClient != null) {
-                mqttClient.setCallback(new MqttCallbackListener(getCallback()));
+                MqttCallbackListener listener = new MqttCallbackListener(getCallback(), publishPipeline, connectionNotifier, messageDispatcher, MqttCallbackListener.Acknowledger.of(mqttClient), connectOptions.isManualAcks());
+                mqttClient.setCallback(listener);
+                mqttClient.setManualAcks(listener.isClientAcks());
                 mqttClient.connect(connectOptions);//, new MqttActionListener());
                 this.connectOptions = connectOptions;
             }
@@ -132,18 +171,21 @@ public class MQTTClient implements FacilioMqttClient {
                     connectOptions = getDefaultConnectOptions();
                 }
                 if (mqttClient == null) {
-                    mqttClient = new MqttClient(connectOptions.getServerURI(), clientId);
+                    if (connectOptions.getPersistence() != null) {
+                        mqttClient = new SyncClient(connectOptions.getServerURI(), clientId, connectOptions.getPersistence());
+                    } else {
+                        mqttClient = new SyncClient(connectOptions.getServerURI(), clientId);
+                    }
                 }
-                mqttClient.setCallback(new MqttCallbackListener(getCallback()));
+                MqttCallbackListener listener = new MqttCallbackListener(getCallback(), publishPipeline, connectionNotifier, messageDispatcher, MqttCallbackListener.Acknowledger.of(mqttClient), connectOptions.isManualAcks());
+                mqttClient.setCallback(listener);
+                mqttClient.setManualAcks(listener.isClientAcks());
                 mqttClient.connect(connectOptions);
-                int i = 0;
-                while ( ! isConnected() && i < 10) {
-                    try {
-                        Thread.sleep(1000);
-                        i++;
-                    } catch (InterruptedException e) {
-                        throw new FacilioMqttException(e.getCause());
-                    }
+                try {
+                    connectionNotifier.awaitConnected(this::isConnected, CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new FacilioMqttException(e.getCause());
                 }
             }
         } catch (MqttException e) {
@@ -182,9 +224,15 @@ public class MQTTClient implements FacilioMqttClient {
      */
     public void disconnect() throws FacilioMqttException {
         try {
-            mqttClient.disconnect();
+            connectionNotifier.closed();
+            if (mqttClient != null) {
+                mqttClient.disconnect();
+            }
         } catch (MqttException e) {
             throw new FacilioMqttException(e.getReasonCode(), e.getCause());
+        } finally {
+            publishPipeline.close();
+            messageDispatcher.close();
         }
     }
 
@@ -204,13 +252,6 @@ public class MQTTClient implements FacilioMqttClient {
         this.clientId = clientId;
     }
 
-    private void publish(String topic, MqttMessage message) throws FacilioMqttException {
-        try {
-            mqttClient.publish(topic, message);
-        } catch (MqttException e) {
-            throw new FacilioMqttException(e.getReasonCode(), e.getCause());
-        }
-    }
 
     /**
      * Publish payload to the mentioned topic with the given QOS
@@ -220,7 +261,11 @@ public class MQTTClient implements FacilioMqttClient {
      * @throws FacilioMqttException if any problem was encountered
      */
     public void publish(String topic, byte[] payload, int qos)throws FacilioMqttException {
-        publish(topic, getMqttMessage(payload, qos));
+        publish(topic, payload, qos, false);
+    }
+
+    private void publish(String topic, byte[] payload, int qos, boolean pooled) throws FacilioMqttException {
+        publishPipeline.publish(topic, payload, qos, Priority.NORMAL, pooled, true);
     }
 
 
@@ -232,7 +277,7 @@ public class MQTTClient implements FacilioMqttClient {
      * @throws FacilioMqttException if any problem was encountered
      */
     public void publish(String topic, JSONObject message, int qos) throws FacilioMqttException {
-        publish(topic, message.toJSONString().getBytes(), qos);
+        publish(topic, publishPipeline.toJson(message), qos, true);
     }
 
 
@@ -244,7 +289,107 @@ public class MQTTClient implements FacilioMqttClient {
      * @throws FacilioMqttException if any problem was encountered
      */
     public void publish(String topic, String payload, int qos) throws FacilioMqttException {
-        publish(topic, payload.getBytes(), qos);
+        publish(topic, publishPipeline.toUtf8(payload), qos, true);
+    }
+
+    /**
+     * Publish the remaining bytes of the buffer to the mentioned topic with the given QOS.
+     * A heap buffer covering exactly its whole array is published without a copy, any other buffer is copied once.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void publish(String topic, ByteBuffer payload, int qos) throws FacilioMqttException {
+        publish(topic, PublishPipeline.toByteArray(payload), qos);
+    }
+
+    /**
+     * Publish the remaining bytes of the buffer to the mentioned topic with the given QOS without waiting for the acknowledgement.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @return future completed when the message is delivered
+     */
+    public CompletableFuture<DeliveryReceipt> publishAsync(String topic, ByteBuffer payload, int qos) {
+        return publishAsync(topic, PublishPipeline.toByteArray(payload), qos);
+    }
+
+    /**
+     * Publish payload to the mentioned topic with the given QOS without waiting for the acknowledgement.
+     * The calling thread is parked only while the in-flight window is full, and the returned future is completed
+     * with the message id and ack latency of the delivery token. A message taken by the journal or the offline
+     * buffer is published later, and its future is completed once it is delivered.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @return future completed when the message is delivered
+     */
+    public CompletableFuture<DeliveryReceipt> publishAsync(String topic, byte[] payload, int qos) {
+        return publishPipeline.publishAsync(topic, payload, qos);
+    }
+
+    /**
+     * Publish payload to the mentioned topic with the given QOS in the lane of the priority and wait for the acknowledgement,
+     * like {@link #publish(String, byte[], int)}.
+     * A message taken by the journal or the offline buffer is published later and the call returns right away.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @param priority priority of the message
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void publish(String topic, byte[] payload, int qos, Priority priority) throws FacilioMqttException {
+        publishPipeline.publish(topic, payload, qos, priority, false, true);
+    }
+
+    /**
+     * Publish payload to the mentioned topic with the given QOS in the lane of the priority without waiting for the acknowledgement.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @param priority priority of the message
+     * @return future completed when the message is delivered
+     */
+    public CompletableFuture<DeliveryReceipt> publishAsync(String topic, byte[] payload, int qos, Priority priority) {
+        return publishPipeline.publishAsync(topic, payload, qos, priority);
+    }
+
+    private void send(String topic, byte[] payload, int qos, boolean pooled, CompletableFuture<DeliveryReceipt> future) {
+        MqttMessage message = publishPipeline.message(payload, qos);
+        DeliveryListener listener = new DeliveryListener(topic, future, publishPipeline, message, pooled);
+        try {
+            mqttClient.publish(topic, message, null, listener);
+        } catch (MqttException e) {
+            future.completeExceptionally(new FacilioMqttException(e.getReasonCode(), e.getCause()));
+        }
+    }
+
+    /**
+     * Publish the messages keeping at most {@link FacilioMqttConnectOptions#getMaxInflight()} messages unacknowledged.
+     * The calling thread is parked only while the in-flight window is full.
+     * @param messages messages to publish
+     * @return future completed when every message is either acknowledged or failed
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public CompletableFuture<BatchReceipt> publishBatch(Collection<OutboundMessage> messages) throws FacilioMqttException {
+        return publishPipeline.publishBatch(messages);
+    }
+
+    /**
+     * Returns how long publishes waited for the rate limits of the connect options.
+     * @return rate limit metrics
+     */
+    public RateLimitMetrics getRateLimitMetrics() {
+        return publishPipeline.getRateLimitMetrics();
+    }
+
+    /**
+     * Returns the dispatch metrics of the received messages
+     * @return dispatch metrics
+     */
+    public DispatchMetrics getDispatchMetrics() {
+        return messageDispatcher.getMetrics();
     }
 
     /**
@@ -271,6 +416,52 @@ public class MQTTClient implements FacilioMqttClient {
         }
     }
 
+    /**
+     * Subscribe to the topic filter with the given QOS and deliver its messages to the handler instead of the callback.<br>
+     * @param topic filter to subscribe, with '+' and '#' wildcards
+     * @param qos for the topic
+     * @param handler receives the messages matching the filter
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void subscribe(String topic, int qos, MessageHandler handler) throws FacilioMqttException {
+        if (handler == null) {
+            throw new IllegalArgumentException();
+        }
+        topicRouter.add(topic, handler);
+        try {
+            subscribe(topic, qos);
+        } catch (FacilioMqttException e) {
+            topicRouter.remove(topic, handler);
+            throw e;
+        }
+    }
+
+    /**
+     * Subscribe to the topic filter with the given QOS and deliver to the handler the messages its content filter matches.<br>
+     * @param topic filter to subscribe, with '+' and '#' wildcards
+     * @param qos for the topic
+     * @param filter content filter of the messages, evaluated on the receiving thread
+     * @param handler receives the messages matching the topic filter and the content filter
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void subscribe(String topic, int qos, ContentFilter filter, MessageHandler handler) throws FacilioMqttException {
+        subscribe(topic, qos, new FilteredMessageHandler(filter, handler));
+    }
+
+    /**
+     * Subscribe to the topic filter with the given QOS and deliver its messages to the handler in batches.<br>
+     * @param topic filter to subscribe, with '+' and '#' wildcards
+     * @param qos for the topic
+     * @param handler receives the batches of messages matching the filter
+     * @param maxMessages maximum number of messages in a batch
+     * @param maxBytes payload size in bytes at which a batch is handed over
+     * @param linger maximum time in milliseconds a message waits for the batch to fill up
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void subscribe(String topic, int qos, BatchMessageHandler handler, int maxMessages, int maxBytes, long linger) throws FacilioMqttException {
+        subscribe(topic, qos, new MessageBatcher(handler, maxMessages, maxBytes, linger));
+    }
+
     /**
      * Unsubscribe the topic.<br>
      * @param topic to unsubscribe
@@ -279,16 +470,105 @@ public class MQTTClient implements FacilioMqttClient {
     public void unsubscribe(String topic) throws FacilioMqttException {
         try {
             mqttClient.unsubscribe(topic);
+            topicRouter.remove(topic, null);
         } catch (MqttException e) {
             throw new FacilioMqttException(e.getReasonCode(), e.getCause());
         }
     }
 
-    private MqttMessage getMqttMessage(byte[] payload, int qos) {
-        MqttMessage mqttMessage = new MqttMessage();
-        mqttMessage.setPayload(payload);
-        mqttMessage.setQos(qos);
-        return mqttMessage;
+    /**
+     * Subscribe to the topic filters with the given QOS in one request and wait until the server has acknowledged them.<br>
+     * @param topics filters to subscribe, with '+' and '#' wildcards
+     * @param qos for each filter
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void subscribe(String[] topics, int[] qos) throws FacilioMqttException {
+        SubscriptionRequests.await(subscribeAsync(topics, qos));
+    }
+
+    /**
+     * Subscribe to the topic filters with the given QOS in one request without waiting for the server.<br>
+     * @param topics filters to subscribe, with '+' and '#' wildcards
+     * @param qos for each filter
+     * @return future completed when the server has acknowledged every filter
+     */
+    public CompletableFuture<Void> subscribeAsync(String[] topics, int[] qos) {
+        SubscriptionRequests.validate(topics, qos);
+        if (topics.length == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (mqttClient == null) {
+            return SubscriptionRequests.failed(new FacilioMqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED));
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            mqttClient.subscribe(topics, qos, new SubscribeListener(future));
+        } catch (MqttException e) {
+            return SubscriptionRequests.failed(e);
+        }
+        return SubscriptionRequests.withTimeout(future, SubscriptionRequests.timeout(connectOptions));
+    }
+
+    /**
+     * Unsubscribe the topic filters in one request and wait until the server has acknowledged them.<br>
+     * @param topics filters to unsubscribe
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void unsubscribe(String[] topics) throws FacilioMqttException {
+        SubscriptionRequests.await(unsubscribeAsync(topics));
+    }
+
+    /**
+     * Unsubscribe the topic filters in one request without waiting for the server.<br>
+     * @param topics filters to unsubscribe
+     * @return future completed when the server has acknowledged the request
+     */
+    public CompletableFuture<Void> unsubscribeAsync(String[] topics) {
+        SubscriptionRequests.validate(topics, null);
+        if (topics.length == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (mqttClient == null) {
+            return SubscriptionRequests.failed(new FacilioMqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED));
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            mqttClient.unsubscribe(topics, new SubscribeListener(future));
+        } catch (MqttException e) {
+            return SubscriptionRequests.failed(e);
+        }
+        return SubscriptionRequests.withTimeout(future, SubscriptionRequests.timeout(connectOptions)).thenRun(() -> {
+            for (String topic : topics) {
+                topicRouter.remove(topic, null);
+            }
+        });
     }
 
+    /**
+     * MqttClient publishing with a listener attached before the message is sent.
+     * Publishing with the blocking methods of MqttClient waits on a monitor of the token, and a listener attached
+     * to the token after the send can see the token complete before the library has freed its in-flight slot.
+     */
+    private static class SyncClient extends MqttClient {
+
+        SyncClient(String serverURI, String clientId) throws MqttException {
+            super(serverURI, clientId);
+        }
+
+        SyncClient(String serverURI, String clientId, MqttClientPersistence persistence) throws MqttException {
+            super(serverURI, clientId, persistence);
+        }
+
+        IMqttDeliveryToken publish(String topic, MqttMessage message, Object userContext, IMqttActionListener callback) throws MqttException {
+            return aClient.publish(topic, message, userContext, callback);
+        }
+
+        IMqttToken subscribe(String[] topics, int[] qos, IMqttActionListener callback) throws MqttException {
+            return aClient.subscribe(topics, qos, null, callback);
+        }
+
+        IMqttToken unsubscribe(String[] topics, IMqttActionListener callback) throws MqttException {
+            return aClient.unsubscribe(topics, null, callback);
+        }
+    }
 }
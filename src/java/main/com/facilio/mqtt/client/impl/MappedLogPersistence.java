@@ -0,0 +1,500 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.util.FacilioProperties;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Log structured {@link MqttClientPersistence} keeping every in-flight message of a client in a single memory mapped file.
+ *
+ * <p>{@link org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence} writes and syncs one file per
+ * in-flight message. This implementation appends puts and removes to one log, keeps an in-memory index of the live
+ * records and forces the file to disk on a fixed interval, so a burst of QoS 1 messages costs a few sequential writes
+ * instead of a file create, sync and delete each. Once removed records take up more space than the live ones, the
+ * log is compacted in the background.</p>
+ *
+ * <p>Messages persisted within the last flush interval can be lost if the machine loses power, a crash of the
+ * application alone does not lose them.</p>
+ *
+ * <p>The keys Paho persists are only unique within a client, so an instance holds the log of one client at a time.
+ * Opening it for another client while it is open fails, and every client needs its own instance.</p>
+ *
+ * <code>
+ *  FacilioMqttConnectOptions options = new FacilioMqttConnectOptions();<br>
+ *  options.setPersistence(new MappedLogPersistence());<br>
+ * </code>
+ */
+public class MappedLogPersistence implements MqttClientPersistence {
+
+    private static final Logger LOGGER = LogManager.getLogger(MappedLogPersistence.class.getName());
+
+    private static final String FILE_SUFFIX = ".mlog";
+    private static final int HEADER_SIZE = 8;
+    private static final int REMOVED = -1;
+    private static final int INITIAL_SIZE = 1024 * 1024;
+
+    private final String directory;
+    private final long flushInterval;
+    private final Map<String, Entry> index = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private String owner;
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+    private ScheduledExecutorService flusher;
+    private int position;
+    private long liveBytes;
+    private long garbageBytes;
+    private boolean dirty;
+
+    /**
+     * Constructs a MappedLogPersistence keeping its files in user.home/facilio/persistence, flushed every 100 milliseconds.
+     */
+    public MappedLogPersistence() {
+        this(FacilioProperties.getFacilioHome() + "persistence", 100);
+    }
+
+    /**
+     * Constructs a MappedLogPersistence.
+     * @param directory directory to keep the log files in
+     * @param flushInterval interval in milliseconds between forcing the log to disk
+     */
+    public MappedLogPersistence(String directory, long flushInterval) {
+        this.directory = directory;
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Opens the log of the given client, recovering the records written before a restart.
+     * @param clientId client id of the client
+     * @param serverURI server URI the client connects to
+     * @throws MqttPersistenceException if the log could not be opened or is already open for another client
+     */
+    public void open(String clientId, String serverURI) throws MqttPersistenceException {
+        lock.lock();
+        try {
+            String name = clientId + "-" + serverURI;
+            if (randomAccessFile != null) {
+                if (name.equals(owner)) {
+                    return;
+                }
+                throw new MqttPersistenceException(new IOException("Persistence is already open for " + owner + ", every client needs its own instance"));
+            }
+            File dir = new File(directory);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new MqttPersistenceException(new IOException("Unable to create persistence directory " + dir));
+            }
+            file = new File(dir, sanitize(name) + FILE_SUFFIX);
+            map(file, Math.max(INITIAL_SIZE, file.length()));
+            recover();
+            owner = name;
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "facilio-mqtt-persistence-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the log to disk and closes it.
+     * @throws MqttPersistenceException if the log could not be closed
+     */
+    public void close() throws MqttPersistenceException {
+        lock.lock();
+        try {
+            if (randomAccessFile == null) {
+                return;
+            }
+            flusher.shutdown();
+            buffer.force();
+            randomAccessFile.close();
+            randomAccessFile = null;
+            buffer = null;
+            index.clear();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the persistable to the log, replacing any earlier record with the same key.
+     * @param key key of the record
+     * @param persistable data to persist
+     * @throws MqttPersistenceException if the record could not be written
+     */
+    public void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int headerLength = persistable.getHeaderLength();
+        int payloadLength = persistable.getPayloadBytes() == null ? 0 : persistable.getPayloadLength();
+        int length = 8 + keyBytes.length + headerLength + payloadLength;
+        lock.lock();
+        try {
+            checkOpen();
+            ensureCapacity(HEADER_SIZE + length);
+            int start = position;
+            ByteBuffer writer = buffer.duplicate();
+            writer.position(start + HEADER_SIZE);
+            writer.putInt(keyBytes.length);
+            writer.put(keyBytes);
+            writer.putInt(headerLength);
+            writer.put(persistable.getHeaderBytes(), persistable.getHeaderOffset(), headerLength);
+            if (payloadLength > 0) {
+                writer.put(persistable.getPayloadBytes(), persistable.getPayloadOffset(), payloadLength);
+            }
+            commit(start, length);
+            Entry previous = index.put(key, new Entry(start + HEADER_SIZE + 8 + keyBytes.length, headerLength, payloadLength, HEADER_SIZE + length));
+            if (previous != null) {
+                discard(previous);
+            }
+            liveBytes += HEADER_SIZE + length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the persisted data of the given key.
+     * @param key key of the record
+     * @return persisted data, null if the key is not present
+     * @throws MqttPersistenceException if the log is not open
+     */
+    public MqttPersistable get(String key) throws MqttPersistenceException {
+        lock.lock();
+        try {
+            checkOpen();
+            Entry entry = index.get(key);
+            if (entry == null) {
+                return null;
+            }
+            ByteBuffer reader = buffer.duplicate();
+            reader.position(entry.position);
+            byte[] header = new byte[entry.headerLength];
+            reader.get(header);
+            byte[] payload = new byte[entry.payloadLength];
+            reader.get(payload);
+            return new PersistedData(header, payload);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a removal of the given key to the log.
+     * @param key key of the record
+     * @throws MqttPersistenceException if the removal could not be written
+     */
+    public void remove(String key) throws MqttPersistenceException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + keyBytes.length;
+        lock.lock();
+        try {
+            checkOpen();
+            Entry entry = index.remove(key);
+            if (entry == null) {
+                return;
+            }
+            discard(entry);
+            ensureCapacity(HEADER_SIZE + length);
+            int start = position;
+            ByteBuffer writer = buffer.duplicate();
+            writer.position(start + HEADER_SIZE);
+            writer.putInt(keyBytes.length);
+            writer.put(keyBytes);
+            writer.putInt(REMOVED);
+            commit(start, length);
+            garbageBytes += HEADER_SIZE + length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the keys of all the persisted records.
+     * The raw Enumeration is the return type of Paho's MqttClientPersistence interface.
+     * @return enumeration of keys
+     * @throws MqttPersistenceException if the log is not open
+     */
+    @SuppressWarnings("rawtypes")
+    public Enumeration keys() throws MqttPersistenceException {
+        lock.lock();
+        try {
+            checkOpen();
+            return Collections.enumeration(new ArrayList<>(index.keySet()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes every persisted record.
+     * @throws MqttPersistenceException if the log is not open
+     */
+    public void clear() throws MqttPersistenceException {
+        lock.lock();
+        try {
+            checkOpen();
+            index.clear();
+            buffer.putInt(0, 0);
+            position = 0;
+            liveBytes = 0;
+            garbageBytes = 0;
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if a record is persisted for the given key.
+     * @param key key of the record
+     * @return true if the key is present
+     * @throws MqttPersistenceException if the log is not open
+     */
+    public boolean containsKey(String key) throws MqttPersistenceException {
+        lock.lock();
+        try {
+            checkOpen();
+            return index.containsKey(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() throws MqttPersistenceException {
+        if (randomAccessFile == null) {
+            throw new MqttPersistenceException();
+        }
+    }
+
+    private void commit(int start, int length) {
+        crc.reset();
+        ByteBuffer body = buffer.duplicate();
+        body.limit(start + HEADER_SIZE + length).position(start + HEADER_SIZE);
+        crc.update(body);
+        position = start + HEADER_SIZE + length;
+        if (position + 4 <= buffer.capacity()) {
+            buffer.putInt(position, 0);
+        }
+        buffer.putInt(start + 4, (int) crc.getValue());
+        buffer.putInt(start, length);
+        dirty = true;
+    }
+
+    private void discard(Entry entry) {
+        liveBytes -= entry.recordLength;
+        garbageBytes += entry.recordLength;
+    }
+
+    private void ensureCapacity(int length) throws MqttPersistenceException {
+        if (position + length + 4 <= buffer.capacity()) {
+            return;
+        }
+        try {
+            if (garbageBytes > 0) {
+                compact();
+            }
+            if (position + length + 4 > buffer.capacity()) {
+                long size = buffer.capacity();
+                while (position + length + 4 > size) {
+                    size *= 2;
+                }
+                buffer.force();
+                map(file, size);
+            }
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    private void flush() {
+        lock.lock();
+        try {
+            if (randomAccessFile == null) {
+                return;
+            }
+            if (garbageBytes > liveBytes && garbageBytes > buffer.capacity() / 4) {
+                compact();
+            } else if (dirty) {
+                buffer.force();
+            }
+            dirty = false;
+        } catch (IOException e) {
+            LOGGER.info("Exception while flushing persistence " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites the live records into a new file and swaps it with the current one.
+     */
+    private void compact() throws IOException {
+        File compacted = new File(file.getPath() + ".compact");
+        long size = Math.max(INITIAL_SIZE, buffer.capacity());
+        Map<String, Entry> entries = new HashMap<>();
+        int written = 0;
+        try (RandomAccessFile target = new RandomAccessFile(compacted, "rw")) {
+            MappedByteBuffer out = target.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            ByteBuffer reader = buffer.duplicate();
+            for (Map.Entry<String, Entry> mapEntry : index.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                int start = entry.position - entry.recordLength + entry.headerLength + entry.payloadLength;
+                reader.limit(start + entry.recordLength).position(start);
+                out.position(written);
+                out.put(reader);
+                reader.clear();
+                entries.put(mapEntry.getKey(), new Entry(written + (entry.position - start), entry.headerLength, entry.payloadLength, entry.recordLength));
+                written += entry.recordLength;
+            }
+            if (written + 4 <= size) {
+                out.putInt(written, 0);
+            }
+            out.force();
+        }
+        randomAccessFile.close();
+        Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map(file, size);
+        index.clear();
+        index.putAll(entries);
+        position = written;
+        garbageBytes = 0;
+        liveBytes = written;
+    }
+
+    private void map(File target, long size) throws IOException {
+        if (randomAccessFile != null && target.equals(file) && randomAccessFile.getChannel().isOpen()) {
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return;
+        }
+        randomAccessFile = new RandomAccessFile(target, "rw");
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void recover() {
+        ByteBuffer reader = buffer.duplicate();
+        CRC32 check = new CRC32();
+        int start = 0;
+        while (start + HEADER_SIZE + 8 <= buffer.capacity()) {
+            int length = buffer.getInt(start);
+            if (length < 8 || start + HEADER_SIZE + length > buffer.capacity()) {
+                break;
+            }
+            reader.limit(start + HEADER_SIZE + length).position(start + HEADER_SIZE);
+            check.reset();
+            check.update(reader);
+            if ((int) check.getValue() != buffer.getInt(start + 4)) {
+                LOGGER.info("Discarding torn persistence record at " + start);
+                break;
+            }
+            reader.clear();
+            reader.position(start + HEADER_SIZE);
+            byte[] keyBytes = new byte[reader.getInt()];
+            reader.get(keyBytes);
+            int headerLength = reader.getInt();
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+            Entry previous;
+            if (headerLength == REMOVED) {
+                previous = index.remove(key);
+                garbageBytes += HEADER_SIZE + length;
+            } else {
+                previous = index.put(key, new Entry(reader.position(), headerLength, length - 8 - keyBytes.length - headerLength, HEADER_SIZE + length));
+                liveBytes += HEADER_SIZE + length;
+            }
+            if (previous != null) {
+                discard(previous);
+            }
+            start += HEADER_SIZE + length;
+        }
+        position = start;
+    }
+
+    private static String sanitize(String name) {
+        StringBuilder builder = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            builder.append(Character.isLetterOrDigit(c) || c == '-' || c == '.' ? c : '_');
+        }
+        return builder.toString();
+    }
+
+    private static class Entry {
+        private final int position;
+        private final int headerLength;
+        private final int payloadLength;
+        private final int recordLength;
+
+        Entry(int position, int headerLength, int payloadLength, int recordLength) {
+            this.position = position;
+            this.headerLength = headerLength;
+            this.payloadLength = payloadLength;
+            this.recordLength = recordLength;
+        }
+    }
+
+    private static class PersistedData implements MqttPersistable {
+        private final byte[] header;
+        private final byte[] payload;
+
+        PersistedData(byte[] header, byte[] payload) {
+            this.header = header;
+            this.payload = payload;
+        }
+
+        public byte[] getHeaderBytes() {
+            return header;
+        }
+
+        public int getHeaderLength() {
+            return header.length;
+        }
+
+        public int getHeaderOffset() {
+            return 0;
+        }
+
+        public byte[] getPayloadBytes() {
+            return payload;
+        }
+
+        public int getPayloadLength() {
+            return payload.length;
+        }
+
+        public int getPayloadOffset() {
+            return 0;
+        }
+    }
+}
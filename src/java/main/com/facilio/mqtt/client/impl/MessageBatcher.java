@@ -0,0 +1,152 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.BatchMessageHandler;
+import com.facilio.mqtt.client.MessageHandler;
+import com.facilio.mqtt.client.ReceivedMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Collects the messages of a batch subscription and passes them to its {@link BatchMessageHandler}.
+ *
+ * A batch is handed over when it holds max messages messages, when its payloads add up to max bytes, or when its
+ * first message has waited for the linger time, whichever happens first. Full batches are handled on the thread
+ * dispatching their last message and lingering ones on a shared linger thread. Two lists are used in turn, one
+ * filling while the other is with the handler, so nothing is allocated per batch.
+ *
+ * The acknowledgement of an {@link InboundMessage} is deferred until the handler has returned for its batch. When
+ * the handler throws, the exception is logged and the messages of the batch are not acknowledged, so the server
+ * redelivers them when the session is resumed.
+ */
+class MessageBatcher implements MessageHandler {
+
+    private static final Logger LOGGER = LogManager.getLogger(MessageBatcher.class.getName());
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private static final ScheduledThreadPoolExecutor LINGER_TIMER = createLingerTimer();
+
+    private final BatchMessageHandler handler;
+    private final int maxMessages;
+    private final int maxBytes;
+    private final long linger;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReentrantLock handlerLock = new ReentrantLock();
+    private List<ReceivedMessage> batch;
+    private List<InboundMessage> held;
+    private List<ReceivedMessage> spareBatch;
+    private List<InboundMessage> spareHeld;
+    private int bytes;
+    private long generation;
+    private ScheduledFuture<?> lingerTask;
+
+    /**
+     * Constructs a MessageBatcher.
+     * @param handler handler of the batches
+     * @param maxMessages maximum number of messages in a batch
+     * @param maxBytes payload size in bytes at which a batch is handed over
+     * @param linger maximum time in milliseconds a message waits for the batch to fill up
+     */
+    MessageBatcher(BatchMessageHandler handler, int maxMessages, int maxBytes, long linger) {
+        if (handler == null || maxMessages <= 0 || maxBytes <= 0 || linger <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.handler = handler;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.linger = linger;
+        int capacity = Math.min(maxMessages, 1024);
+        this.batch = new ArrayList<>(capacity);
+        this.held = new ArrayList<>(capacity);
+        this.spareBatch = new ArrayList<>(capacity);
+        this.spareHeld = new ArrayList<>(capacity);
+    }
+
+    private static ScheduledThreadPoolExecutor createLingerTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "facilio-mqtt-inbound-linger-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /**
+     * Adds the message to the batch, handing the batch over if it is full.
+     * @param message received message
+     */
+    public void onMessage(ReceivedMessage message) {
+        long full = -1;
+        lock.lock();
+        try {
+            if (message instanceof InboundMessage && ((InboundMessage) message).retain()) {
+                held.add((InboundMessage) message);
+            }
+            batch.add(message);
+            bytes += message.getPayloadLength();
+            if (batch.size() >= maxMessages || bytes >= maxBytes) {
+                full = generation;
+            } else if (batch.size() == 1) {
+                long scheduled = generation;
+                lingerTask = LINGER_TIMER.schedule(() -> flush(scheduled), linger, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (full >= 0) {
+            flush(full);
+        }
+    }
+
+    /**
+     * Hands the batch over to the handler, if it is still the batch of the given generation.
+     * @param expected generation of the batch to hand over
+     */
+    private void flush(long expected) {
+        handlerLock.lock();
+        try {
+            List<ReceivedMessage> messages;
+            List<InboundMessage> acknowledgements;
+            lock.lock();
+            try {
+                if (generation != expected || batch.isEmpty()) {
+                    return;
+                }
+                messages = batch;
+                acknowledgements = held;
+                batch = spareBatch;
+                held = spareHeld;
+                bytes = 0;
+                generation++;
+                if (lingerTask != null) {
+                    lingerTask.cancel(false);
+                    lingerTask = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+            try {
+                handler.onMessages(messages);
+                for (InboundMessage message : acknowledgements) {
+                    message.release();
+                }
+            } catch (RuntimeException e) {
+                LOGGER.info("Exception in batch handler for " + messages.size() + " messages " + e.getMessage());
+            } finally {
+                messages.clear();
+                acknowledgements.clear();
+                spareBatch = messages;
+                spareHeld = acknowledgements;
+            }
+        } finally {
+            handlerLock.unlock();
+        }
+    }
+}
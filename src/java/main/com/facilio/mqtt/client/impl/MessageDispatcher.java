@@ -0,0 +1,529 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.DispatchMetrics;
+import com.facilio.mqtt.client.DispatchMode;
+import com.facilio.mqtt.client.FacilioMqttCallback;
+import com.facilio.mqtt.client.FacilioMqttConnectOptions;
+import com.facilio.mqtt.client.InboundQueuePolicy;
+import com.facilio.mqtt.client.ReceivedMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Delivers the received messages of a client to the {@link com.facilio.mqtt.client.MessageHandler}s of the
+ * matching subscriptions, or to its {@link FacilioMqttCallback} when no handler matches.
+ *
+ * In the pooled {@link DispatchMode}s every message is queued on the stripe of its topic hash. A stripe is
+ * drained by one task at a time, so the messages of a topic keep their order, and the tasks of the stripes run on
+ * the dispatch threads. Exceptions thrown by the callback on a dispatch thread are logged and counted. The stripes
+ * and threads are created when the first message arrives, from the connect options at that time.
+ *
+ * The number of messages queued over all the stripes is bounded by the inbound queue size, and the
+ * {@link InboundQueuePolicy} decides what happens to a message received while the queue is full. The bound is
+ * checked before a message is queued, so concurrent receiving threads can exceed it by one message each.
+ *
+ * The dispatch threads are stopped by {@link #close()} when the client disconnects, once the queued messages are
+ * delivered, and created again if messages arrive after that.
+ *
+ * While batch handlers are subscribed, an {@link InboundMessage} is held while it is queued, so it is only
+ * acknowledged once delivered, or once dropped by the inbound queue policy. Messages which are dropped, or which
+ * match no handler while there is no callback, are acknowledged in place of the application.
+ *
+ * Messages rejected by the content filters of the subscriptions they match are discarded by the receiving thread with
+ * {@link #rejects(String, byte[])} before a message is created for them, and only counted.
+ */
+class MessageDispatcher {
+
+    private static final Logger LOGGER = LogManager.getLogger(MessageDispatcher.class.getName());
+    private static final int DRAIN_BATCH_SIZE = 256;
+    private static final int FORK_JOIN_STRIPES_PER_THREAD = 4;
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final Supplier<FacilioMqttCallback> callback;
+    private final Supplier<FacilioMqttConnectOptions> connectOptions;
+    private final TopicRouter topicRouter;
+    private final LongAdder dispatchedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder totalHandlerNanos = new LongAdder();
+    private final AtomicLong maxHandlerNanos = new AtomicLong();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger highWaterMark = new AtomicInteger();
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder conflatedCount = new LongAdder();
+    private final LongAdder blockedCount = new LongAdder();
+    private final LongAdder filteredCount = new LongAdder();
+    private final AtomicLongArray queueTimes = new AtomicLongArray(DispatchMetrics.QUEUE_TIME_BUCKETS);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private volatile boolean initialized;
+    private volatile Stripe[] stripes;
+    private int capacity;
+    private InboundQueuePolicy policy;
+
+    /**
+     * Constructs a MessageDispatcher.
+     * @param callback returns the callback of the client, read for every message
+     * @param connectOptions returns the options used by the client, read when the first message arrives
+     * @param topicRouter handlers of the subscriptions, messages without a matching handler go to the callback
+     */
+    MessageDispatcher(Supplier<FacilioMqttCallback> callback, Supplier<FacilioMqttConnectOptions> connectOptions, TopicRouter topicRouter) {
+        this.callback = callback;
+        this.connectOptions = connectOptions;
+        this.topicRouter = topicRouter;
+    }
+
+    private void initialize() {
+        if (!initialized) {
+            synchronized (this) {
+                if (!initialized) {
+                    FacilioMqttConnectOptions options = connectOptions.get();
+                    DispatchMode mode = options == null ? DispatchMode.CALLER_RUNS : options.getDispatchMode();
+                    ExecutorService virtualThreads = null;
+                    if (mode == DispatchMode.VIRTUAL_THREADS) {
+                        virtualThreads = VirtualThreads.newThreadPerTaskExecutor("facilio-mqtt-dispatch-virtual-");
+                        if (virtualThreads == null) {
+                            LOGGER.info("Virtual threads are not supported on this runtime, dispatching on a fork join pool");
+                            mode = DispatchMode.FORK_JOIN;
+                        }
+                    }
+                    if (mode != DispatchMode.CALLER_RUNS) {
+                        capacity = options.getInboundQueueSize() > 0 ? options.getInboundQueueSize() : Integer.MAX_VALUE;
+                        policy = options.getInboundQueuePolicy();
+                    }
+                    if (mode == DispatchMode.VIRTUAL_THREADS) {
+                        int count = options.getDispatchThreads() > 0 ? options.getDispatchThreads() : FacilioMqttConnectOptions.DEFAULT_VIRTUAL_DISPATCH_STRIPES;
+                        stripes = createVirtualThreadStripes(virtualThreads, count);
+                    } else if (mode != DispatchMode.CALLER_RUNS) {
+                        int threads = options.getDispatchThreads() > 0 ? options.getDispatchThreads() : Runtime.getRuntime().availableProcessors();
+                        stripes = mode == DispatchMode.FIXED ? createFixedStripes(threads) : createForkJoinStripes(threads);
+                    }
+                    initialized = true;
+                }
+            }
+        }
+    }
+
+    private Stripe[] createFixedStripes(int threads) {
+        Stripe[] fixed = new Stripe[threads];
+        for (int i = 0; i < threads; i++) {
+            ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "facilio-mqtt-dispatch-" + THREAD_COUNT.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            fixed[i] = new Stripe(executor, policy == InboundQueuePolicy.CONFLATE);
+        }
+        return fixed;
+    }
+
+    private Stripe[] createForkJoinStripes(int threads) {
+        ForkJoinPool pool = new ForkJoinPool(threads, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("facilio-mqtt-dispatch-" + THREAD_COUNT.incrementAndGet());
+            return thread;
+        }, null, true);
+        Stripe[] forkJoin = new Stripe[threads * FORK_JOIN_STRIPES_PER_THREAD];
+        for (int i = 0; i < forkJoin.length; i++) {
+            forkJoin[i] = new Stripe(pool, policy == InboundQueuePolicy.CONFLATE);
+        }
+        return forkJoin;
+    }
+
+    private Stripe[] createVirtualThreadStripes(ExecutorService executor, int count) {
+        Stripe[] virtual = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            virtual[i] = new Stripe(executor, policy == InboundQueuePolicy.CONFLATE);
+        }
+        return virtual;
+    }
+
+    /**
+     * Delivers the message to the callback, on the calling thread or on the dispatch thread of its stripe.
+     * When the inbound queue is full the message is handled by the inbound queue policy first.
+     * @param message received message
+     */
+    void dispatch(ReceivedMessage message) {
+        initialize();
+        Stripe[] current = stripes;
+        if (current == null) {
+            deliver(message, true);
+            return;
+        }
+        int index = stripeOf(message.getTopic(), current.length);
+        if (queued.get() >= capacity && !makeRoom(current, index, message)) {
+            return;
+        }
+        hold(message);
+        int depth = queued.incrementAndGet();
+        int max = highWaterMark.get();
+        while (depth > max && !highWaterMark.compareAndSet(max, depth)) {
+            max = highWaterMark.get();
+        }
+        current[index].offer(message);
+    }
+
+    /**
+     * Stops the dispatch threads once the messages queued so far are delivered, without waiting for them.
+     * The stripes and threads are created again from the connect options if another message arrives.
+     */
+    void close() {
+        Stripe[] current;
+        synchronized (this) {
+            current = stripes;
+            stripes = null;
+            initialized = false;
+        }
+        if (current != null) {
+            for (Stripe stripe : current) {
+                if (stripe.executor instanceof ExecutorService) {
+                    ((ExecutorService) stripe.executor).shutdown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the message is rejected by the content filters of every subscription its topic matches,
+     * in which case it is counted and should be discarded without being dispatched.
+     * @param topic name of the topic the message was published to
+     * @param payload payload received, decompressed
+     * @return true if the message is rejected
+     */
+    boolean rejects(String topic, byte[] payload) {
+        if (topicRouter.rejects(topic, payload, 0, payload.length)) {
+            filteredCount.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Applies the inbound queue policy to a message received while the queue is full.
+     * @return true if the message should be queued, false if it was dropped or conflated
+     */
+    private boolean makeRoom(Stripe[] current, int index, ReceivedMessage message) {
+        switch (policy) {
+            case DROP_NEWEST:
+                droppedCount.increment();
+                drop(message);
+                return false;
+            case DROP_OLDEST:
+                droppedCount.increment();
+                if (dropOldest(current)) {
+                    return true;
+                }
+                drop(message);
+                return false;
+            case CONFLATE:
+                hold(message);
+                if (current[index].conflate(message)) {
+                    conflatedCount.increment();
+                    return false;
+                }
+                unhold(message);
+                awaitRoom();
+                return true;
+            default:
+                awaitRoom();
+                return true;
+        }
+    }
+
+    /**
+     * Evicts the message which has been queued longest over all the stripes. A stripe whose oldest message is
+     * delivered meanwhile is looked at again.
+     * @return true if a message was evicted, false if no message is queued
+     */
+    private boolean dropOldest(Stripe[] current) {
+        while (true) {
+            Stripe oldest = null;
+            long oldestTime = 0;
+            for (Stripe stripe : current) {
+                Entry entry = stripe.queue.peek();
+                if (entry != null && (oldest == null || entry.queuedTime - oldestTime < 0)) {
+                    oldest = stripe;
+                    oldestTime = entry.queuedTime;
+                }
+            }
+            if (oldest == null) {
+                return false;
+            }
+            if (oldest.poll(false) != null) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns true if batch handlers are subscribed, their messages are acknowledged after their batch is handled
+     * @return true if the router has batch handlers
+     */
+    boolean hasBatchers() {
+        return topicRouter.hasBatchers();
+    }
+
+    /**
+     * Holds the acknowledgement of the message while it is queued, if batch handlers are subscribed.
+     */
+    private void hold(ReceivedMessage message) {
+        if (message instanceof InboundMessage && topicRouter.hasBatchers()) {
+            InboundMessage inbound = (InboundMessage) message;
+            inbound.queued = inbound.retain();
+        }
+    }
+
+    /**
+     * Releases the hold taken by {@link #hold(ReceivedMessage)} once the message is delivered or dropped.
+     */
+    private void unhold(ReceivedMessage message) {
+        if (message instanceof InboundMessage && ((InboundMessage) message).queued) {
+            InboundMessage inbound = (InboundMessage) message;
+            inbound.queued = false;
+            inbound.release();
+        }
+    }
+
+    /**
+     * Acknowledges a message which will not reach the application.
+     */
+    private void drop(ReceivedMessage message) {
+        unhold(message);
+        if (message instanceof InboundMessage) {
+            ((InboundMessage) message).dropped();
+        }
+    }
+
+    private void awaitRoom() {
+        blockedCount.increment();
+        lock.lock();
+        try {
+            waiters.incrementAndGet();
+            try {
+                while (queued.get() >= capacity) {
+                    notFull.await();
+                }
+            } finally {
+                waiters.decrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dequeued() {
+        queued.decrementAndGet();
+        if (waiters.get() > 0) {
+            lock.lock();
+            try {
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the dispatch metrics
+     * @return dispatch metrics
+     */
+    DispatchMetrics getMetrics() {
+        Stripe[] current = initialized ? stripes : null;
+        int[] queueDepths = new int[current == null ? 0 : current.length];
+        for (int i = 0; i < queueDepths.length; i++) {
+            queueDepths[i] = current[i].size.get();
+        }
+        long[] histogram = new long[DispatchMetrics.QUEUE_TIME_BUCKETS];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = queueTimes.get(i);
+        }
+        return new DispatchMetrics(dispatchedCount.sum(), failedCount.sum(), queueDepths, totalHandlerNanos.sum(), maxHandlerNanos.get(),
+                highWaterMark.get(), droppedCount.sum(), conflatedCount.sum(), blockedCount.sum(), filteredCount.sum(), histogram);
+    }
+
+    private static int stripeOf(String topic, int count) {
+        int hash = topic.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return (hash & Integer.MAX_VALUE) % count;
+    }
+
+    private void deliver(ReceivedMessage message, boolean rethrow) {
+        FacilioMqttCallback mqttCallback = callback.get();
+        if (mqttCallback == null && topicRouter.isEmpty()) {
+            drop(message);
+            return;
+        }
+        long startTime = System.nanoTime();
+        try {
+            if (topicRouter.route(message)) {
+                return;
+            }
+            if (mqttCallback != null) {
+                mqttCallback.onMessage(message);
+            } else {
+                drop(message);
+            }
+        } catch (RuntimeException e) {
+            failedCount.increment();
+            if (rethrow) {
+                throw e;
+            }
+            LOGGER.info("Exception in callback for message on " + message.getTopic() + " " + e.getMessage());
+        } finally {
+            long elapsed = System.nanoTime() - startTime;
+            dispatchedCount.increment();
+            totalHandlerNanos.add(elapsed);
+            long max = maxHandlerNanos.get();
+            while (elapsed > max && !maxHandlerNanos.compareAndSet(max, elapsed)) {
+                max = maxHandlerNanos.get();
+            }
+        }
+    }
+
+    private void recordQueueTime(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), DispatchMetrics.QUEUE_TIME_BUCKETS - 1);
+        queueTimes.incrementAndGet(bucket);
+    }
+
+    /**
+     * Queued message. With {@link InboundQueuePolicy#CONFLATE} the message can be replaced while it is queued;
+     * it is cleared when the entry is taken, so an entry which was taken is not replaced anymore.
+     */
+    private static class Entry {
+
+        private final AtomicReference<ReceivedMessage> message;
+        private final String topic;
+        private final long queuedTime = System.nanoTime();
+
+        Entry(ReceivedMessage message) {
+            this.message = new AtomicReference<>(message);
+            this.topic = message.getTopic();
+        }
+    }
+
+    private class Stripe implements Runnable {
+
+        private final Executor executor;
+        private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final ConcurrentHashMap<String, Entry> latest;
+
+        Stripe(Executor executor, boolean conflating) {
+            this.executor = executor;
+            this.latest = conflating ? new ConcurrentHashMap<>() : null;
+        }
+
+        void offer(ReceivedMessage message) {
+            Entry entry = new Entry(message);
+            if (latest != null) {
+                latest.put(message.getTopic(), entry);
+            }
+            queue.offer(entry);
+            size.incrementAndGet();
+            schedule();
+        }
+
+        /**
+         * Replaces the latest queued message of the topic.
+         * @return true if a queued message was replaced
+         */
+        boolean conflate(ReceivedMessage message) {
+            Entry entry = latest.get(message.getTopic());
+            if (entry == null) {
+                return false;
+            }
+            ReceivedMessage queuedMessage = entry.message.get();
+            if (queuedMessage != null && entry.message.compareAndSet(queuedMessage, message)) {
+                drop(queuedMessage);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Takes the oldest queued message.
+         * @param delivered true if the message is taken to be delivered, its queue time is then recorded
+         * @return message, null if the stripe is empty
+         */
+        ReceivedMessage poll(boolean delivered) {
+            Entry entry = queue.poll();
+            if (entry == null) {
+                return null;
+            }
+            size.decrementAndGet();
+            if (latest != null) {
+                latest.remove(entry.topic, entry);
+            }
+            ReceivedMessage message = entry.message.getAndSet(null);
+            dequeued();
+            if (delivered) {
+                recordQueueTime(System.nanoTime() - entry.queuedTime);
+            } else {
+                drop(message);
+            }
+            return message;
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    run();
+                }
+            }
+        }
+
+        /**
+         * Delivers a batch of messages and schedules the stripe again if more are queued. Once the dispatcher is
+         * closed the executor rejects the stripe, and the remaining messages are delivered on the current thread.
+         */
+        public void run() {
+            while (true) {
+                ReceivedMessage message;
+                int count = 0;
+                while (count < DRAIN_BATCH_SIZE && (message = poll(true)) != null) {
+                    deliver(message, false);
+                    unhold(message);
+                    count++;
+                }
+                scheduled.set(false);
+                if (queue.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    executor.execute(this);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // closed, keep delivering on this thread
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.facilio.mqtt.client.impl;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool of the {@link MqttMessage} holders and payload buffers of the publish path.
+ *
+ * Holders and buffers are returned once the delivery is complete and handed out again to the next publish,
+ * so a client publishing at a steady rate does not allocate them. {@link MqttMessage#setPayload(byte[])} copies
+ * the payload, so the holders are {@link PooledMessage}s which keep the payload as given. Paho writes the whole
+ * payload array, so buffers are pooled by their exact length, up to {@link #MAX_BUFFER_LENGTH} bytes. The pool is a fixed array of
+ * slots taken and returned with compare and set; when the slots probed are empty a new holder or buffer is
+ * allocated, and when they are full the returned one is left to the garbage collector.
+ *
+ * Only the holders and buffers are pooled. Every publish still allocates its delivery future, the callbacks
+ * completing it, the {@link DeliveryListener} and the {@link com.facilio.mqtt.client.DeliveryReceipt}:
+ * MessagePoolBenchmark, in the benchmarks project, measures about 200 bytes per String publish and 224 bytes per
+ * JSONObject publish against 360 and 528 bytes without the pool, and the pooled String publish takes longer than an
+ * unpooled one.
+ */
+class MessagePool {
+
+    static final int MAX_BUFFER_LENGTH = 8192;
+
+    private static final int MESSAGE_SLOTS = 256;
+    private static final int BUFFER_LENGTHS = 128;
+    private static final int PROBES = 8;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final AtomicReferenceArray<PooledMessage> messages = new AtomicReferenceArray<>(MESSAGE_SLOTS);
+    private final AtomicReferenceArray<byte[]> buffers = new AtomicReferenceArray<>(BUFFER_LENGTHS * PROBES);
+
+    /**
+     * Returns a message holder for the payload.
+     * @param payload payload of the message
+     * @param qos for this message
+     * @return message holder
+     */
+    MqttMessage message(byte[] payload, int qos) {
+        int start = (int) Thread.currentThread().getId() * PROBES;
+        for (int i = 0; i < PROBES; i++) {
+            int slot = (start + i) & (MESSAGE_SLOTS - 1);
+            PooledMessage message = messages.get(slot);
+            if (message != null && messages.compareAndSet(slot, message, null)) {
+                message.setPayload(payload);
+                message.setQos(qos);
+                return message;
+            }
+        }
+        PooledMessage message = new PooledMessage();
+        message.setPayload(payload);
+        message.setQos(qos);
+        return message;
+    }
+
+    /**
+     * Returns the message holder to the pool once the library is done with it.
+     * Messages which were sent again after a reconnect carry the duplicate flag and are not reused.
+     * @param message message holder taken with {@link #message(byte[], int)}
+     * @param releasePayload true if the payload was taken from this pool and should be returned as well
+     */
+    void release(MqttMessage message, boolean releasePayload) {
+        if (!(message instanceof PooledMessage)) {
+            return;
+        }
+        if (releasePayload) {
+            release(message.getPayload());
+        }
+        if (message.isDuplicate()) {
+            return;
+        }
+        message.clearPayload();
+        int start = (int) Thread.currentThread().getId() * PROBES;
+        for (int i = 0; i < PROBES; i++) {
+            int slot = (start + i) & (MESSAGE_SLOTS - 1);
+            if (messages.get(slot) == null && messages.compareAndSet(slot, null, (PooledMessage) message)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns a buffer of exactly the given length. The content of the buffer is not cleared.
+     * @param length length of the buffer
+     * @return buffer
+     */
+    byte[] take(int length) {
+        if (length == 0 || length > MAX_BUFFER_LENGTH) {
+            return new byte[length];
+        }
+        int start = (length & (BUFFER_LENGTHS - 1)) * PROBES;
+        for (int i = 0; i < PROBES; i++) {
+            byte[] buffer = buffers.get(start + i);
+            if (buffer != null && buffer.length == length && buffers.compareAndSet(start + i, buffer, null)) {
+                return buffer;
+            }
+        }
+        return new byte[length];
+    }
+
+    /**
+     * Returns the buffer to the pool. The buffer must not be used by the caller afterwards.
+     * @param buffer buffer taken with {@link #take(int)}
+     */
+    void release(byte[] buffer) {
+        if (buffer.length == 0 || buffer.length > MAX_BUFFER_LENGTH) {
+            return;
+        }
+        int start = (buffer.length & (BUFFER_LENGTHS - 1)) * PROBES;
+        for (int i = 0; i < PROBES; i++) {
+            if (buffers.get(start + i) == null && buffers.compareAndSet(start + i, null, buffer)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Encodes the string as UTF-8 into a pooled buffer.
+     * Unpaired surrogates are replaced with '?', as {@link String#getBytes(java.nio.charset.Charset)} does.
+     * @param value string to encode
+     * @return UTF-8 bytes
+     */
+    byte[] toUtf8(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        byte[] bytes = take(length);
+        int position = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes[position++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[position++] = (byte) (0xC0 | (c >> 6));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                bytes[position++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                bytes[position++] = '?';
+            } else {
+                bytes[position++] = (byte) (0xE0 | (c >> 12));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Message holder which keeps the payload array as given instead of copying it.
+     */
+    static class PooledMessage extends MqttMessage {
+
+        private byte[] payload = EMPTY;
+
+        @Override
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        @Override
+        public void setPayload(byte[] payload) {
+            checkMutable();
+            if (payload == null) {
+                throw new NullPointerException();
+            }
+            this.payload = payload;
+        }
+
+        @Override
+        public void clearPayload() {
+            checkMutable();
+            this.payload = EMPTY;
+        }
+
+        @Override
+        public String toString() {
+            return new String(payload);
+        }
+    }
+}
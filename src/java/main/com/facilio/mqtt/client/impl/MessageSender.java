@@ -0,0 +1,21 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.DeliveryReceipt;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Hands a message to the underlying MQTT library without any buffering.
+ */
+interface MessageSender {
+
+    /**
+     * Sends the message and completes the future once it is acknowledged or failed.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @param pooled true if the payload was taken from the pool of the pipeline, to be returned once the message is delivered
+     * @param future future to complete
+     */
+    void send(String topic, byte[] payload, int qos, boolean pooled, CompletableFuture<DeliveryReceipt> future);
+}
@@ -1,24 +1,76 @@
 package com.facilio.mqtt.client.impl;
 
 import com.facilio.mqtt.client.FacilioMqttCallback;
+import com.facilio.mqtt.client.FacilioMqttException;
+import com.facilio.mqtt.client.ReceivedMessage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttClient;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
-import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
-class MqttCallbackListener implements MqttCallback {
+/**
+ * Receives the events of a Paho client.
+ *
+ * By default Paho acknowledges QoS 1 and 2 messages once {@link #messageArrived(String, MqttMessage)} returns. When the
+ * application acknowledges messages itself, or once a batch handler is subscribed, the listener switches the client
+ * to manual acknowledgements and acknowledges the messages once dispatched, or later when their acknowledgement is
+ * deferred by the application or a batch handler, see {@link InboundMessage}. The switch is made on the thread
+ * receiving the messages, before a message is handled, so every message is acknowledged exactly once.
+ */
+class MqttCallbackListener implements MqttCallbackExtended, InboundMessage.Sender {
 
     private static final Logger LOGGER = LogManager.getLogger(MqttCallbackListener.class.getName());
 
     private FacilioMqttCallback mqttCallback;
+    private PublishPipeline publishPipeline;
+    private ConnectionNotifier connectionNotifier;
+    private MessageDispatcher messageDispatcher;
+    private Acknowledger acknowledger;
+    private boolean manualAcks;
+    private volatile boolean clientAcks;
 
     /**
      * Constructs a MqttCallback using {@link FacilioMqttCallback}
      * @param callback FacilioMqttCallback object
+     * @param publishPipeline path of the client, notified when the connection is established and used to decompress payloads
+     * @param connectionNotifier notifies the connection listeners of the client
+     * @param messageDispatcher delivers the received messages to the callback
+     * @param acknowledger acknowledges the received messages and switches the Paho client to manual acknowledgements
+     * @param manualAcks true if the application acknowledges the received messages
      */
-    MqttCallbackListener(FacilioMqttCallback callback) {
+    MqttCallbackListener(FacilioMqttCallback callback, PublishPipeline publishPipeline, ConnectionNotifier connectionNotifier,
+                         MessageDispatcher messageDispatcher, Acknowledger acknowledger, boolean manualAcks) {
         this.mqttCallback = callback;
+        this.publishPipeline = publishPipeline;
+        this.connectionNotifier = connectionNotifier;
+        this.messageDispatcher = messageDispatcher;
+        this.acknowledger = acknowledger;
+        this.manualAcks = manualAcks;
+        this.clientAcks = manualAcks || messageDispatcher.hasBatchers();
+    }
+
+    /**
+     * Returns true if the listener acknowledges the received messages, the Paho client should then be connected with
+     * manual acknowledgements. Otherwise the client is switched once a batch handler is subscribed.
+     * @return true if manual acknowledgements are needed
+     */
+    boolean isClientAcks() {
+        return clientAcks;
+    }
+
+    /**
+     * This method is called when the connection to the server is completed successfully.
+     *
+     * @param reconnect true if the connection was the result of automatic reconnect.
+     * @param serverURI the server URI that the connection was made to.
+     */
+    public void connectComplete(boolean reconnect, String serverURI) {
+        publishPipeline.connectComplete();
+        connectionNotifier.connected();
     }
     /**
      * This method is called when the connection to the server is lost.
@@ -26,6 +78,7 @@ class MqttCallbackListener implements MqttCallback {
      * @param cause the reason behind the loss of connection.
      */
     public void connectionLost(Throwable cause) {
+        connectionNotifier.disconnected(cause);
         if(mqttCallback != null) {
             mqttCallback.onTimeout(cause);
         }
@@ -37,7 +90,11 @@ class MqttCallbackListener implements MqttCallback {
      * <p>
      * This method is invoked synchronously by the MQTT client. An
      * acknowledgment is not sent back to the server until this
-     * method returns cleanly.</p>
+     * method returns cleanly. In the pooled dispatch modes the message is only queued here,
+     * so it is acknowledged before the callback has run, unless batch handlers are subscribed.
+     * A message passed to a batch handler is acknowledged once its batch is handled, and with manual
+     * acknowledgements a message is acknowledged once the application acknowledges it. A message rejected by the
+     * content filters of its subscriptions is acknowledged without being dispatched.</p>
      * <p>
      * If an implementation of this method throws an <code>Exception</code>, then the
      * client will be shut down.  When the client is next re-connected, any QoS
@@ -63,8 +120,57 @@ class MqttCallbackListener implements MqttCallback {
      *                   shut down.
      */
     public void messageArrived(String topic, MqttMessage message) throws Exception {
-        if (mqttCallback != null) {
-            mqttCallback.onMessage(topic, message);
+        if (!clientAcks && messageDispatcher.hasBatchers()) {
+            acknowledger.setManualAcks(true);
+            clientAcks = true;
+        }
+        MqttMessage decoded = publishPipeline.decode(message);
+        if (messageDispatcher.rejects(topic, decoded.getPayload())) {
+            discard(decoded);
+            return;
+        }
+        if (message.getQos() == 0 || !clientAcks) {
+            messageDispatcher.dispatch(new ReceivedMessage(topic, decoded));
+            return;
+        }
+        InboundMessage inbound = new InboundMessage(topic, decoded, this, connectionNotifier.getConnection(), manualAcks);
+        try {
+            messageDispatcher.dispatch(inbound);
+        } finally {
+            inbound.release();
+        }
+    }
+
+    /**
+     * Acknowledges a message rejected by the content filters of its subscriptions, which is not dispatched.
+     */
+    private void discard(MqttMessage message) {
+        if (message.getQos() == 0 || !clientAcks) {
+            return;
+        }
+        try {
+            acknowledger.messageArrivedComplete(message.getId(), message.getQos());
+        } catch (MqttException e) {
+            LOGGER.info("Exception while acknowledging message " + message.getId() + " " + e.getMessage());
+        }
+    }
+
+    /**
+     * Acknowledges the message to the server, unless the connection it was received on is gone.
+     * @param message message to acknowledge
+     * @param connection connection the message was received on
+     */
+    public void acknowledge(InboundMessage message, int connection) {
+        if (connection != connectionNotifier.getConnection()) {
+            message.sent(new FacilioMqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED));
+            return;
+        }
+        try {
+            acknowledger.messageArrivedComplete(message.getMessageId(), message.getQos());
+            message.sent(null);
+        } catch (MqttException e) {
+            LOGGER.info("Exception while acknowledging message " + message.getMessageId() + " " + e.getMessage());
+            message.sent(new FacilioMqttException(e.getReasonCode(), e.getCause()));
         }
     }
 
@@ -87,4 +193,58 @@ class MqttCallbackListener implements MqttCallback {
             }
         }
     }
+
+    /**
+     * Sends the acknowledgement of a received message, implemented by the Paho clients.
+     */
+    interface Acknowledger {
+
+        /**
+         * Acknowledges the message with the given id.
+         * @param messageId id of the message
+         * @param qos qos of the message
+         * @throws MqttException if the acknowledgement could not be sent
+         */
+        void messageArrivedComplete(int messageId, int qos) throws MqttException;
+
+        /**
+         * Sets whether the client leaves the acknowledgements to the listener.
+         * @param manualAcks true for manual acknowledgements
+         */
+        void setManualAcks(boolean manualAcks);
+
+        /**
+         * Returns the acknowledger of an asynchronous Paho client
+         * @param client Paho client
+         * @return acknowledger
+         */
+        static Acknowledger of(IMqttAsyncClient client) {
+            return new Acknowledger() {
+                public void messageArrivedComplete(int messageId, int qos) throws MqttException {
+                    client.messageArrivedComplete(messageId, qos);
+                }
+
+                public void setManualAcks(boolean manualAcks) {
+                    client.setManualAcks(manualAcks);
+                }
+            };
+        }
+
+        /**
+         * Returns the acknowledger of a synchronous Paho client
+         * @param client Paho client
+         * @return acknowledger
+         */
+        static Acknowledger of(IMqttClient client) {
+            return new Acknowledger() {
+                public void messageArrivedComplete(int messageId, int qos) throws MqttException {
+                    client.messageArrivedComplete(messageId, qos);
+                }
+
+                public void setManualAcks(boolean manualAcks) {
+                    client.setManualAcks(manualAcks);
+                }
+            };
+        }
+    }
 }
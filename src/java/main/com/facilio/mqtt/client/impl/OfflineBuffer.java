@@ -0,0 +1,239 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.DeliveryReceipt;
+import com.facilio.mqtt.client.FacilioMqttException;
+import com.facilio.mqtt.client.OfflineBufferPolicy;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded ring buffer holding messages published while the client is not connected.
+ *
+ * The slots are allocated up front, so buffering a message does not allocate anything beyond the payload
+ * which the caller already owns.
+ */
+class OfflineBuffer {
+
+    private final String[] topics;
+    private final byte[][] payloads;
+    private final int[] qos;
+    private final CompletableFuture<DeliveryReceipt>[] futures;
+    private final long[] sequences;
+    private final long maxBytes;
+    private final OfflineBufferPolicy policy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+
+    private int head;
+    private int count;
+    private long bytes;
+    private long droppedCount;
+    private long nextSequence;
+
+    /**
+     * Constructs an OfflineBuffer.
+     * @param capacity maximum number of messages
+     * @param maxBytes maximum number of payload bytes
+     * @param policy policy applied when the buffer is full
+     */
+    @SuppressWarnings("unchecked")
+    OfflineBuffer(int capacity, long maxBytes, OfflineBufferPolicy policy) {
+        this.topics = new String[capacity];
+        this.payloads = new byte[capacity][];
+        this.qos = new int[capacity];
+        this.futures = (CompletableFuture<DeliveryReceipt>[]) new CompletableFuture<?>[capacity];
+        this.sequences = new long[capacity];
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * Adds the message at the tail of the buffer applying the overflow policy.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @param future future to complete once the message is delivered, can be null
+     * @throws FacilioMqttException if the calling thread is interrupted while waiting for room
+     */
+    void offer(String topic, byte[] payload, int qos, CompletableFuture<DeliveryReceipt> future) throws FacilioMqttException {
+        lock.lock();
+        try {
+            if (payload.length > maxBytes) {
+                drop(future);
+                return;
+            }
+            while (isFull(payload.length)) {
+                switch (policy) {
+                    case DROP_NEWEST:
+                        drop(future);
+                        return;
+                    case DROP_OLDEST:
+                        drop(futures[head]);
+                        removeHead();
+                        break;
+                    default:
+                        try {
+                            notFull.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new FacilioMqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, e);
+                        }
+                }
+            }
+            int index = (head + count) % topics.length;
+            set(index, topic, payload, qos, future, nextSequence++);
+            count++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts a message taken out of the buffer back in front of the messages buffered after it, so that messages
+     * put back after a failed drain are drained again in their original order, whatever order they fail in.
+     * The message is dropped if there is no room left.
+     * @param entry message to put back
+     */
+    void putBack(Entry entry) {
+        lock.lock();
+        try {
+            if (isFull(entry.payload.length)) {
+                drop(entry.future);
+                return;
+            }
+            int offset = 0;
+            while (offset < count && sequences[(head + offset) % topics.length] < entry.sequence) {
+                offset++;
+            }
+            head = (head - 1 + topics.length) % topics.length;
+            for (int i = 0; i < offset; i++) {
+                move((head + i + 1) % topics.length, (head + i) % topics.length);
+            }
+            set((head + offset) % topics.length, entry.topic, entry.payload, entry.qos, entry.future, entry.sequence);
+            count++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the oldest message into the given entry.
+     * @param entry holder to copy the message into
+     * @return true if a message was taken, false if the buffer is empty
+     */
+    boolean poll(Entry entry) {
+        lock.lock();
+        try {
+            if (count == 0) {
+                return false;
+            }
+            entry.topic = topics[head];
+            entry.payload = payloads[head];
+            entry.qos = qos[head];
+            entry.future = futures[head];
+            entry.sequence = sequences[head];
+            removeHead();
+            notFull.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if there are no buffered messages
+     * @return true if empty
+     */
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return count == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of buffered messages
+     * @return message count
+     */
+    int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of messages dropped because the buffer was full
+     * @return dropped count
+     */
+    long getDroppedCount() {
+        lock.lock();
+        try {
+            return droppedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isFull(int length) {
+        return count == topics.length || (count > 0 && bytes + length > maxBytes);
+    }
+
+    private void set(int index, String topic, byte[] payload, int qos, CompletableFuture<DeliveryReceipt> future, long sequence) {
+        topics[index] = topic;
+        payloads[index] = payload;
+        this.qos[index] = qos;
+        futures[index] = future;
+        sequences[index] = sequence;
+        bytes += payload.length;
+    }
+
+    private void move(int from, int to) {
+        topics[to] = topics[from];
+        payloads[to] = payloads[from];
+        qos[to] = qos[from];
+        futures[to] = futures[from];
+        sequences[to] = sequences[from];
+    }
+
+    private void removeHead() {
+        bytes -= payloads[head].length;
+        topics[head] = null;
+        payloads[head] = null;
+        futures[head] = null;
+        head = (head + 1) % topics.length;
+        count--;
+    }
+
+    private void drop(CompletableFuture<DeliveryReceipt> future) {
+        droppedCount++;
+        if (future != null) {
+            future.completeExceptionally(new FacilioMqttException(MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL));
+        }
+    }
+
+    /**
+     * Holder for a message taken out of the buffer.
+     */
+    static class Entry {
+        String topic;
+        byte[] payload;
+        int qos;
+        CompletableFuture<DeliveryReceipt> future;
+        long sequence;
+
+        void clear() {
+            topic = null;
+            payload = null;
+            future = null;
+        }
+    }
+}
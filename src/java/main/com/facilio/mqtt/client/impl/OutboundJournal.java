@@ -0,0 +1,441 @@
+package com.facilio.mqtt.client.impl;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segment rotated and memory mapped log of outbound messages.
+ *
+ * Every record is laid out as <code>[int length][int crc][byte qos][short topic length][topic][payload]</code>
+ * where length and crc cover the bytes following them. The length is written last, so a record torn by a
+ * crash is either not visible at all or fails its crc and is discarded on recovery. A record of an older segment
+ * which fails its crc when it is read, such as after a disk error, is skipped.
+ *
+ * Offsets are global, a segment file is named after the offset of its first byte and the next segment starts
+ * exactly one segment size later. The checkpoint file holds the offset of the oldest record not yet acknowledged.
+ * The directory is locked while the journal is open, so two clients with the same client id do not share it.
+ */
+class OutboundJournal {
+
+    private static final Logger LOGGER = LogManager.getLogger(OutboundJournal.class.getName());
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String LOCK_FILE = "lock";
+    private static final int HEADER_SIZE = 8;
+    private static final int END_OF_SEGMENT = -1;
+
+    private final File directory;
+    private final int segmentSize;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final CRC32 crc = new CRC32();
+    private final CRC32 readCrc = new CRC32();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final FileLock directoryLock;
+    private final RandomAccessFile checkpointFile;
+
+    private Segment writeSegment;
+    private volatile Segment readSegment;
+    private volatile long writeOffset;
+    private volatile long checkpoint;
+    private long flushedCheckpoint = -1;
+    private boolean dirty;
+
+    /**
+     * Opens the journal in the given directory, recovering the records written before a restart.
+     * @param directory directory holding the segment files
+     * @param segmentSize size of each segment file in bytes
+     * @throws IOException if the journal could not be opened or its directory is used by another journal
+     */
+    OutboundJournal(File directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + directory);
+        }
+        directoryLock = lock(directory);
+        try {
+            checkpointFile = new RandomAccessFile(new File(directory, CHECKPOINT_FILE), "rw");
+        } catch (IOException e) {
+            unlock(directoryLock);
+            throw e;
+        }
+        try {
+            checkpoint = checkpointFile.length() >= 8 ? checkpointFile.readLong() : 0;
+            File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+            if (files != null) {
+                for (File file : files) {
+                    long base = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+                    if (base + segmentSize <= checkpoint) {
+                        deleteFile(file);
+                    } else {
+                        segments.put(base, new Segment(base, file, segmentSize));
+                    }
+                }
+            }
+            if (segments.isEmpty()) {
+                long base = checkpoint - (checkpoint % segmentSize);
+                writeSegment = openSegment(base);
+                writeOffset = Math.max(base, checkpoint);
+                checkpoint = writeOffset;
+            } else {
+                writeSegment = segments.lastEntry().getValue();
+                writeOffset = writeSegment.base + recover(writeSegment);
+                if (checkpoint < segments.firstKey()) {
+                    checkpoint = segments.firstKey();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+            checkpointFile.close();
+            unlock(directoryLock);
+            throw e;
+        }
+        LOGGER.info("Opened journal " + directory + " with " + (writeOffset - checkpoint) + " bytes pending");
+    }
+
+    /**
+     * Appends a message to the journal.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @return offset of the record
+     * @throws IOException if the record could not be written
+     */
+    long append(String topic, byte[] payload, int qos) throws IOException {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        int length = 3 + topicBytes.length + payload.length;
+        if (length + HEADER_SIZE + 4 > segmentSize || topicBytes.length > Short.MAX_VALUE) {
+            throw new IOException("Message of " + length + " bytes does not fit in a journal segment");
+        }
+        lock.lock();
+        try {
+            int position = (int) (writeOffset - writeSegment.base);
+            if (position + HEADER_SIZE + length + 4 > segmentSize) {
+                writeSegment.buffer.putInt(position, END_OF_SEGMENT);
+                writeSegment.buffer.force();
+                writeSegment = openSegment(writeSegment.base + segmentSize);
+                writeOffset = writeSegment.base;
+                position = 0;
+            }
+            crc.reset();
+            crc.update(qos);
+            crc.update(topicBytes.length >>> 8);
+            crc.update(topicBytes.length);
+            crc.update(topicBytes, 0, topicBytes.length);
+            crc.update(payload, 0, payload.length);
+
+            ByteBuffer buffer = writeSegment.writer;
+            buffer.position(position + HEADER_SIZE);
+            buffer.put((byte) qos);
+            buffer.putShort((short) topicBytes.length);
+            buffer.put(topicBytes);
+            buffer.put(payload);
+            buffer.putInt(position + 4, (int) crc.getValue());
+            buffer.putInt(position, length);
+
+            long offset = writeOffset;
+            writeOffset = offset + HEADER_SIZE + length;
+            dirty = true;
+            appended.signalAll();
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the record at the given offset. Records are read by a single thread, and a record failing its crc is skipped.
+     * @param offset offset of the record, skipped to the next segment if it points to the end of one
+     * @param record holder to fill in, its next offset is where reading should continue from
+     * @return true if a record was read, false if there are no records at or after the offset yet
+     */
+    boolean read(long offset, Record record) {
+        while (offset < writeOffset) {
+            Segment segment = segmentFor(offset);
+            if (segment == null) {
+                offset = nextSegmentBase(offset);
+                continue;
+            }
+            int position = (int) (offset - segment.base);
+            ByteBuffer buffer = segment.reader;
+            int length = position + HEADER_SIZE <= segmentSize ? buffer.getInt(position) : END_OF_SEGMENT;
+            if (length <= 0 || position + HEADER_SIZE + length > segmentSize) {
+                offset = nextSegmentBase(offset);
+                continue;
+            }
+            if (!isIntact(buffer, position, length, readCrc)) {
+                LOGGER.info("Skipping corrupt journal record at " + offset);
+                offset += HEADER_SIZE + length;
+                continue;
+            }
+            buffer.position(position + HEADER_SIZE);
+            record.qos = buffer.get();
+            byte[] topicBytes = new byte[buffer.getShort()];
+            buffer.get(topicBytes);
+            record.payload = new byte[length - 3 - topicBytes.length];
+            buffer.get(record.payload);
+            record.topic = new String(topicBytes, StandardCharsets.UTF_8);
+            record.offset = offset;
+            record.nextOffset = offset + HEADER_SIZE + length;
+            return true;
+        }
+        record.nextOffset = offset;
+        return false;
+    }
+
+    /**
+     * Waits until a record is appended at or after the given offset.
+     * @param offset offset the caller has read up to
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    void awaitAppend(long offset, long timeout, TimeUnit unit) throws InterruptedException {
+        lock.lock();
+        try {
+            if (offset >= writeOffset) {
+                appended.await(timeout, unit);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that every message before the given offset has been acknowledged.
+     * The checkpoint is persisted on the next {@link #flush()}.
+     * @param offset offset of the oldest record not yet acknowledged
+     */
+    void checkpoint(long offset) {
+        if (offset > checkpoint) {
+            checkpoint = offset;
+        }
+    }
+
+    /**
+     * Returns the offset of the oldest record not yet acknowledged
+     * @return checkpoint offset
+     */
+    long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Returns the offset the next record will be written at
+     * @return write offset
+     */
+    long getWriteOffset() {
+        return writeOffset;
+    }
+
+    /**
+     * Forces appended records and the checkpoint to disk and deletes the segments which are fully acknowledged.
+     * @throws IOException if the journal could not be written
+     */
+    void flush() throws IOException {
+        Segment segment = null;
+        lock.lock();
+        try {
+            if (dirty) {
+                segment = writeSegment;
+                dirty = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (segment != null) {
+            segment.buffer.force();
+        }
+        long offset = checkpoint;
+        if (offset != flushedCheckpoint) {
+            checkpointFile.seek(0);
+            checkpointFile.writeLong(offset);
+            checkpointFile.getChannel().force(false);
+            flushedCheckpoint = offset;
+        }
+        lock.lock();
+        try {
+            while (!segments.isEmpty() && segments.firstKey() + segmentSize <= offset && segments.firstEntry().getValue() != writeSegment) {
+                Segment finished = segments.pollFirstEntry().getValue();
+                if (finished == readSegment) {
+                    readSegment = null;
+                }
+                finished.close();
+                deleteFile(finished.file);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes and closes the journal, releasing the lock of its directory.
+     * @throws IOException if the journal could not be written
+     */
+    void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            lock.lock();
+            try {
+                for (Segment segment : segments.values()) {
+                    segment.close();
+                }
+                segments.clear();
+            } finally {
+                lock.unlock();
+            }
+            checkpointFile.close();
+            unlock(directoryLock);
+        }
+    }
+
+    private static FileLock lock(File directory) throws IOException {
+        RandomAccessFile lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+        FileLock fileLock;
+        try {
+            fileLock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException | IOException e) {
+            fileLock = null;
+        }
+        if (fileLock == null) {
+            lockFile.close();
+            throw new IOException("Journal directory " + directory + " is used by another client");
+        }
+        return fileLock;
+    }
+
+    private static void unlock(FileLock fileLock) {
+        try {
+            fileLock.release();
+            fileLock.channel().close();
+        } catch (IOException e) {
+            LOGGER.info("Exception while unlocking journal directory " + e.getMessage());
+        }
+    }
+
+    private Segment segmentFor(long offset) {
+        Segment segment = readSegment;
+        if (segment != null && offset >= segment.base && offset < segment.base + segmentSize) {
+            return segment;
+        }
+        lock.lock();
+        try {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+            if (entry == null || offset >= entry.getKey() + segmentSize) {
+                return null;
+            }
+            readSegment = entry.getValue();
+            return readSegment;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long nextSegmentBase(long offset) {
+        return offset - (offset % segmentSize) + segmentSize;
+    }
+
+    private Segment openSegment(long base) throws IOException {
+        File file = new File(directory, String.format("%020d", base) + SEGMENT_SUFFIX);
+        Segment segment = new Segment(base, file, segmentSize);
+        segments.put(base, segment);
+        return segment;
+    }
+
+    private int recover(Segment segment) {
+        ByteBuffer buffer = segment.reader;
+        int position = 0;
+        while (position + HEADER_SIZE + 4 <= segmentSize) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER_SIZE + length > segmentSize) {
+                break;
+            }
+            if (!isIntact(buffer, position, length, readCrc)) {
+                LOGGER.info("Discarding torn journal record at " + (segment.base + position));
+                break;
+            }
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    /**
+     * Checks the crc of the record at the given position.
+     * @param buffer reader of the segment
+     * @param position position of the record in the segment
+     * @param length length of the record following its header
+     * @param check crc to compute the check with
+     * @return true if the crc of the record matches its bytes
+     */
+    private static boolean isIntact(ByteBuffer buffer, int position, int length, CRC32 check) {
+        buffer.limit(position + HEADER_SIZE + length).position(position + HEADER_SIZE);
+        check.reset();
+        check.update(buffer);
+        buffer.limit(buffer.capacity());
+        return (int) check.getValue() == buffer.getInt(position + 4);
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete()) {
+            LOGGER.info("Unable to delete journal segment " + file);
+        }
+    }
+
+    /**
+     * Holder for a record read from the journal.
+     */
+    static class Record {
+        long offset;
+        long nextOffset;
+        String topic;
+        byte[] payload;
+        int qos;
+    }
+
+    private static class Segment {
+        private final long base;
+        private final File file;
+        private final RandomAccessFile randomAccessFile;
+        private final MappedByteBuffer buffer;
+        private final ByteBuffer writer;
+        private final ByteBuffer reader;
+
+        Segment(long base, File file, int size) throws IOException {
+            this.base = base;
+            this.file = file;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            this.writer = buffer.duplicate();
+            this.reader = buffer.duplicate();
+        }
+
+        void close() {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                LOGGER.info("Exception while closing journal segment " + e.getMessage());
+            }
+        }
+    }
+}
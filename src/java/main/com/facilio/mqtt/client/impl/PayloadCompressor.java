@@ -0,0 +1,85 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.PayloadCodec;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+
+/**
+ * Frames the payloads encoded by a {@link PayloadCodec}.
+ *
+ * An encoded payload is laid out as <code>[byte magic][byte codec id][int original length][encoded bytes]</code>.
+ * The magic byte 0xFC never starts valid UTF-8 text, so plain JSON and text payloads are never mistaken for
+ * encoded ones. The codec writes into a scratch array kept per thread and the result is copied into a buffer of
+ * the {@link MessagePool}, so an encode does not allocate once the pool is warm.
+ */
+class PayloadCompressor {
+
+    private static final Logger LOGGER = LogManager.getLogger(PayloadCompressor.class.getName());
+
+    static final byte MAGIC = (byte) 0xFC;
+    static final int HEADER_SIZE = 6;
+    private static final int MAX_PAYLOAD_SIZE = 268435455;
+
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    private PayloadCompressor() {
+    }
+
+    /**
+     * Encodes the payload if it is at least threshold bytes and gets smaller.
+     * @param payload payload to encode
+     * @param codec codec to encode with, can be null
+     * @param threshold size in bytes below which the payload is not encoded
+     * @param pool pool to take the encoded payload from
+     * @return encoded payload, or the same payload if it was not encoded
+     */
+    static byte[] encode(byte[] payload, PayloadCodec codec, int threshold, MessagePool pool) {
+        if (codec == null || payload.length < threshold || payload.length <= HEADER_SIZE) {
+            return payload;
+        }
+        byte[] scratch = SCRATCH.get();
+        if (scratch.length < payload.length) {
+            scratch = new byte[Math.max(payload.length, scratch.length * 2)];
+            SCRATCH.set(scratch);
+        }
+        int length = codec.encode(payload, 0, payload.length, scratch, HEADER_SIZE, payload.length - HEADER_SIZE);
+        if (length < 0) {
+            return payload;
+        }
+        scratch[0] = MAGIC;
+        scratch[1] = (byte) codec.getId();
+        scratch[2] = (byte) (payload.length >>> 24);
+        scratch[3] = (byte) (payload.length >>> 16);
+        scratch[4] = (byte) (payload.length >>> 8);
+        scratch[5] = (byte) payload.length;
+        byte[] encoded = pool.take(HEADER_SIZE + length);
+        System.arraycopy(scratch, 0, encoded, 0, encoded.length);
+        return encoded;
+    }
+
+    /**
+     * Decodes the payload if it was encoded by the given codec.
+     * @param payload received payload
+     * @param codec codec to decode with, can be null
+     * @return decoded payload, or the same payload if it was not encoded or could not be decoded
+     */
+    static byte[] decode(byte[] payload, PayloadCodec codec) {
+        if (codec == null || payload.length < HEADER_SIZE || payload[0] != MAGIC || (payload[1] & 0xFF) != codec.getId()) {
+            return payload;
+        }
+        int length = ((payload[2] & 0xFF) << 24) | ((payload[3] & 0xFF) << 16) | ((payload[4] & 0xFF) << 8) | (payload[5] & 0xFF);
+        if (length < 0 || length > MAX_PAYLOAD_SIZE) {
+            return payload;
+        }
+        byte[] decoded = new byte[length];
+        try {
+            codec.decode(payload, HEADER_SIZE, payload.length - HEADER_SIZE, decoded, 0, length);
+            return decoded;
+        } catch (IOException e) {
+            LOGGER.info("Exception while decoding payload " + e.getMessage());
+            return payload;
+        }
+    }
+}
@@ -0,0 +1,748 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.BatchMessageHandler;
+import com.facilio.mqtt.client.BatchReceipt;
+import com.facilio.mqtt.client.ConnectionListener;
+import com.facilio.mqtt.client.ContentFilter;
+import com.facilio.mqtt.client.DeliveryReceipt;
+import com.facilio.mqtt.client.DispatchMetrics;
+import com.facilio.mqtt.client.FacilioMqttCallback;
+import com.facilio.mqtt.client.FacilioMqttClient;
+import com.facilio.mqtt.client.FacilioMqttConnectOptions;
+import com.facilio.mqtt.client.FacilioMqttException;
+import com.facilio.mqtt.client.MessageHandler;
+import com.facilio.mqtt.client.OutboundMessage;
+import com.facilio.mqtt.client.Priority;
+import com.facilio.mqtt.client.RateLimitMetrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.json.simple.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Spreads the publishes of an application over several connections to the MQTT server.
+ *
+ * The pool manages N clients created by the given factory, usually {@link AsyncMqttClient} or {@link AwsMqttClient},
+ * all connected with the same connect options. The first client uses the client id of the pool and the others
+ * the client id followed by "-1", "-2" and so on. Every publish goes to a client picked by a consistent hash of
+ * the topic, so messages of a topic keep their order.
+ *
+ * When the connect options enable the offline buffer or the journal, a topic always stays on its own client: while
+ * that client is disconnected its messages are buffered or journaled there and sent once it connects again, before
+ * any newer message of the topic, so the order of every topic is kept across disconnections. Otherwise a client
+ * keeps nothing while disconnected, so its topics move to the other connected clients, and move back once it
+ * connects again; the topics of the other clients are not moved. A message still in flight on the lost connection
+ * may then be delivered after newer messages of its topic sent on another connection.
+ * While no client is connected, topics go to their own client.
+ *
+ * Rate limits, offline buffers and the in-flight window of the connect options apply to each connection.
+ * A pool of several connections leaves the persistence and the journal directory unset, so each connection keeps
+ * its in-flight messages and its journal under its own client id; {@link #connect()} fails if either is set.
+ * A subscription is made on the client its topic filter hashes to, regardless of the connection state.
+ *
+ * <code>
+ *  FacilioMqttClient client = new PooledFacilioMqttClient(4, AsyncMqttClient::new);<br>
+ *  client.setConnectOptions(connectOptions);<br>
+ *  client.setClientId("ingest");<br>
+ *  client.connect();<br>
+ *  client.publishAsync("topic", payload, 1);<br>
+ * </code>
+ */
+public class PooledFacilioMqttClient implements FacilioMqttClient {
+
+    private static final Logger LOGGER = LogManager.getLogger(PooledFacilioMqttClient.class.getName());
+    private static final ExecutorService BATCH_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "facilio-mqtt-pool-batch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final FacilioMqttClient[] members;
+    private final boolean[] connected;
+    private final HashRing homeRing;
+    private final ConnectionNotifier connectionNotifier = new ConnectionNotifier();
+    private volatile HashRing connectedRing;
+    private FacilioMqttConnectOptions connectOptions;
+    private FacilioMqttCallback mqttCallback;
+    private String clientId;
+
+    /**
+     * Constructs a PooledFacilioMqttClient.
+     * @param size number of connections
+     * @param factory creates the client of each connection
+     */
+    public PooledFacilioMqttClient(int size, Supplier<FacilioMqttClient> factory) {
+        if (size < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.members = new FacilioMqttClient[size];
+        this.connected = new boolean[size];
+        boolean[] all = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            members[i] = factory.get();
+            members[i].addConnectionListener(new MemberListener(i));
+            all[i] = true;
+        }
+        this.homeRing = new HashRing(all);
+        this.connectedRing = new HashRing(connected);
+    }
+
+    /**
+     * Returns the number of connections of the pool
+     * @return pool size
+     */
+    public int getSize() {
+        return members.length;
+    }
+
+    /**
+     * Returns the number of connections which are currently connected
+     * @return connected count
+     */
+    public synchronized int getConnectedCount() {
+        int count = 0;
+        for (boolean member : connected) {
+            if (member) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sets the connect options {@link FacilioMqttConnectOptions} used by every connection of the pool.
+     * @param connectOptions properties used to connect the Server
+     */
+    public void setConnectOptions(FacilioMqttConnectOptions connectOptions) {
+        this.connectOptions = connectOptions;
+    }
+
+    /**
+     * Retruns {@link FacilioMqttConnectOptions} used to connect the Mqtt Server.
+     * @return FacilioMqttConnectOptions
+     */
+    public FacilioMqttConnectOptions getConnectOptions() {
+        return connectOptions;
+    }
+
+    /**
+     * Sets the {@link FacilioMqttCallback} object notified for the events of every connection.
+     * @param callback FacilioCallback object
+     */
+    public void setCallback(FacilioMqttCallback callback) {
+        this.mqttCallback = callback;
+        for (FacilioMqttClient member : members) {
+            member.setCallback(callback);
+        }
+    }
+
+    /**
+     * Returns the call back object {@link FacilioMqttCallback} used
+     * @return FacilioMqttCallback
+     */
+    public FacilioMqttCallback getCallback() {
+        return mqttCallback;
+    }
+
+    /**
+     * Registers a {@link ConnectionListener} notified when the first connection of the pool is established
+     * and when the last one is lost.
+     * @param listener ConnectionListener object
+     */
+    public void addConnectionListener(ConnectionListener listener) {
+        connectionNotifier.add(listener);
+    }
+
+    /**
+     * Removes a listener registered with {@link #addConnectionListener(ConnectionListener)}.
+     * @param listener ConnectionListener object
+     */
+    public void removeConnectionListener(ConnectionListener listener) {
+        connectionNotifier.remove(listener);
+    }
+
+    /**
+     * Connects every connection of the pool with the given connect options {@link FacilioMqttConnectOptions}.
+     * @param connectOptions properties used to connect.
+     * @throws FacilioMqttException if any connection could not be established
+     */
+    public void connect(FacilioMqttConnectOptions connectOptions) throws FacilioMqttException {
+        this.connectOptions = connectOptions;
+        connect();
+    }
+
+    /**
+     * Connects every connection of the pool which is not connected.
+     *
+     * The first connection is made before the others, and if no connect options or client id are set it resolves
+     * the defaults used by the whole pool, as described in {@link MQTTClient#connect()}.
+     * If some connections fail the others are still made and the first failure is thrown.
+     * @throws FacilioMqttException if any connection could not be established, or the connect options set a
+     * persistence or a journal directory which the connections would share
+     */
+    public void connect() throws FacilioMqttException {
+        checkSharedOptions();
+        FacilioMqttClient first = members[0];
+        if (!first.isConnected()) {
+            first.setClientId(clientId);
+            first.setConnectOptions(connectOptions);
+            first.connect();
+        }
+        if (connectOptions == null) {
+            connectOptions = first.getConnectOptions();
+        }
+        if (clientId == null) {
+            clientId = first.getClientId();
+        }
+        FacilioMqttException failure = null;
+        for (int i = 1; i < members.length; i++) {
+            FacilioMqttClient member = members[i];
+            if (member.isConnected()) {
+                continue;
+            }
+            try {
+                member.setClientId(clientId + "-" + i);
+                member.setConnectOptions(connectOptions);
+                member.connect();
+            } catch (FacilioMqttException e) {
+                LOGGER.info("Exception while connecting " + clientId + "-" + i + " " + e.getMessage());
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Rejects the connect options which would be shared by the connections of the pool although each connection
+     * needs its own: a persistence instance holds the in-flight messages of a single client, and a journal
+     * directory is locked by the first client which opens it.
+     * @throws FacilioMqttException if a persistence or a journal directory is set on a pool of several connections
+     */
+    private void checkSharedOptions() throws FacilioMqttException {
+        if (members.length == 1 || connectOptions == null) {
+            return;
+        }
+        if (connectOptions.getPersistence() != null) {
+            throw new FacilioMqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION,
+                    new IllegalArgumentException("A persistence can not be shared by the connections of the pool"));
+        }
+        if (connectOptions.isJournalEnabled() && connectOptions.getJournalDirectory() != null) {
+            throw new FacilioMqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION,
+                    new IllegalArgumentException("A journal directory can not be shared by the connections of the pool"));
+        }
+    }
+
+    /**
+     * Returns the state of the pool.
+     * @return true if any connection of the pool is connected, false otherwise
+     */
+    public boolean isConnected() {
+        for (FacilioMqttClient member : members) {
+            if (member.isConnected()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *  Reconnects the connections of the pool which have been closed.
+     *  @throws FacilioMqttException if any connection could not be established
+     */
+    public void reconnect() throws FacilioMqttException {
+        FacilioMqttException failure = null;
+        for (FacilioMqttClient member : members) {
+            try {
+                if (!member.isConnected()) {
+                    member.reconnect();
+                }
+            } catch (FacilioMqttException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Disconnects every connection of the pool. The connections which are no longer connected are disconnected
+     * as well, to release their resources, and their failures are ignored.<br>
+     * @throws FacilioMqttException if any connected connection could not be disconnected
+     */
+    public void disconnect() throws FacilioMqttException {
+        FacilioMqttException failure = null;
+        for (FacilioMqttClient member : members) {
+            boolean connected = member.isConnected();
+            try {
+                member.disconnect();
+            } catch (FacilioMqttException e) {
+                if (connected && failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     *
+     * @return client id of the pool, the first connection uses it as is
+     */
+    public String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * Sets the client id the client ids of the connections are derived from.
+     * @param clientId client id of the pool
+     */
+    public void setClientId(String clientId) {
+        this.clientId = clientId;
+    }
+
+    /**
+     * Publish payload to the mentioned topic with the given QOS on the connection of the topic.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void publish(String topic, byte[] payload, int qos) throws FacilioMqttException {
+        memberFor(topic).publish(topic, payload, qos);
+    }
+
+    /**
+     * Publish payload to the mentioned topic with the given QOS on the connection of the topic.
+     * @param topic name to publish the message
+     * @param message actual message
+     * @param qos for this message
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void publish(String topic, JSONObject message, int qos) throws FacilioMqttException {
+        memberFor(topic).publish(topic, message, qos);
+    }
+
+    /**
+     * Publish payload to the mentioned topic with the given QOS on the connection of the topic.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void publish(String topic, String payload, int qos) throws FacilioMqttException {
+        memberFor(topic).publish(topic, payload, qos);
+    }
+
+    /**
+     * Publish the remaining bytes of the buffer to the mentioned topic with the given QOS on the connection of the topic.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void publish(String topic, ByteBuffer payload, int qos) throws FacilioMqttException {
+        memberFor(topic).publish(topic, payload, qos);
+    }
+
+    /**
+     * Publish payload to the mentioned topic with the given QOS on the connection of the topic without waiting for the acknowledgement.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @return future completed when the message is delivered
+     */
+    public CompletableFuture<DeliveryReceipt> publishAsync(String topic, byte[] payload, int qos) {
+        return memberFor(topic).publishAsync(topic, payload, qos);
+    }
+
+    /**
+     * Publish the remaining bytes of the buffer to the mentioned topic with the given QOS on the connection of the topic
+     * without waiting for the acknowledgement.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @return future completed when the message is delivered
+     */
+    public CompletableFuture<DeliveryReceipt> publishAsync(String topic, ByteBuffer payload, int qos) {
+        return memberFor(topic).publishAsync(topic, payload, qos);
+    }
+
+    /**
+     * Publish payload to the mentioned topic with the given QOS in the lane of the priority on the connection of the topic.
+     * The call waits for the acknowledgement only if {@link FacilioMqttClient#publish(String, byte[], int)} of the
+     * connection does.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @param priority priority of the message
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void publish(String topic, byte[] payload, int qos, Priority priority) throws FacilioMqttException {
+        memberFor(topic).publish(topic, payload, qos, priority);
+    }
+
+    /**
+     * Publish payload to the mentioned topic with the given QOS in the lane of the priority on the connection of the topic
+     * without waiting for the acknowledgement.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @param priority priority of the message
+     * @return future completed when the message is delivered
+     */
+    public CompletableFuture<DeliveryReceipt> publishAsync(String topic, byte[] payload, int qos, Priority priority) {
+        return memberFor(topic).publishAsync(topic, payload, qos, priority);
+    }
+
+    /**
+     * Publish the messages on the connections of their topics, each connection keeping at most
+     * {@link FacilioMqttConnectOptions#getMaxInflight()} messages unacknowledged.
+     * The messages of each connection are handed over from their own thread, so the connections send in parallel.
+     * The calling thread is parked only while the in-flight window of one of the connections is full.
+     * @param messages messages to publish
+     * @return future completed when every message is either acknowledged or failed
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public CompletableFuture<BatchReceipt> publishBatch(Collection<OutboundMessage> messages) throws FacilioMqttException {
+        long startTime = System.nanoTime();
+        Map<FacilioMqttClient, List<OutboundMessage>> batches = new IdentityHashMap<>();
+        for (OutboundMessage message : messages) {
+            batches.computeIfAbsent(memberFor(message.getTopic()), member -> new ArrayList<>()).add(message);
+        }
+        List<CompletableFuture<BatchReceipt>> futures = new ArrayList<>(batches.size());
+        Map.Entry<FacilioMqttClient, List<OutboundMessage>> own = null;
+        for (Map.Entry<FacilioMqttClient, List<OutboundMessage>> batch : batches.entrySet()) {
+            if (own == null) {
+                own = batch;
+            } else {
+                futures.add(CompletableFuture.supplyAsync(() -> publishBatch(batch.getKey(), batch.getValue()), BATCH_EXECUTOR)
+                        .thenCompose(future -> future));
+            }
+        }
+        if (own != null) {
+            futures.add(own.getKey().publishBatch(own.getValue()));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            int delivered = 0;
+            List<OutboundMessage> failed = new ArrayList<>();
+            for (CompletableFuture<BatchReceipt> future : futures) {
+                BatchReceipt receipt = future.join();
+                delivered += receipt.getDeliveredCount();
+                failed.addAll(receipt.getFailedMessages());
+            }
+            return new BatchReceipt(delivered, failed, System.nanoTime() - startTime);
+        });
+    }
+
+    /**
+     * Returns how long publishes waited for the rate limits, summed over the connections of the pool.
+     * @return rate limit metrics
+     */
+    public RateLimitMetrics getRateLimitMetrics() {
+        long permitCount = 0;
+        long delayedCount = 0;
+        long totalWaitNanos = 0;
+        long maxWaitNanos = 0;
+        for (FacilioMqttClient member : members) {
+            RateLimitMetrics metrics = member.getRateLimitMetrics();
+            permitCount += metrics.getPermitCount();
+            delayedCount += metrics.getDelayedCount();
+            totalWaitNanos += metrics.getTotalWait(TimeUnit.NANOSECONDS);
+            maxWaitNanos = Math.max(maxWaitNanos, metrics.getMaxWait(TimeUnit.NANOSECONDS));
+        }
+        return new RateLimitMetrics(permitCount, delayedCount, totalWaitNanos, maxWaitNanos);
+    }
+
+    /**
+     * Returns the dispatch metrics summed over the connections of the pool.
+     * The queue depths are those of the dispatch stripes of every connection, in the order of the connections,
+     * and the high water mark is the sum of the high water marks of the connections.
+     * @return dispatch metrics
+     */
+    public DispatchMetrics getDispatchMetrics() {
+        long dispatchedCount = 0;
+        long failedCount = 0;
+        long totalHandlerNanos = 0;
+        long maxHandlerNanos = 0;
+        int highWaterMark = 0;
+        long droppedCount = 0;
+        long conflatedCount = 0;
+        long blockedCount = 0;
+        long filteredCount = 0;
+        long[] queueTimeHistogram = new long[DispatchMetrics.QUEUE_TIME_BUCKETS];
+        int[][] memberDepths = new int[members.length][];
+        int depthCount = 0;
+        for (int i = 0; i < members.length; i++) {
+            DispatchMetrics metrics = members[i].getDispatchMetrics();
+            dispatchedCount += metrics.getDispatchedCount();
+            failedCount += metrics.getFailedCount();
+            totalHandlerNanos += metrics.getTotalHandlerTime(TimeUnit.NANOSECONDS);
+            maxHandlerNanos = Math.max(maxHandlerNanos, metrics.getMaxHandlerTime(TimeUnit.NANOSECONDS));
+            highWaterMark += metrics.getHighWaterMark();
+            droppedCount += metrics.getDroppedCount();
+            conflatedCount += metrics.getConflatedCount();
+            blockedCount += metrics.getBlockedCount();
+            filteredCount += metrics.getFilteredCount();
+            long[] histogram = metrics.getQueueTimeHistogram();
+            for (int bucket = 0; bucket < histogram.length; bucket++) {
+                queueTimeHistogram[bucket] += histogram[bucket];
+            }
+            memberDepths[i] = metrics.getQueueDepths();
+            depthCount += memberDepths[i].length;
+        }
+        int[] queueDepths = new int[depthCount];
+        int position = 0;
+        for (int[] depths : memberDepths) {
+            System.arraycopy(depths, 0, queueDepths, position, depths.length);
+            position += depths.length;
+        }
+        return new DispatchMetrics(dispatchedCount, failedCount, queueDepths, totalHandlerNanos, maxHandlerNanos,
+                highWaterMark, droppedCount, conflatedCount, blockedCount, filteredCount, queueTimeHistogram);
+    }
+
+    /**
+     * Subscribe to the topic on the connection the topic filter hashes to.
+     * @param topic to subscribe
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void subscribe(String topic) throws FacilioMqttException {
+        members[homeRing.owner(topic)].subscribe(topic);
+    }
+
+    /**
+     * Subscribe to the topic with the given QOS on the connection the topic filter hashes to.<br>
+     * @param topic to subscribe
+     * @param qos for the topic
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void subscribe(String topic, int qos) throws FacilioMqttException {
+        members[homeRing.owner(topic)].subscribe(topic, qos);
+    }
+
+    /**
+     * Subscribe to the topic filter with the given QOS on the connection the topic filter hashes to,
+     * and deliver its messages to the handler instead of the callback.<br>
+     * @param topic filter to subscribe, with '+' and '#' wildcards
+     * @param qos for the topic
+     * @param handler receives the messages matching the filter
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void subscribe(String topic, int qos, MessageHandler handler) throws FacilioMqttException {
+        members[homeRing.owner(topic)].subscribe(topic, qos, handler);
+    }
+
+    /**
+     * Subscribe to the topic filter with the given QOS on the connection the topic filter hashes to,
+     * and deliver to the handler the messages its content filter matches.<br>
+     * @param topic filter to subscribe, with '+' and '#' wildcards
+     * @param qos for the topic
+     * @param filter content filter of the messages, evaluated on the receiving thread
+     * @param handler receives the messages matching the topic filter and the content filter
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void subscribe(String topic, int qos, ContentFilter filter, MessageHandler handler) throws FacilioMqttException {
+        members[homeRing.owner(topic)].subscribe(topic, qos, filter, handler);
+    }
+
+    /**
+     * Subscribe to the topic filter with the given QOS on the connection the topic filter hashes to,
+     * and deliver its messages to the handler in batches.<br>
+     * @param topic filter to subscribe, with '+' and '#' wildcards
+     * @param qos for the topic
+     * @param handler receives the batches of messages matching the filter
+     * @param maxMessages maximum number of messages in a batch
+     * @param maxBytes payload size in bytes at which a batch is handed over
+     * @param linger maximum time in milliseconds a message waits for the batch to fill up
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void subscribe(String topic, int qos, BatchMessageHandler handler, int maxMessages, int maxBytes, long linger) throws FacilioMqttException {
+        members[homeRing.owner(topic)].subscribe(topic, qos, handler, maxMessages, maxBytes, linger);
+    }
+
+    /**
+     * Unsubscribe the topic on the connection it was subscribed on.<br>
+     * @param topic to unsubscribe
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void unsubscribe(String topic) throws FacilioMqttException {
+        members[homeRing.owner(topic)].unsubscribe(topic);
+    }
+
+    /**
+     * Subscribe to the topic filters with the given QOS, each on the connection it hashes to, and wait until the
+     * servers have acknowledged them.<br>
+     * @param topics filters to subscribe, with '+' and '#' wildcards
+     * @param qos for each filter
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void subscribe(String[] topics, int[] qos) throws FacilioMqttException {
+        SubscriptionRequests.await(subscribeAsync(topics, qos));
+    }
+
+    /**
+     * Subscribe to the topic filters with the given QOS, each on the connection it hashes to, without waiting for the servers.<br>
+     * The filters of each connection are subscribed with one call, and the connections are subscribed in parallel.
+     * @param topics filters to subscribe, with '+' and '#' wildcards
+     * @param qos for each filter
+     * @return future completed when every filter is subscribed
+     */
+    public CompletableFuture<Void> subscribeAsync(String[] topics, int[] qos) {
+        SubscriptionRequests.validate(topics, qos);
+        int[] owners = new int[topics.length];
+        int[] counts = new int[members.length];
+        for (int i = 0; i < topics.length; i++) {
+            owners[i] = homeRing.owner(topics[i]);
+            counts[owners[i]]++;
+        }
+        List<CompletableFuture<Void>> futures = new ArrayList<>(members.length);
+        for (int member = 0; member < members.length; member++) {
+            if (counts[member] == 0) {
+                continue;
+            }
+            String[] memberTopics = new String[counts[member]];
+            int[] memberQos = new int[counts[member]];
+            int count = 0;
+            for (int i = 0; i < topics.length; i++) {
+                if (owners[i] == member) {
+                    memberTopics[count] = topics[i];
+                    memberQos[count++] = qos[i];
+                }
+            }
+            futures.add(members[member].subscribeAsync(memberTopics, memberQos));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Unsubscribe the topic filters on the connections they were subscribed on and wait until the servers have acknowledged them.<br>
+     * @param topics filters to unsubscribe
+     * @throws FacilioMqttException if any problem was encountered
+     */
+    public void unsubscribe(String[] topics) throws FacilioMqttException {
+        SubscriptionRequests.await(unsubscribeAsync(topics));
+    }
+
+    /**
+     * Unsubscribe the topic filters on the connections they were subscribed on without waiting for the servers.<br>
+     * @param topics filters to unsubscribe
+     * @return future completed when every filter is unsubscribed
+     */
+    public CompletableFuture<Void> unsubscribeAsync(String[] topics) {
+        SubscriptionRequests.validate(topics, null);
+        List<List<String>> memberTopics = new ArrayList<>(members.length);
+        for (int i = 0; i < members.length; i++) {
+            memberTopics.add(new ArrayList<>());
+        }
+        for (String topic : topics) {
+            memberTopics.get(homeRing.owner(topic)).add(topic);
+        }
+        List<CompletableFuture<Void>> futures = new ArrayList<>(members.length);
+        for (int member = 0; member < members.length; member++) {
+            if (!memberTopics.get(member).isEmpty()) {
+                futures.add(members[member].unsubscribeAsync(memberTopics.get(member).toArray(new String[0])));
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private static CompletableFuture<BatchReceipt> publishBatch(FacilioMqttClient member, List<OutboundMessage> messages) {
+        try {
+            return member.publishBatch(messages);
+        } catch (FacilioMqttException e) {
+            CompletableFuture<BatchReceipt> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    private FacilioMqttClient memberFor(String topic) {
+        HashRing ring = keepsOfflineMessages() ? homeRing : connectedRing;
+        if (ring.isEmpty()) {
+            ring = homeRing;
+        }
+        return members[ring.owner(topic)];
+    }
+
+    /**
+     * Returns true if a disconnected client buffers or journals its messages, in which case topics are not moved
+     * to other clients, as the held messages would be sent after newer messages of their topics.
+     * @return true if the offline buffer or the journal is enabled
+     */
+    private boolean keepsOfflineMessages() {
+        FacilioMqttConnectOptions options = connectOptions;
+        return options != null && (options.isJournalEnabled() || options.getOfflineBufferSize() > 0);
+    }
+
+    private void memberConnected(int index) {
+        boolean first;
+        synchronized (this) {
+            if (connected[index]) {
+                return;
+            }
+            first = getConnectedCount() == 0;
+            connected[index] = true;
+            connectedRing = new HashRing(connected);
+        }
+        if (first) {
+            connectionNotifier.connected();
+        }
+    }
+
+    private void memberDisconnected(int index, Throwable cause) {
+        boolean last;
+        synchronized (this) {
+            if (!connected[index]) {
+                return;
+            }
+            connected[index] = false;
+            connectedRing = new HashRing(connected);
+            last = getConnectedCount() == 0;
+        }
+        if (keepsOfflineMessages()) {
+            LOGGER.info("Connection " + index + " of " + clientId + " lost, its topics are held until it connects again");
+        } else {
+            LOGGER.info("Connection " + index + " of " + clientId + " lost, its topics moved to " + getConnectedCount() + " connections");
+        }
+        if (last) {
+            connectionNotifier.disconnected(cause);
+        }
+    }
+
+    private class MemberListener implements ConnectionListener {
+
+        private final int index;
+
+        MemberListener(int index) {
+            this.index = index;
+        }
+
+        public void onConnected() {
+            memberConnected(index);
+        }
+
+        public void onDisconnected(Throwable cause) {
+            memberDisconnected(index, cause);
+        }
+    }
+}
@@ -0,0 +1,572 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.BatchReceipt;
+import com.facilio.mqtt.client.DeliveryReceipt;
+import com.facilio.mqtt.client.FacilioMqttConnectOptions;
+import com.facilio.mqtt.client.FacilioMqttException;
+import com.facilio.mqtt.client.OutboundMessage;
+import com.facilio.mqtt.client.Priority;
+import com.facilio.mqtt.client.RateLimitMetrics;
+import com.facilio.mqtt.util.FacilioProperties;
+import com.facilio.mqtt.util.JsonWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Outbound path shared by all the client implementations.
+ *
+ * When the journal is enabled every message is appended to the {@link OutboundJournal} and published by the
+ * {@link JournalForwarder}. Otherwise messages published while the client is not connected, or while earlier
+ * buffered messages are still being drained, are held in the {@link OfflineBuffer} and published in order once
+ * the connection is established. Everything else is handed to the {@link MessageSender} of the client.
+ *
+ * Payloads are compressed with the configured {@link com.facilio.mqtt.client.PayloadCodec} before they enter the
+ * pipeline, so the offline buffer and the journal hold the compressed bytes. When rate limits are set, sends
+ * are delayed by the {@link PublishRateLimiter}.
+ *
+ * Each {@link Priority} has its own offline buffer, drained by weight, and its own lane in the {@link PublishWindow}.
+ * Critical messages published while the client is connected skip the journal and the buffered backlog.
+ */
+class PublishPipeline {
+
+    private static final Logger LOGGER = LogManager.getLogger(PublishPipeline.class.getName());
+    private static final Priority[] PRIORITIES = Priority.values();
+    private static final MessagePool MESSAGE_POOL = new MessagePool();
+    private static final long DRAIN_THREAD_IDLE_SECONDS = 60;
+
+    private final MessageSender sender;
+    private final BooleanSupplier connected;
+    private final Supplier<FacilioMqttConnectOptions> connectOptions;
+    private final Supplier<String> clientId;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final ThreadPoolExecutor drainExecutor;
+
+    private final ReentrantLock initializeLock = new ReentrantLock();
+    private volatile boolean initialized;
+    private PublishWindow publishWindow;
+    private PublishRateLimiter rateLimiter;
+    private OfflineBuffer[] offlineBuffers;
+    private volatile JournalForwarder journalForwarder;
+
+    /**
+     * Constructs a PublishPipeline.
+     * @param sender sends a message through the underlying MQTT library
+     * @param connected returns the state of client and server connection
+     * @param connectOptions returns the options used by the client, read when the pipeline is first used
+     * @param clientId returns the client id, used to name the default journal directory
+     */
+    PublishPipeline(MessageSender sender, BooleanSupplier connected, Supplier<FacilioMqttConnectOptions> connectOptions, Supplier<String> clientId) {
+        this.sender = sender;
+        this.connected = connected;
+        this.connectOptions = connectOptions;
+        this.clientId = clientId;
+        this.drainExecutor = createDrainExecutor();
+    }
+
+    /**
+     * Creates the executor draining the offline buffers. Its single thread is started by the first drain and
+     * stops once it has been idle for a minute, so a pipeline which is not draining holds no thread.
+     * @return drain executor
+     */
+    private static ThreadPoolExecutor createDrainExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, DRAIN_THREAD_IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "facilio-mqtt-offline-drain");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private void initialize() throws FacilioMqttException {
+        if (!initialized) {
+            initializeLock.lock();
+            try {
+                if (!initialized) {
+                    FacilioMqttConnectOptions options = connectOptions.get();
+                    if (publishWindow == null) {
+                        rateLimiter = PublishRateLimiter.create(options);
+                        publishWindow = new PublishWindow(this::send, options);
+                        if (options != null && !options.isJournalEnabled() && options.getOfflineBufferSize() > 0) {
+                            offlineBuffers = new OfflineBuffer[PRIORITIES.length];
+                            for (int i = 0; i < PRIORITIES.length; i++) {
+                                offlineBuffers[i] = new OfflineBuffer(options.getOfflineBufferSize(), options.getOfflineBufferBytes(), options.getOfflineBufferPolicy());
+                            }
+                        }
+                    }
+                    if (options != null && options.isJournalEnabled()) {
+                        journalForwarder = openJournal(options);
+                    }
+                    initialized = true;
+                }
+            } finally {
+                initializeLock.unlock();
+            }
+        }
+    }
+
+    private JournalForwarder openJournal(FacilioMqttConnectOptions options) throws FacilioMqttException {
+        String directory = options.getJournalDirectory();
+        if (directory == null) {
+            directory = FacilioProperties.getFacilioHome() + "journal" + File.separator + clientId.get();
+        }
+        try {
+            OutboundJournal journal = new OutboundJournal(new File(directory), options.getJournalSegmentSize());
+            return new JournalForwarder(journal, publishWindow, connected, options.getJournalFlushInterval());
+        } catch (IOException e) {
+            throw new FacilioMqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, e);
+        }
+    }
+
+    /**
+     * Appends the message to the journal if it is enabled, otherwise holds the message in the offline buffer of
+     * its priority if the client is not connected or the buffer is being drained.
+     * Critical messages are not journaled while the client is connected.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @param priority priority of the message
+     * @param future future to complete once the message is delivered, can be null
+     * @return true if the message was taken, false if it should be sent right away
+     * @throws FacilioMqttException if the message could not be journaled or the thread is interrupted while waiting for room
+     */
+    boolean buffer(String topic, byte[] payload, int qos, Priority priority, CompletableFuture<DeliveryReceipt> future) throws FacilioMqttException {
+        initialize();
+        JournalForwarder forwarder = journalForwarder;
+        if (forwarder != null && (priority != Priority.CRITICAL || !connected.getAsBoolean())) {
+            forwarder.append(topic, payload, qos, future);
+            return true;
+        }
+        if (offlineBuffers == null) {
+            return false;
+        }
+        OfflineBuffer offlineBuffer = offlineBuffers[priority.ordinal()];
+        if (connected.getAsBoolean() && offlineBuffer.isEmpty()) {
+            return false;
+        }
+        offlineBuffer.offer(topic, payload, qos, future);
+        if (connected.getAsBoolean()) {
+            drain();
+        }
+        return true;
+    }
+
+    /**
+     * Publishes the message in the {@link Priority#NORMAL} lane without waiting for the acknowledgement.
+     * The calling thread is parked while the in-flight window is full.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @return future completed when the message is delivered
+     */
+    CompletableFuture<DeliveryReceipt> publishAsync(String topic, byte[] payload, int qos) {
+        return publishAsync(topic, payload, qos, Priority.NORMAL);
+    }
+
+    /**
+     * Publishes the message in the lane of its priority. The calling thread is parked while the in-flight window
+     * is full for the lane, and the call returns right away if the message is taken by the journal or the offline buffer.
+     * A message the offline buffer rejects fails the call, while a buffered message which is later evicted or
+     * fails to be delivered is only logged since the caller has already returned.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @param priority priority of the message
+     * @param pooled true if the payload was taken from the pool, it is returned to the pool once it is no longer used
+     * @param waitForAck true to wait for the acknowledgement, false to return once the message is handed to the library
+     * @throws FacilioMqttException if the publish fails, the offline buffer is full or the thread is interrupted while waiting
+     */
+    void publish(String topic, byte[] payload, int qos, Priority priority, boolean pooled, boolean waitForAck) throws FacilioMqttException {
+        validate(topic);
+        byte[] encoded = encode(payload, pooled);
+        CompletableFuture<DeliveryReceipt> future = new CompletableFuture<>();
+        if (buffer(topic, encoded, qos, priority, future)) {
+            if (future.isCompletedExceptionally()) {
+                await(future);
+            }
+            future.whenComplete((receipt, cause) -> {
+                if (cause != null) {
+                    LOGGER.info("Buffered message to " + topic + " was not delivered " + cause.getMessage());
+                }
+            });
+        } else {
+            publishWindow.send(topic, encoded, qos, priority, pooled || encoded != payload, future);
+            if (waitForAck || future.isCompletedExceptionally()) {
+                await(future);
+            }
+        }
+    }
+
+    /**
+     * Checks the topic name of a message before it enters the pipeline, so that a topic the library would reject
+     * is neither buffered, journaled nor given a slot of the in-flight window.
+     * @param topic name to publish the message
+     * @throws FacilioMqttException if the topic is null, empty or contains a wildcard
+     */
+    static void validate(String topic) throws FacilioMqttException {
+        try {
+            if (topic == null) {
+                throw new IllegalArgumentException("Topic is null");
+            }
+            MqttTopic.validate(topic, false);
+        } catch (IllegalArgumentException e) {
+            throw new FacilioMqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, e);
+        }
+    }
+
+    /**
+     * Waits for the delivery of a message. The thread parks on the future rather than on a monitor,
+     * so a virtual thread waiting here does not pin its carrier.
+     * @param future future of the delivery
+     * @throws FacilioMqttException if the publish failed or the thread is interrupted while waiting
+     */
+    static void await(CompletableFuture<DeliveryReceipt> future) throws FacilioMqttException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FacilioMqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FacilioMqttException) {
+                throw (FacilioMqttException) e.getCause();
+            }
+            throw new FacilioMqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, e.getCause());
+        }
+    }
+
+    /**
+     * Publishes the message in the lane of its priority without waiting for the acknowledgement.
+     * The calling thread is parked while the in-flight window is full for the lane.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @param priority priority of the message
+     * @return future completed when the message is delivered
+     */
+    CompletableFuture<DeliveryReceipt> publishAsync(String topic, byte[] payload, int qos, Priority priority) {
+        CompletableFuture<DeliveryReceipt> future = new CompletableFuture<>();
+        try {
+            validate(topic);
+            byte[] encoded = encode(payload);
+            if (!buffer(topic, encoded, qos, priority, future)) {
+                publishWindow.send(topic, encoded, qos, priority, encoded != payload, future);
+            }
+        } catch (FacilioMqttException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Publishes the messages keeping at most window size messages unacknowledged.
+     * @param messages messages to publish
+     * @return future completed when every message is either acknowledged or failed
+     * @throws FacilioMqttException if the calling thread is interrupted while waiting for the window
+     */
+    CompletableFuture<BatchReceipt> publishBatch(Collection<OutboundMessage> messages) throws FacilioMqttException {
+        initialize();
+        CompletableFuture<BatchReceipt> batchFuture = new CompletableFuture<>();
+        long startTime = System.nanoTime();
+        if (messages.isEmpty()) {
+            batchFuture.complete(new BatchReceipt(0, new ArrayList<>(), 0));
+            return batchFuture;
+        }
+        AtomicInteger pending = new AtomicInteger(messages.size());
+        AtomicInteger delivered = new AtomicInteger();
+        List<OutboundMessage> failed = new ArrayList<>();
+        for (OutboundMessage message : messages) {
+            CompletableFuture<DeliveryReceipt> future = new CompletableFuture<>();
+            future.whenComplete((receipt, cause) -> {
+                if (cause == null) {
+                    delivered.incrementAndGet();
+                } else {
+                    synchronized (failed) {
+                        failed.add(message);
+                    }
+                }
+                if (pending.decrementAndGet() == 0) {
+                    batchFuture.complete(new BatchReceipt(delivered.get(), failed, System.nanoTime() - startTime));
+                }
+            });
+            try {
+                validate(message.getTopic());
+            } catch (FacilioMqttException e) {
+                future.completeExceptionally(e);
+                continue;
+            }
+            byte[] payload = encode(message.getPayload());
+            if (!buffer(message.getTopic(), payload, message.getQos(), message.getPriority(), future)) {
+                publishWindow.send(message.getTopic(), payload, message.getQos(), message.getPriority(), payload != message.getPayload(), future);
+            }
+        }
+        return batchFuture;
+    }
+
+    /**
+     * Returns how long publishes waited for the rate limits
+     * @return rate limit metrics
+     */
+    RateLimitMetrics getRateLimitMetrics() {
+        PublishRateLimiter limiter = initialized ? rateLimiter : null;
+        return limiter == null ? new RateLimitMetrics(0, 0, 0, 0) : limiter.getMetrics();
+    }
+
+    /**
+     * Compresses the payload with the configured codec.
+     * @param payload actual message
+     * @return compressed payload, or the same payload if compression is disabled or does not pay off
+     */
+    byte[] encode(byte[] payload) {
+        FacilioMqttConnectOptions options = connectOptions.get();
+        return options == null ? payload : PayloadCompressor.encode(payload, options.getPayloadCodec(), options.getCompressionThreshold(), MESSAGE_POOL);
+    }
+
+    /**
+     * Compresses the payload with the configured codec, returning a pooled payload to the pool once it is compressed.
+     * A compressed payload is always taken from the pool.
+     * @param payload payload to publish
+     * @param pooled true if the payload was taken from the pool
+     * @return compressed payload, or the same payload if it was not compressed
+     */
+    byte[] encode(byte[] payload, boolean pooled) {
+        byte[] encoded = encode(payload);
+        if (pooled && encoded != payload) {
+            MESSAGE_POOL.release(payload);
+        }
+        return encoded;
+    }
+
+    /**
+     * Encodes the string as UTF-8 into a pooled payload.
+     * @param payload string to publish
+     * @return pooled UTF-8 bytes
+     */
+    byte[] toUtf8(String payload) {
+        return MESSAGE_POOL.toUtf8(payload);
+    }
+
+    /**
+     * Encodes the value as JSON into a pooled payload.
+     * @param value JSONObject or any other value supported by {@link JsonWriter#value(Object)}
+     * @return pooled JSON bytes
+     */
+    byte[] toJson(Object value) {
+        JsonWriter writer = JsonWriter.get().value(value);
+        byte[] payload = MESSAGE_POOL.take(writer.size());
+        writer.copyTo(payload, 0);
+        return payload;
+    }
+
+    /**
+     * Returns a pooled message holder for the payload. It should be given back with {@link #release(MqttMessage, boolean)}
+     * once the delivery is complete.
+     * @param payload payload of the message
+     * @param qos for this message
+     * @return message holder
+     */
+    MqttMessage message(byte[] payload, int qos) {
+        return MESSAGE_POOL.message(payload, qos);
+    }
+
+    /**
+     * Returns the message holder, and its payload if it was pooled, to the pool.
+     * @param message message holder which is no longer used by the library
+     * @param pooled true if the payload was taken from the pool
+     */
+    void release(MqttMessage message, boolean pooled) {
+        MESSAGE_POOL.release(message, pooled);
+    }
+
+    /**
+     * Returns the payload to the pool.
+     * @param payload pooled payload which is no longer used
+     */
+    void release(byte[] payload) {
+        MESSAGE_POOL.release(payload);
+    }
+
+    /**
+     * Decompresses a received payload with the configured codec.
+     * @param payload received payload
+     * @return decompressed payload, or the same payload if it was not compressed
+     */
+    byte[] decode(byte[] payload) {
+        FacilioMqttConnectOptions options = connectOptions.get();
+        return options == null ? payload : PayloadCompressor.decode(payload, options.getPayloadCodec());
+    }
+
+    /**
+     * Decompresses the payload of a received message with the configured codec.
+     * @param message received message
+     * @return message with the decompressed payload, or the same message if it was not compressed
+     */
+    MqttMessage decode(MqttMessage message) {
+        byte[] payload = decode(message.getPayload());
+        if (payload == message.getPayload()) {
+            return message;
+        }
+        MqttMessage decoded = new MqttMessage(payload);
+        decoded.setQos(message.getQos());
+        decoded.setRetained(message.isRetained());
+        decoded.setId(message.getId());
+        return decoded;
+    }
+
+    /**
+     * Called once the client is connected, drains the messages buffered while it was offline.
+     */
+    void connectComplete() {
+        try {
+            initialize();
+        } catch (FacilioMqttException e) {
+            LOGGER.info("Exception while opening journal " + e.getMessage());
+            return;
+        }
+        JournalForwarder forwarder = journalForwarder;
+        if (forwarder != null) {
+            forwarder.connectComplete();
+        }
+        drain();
+    }
+
+    /**
+     * Called once the client is disconnected, stops the journal forwarder and writes the checkpoint of the records
+     * acknowledged so far. The journal is opened again when the pipeline is next used, and the offline buffers keep their messages.
+     */
+    void close() {
+        initializeLock.lock();
+        try {
+            JournalForwarder forwarder = journalForwarder;
+            if (forwarder != null) {
+                journalForwarder = null;
+                initialized = false;
+                forwarder.close();
+            }
+        } finally {
+            initializeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting in the offline buffers
+     * @return buffered message count
+     */
+    int getBufferedCount() {
+        int count = 0;
+        if (initialized && offlineBuffers != null) {
+            for (OfflineBuffer offlineBuffer : offlineBuffers) {
+                count += offlineBuffer.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the remaining bytes of the buffer, moving its position to the limit.
+     * The backing array of a heap buffer is returned as it is when the buffer covers exactly the whole array.
+     * @param payload buffer to read
+     * @return payload bytes
+     */
+    static byte[] toByteArray(ByteBuffer payload) {
+        if (payload.hasArray() && payload.arrayOffset() == 0 && payload.position() == 0 && payload.limit() == payload.array().length) {
+            payload.position(payload.limit());
+            return payload.array();
+        }
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return bytes;
+    }
+
+    private void send(String topic, byte[] payload, int qos, boolean pooled, CompletableFuture<DeliveryReceipt> future) {
+        if (rateLimiter == null) {
+            sender.send(topic, payload, qos, pooled, future);
+        } else {
+            rateLimiter.send(sender, topic, payload, qos, pooled, future);
+        }
+    }
+
+    private void drain() {
+        if (offlineBuffers != null && !isBufferEmpty() && draining.compareAndSet(false, true)) {
+            drainExecutor.execute(this::drainBuffer);
+        }
+    }
+
+    private boolean isBufferEmpty() {
+        for (OfflineBuffer offlineBuffer : offlineBuffers) {
+            if (!offlineBuffer.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void drainBuffer() {
+        OfflineBuffer.Entry entry = new OfflineBuffer.Entry();
+        WeightedScheduler scheduler = new WeightedScheduler();
+        do {
+            try {
+                while (connected.getAsBoolean()) {
+                    int lane = scheduler.next(i -> !offlineBuffers[i].isEmpty());
+                    if (lane < 0 || !offlineBuffers[lane].poll(entry)) {
+                        break;
+                    }
+                    scheduler.charge(lane);
+                    publishWindow.send(entry.topic, entry.payload, entry.qos, PRIORITIES[lane], drainFuture(entry, offlineBuffers[lane]));
+                    entry.clear();
+                }
+            } catch (FacilioMqttException e) {
+                LOGGER.info("Offline buffer drain interrupted " + e.getMessage());
+                return;
+            } finally {
+                draining.set(false);
+            }
+        } while (connected.getAsBoolean() && !isBufferEmpty() && draining.compareAndSet(false, true));
+    }
+
+    private CompletableFuture<DeliveryReceipt> drainFuture(OfflineBuffer.Entry entry, OfflineBuffer offlineBuffer) {
+        String topic = entry.topic;
+        byte[] payload = entry.payload;
+        int qos = entry.qos;
+        CompletableFuture<DeliveryReceipt> target = entry.future;
+        long sequence = entry.sequence;
+        CompletableFuture<DeliveryReceipt> future = new CompletableFuture<>();
+        future.whenComplete((receipt, cause) -> {
+            if (cause == null) {
+                if (target != null) {
+                    target.complete(receipt);
+                }
+            } else if (!connected.getAsBoolean()) {
+                OfflineBuffer.Entry retry = new OfflineBuffer.Entry();
+                retry.topic = topic;
+                retry.payload = payload;
+                retry.qos = qos;
+                retry.future = target;
+                retry.sequence = sequence;
+                offlineBuffer.putBack(retry);
+            } else if (target != null) {
+                target.completeExceptionally(cause);
+            }
+        });
+        return future;
+    }
+}
@@ -0,0 +1,132 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.DeliveryReceipt;
+import com.facilio.mqtt.client.FacilioMqttConnectOptions;
+import com.facilio.mqtt.client.FacilioMqttException;
+import com.facilio.mqtt.client.RateLimit;
+import com.facilio.mqtt.client.RateLimitMetrics;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Applies the publish rate limits of {@link FacilioMqttConnectOptions} to a client.
+ *
+ * Every publish takes a permit from the client bucket and from the bucket of the longest topic prefix it matches.
+ * Publishes over the limit are handed to the sender later from a timer thread, so they are delayed rather than failed.
+ * A delayed publish keeps its slot of the in-flight window, so callers are held back by the window.
+ */
+class PublishRateLimiter {
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "facilio-mqtt-rate-limit");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final TokenBucket clientBucket;
+    private final String[] prefixes;
+    private final TokenBucket[] prefixBuckets;
+    private final LongAdder permitCount = new LongAdder();
+    private final LongAdder delayedCount = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private PublishRateLimiter(RateLimit clientLimit, Map<String, RateLimit> topicLimits) {
+        this.clientBucket = clientLimit == null ? null : new TokenBucket(clientLimit);
+        this.prefixes = new String[topicLimits.size()];
+        this.prefixBuckets = new TokenBucket[topicLimits.size()];
+        int i = 0;
+        for (Map.Entry<String, RateLimit> entry : topicLimits.entrySet()) {
+            prefixes[i] = entry.getKey();
+            prefixBuckets[i] = new TokenBucket(entry.getValue());
+            i++;
+        }
+    }
+
+    /**
+     * Creates the rate limiter for the given options.
+     * @param options options of the client, can be null
+     * @return rate limiter, null if no rate limit is set
+     */
+    static PublishRateLimiter create(FacilioMqttConnectOptions options) {
+        if (options == null || (options.getPublishRateLimit() == null && options.getTopicRateLimits().isEmpty())) {
+            return null;
+        }
+        return new PublishRateLimiter(options.getPublishRateLimit(), options.getTopicRateLimits());
+    }
+
+    /**
+     * Hands the message to the sender once a publish to the topic is allowed, without blocking the caller.
+     * @param sender sender used to publish the message
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @param pooled true if the payload was taken from the pool of the pipeline
+     * @param future future to complete when the message is acknowledged or failed
+     */
+    void send(MessageSender sender, String topic, byte[] payload, int qos, boolean pooled, CompletableFuture<DeliveryReceipt> future) {
+        long wait = reserve(topic);
+        if (wait == 0) {
+            sender.send(topic, payload, qos, pooled, future);
+        } else {
+            TIMER.schedule(() -> sendDelayed(sender, topic, payload, qos, pooled, future), wait, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Hands a delayed message to the sender on the timer thread. An exception thrown there would only be kept by
+     * the unread ScheduledFuture, so it fails the future of the message instead.
+     */
+    private static void sendDelayed(MessageSender sender, String topic, byte[] payload, int qos, boolean pooled, CompletableFuture<DeliveryReceipt> future) {
+        try {
+            sender.send(topic, payload, qos, pooled, future);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(new FacilioMqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, e));
+        }
+    }
+
+    /**
+     * Returns a snapshot of the wait metrics
+     * @return rate limit metrics
+     */
+    RateLimitMetrics getMetrics() {
+        return new RateLimitMetrics(permitCount.sum(), delayedCount.sum(), totalWaitNanos.sum(), maxWaitNanos.get());
+    }
+
+    private long reserve(String topic) {
+        long wait = clientBucket == null ? 0 : clientBucket.reserve();
+        TokenBucket prefixBucket = bucketFor(topic);
+        if (prefixBucket != null) {
+            wait = Math.max(wait, prefixBucket.reserve());
+        }
+        permitCount.increment();
+        if (wait > 0) {
+            delayedCount.increment();
+            totalWaitNanos.add(wait);
+            long max = maxWaitNanos.get();
+            while (wait > max && !maxWaitNanos.compareAndSet(max, wait)) {
+                max = maxWaitNanos.get();
+            }
+        }
+        return wait;
+    }
+
+    private TokenBucket bucketFor(String topic) {
+        TokenBucket bucket = null;
+        int length = -1;
+        for (int i = 0; i < prefixes.length; i++) {
+            if (prefixes[i].length() > length && topic.startsWith(prefixes[i])) {
+                bucket = prefixBuckets[i];
+                length = prefixes[i].length();
+            }
+        }
+        return bucket;
+    }
+}
@@ -0,0 +1,165 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.DeliveryReceipt;
+import com.facilio.mqtt.client.FacilioMqttConnectOptions;
+import com.facilio.mqtt.client.FacilioMqttException;
+import com.facilio.mqtt.client.Priority;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
+
+/**
+ * Keeps a bounded number of unacknowledged messages in flight for a client.
+ *
+ * The size of the window is taken from {@link MqttConnectOptions#getMaxInflight()} so that the client never
+ * hands more messages to the underlying library than it is able to track. Senders wait in the lane of their
+ * {@link Priority}, a freed slot goes to the lanes by {@link WeightedScheduler}, and the reserved slots at the
+ * top of the window are only used by {@link Priority#CRITICAL} messages.
+ */
+class PublishWindow {
+
+    private static final int CRITICAL = Priority.CRITICAL.ordinal();
+
+    private final MessageSender sender;
+    private final int size;
+    private final int sharedSize;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final WeightedScheduler scheduler = new WeightedScheduler();
+    private final int[] waiting = new int[Priority.values().length];
+    private final IntPredicate ready = this::isReady;
+
+    private int inflight;
+
+    /**
+     * Constructs a PublishWindow for the given sender.
+     * @param sender sender used to publish the messages
+     * @param connectOptions options to take the window size from, defaults are used if null
+     */
+    PublishWindow(MessageSender sender, FacilioMqttConnectOptions connectOptions) {
+        this.sender = sender;
+        this.size = connectOptions != null ? connectOptions.getMaxInflight() : MqttConnectOptions.MAX_INFLIGHT_DEFAULT;
+        int reserved = connectOptions != null ? connectOptions.getReservedInflight() : -1;
+        if (reserved < 0) {
+            reserved = Math.max(1, size / 10);
+        }
+        this.sharedSize = Math.max(1, size - reserved);
+    }
+
+    /**
+     * Returns the maximum number of messages kept in flight
+     * @return window size
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of messages currently waiting for an acknowledgement
+     * @return in-flight count
+     */
+    int getInflightCount() {
+        lock.lock();
+        try {
+            return inflight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends the message in the {@link Priority#NORMAL} lane once there is room in the window.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @param future future to complete when the message is acknowledged or failed
+     * @throws FacilioMqttException if the calling thread is interrupted while waiting for the window
+     */
+    void send(String topic, byte[] payload, int qos, CompletableFuture<DeliveryReceipt> future) throws FacilioMqttException {
+        send(topic, payload, qos, Priority.NORMAL, future);
+    }
+
+    /**
+     * Sends the message once its lane is given room in the window.
+     * The calling thread is parked only while the window is full for its lane.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @param priority lane of the message
+     * @param future future to complete when the message is acknowledged or failed
+     * @throws FacilioMqttException if the calling thread is interrupted while waiting for the window
+     */
+    void send(String topic, byte[] payload, int qos, Priority priority, CompletableFuture<DeliveryReceipt> future) throws FacilioMqttException {
+        send(topic, payload, qos, priority, false, future);
+    }
+
+    /**
+     * Sends the message once its lane is given room in the window.
+     * The calling thread is parked only while the window is full for its lane.
+     * @param topic name to publish the message
+     * @param payload actual message
+     * @param qos for this message
+     * @param priority lane of the message
+     * @param pooled true if the payload was taken from the pool of the pipeline, to be returned once the message is delivered
+     * @param future future to complete when the message is acknowledged or failed
+     * @throws FacilioMqttException if the calling thread is interrupted while waiting for the window
+     */
+    void send(String topic, byte[] payload, int qos, Priority priority, boolean pooled, CompletableFuture<DeliveryReceipt> future) throws FacilioMqttException {
+        int lane = priority.ordinal();
+        lock.lock();
+        try {
+            waiting[lane]++;
+            try {
+                while (scheduler.next(ready) != lane) {
+                    released.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                released.signalAll();
+                throw new FacilioMqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, e);
+            } finally {
+                waiting[lane]--;
+            }
+            scheduler.charge(lane);
+            inflight++;
+            if (hasWaiting()) {
+                released.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        future.whenComplete((receipt, cause) -> release());
+        try {
+            sender.send(topic, payload, qos, pooled, future);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(new FacilioMqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, e));
+        }
+    }
+
+    private boolean isReady(int lane) {
+        return waiting[lane] > 0 && inflight < (lane == CRITICAL ? size : sharedSize);
+    }
+
+    private boolean hasWaiting() {
+        for (int count : waiting) {
+            if (count > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            inflight--;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
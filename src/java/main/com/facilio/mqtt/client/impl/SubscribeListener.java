@@ -0,0 +1,53 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.FacilioMqttException;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Completes the future of a Paho subscribe or unsubscribe request of several topic filters.
+ * A subscribe request is failed if the server refused any of its filters.
+ */
+class SubscribeListener implements IMqttActionListener {
+
+    private static final int SUBSCRIBE_FAILURE = 0x80;
+
+    private final CompletableFuture<Void> future;
+
+    /**
+     * Constructs a SubscribeListener.
+     * @param future future to complete when the request is acknowledged
+     */
+    SubscribeListener(CompletableFuture<Void> future) {
+        this.future = future;
+    }
+
+    /**
+     * This method is invoked when the request has been acknowledged by the server.
+     * @param token the token associated with the request.
+     */
+    public void onSuccess(IMqttToken token) {
+        int[] grantedQos = token.getGrantedQos();
+        if (grantedQos != null) {
+            for (int qos : grantedQos) {
+                if (qos == SUBSCRIBE_FAILURE) {
+                    future.completeExceptionally(new FacilioMqttException(MqttException.REASON_CODE_SUBSCRIBE_FAILED));
+                    return;
+                }
+            }
+        }
+        future.complete(null);
+    }
+
+    /**
+     * This method is invoked when the request has failed.
+     * @param token the token associated with the request.
+     * @param exception the reason for the failure.
+     */
+    public void onFailure(IMqttToken token, Throwable exception) {
+        future.completeExceptionally(DeliveryListener.toFacilioMqttException(exception));
+    }
+}
@@ -0,0 +1,106 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.FacilioMqttConnectOptions;
+import com.facilio.mqtt.client.FacilioMqttException;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Helpers for the subscribe and unsubscribe requests of several topic filters.
+ *
+ * Requests complete a future when the server has acknowledged them. A request the server does not answer within the
+ * subscribe timeout of the client is failed with {@link MqttException#REASON_CODE_CLIENT_TIMEOUT} by a shared timer
+ * thread, which also sends the requests delayed by the subscribe rate limit of the AWS client.
+ */
+final class SubscriptionRequests {
+
+    static final ScheduledThreadPoolExecutor TIMER = createTimer();
+    private static final long DEFAULT_TIMEOUT = 10000;
+
+    private SubscriptionRequests() {
+    }
+
+    private static ScheduledThreadPoolExecutor createTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "facilio-mqtt-subscribe-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /**
+     * Checks the arguments of a request.
+     * @param topics topic filters of the request
+     * @param qos qos of each filter, null for an unsubscribe request
+     * @throws IllegalArgumentException if a filter is null or the qos are not given for every filter
+     */
+    static void validate(String[] topics, int[] qos) {
+        if (topics == null || (qos != null && qos.length != topics.length)) {
+            throw new IllegalArgumentException();
+        }
+        for (String topic : topics) {
+            if (topic == null) {
+                throw new IllegalArgumentException();
+            }
+        }
+    }
+
+    /**
+     * Returns the subscribe timeout of the options.
+     * @param options options of the client, can be null
+     * @return subscribe timeout in milliseconds
+     */
+    static long timeout(FacilioMqttConnectOptions options) {
+        return options == null ? DEFAULT_TIMEOUT : options.getSubscribeTimeout();
+    }
+
+    /**
+     * Fails the future with a timeout if it is not completed within the given time.
+     * @param future future of the request
+     * @param timeout timeout in milliseconds
+     * @return the future
+     */
+    static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, long timeout) {
+        if (future.isDone()) {
+            return future;
+        }
+        ScheduledFuture<?> task = TIMER.schedule(() -> future.completeExceptionally(new FacilioMqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT)),
+                timeout, TimeUnit.MILLISECONDS);
+        future.whenComplete((result, exception) -> task.cancel(false));
+        return future;
+    }
+
+    /**
+     * Returns a future failed with the exception.
+     * @param exception reason of the failure
+     * @return failed future
+     */
+    static CompletableFuture<Void> failed(Throwable exception) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(DeliveryListener.toFacilioMqttException(exception));
+        return future;
+    }
+
+    /**
+     * Waits for the request to complete.
+     * @param future future of the request
+     * @throws FacilioMqttException if the request failed or the calling thread is interrupted
+     */
+    static void await(CompletableFuture<?> future) throws FacilioMqttException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FacilioMqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, e);
+        } catch (ExecutionException e) {
+            throw DeliveryListener.toFacilioMqttException(e.getCause());
+        }
+    }
+}
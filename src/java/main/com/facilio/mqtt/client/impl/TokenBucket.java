@@ -0,0 +1,45 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.RateLimit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, implemented as the generic cell rate algorithm.
+ *
+ * Instead of counting tokens the bucket keeps the theoretical arrival time of the next permit. Reserving a permit
+ * moves it forward by one emission interval with a single compare and set, and the caller waits until the permit
+ * falls within the burst tolerance of the current time.
+ */
+class TokenBucket {
+
+    private final long interval;
+    private final long tolerance;
+    private final AtomicLong arrivalTime;
+
+    /**
+     * Constructs a TokenBucket which starts full.
+     * @param rateLimit rate and burst of the bucket
+     */
+    TokenBucket(RateLimit rateLimit) {
+        this.interval = Math.max(1, (long) (1_000_000_000L / rateLimit.getPermitsPerSecond()));
+        this.tolerance = interval * (rateLimit.getBurst() - 1);
+        this.arrivalTime = new AtomicLong(System.nanoTime() - tolerance);
+    }
+
+    /**
+     * Reserves a permit.
+     * @return nanoseconds the caller has to wait before using the permit, 0 if it can be used right away
+     */
+    long reserve() {
+        while (true) {
+            long now = System.nanoTime();
+            long current = arrivalTime.get();
+            long start = current - now > 0 ? current : now;
+            if (arrivalTime.compareAndSet(current, start + interval)) {
+                long wait = current - tolerance - now;
+                return wait > 0 ? wait : 0;
+            }
+        }
+    }
+}
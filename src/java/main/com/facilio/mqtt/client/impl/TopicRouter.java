@@ -0,0 +1,356 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.MessageHandler;
+import com.facilio.mqtt.client.ReceivedMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+/**
+ * Routes received messages to the {@link MessageHandler}s of the topic filters they match.
+ *
+ * The filters are kept in a trie with one level per topic level. Each node holds the handlers of the filter ending
+ * at it, its named children in an open addressing table, and separate '+' and '#' children, so a topic is matched
+ * by walking its levels once, following the named child and the '+' child, without splitting the topic.
+ * The segments of the filters are interned. Readers take no lock: the child tables and handler arrays are copied
+ * when a filter is added or removed, and the writers are serialized on the router.
+ *
+ * Handlers subscribed with a content filter are checked on the receiving thread with {@link #rejects(String, byte[], int, int)},
+ * so a message none of its handlers would accept is discarded before it is dispatched.
+ */
+class TopicRouter {
+
+    private static final MessageHandler[] NO_HANDLERS = new MessageHandler[0];
+    private static final Node[] NO_NODES = new Node[0];
+    private static final int NO_MATCH = 0;
+    private static final int REJECTED = 1;
+    private static final int ACCEPTED = 2;
+
+    private final Node root = new Node("");
+    private volatile int filterCount;
+    private volatile int batcherCount;
+    private volatile int contentFilterCount;
+
+    /**
+     * Adds the handler to the topic filter.
+     * A handler added to the same filter twice is called twice for every message.
+     * @param filter topic filter, with '+' and '#' wildcards
+     * @param handler handler of the filter
+     * @throws IllegalArgumentException if the filter is not a valid topic filter
+     */
+    synchronized void add(String filter, MessageHandler handler) {
+        MqttTopic.validate(filter, true);
+        Node node = root;
+        int start = 0;
+        while (true) {
+            int end = filter.indexOf('/', start);
+            if (end < 0) {
+                end = filter.length();
+            }
+            node = node.getOrAddChild(filter.substring(start, end));
+            if (end == filter.length()) {
+                break;
+            }
+            start = end + 1;
+        }
+        MessageHandler[] handlers = node.handlers;
+        if (handlers.length == 0) {
+            filterCount++;
+        }
+        MessageHandler[] added = new MessageHandler[handlers.length + 1];
+        System.arraycopy(handlers, 0, added, 0, handlers.length);
+        added[handlers.length] = handler;
+        node.handlers = added;
+        count(handler, 1);
+    }
+
+    /**
+     * Removes the handler from the topic filter.
+     * @param filter topic filter the handler was added to
+     * @param handler handler to remove, null to remove every handler of the filter
+     * @return true if a handler was removed
+     */
+    synchronized boolean remove(String filter, MessageHandler handler) {
+        Node[] path = new Node[filter.length() + 2];
+        path[0] = root;
+        int depth = 0;
+        int start = 0;
+        while (true) {
+            int end = filter.indexOf('/', start);
+            if (end < 0) {
+                end = filter.length();
+            }
+            Node child = path[depth].getChild(filter, start, end);
+            if (child == null) {
+                return false;
+            }
+            path[++depth] = child;
+            if (end == filter.length()) {
+                break;
+            }
+            start = end + 1;
+        }
+        Node node = path[depth];
+        MessageHandler[] handlers = node.handlers;
+        int index = -1;
+        for (int i = handlers.length - 1; i >= 0 && handler != null; i--) {
+            if (handlers[i] == handler) {
+                index = i;
+                break;
+            }
+        }
+        if (handler == null && handlers.length > 0) {
+            node.handlers = NO_HANDLERS;
+            for (MessageHandler removed : handlers) {
+                count(removed, -1);
+            }
+        } else if (index >= 0) {
+            count(handler, -1);
+            MessageHandler[] removed = new MessageHandler[handlers.length - 1];
+            System.arraycopy(handlers, 0, removed, 0, index);
+            System.arraycopy(handlers, index + 1, removed, index, removed.length - index);
+            node.handlers = removed;
+        } else {
+            return false;
+        }
+        if (node.handlers.length == 0) {
+            filterCount--;
+            for (int i = depth; i > 0 && path[i].isEmpty(); i--) {
+                path[i - 1].removeChild(path[i]);
+            }
+        }
+        return true;
+    }
+
+    private void count(MessageHandler handler, int delta) {
+        if (handler instanceof MessageBatcher) {
+            batcherCount += delta;
+        } else if (handler instanceof FilteredMessageHandler) {
+            contentFilterCount += delta;
+        }
+    }
+
+    /**
+     * Returns true if no handler was added
+     * @return true if the router has no filters
+     */
+    boolean isEmpty() {
+        return filterCount == 0;
+    }
+
+    /**
+     * Returns true if a {@link MessageBatcher} was added, its messages are then acknowledged after their batch is handled
+     * @return true if the router has batch handlers
+     */
+    boolean hasBatchers() {
+        return batcherCount > 0;
+    }
+
+    /**
+     * Calls the handlers of every filter the topic of the message matches.
+     * Filters starting with a wildcard do not match topics starting with '$'.
+     * @param message received message
+     * @return true if at least one handler was called
+     */
+    boolean route(ReceivedMessage message) {
+        if (filterCount == 0) {
+            return false;
+        }
+        String topic = message.getTopic();
+        return route(root, topic, 0, !topic.startsWith("$"), message);
+    }
+
+    private static boolean route(Node node, String topic, int start, boolean wildcards, ReceivedMessage message) {
+        boolean routed = false;
+        Node multiLevel = node.multiLevel;
+        if (multiLevel != null && wildcards) {
+            routed = call(multiLevel.handlers, message);
+        }
+        if (start > topic.length()) {
+            return call(node.handlers, message) || routed;
+        }
+        int end = topic.indexOf('/', start);
+        if (end < 0) {
+            end = topic.length();
+        }
+        Node child = node.getNamedChild(topic, start, end);
+        if (child != null) {
+            routed |= route(child, topic, end + 1, true, message);
+        }
+        Node singleLevel = node.singleLevel;
+        if (singleLevel != null && wildcards) {
+            routed |= route(singleLevel, topic, end + 1, true, message);
+        }
+        return routed;
+    }
+
+    /**
+     * Returns true if the topic matches a filter and every handler of the matching filters has a content filter
+     * rejecting the payload, so the message would reach no handler and is not passed to the callback either.
+     * @param topic name of the topic the message was published to
+     * @param payload array holding the payload
+     * @param offset offset of the payload in the array
+     * @param length length of the payload
+     * @return true if the message can be discarded
+     */
+    boolean rejects(String topic, byte[] payload, int offset, int length) {
+        if (contentFilterCount == 0) {
+            return false;
+        }
+        return evaluate(root, topic, 0, !topic.startsWith("$"), payload, offset, length) == REJECTED;
+    }
+
+    private static int evaluate(Node node, String topic, int start, boolean wildcards, byte[] payload, int offset, int length) {
+        int result = NO_MATCH;
+        Node multiLevel = node.multiLevel;
+        if (multiLevel != null && wildcards) {
+            result = evaluate(multiLevel.handlers, payload, offset, length);
+        }
+        if (start > topic.length()) {
+            return Math.max(result, evaluate(node.handlers, payload, offset, length));
+        }
+        int end = topic.indexOf('/', start);
+        if (end < 0) {
+            end = topic.length();
+        }
+        Node child = node.getNamedChild(topic, start, end);
+        if (child != null && result != ACCEPTED) {
+            result = Math.max(result, evaluate(child, topic, end + 1, true, payload, offset, length));
+        }
+        Node singleLevel = node.singleLevel;
+        if (singleLevel != null && wildcards && result != ACCEPTED) {
+            result = Math.max(result, evaluate(singleLevel, topic, end + 1, true, payload, offset, length));
+        }
+        return result;
+    }
+
+    private static int evaluate(MessageHandler[] handlers, byte[] payload, int offset, int length) {
+        int result = NO_MATCH;
+        for (MessageHandler handler : handlers) {
+            if (!(handler instanceof FilteredMessageHandler) || ((FilteredMessageHandler) handler).matches(payload, offset, length)) {
+                return ACCEPTED;
+            }
+            result = REJECTED;
+        }
+        return result;
+    }
+
+    private static boolean call(MessageHandler[] handlers, ReceivedMessage message) {
+        for (MessageHandler handler : handlers) {
+            handler.onMessage(message);
+        }
+        return handlers.length > 0;
+    }
+
+    private static final class Node {
+
+        private final String segment;
+        private final int segmentHash;
+        private volatile Node[] children = NO_NODES;
+        private int childCount;
+        private volatile Node singleLevel;
+        private volatile Node multiLevel;
+        private volatile MessageHandler[] handlers = NO_HANDLERS;
+
+        Node(String segment) {
+            this.segment = segment;
+            this.segmentHash = segment.hashCode();
+        }
+
+        boolean isEmpty() {
+            return handlers.length == 0 && childCount == 0 && singleLevel == null && multiLevel == null;
+        }
+
+        Node getChild(String topic, int start, int end) {
+            int length = end - start;
+            if (length == 1 && topic.charAt(start) == '+') {
+                return singleLevel;
+            }
+            if (length == 1 && topic.charAt(start) == '#') {
+                return multiLevel;
+            }
+            return getNamedChild(topic, start, end);
+        }
+
+        Node getNamedChild(String topic, int start, int end) {
+            int length = end - start;
+            Node[] table = children;
+            if (table.length == 0) {
+                return null;
+            }
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + topic.charAt(i);
+            }
+            int mask = table.length - 1;
+            for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+                Node child = table[i];
+                if (child == null) {
+                    return null;
+                }
+                if (child.segmentHash == hash && child.segment.length() == length && topic.regionMatches(start, child.segment, 0, length)) {
+                    return child;
+                }
+            }
+        }
+
+        Node getOrAddChild(String segment) {
+            Node child = getChild(segment, 0, segment.length());
+            if (child != null) {
+                return child;
+            }
+            child = new Node(segment.intern());
+            if ("+".equals(segment)) {
+                singleLevel = child;
+            } else if ("#".equals(segment)) {
+                multiLevel = child;
+            } else {
+                Node[] table = children;
+                int capacity = Math.max(4, table.length);
+                while (capacity < (childCount + 1) * 2) {
+                    capacity *= 2;
+                }
+                Node[] copy = new Node[capacity];
+                for (Node node : table) {
+                    if (node != null) {
+                        insert(copy, node);
+                    }
+                }
+                insert(copy, child);
+                childCount++;
+                children = copy;
+            }
+            return child;
+        }
+
+        void removeChild(Node child) {
+            if (child == singleLevel) {
+                singleLevel = null;
+            } else if (child == multiLevel) {
+                multiLevel = null;
+            } else {
+                Node[] table = children;
+                Node[] copy = childCount == 1 ? NO_NODES : new Node[table.length];
+                for (Node node : table) {
+                    if (node != null && node != child) {
+                        insert(copy, node);
+                    }
+                }
+                childCount--;
+                children = copy;
+            }
+        }
+
+        private static void insert(Node[] table, Node node) {
+            int mask = table.length - 1;
+            int i = spread(node.segmentHash) & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = node;
+        }
+
+        private static int spread(int hash) {
+            hash *= 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
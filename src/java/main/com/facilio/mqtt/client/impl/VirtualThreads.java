@@ -0,0 +1,39 @@
+package com.facilio.mqtt.client.impl;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Creates the virtual thread executors of the client.
+ *
+ * Virtual threads need Java 21. This is the class used on older runtimes, where they are not supported; the
+ * multi-release jar carries the Java 21 version of this class under META-INF/versions/21, built from src/java/main21.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Returns an executor starting a new virtual thread for every task.
+     * @param name prefix of the thread names
+     * @return null, virtual threads need Java 21
+     * @throws IllegalStateException if the runtime is Java 21 or later, as the jar was then built without the Java 21
+     * classes and virtual threads would silently not be used
+     */
+    static ExecutorService newThreadPerTaskExecutor(String name) {
+        if (getFeatureVersion() >= 21) {
+            throw new IllegalStateException("DispatchMode.VIRTUAL_THREADS needs the Java 21 classes of the multi-release jar, "
+                    + "build the jar with JDK 21 or later so that the java21 profile is active");
+        }
+        return null;
+    }
+
+    private static int getFeatureVersion() {
+        String version = System.getProperty("java.specification.version", "1.8");
+        try {
+            return version.startsWith("1.") ? Integer.parseInt(version.substring(2)) : Integer.parseInt(version);
+        } catch (NumberFormatException e) {
+            return 8;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.Priority;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Weighted round robin over the {@link Priority} lanes.
+ *
+ * Each lane gets as many turns as its weight per round, higher priorities first, and a lane with nothing
+ * to send gives its turns up to the others. It is not thread safe and is used under the lock of its owner.
+ */
+class WeightedScheduler {
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final int[] credits = new int[PRIORITIES.length];
+
+    /**
+     * Returns the lane to serve next.
+     * @param ready returns true for the ordinal of a lane which has a message ready to be served
+     * @return ordinal of the lane, -1 if no lane is ready
+     */
+    int next(IntPredicate ready) {
+        for (int round = 0; round < 2; round++) {
+            int firstReady = -1;
+            for (int lane = 0; lane < PRIORITIES.length; lane++) {
+                if (ready.test(lane)) {
+                    if (credits[lane] > 0) {
+                        return lane;
+                    }
+                    if (firstReady < 0) {
+                        firstReady = lane;
+                    }
+                }
+            }
+            if (firstReady < 0) {
+                return -1;
+            }
+            for (int lane = 0; lane < PRIORITIES.length; lane++) {
+                credits[lane] = PRIORITIES[lane].getWeight();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Records that the lane was served.
+     * @param lane ordinal of the lane
+     */
+    void charge(int lane) {
+        if (credits[lane] > 0) {
+            credits[lane]--;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.facilio.mqtt.util;
+
+/**
+ * Scans UTF-8 JSON in place, finding fields and values by their positions in the bytes without decoding them.
+ *
+ * The methods take the array and the end of the JSON in it, and return positions in the array, or -1 when the JSON
+ * is malformed at the scanned position. Only the structure needed to skip values is checked. Field names are
+ * compared as written, so a name written with escapes does not match its unescaped form.
+ */
+public final class JsonScanner {
+
+    private JsonScanner() {
+    }
+
+    /**
+     * Finds a field of the object starting at the given position.
+     * @param json array holding the JSON
+     * @param position position of the object, leading whitespace is skipped
+     * @param end end of the JSON in the array
+     * @param name UTF-8 bytes of the field name
+     * @return position of the value of the field, or -1 if the field is missing or the object is malformed
+     */
+    public static int findField(byte[] json, int position, int end, byte[] name) {
+        int i = skipWhitespace(json, position, end);
+        if (i >= end || json[i] != '{') {
+            return -1;
+        }
+        i = skipWhitespace(json, i + 1, end);
+        while (i < end && json[i] == '"') {
+            int nameEnd = skipString(json, i, end);
+            if (nameEnd < 0) {
+                return -1;
+            }
+            boolean found = regionEquals(json, i + 1, nameEnd, name);
+            i = skipWhitespace(json, nameEnd + 1, end);
+            if (i >= end || json[i] != ':') {
+                return -1;
+            }
+            i = skipWhitespace(json, i + 1, end);
+            if (found) {
+                return i;
+            }
+            i = skipValue(json, i, end);
+            if (i < 0) {
+                return -1;
+            }
+            i = skipWhitespace(json, i, end);
+            if (i >= end || json[i] != ',') {
+                return -1;
+            }
+            i = skipWhitespace(json, i + 1, end);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the position after the value starting at the given position.
+     * @param json array holding the JSON
+     * @param start position of the value
+     * @param end end of the JSON in the array
+     * @return position after the value, or -1 if it is malformed
+     */
+    public static int skipValue(byte[] json, int start, int end) {
+        if (start >= end) {
+            return -1;
+        }
+        byte first = json[start];
+        if (first == '"') {
+            int close = skipString(json, start, end);
+            return close < 0 ? -1 : close + 1;
+        }
+        if (first == '{' || first == '[') {
+            int depth = 0;
+            for (int i = start; i < end; i++) {
+                byte b = json[i];
+                if (b == '"') {
+                    i = skipString(json, i, end);
+                    if (i < 0) {
+                        return -1;
+                    }
+                } else if (b == '{' || b == '[') {
+                    depth++;
+                } else if ((b == '}' || b == ']') && --depth == 0) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+        int i = start;
+        while (i < end && json[i] != ',' && json[i] != '}' && json[i] != ']' && !isWhitespace(json[i])) {
+            i++;
+        }
+        return i == start ? -1 : i;
+    }
+
+    /**
+     * Returns the position of the closing quote of the string starting at the given quote.
+     * @param json array holding the JSON
+     * @param quote position of the opening quote
+     * @param end end of the JSON in the array
+     * @return position of the closing quote, or -1 if the string is not closed
+     */
+    public static int skipString(byte[] json, int quote, int end) {
+        for (int i = quote + 1; i < end; i++) {
+            byte b = json[i];
+            if (b == '\\') {
+                i++;
+            } else if (b == '"') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the position of the first byte from the given position which is not JSON whitespace.
+     * @param json array holding the JSON
+     * @param position position to start from
+     * @param end end of the JSON in the array
+     * @return position of the next token, or end
+     */
+    public static int skipWhitespace(byte[] json, int position, int end) {
+        while (position < end && isWhitespace(json[position])) {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Returns true if the bytes from start to end are the given bytes.
+     * @param json array holding the JSON
+     * @param start start of the region
+     * @param end end of the region
+     * @param bytes bytes to compare with
+     * @return true if equal
+     */
+    public static boolean regionEquals(byte[] json, int start, int end, byte[] bytes) {
+        if (end - start != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (json[start + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+}
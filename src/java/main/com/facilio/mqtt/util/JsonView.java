@@ -0,0 +1,320 @@
+package com.facilio.mqtt.util;
+
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Lazily decoded view of a UTF-8 JSON object, reading the fields it is asked for straight from the bytes.
+ *
+ * The top level fields are scanned only as far as needed to find the requested one, and the fields passed on the way
+ * are indexed, so later lookups do not scan again. Values are decoded once, on their first lookup, into the types
+ * used by json-simple: String, Long, Double, Boolean, or JSONObject and JSONArray for nested values. The full
+ * tree is only built by {@link #getTree()}. The view is thread safe, so the handlers of a message can share it,
+ * see {@link com.facilio.mqtt.client.ReceivedMessage#getJson()}.
+ *
+ * Only top level fields of an object are looked up, and the payload is not validated beyond what is scanned. If the
+ * payload is not an object, or is malformed before the requested field, the field is reported as missing.
+ *
+ * <code>
+ *  JsonView json = message.getJson();<br>
+ *  String deviceId = json.getString("deviceId");<br>
+ *  long timestamp = json.getLong("timestamp", 0);<br>
+ * </code>
+ */
+public class JsonView {
+
+    private static final Object UNDECODED = new Object();
+
+    private final byte[] payload;
+    private final int offset;
+    private final int end;
+    private int position;
+    private boolean scanned;
+    private int[] fields = new int[32];
+    private Object[] values = new Object[8];
+    private int fieldCount;
+    private Object tree;
+
+    /**
+     * Constructs a JsonView over a whole array.
+     * @param payload UTF-8 JSON, not copied
+     */
+    public JsonView(byte[] payload) {
+        this(payload, 0, payload.length);
+    }
+
+    /**
+     * Constructs a JsonView over a part of an array.
+     * @param payload array holding the UTF-8 JSON, not copied
+     * @param offset offset of the JSON in the array
+     * @param length length of the JSON
+     */
+    public JsonView(byte[] payload, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > payload.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        this.payload = payload;
+        this.offset = offset;
+        this.end = offset + length;
+        this.position = JsonScanner.skipWhitespace(payload, offset, end);
+        if (position < end && payload[position] == '{') {
+            position++;
+        } else {
+            scanned = true;
+        }
+    }
+
+    /**
+     * Returns true if the object has the field, even if its value is null.
+     * @param name field name
+     * @return true if the field is present
+     */
+    public synchronized boolean has(String name) {
+        return find(name) >= 0;
+    }
+
+    /**
+     * Returns the value of a field, decoded on the first lookup.
+     * @param name field name
+     * @return String, Long, Double, Boolean, JSONObject or JSONArray, or null if the field is missing, null or cannot be decoded
+     */
+    public synchronized Object get(String name) {
+        int field = find(name);
+        if (field < 0) {
+            return null;
+        }
+        Object value = values[field];
+        if (value == UNDECODED) {
+            value = decode(fields[field * 4 + 2], fields[field * 4 + 3]);
+            values[field] = value;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the value of a string field.
+     * @param name field name
+     * @return string, or null if the field is missing or not a string
+     */
+    public String getString(String name) {
+        Object value = get(name);
+        return value instanceof String ? (String) value : null;
+    }
+
+    /**
+     * Returns the value of a number field as a long.
+     * @param name field name
+     * @param defaultValue value returned if the field is missing or not a number
+     * @return value of the field
+     */
+    public long getLong(String name, long defaultValue) {
+        Object value = get(name);
+        return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+    }
+
+    /**
+     * Returns the value of a number field as a double.
+     * @param name field name
+     * @param defaultValue value returned if the field is missing or not a number
+     * @return value of the field
+     */
+    public double getDouble(String name, double defaultValue) {
+        Object value = get(name);
+        return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+    }
+
+    /**
+     * Returns the value of a boolean field.
+     * @param name field name
+     * @param defaultValue value returned if the field is missing or not a boolean
+     * @return value of the field
+     */
+    public boolean getBoolean(String name, boolean defaultValue) {
+        Object value = get(name);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+
+    /**
+     * Parses the whole payload with json-simple, once.
+     * @return JSONObject, JSONArray or the value of the payload
+     * @throws ParseException if the payload is not valid JSON
+     */
+    public synchronized Object getTree() throws ParseException {
+        if (tree == null) {
+            tree = new JSONParser().parse(new String(payload, offset, end - offset, StandardCharsets.UTF_8));
+        }
+        return tree;
+    }
+
+    /**
+     * Returns the index of a field, scanning further fields until it is found.
+     */
+    private int find(String name) {
+        for (int i = 0; i < fieldCount; i++) {
+            if (nameEquals(fields[i * 4], fields[i * 4 + 1], name)) {
+                return i;
+            }
+        }
+        while (!scanned) {
+            if (!scanField()) {
+                scanned = true;
+            } else if (nameEquals(fields[(fieldCount - 1) * 4], fields[(fieldCount - 1) * 4 + 1], name)) {
+                return fieldCount - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Indexes the next top level field.
+     * @return false at the end of the object or if the payload is malformed
+     */
+    private boolean scanField() {
+        int i = JsonScanner.skipWhitespace(payload, position, end);
+        if (i < end && payload[i] == ',' && fieldCount > 0) {
+            i = JsonScanner.skipWhitespace(payload, i + 1, end);
+        }
+        if (i >= end || payload[i] != '"') {
+            return false;
+        }
+        int nameStart = i + 1;
+        int nameEnd = JsonScanner.skipString(payload, i, end);
+        if (nameEnd < 0) {
+            return false;
+        }
+        i = JsonScanner.skipWhitespace(payload, nameEnd + 1, end);
+        if (i >= end || payload[i] != ':') {
+            return false;
+        }
+        int valueStart = JsonScanner.skipWhitespace(payload, i + 1, end);
+        int valueEnd = JsonScanner.skipValue(payload, valueStart, end);
+        if (valueEnd < 0) {
+            return false;
+        }
+        if ((fieldCount + 1) * 4 > fields.length) {
+            fields = Arrays.copyOf(fields, fields.length * 2);
+        }
+        if (fieldCount == values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        fields[fieldCount * 4] = nameStart;
+        fields[fieldCount * 4 + 1] = nameEnd;
+        fields[fieldCount * 4 + 2] = valueStart;
+        fields[fieldCount * 4 + 3] = valueEnd;
+        values[fieldCount] = UNDECODED;
+        fieldCount++;
+        position = valueEnd;
+        return true;
+    }
+
+    private boolean nameEquals(int start, int end, String name) {
+        int i = start;
+        for (int c = 0; c < name.length(); c++) {
+            char ch = name.charAt(c);
+            if (ch >= 0x80 || (i < end && payload[i] == '\\')) {
+                return decodeString(start, end).equals(name);
+            }
+            if (i >= end || payload[i] != ch) {
+                return false;
+            }
+            i++;
+        }
+        return i == end;
+    }
+
+    private Object decode(int start, int end) {
+        byte first = payload[start];
+        if (first == '"') {
+            return decodeString(start + 1, end - 1);
+        }
+        if (first == '{' || first == '[') {
+            try {
+                return new JSONParser().parse(new String(payload, start, end - start, StandardCharsets.UTF_8));
+            } catch (ParseException e) {
+                return null;
+            }
+        }
+        String text = new String(payload, start, end - start, StandardCharsets.ISO_8859_1);
+        switch (text) {
+            case "true":
+                return Boolean.TRUE;
+            case "false":
+                return Boolean.FALSE;
+            case "null":
+                return null;
+            default:
+                return decodeNumber(text);
+        }
+    }
+
+    private static Object decodeNumber(String text) {
+        try {
+            if (text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+                try {
+                    return Long.valueOf(text);
+                } catch (NumberFormatException e) {
+                    // too large for a long
+                }
+            }
+            return Double.valueOf(text);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes the content of a string, between its quotes.
+     */
+    private String decodeString(int start, int end) {
+        String raw = new String(payload, start, end - start, StandardCharsets.UTF_8);
+        int escape = raw.indexOf('\\');
+        if (escape < 0) {
+            return raw;
+        }
+        StringBuilder builder = new StringBuilder(raw.length());
+        builder.append(raw, 0, escape);
+        for (int i = escape; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c != '\\' || i + 1 >= raw.length()) {
+                builder.append(c);
+                continue;
+            }
+            char escaped = raw.charAt(++i);
+            switch (escaped) {
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 < raw.length()) {
+                        try {
+                            builder.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+                            i += 4;
+                            break;
+                        } catch (NumberFormatException e) {
+                            // kept as is
+                        }
+                    }
+                    builder.append(escaped);
+                    break;
+                default:
+                    builder.append(escaped);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,463 @@
+package com.facilio.mqtt.util;
+
+import org.json.simple.JSONAware;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Streaming JSON writer encoding straight into a reusable UTF-8 byte buffer.
+ *
+ * It writes {@link org.json.simple.JSONObject}, {@link Map} and {@link Collection} trees without building the
+ * intermediate String of toJSONString, and offers a builder style API for writing fields one by one.
+ * A writer is not thread safe, {@link #get()} returns a reset writer kept per thread.
+ *
+ * <code>
+ *  byte[] payload = JsonWriter.get().beginObject()<br>
+ *          .field("deviceId", "ahu-1")<br>
+ *          .field("temperature", 21.5)<br>
+ *          .endObject()<br>
+ *          .toByteArray();<br>
+ * </code>
+ */
+public class JsonWriter {
+
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] NULL = "null".getBytes();
+    private static final byte[] TRUE = "true".getBytes();
+    private static final byte[] FALSE = "false".getBytes();
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
+    private static final ThreadLocal<JsonWriter> WRITERS = ThreadLocal.withInitial(JsonWriter::new);
+
+    private byte[] buffer;
+    private int size;
+    private boolean needsComma;
+
+    /**
+     * Constructs a JsonWriter with a 1 KB buffer.
+     */
+    public JsonWriter() {
+        this(1024);
+    }
+
+    /**
+     * Constructs a JsonWriter.
+     * @param capacity initial size of the buffer in bytes
+     */
+    public JsonWriter(int capacity) {
+        this.buffer = new byte[Math.max(16, capacity)];
+    }
+
+    /**
+     * Returns the writer of the calling thread, reset and ready to use.
+     * @return JsonWriter
+     */
+    public static JsonWriter get() {
+        JsonWriter writer = WRITERS.get();
+        if (writer.buffer.length > MAX_RETAINED_SIZE) {
+            writer = new JsonWriter();
+            WRITERS.set(writer);
+        }
+        return writer.reset();
+    }
+
+    /**
+     * Encodes the value as UTF-8 JSON using the writer of the calling thread.
+     * @param value JSONObject, Map, Collection or any other value supported by {@link #value(Object)}
+     * @return JSON bytes
+     */
+    public static byte[] toJson(Object value) {
+        return get().value(value).toByteArray();
+    }
+
+    /**
+     * Discards everything written so far.
+     * @return this writer
+     */
+    public JsonWriter reset() {
+        size = 0;
+        needsComma = false;
+        return this;
+    }
+
+    /**
+     * Starts an object.
+     * @return this writer
+     */
+    public JsonWriter beginObject() {
+        separate();
+        write((byte) '{');
+        needsComma = false;
+        return this;
+    }
+
+    /**
+     * Ends the current object.
+     * @return this writer
+     */
+    public JsonWriter endObject() {
+        write((byte) '}');
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * Starts an array.
+     * @return this writer
+     */
+    public JsonWriter beginArray() {
+        separate();
+        write((byte) '[');
+        needsComma = false;
+        return this;
+    }
+
+    /**
+     * Ends the current array.
+     * @return this writer
+     */
+    public JsonWriter endArray() {
+        write((byte) ']');
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * Writes the name of the next field of the current object.
+     * @param name field name
+     * @return this writer
+     */
+    public JsonWriter name(String name) {
+        separate();
+        writeString(name);
+        write((byte) ':');
+        needsComma = false;
+        return this;
+    }
+
+    /**
+     * Writes a string field.
+     * @param name field name
+     * @param value field value, can be null
+     * @return this writer
+     */
+    public JsonWriter field(String name, String value) {
+        return name(name).value(value);
+    }
+
+    /**
+     * Writes a number field.
+     * @param name field name
+     * @param value field value
+     * @return this writer
+     */
+    public JsonWriter field(String name, long value) {
+        return name(name).value(value);
+    }
+
+    /**
+     * Writes a number field.
+     * @param name field name
+     * @param value field value, NaN and infinity are written as null
+     * @return this writer
+     */
+    public JsonWriter field(String name, double value) {
+        return name(name).value(value);
+    }
+
+    /**
+     * Writes a boolean field.
+     * @param name field name
+     * @param value field value
+     * @return this writer
+     */
+    public JsonWriter field(String name, boolean value) {
+        return name(name).value(value);
+    }
+
+    /**
+     * Writes a field of any value supported by {@link #value(Object)}.
+     * @param name field name
+     * @param value field value
+     * @return this writer
+     */
+    public JsonWriter field(String name, Object value) {
+        return name(name).value(value);
+    }
+
+    /**
+     * Writes a string value.
+     * @param value string, can be null
+     * @return this writer
+     */
+    public JsonWriter value(String value) {
+        separate();
+        if (value == null) {
+            write(NULL);
+        } else {
+            writeString(value);
+        }
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * Writes a number value.
+     * @param value number
+     * @return this writer
+     */
+    public JsonWriter value(long value) {
+        separate();
+        writeLong(value);
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * Writes a number value.
+     * @param value number, NaN and infinity are written as null
+     * @return this writer
+     */
+    public JsonWriter value(double value) {
+        separate();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            write(NULL);
+        } else if (value == (long) value && Math.abs(value) < 1e15) {
+            writeLong((long) value);
+            write((byte) '.');
+            write((byte) '0');
+        } else {
+            writeAscii(Double.toString(value));
+        }
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * Writes a boolean value.
+     * @param value boolean
+     * @return this writer
+     */
+    public JsonWriter value(boolean value) {
+        separate();
+        write(value ? TRUE : FALSE);
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * Writes a value. Maps, including JSONObject, are written as objects, collections and object arrays as arrays,
+     * {@link JSONAware} values as their own JSON, numbers and booleans as they are and everything else as a string.
+     * @param value value, can be null
+     * @return this writer
+     */
+    public JsonWriter value(Object value) {
+        if (value == null) {
+            return value((String) null);
+        } else if (value instanceof String) {
+            return value((String) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return value(((Number) value).longValue());
+        } else if (value instanceof Double) {
+            return value(((Double) value).doubleValue());
+        } else if (value instanceof Float && (((Float) value).isNaN() || ((Float) value).isInfinite())) {
+            return value((String) null);
+        } else if (value instanceof Boolean) {
+            return value(((Boolean) value).booleanValue());
+        } else if (value instanceof Map) {
+            beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                name(String.valueOf(entry.getKey())).value(entry.getValue());
+            }
+            return endObject();
+        } else if (value instanceof Collection) {
+            beginArray();
+            for (Object element : (Collection<?>) value) {
+                value(element);
+            }
+            return endArray();
+        } else if (value instanceof Object[]) {
+            beginArray();
+            for (Object element : (Object[]) value) {
+                value(element);
+            }
+            return endArray();
+        } else if (value instanceof Number) {
+            separate();
+            writeAscii(value.toString());
+            needsComma = true;
+            return this;
+        } else if (value instanceof JSONAware) {
+            separate();
+            writeUtf8(((JSONAware) value).toJSONString());
+            needsComma = true;
+            return this;
+        }
+        return value(value.toString());
+    }
+
+    /**
+     * Returns the number of bytes written
+     * @return size in bytes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a copy of the bytes written.
+     * @return JSON bytes
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    /**
+     * Copies the bytes written into the target array.
+     * @param target array to copy into
+     * @param offset position in the target array
+     * @return number of bytes copied
+     */
+    public int copyTo(byte[] target, int offset) {
+        System.arraycopy(buffer, 0, target, offset, size);
+        return size;
+    }
+
+    private void separate() {
+        if (needsComma) {
+            write((byte) ',');
+        }
+    }
+
+    private void writeString(String value) {
+        ensureCapacity(value.length() + 2);
+        buffer[size++] = '"';
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (c < 0x20 || c == '"' || c == '\\') {
+                    writeEscaped(c);
+                } else {
+                    write((byte) c);
+                }
+            } else {
+                i = writeMultiByte(value, i);
+            }
+        }
+        write((byte) '"');
+    }
+
+    private void writeEscaped(char c) {
+        ensureCapacity(6);
+        buffer[size++] = '\\';
+        switch (c) {
+            case '"':
+                buffer[size++] = '"';
+                break;
+            case '\\':
+                buffer[size++] = '\\';
+                break;
+            case '\n':
+                buffer[size++] = 'n';
+                break;
+            case '\r':
+                buffer[size++] = 'r';
+                break;
+            case '\t':
+                buffer[size++] = 't';
+                break;
+            case '\b':
+                buffer[size++] = 'b';
+                break;
+            case '\f':
+                buffer[size++] = 'f';
+                break;
+            default:
+                buffer[size++] = 'u';
+                buffer[size++] = '0';
+                buffer[size++] = '0';
+                buffer[size++] = HEX[c >> 4];
+                buffer[size++] = HEX[c & 0xF];
+        }
+    }
+
+    private void writeUtf8(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                write((byte) c);
+            } else {
+                i = writeMultiByte(value, i);
+            }
+        }
+    }
+
+    private int writeMultiByte(String value, int index) {
+        ensureCapacity(4);
+        char c = value.charAt(index);
+        if (c < 0x800) {
+            buffer[size++] = (byte) (0xC0 | (c >> 6));
+            buffer[size++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && index + 1 < value.length() && Character.isLowSurrogate(value.charAt(index + 1))) {
+            int codePoint = Character.toCodePoint(c, value.charAt(++index));
+            buffer[size++] = (byte) (0xF0 | (codePoint >> 18));
+            buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            buffer[size++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (Character.isSurrogate(c)) {
+            buffer[size++] = '?';
+        } else {
+            buffer[size++] = (byte) (0xE0 | (c >> 12));
+            buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[size++] = (byte) (0x80 | (c & 0x3F));
+        }
+        return index;
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            write(MIN_LONG);
+            return;
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[size++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long bound = 10; digits < 19 && value >= bound; bound *= 10) {
+            digits++;
+        }
+        for (int i = size + digits - 1; i >= size; i--) {
+            buffer[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        size += digits;
+    }
+
+    private void writeAscii(String value) {
+        ensureCapacity(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer[size++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void write(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    private void write(byte b) {
+        ensureCapacity(1);
+        buffer[size++] = b;
+    }
+
+    private void ensureCapacity(int length) {
+        if (size + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+        }
+    }
+}
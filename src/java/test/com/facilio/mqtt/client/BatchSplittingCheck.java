@@ -0,0 +1,204 @@
+package com.facilio.mqtt.client;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Checks that the batches packed by {@link AggregatingPublisher} are cut at max records, at max bytes and after the
+ * linger time, are published with the highest qos of their records, and are split back into the same records in
+ * the same order by {@link BatchSplittingCallback}, for JSON arrays with strings holding commas, brackets and
+ * escaped quotes and for framed binary records. Payloads which are not batches are passed on as they are.
+ * The client is a proxy recording the published payloads. Throws an AssertionError on the first failure.
+ * Like the other programs in src/java/test this is run by hand, the build does not run it.
+ * Usage: BatchSplittingCheck
+ */
+public class BatchSplittingCheck {
+
+    private static final String TOPIC = "batch/check";
+
+    public static void main(String[] args) throws InterruptedException {
+        checkMaxRecords();
+        checkMaxBytes();
+        checkFramed();
+        checkLinger();
+        checkNotBatches();
+        System.out.println("Batch splitting ok");
+    }
+
+    private static void checkMaxRecords() {
+        List<Published> published = new ArrayList<>();
+        List<byte[]> records = new ArrayList<>();
+        try (AggregatingPublisher publisher = new AggregatingPublisher(client(published), BatchFormat.JSON_ARRAY, 5, 64 * 1024, 60000)) {
+            for (int i = 0; i < 12; i++) {
+                byte[] record = json("{\"id\":" + i + ",\"note\":\"a, [b] \\\"c\\\" {d}\"}");
+                records.add(record);
+                publisher.publish(TOPIC, record, i == 7 ? 1 : 0);
+            }
+            check(published.size() == 2, "published " + published.size() + " batches of 5 records, expected 2");
+        }
+        check(published.size() == 3, "published " + published.size() + " batches after close, expected 3");
+        check(published.get(0).qos == 0 && published.get(1).qos == 1 && published.get(2).qos == 0,
+                "batch qos " + published.get(0).qos + ", " + published.get(1).qos + ", " + published.get(2).qos + ", expected 0, 1, 0");
+        checkSplit(published, BatchFormat.JSON_ARRAY, records);
+    }
+
+    private static void checkMaxBytes() {
+        int maxBytes = 350;
+        List<Published> published = new ArrayList<>();
+        List<byte[]> records = new ArrayList<>();
+        try (AggregatingPublisher publisher = new AggregatingPublisher(client(published), BatchFormat.JSON_ARRAY, 100, maxBytes, 60000)) {
+            for (int i = 0; i < 10; i++) {
+                byte[] record = json("\"" + repeat((char) ('a' + i), 98) + "\"");
+                records.add(record);
+                publisher.publish(TOPIC, record, 1);
+            }
+            byte[] large = json("\"" + repeat('z', 2 * maxBytes) + "\"");
+            records.add(large);
+            publisher.publish(TOPIC, large, 1);
+        }
+        for (int i = 0; i < published.size() - 1; i++) {
+            check(published.get(i).payload.length <= maxBytes, "batch " + i + " of " + published.get(i).payload.length + " bytes is over " + maxBytes);
+        }
+        check(published.size() == 5, "published " + published.size() + " batches, expected 4 of 3, 3, 3 and 1 records and one for the large record");
+        checkSplit(published, BatchFormat.JSON_ARRAY, records);
+    }
+
+    private static void checkFramed() {
+        List<Published> published = new ArrayList<>();
+        List<byte[]> records = new ArrayList<>();
+        try (AggregatingPublisher publisher = new AggregatingPublisher(client(published), BatchFormat.FRAMED, 4, 64 * 1024, 60000)) {
+            for (int i = 0; i < 10; i++) {
+                byte[] record = new byte[i * 3];
+                for (int j = 0; j < record.length; j++) {
+                    record[j] = (byte) (j % 2 == 0 ? 0xFB : ',');
+                }
+                records.add(record);
+                publisher.publish(TOPIC, record, 1);
+            }
+        }
+        check(published.size() == 3, "published " + published.size() + " framed batches, expected 3");
+        checkSplit(published, BatchFormat.FRAMED, records);
+    }
+
+    private static void checkLinger() throws InterruptedException {
+        List<Published> published = Collections.synchronizedList(new ArrayList<>());
+        try (AggregatingPublisher publisher = new AggregatingPublisher(client(published), BatchFormat.JSON_ARRAY, 100, 64 * 1024, 50)) {
+            publisher.publish(TOPIC, json("1"), 1);
+            publisher.publish(TOPIC, json("2"), 1);
+            long deadline = System.currentTimeMillis() + 2000;
+            while (published.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            check(published.size() == 1, "published " + published.size() + " batches after the linger time, expected 1");
+            check(Arrays.equals(published.get(0).payload, json("[1,2]")), "lingered batch " + new String(published.get(0).payload, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void checkNotBatches() {
+        checkPassedOn(BatchFormat.JSON_ARRAY, json("{\"id\":1}"));
+        checkPassedOn(BatchFormat.JSON_ARRAY, json("[1,2"));
+        checkPassedOn(BatchFormat.JSON_ARRAY, json("[1,2] trailing"));
+        checkPassedOn(BatchFormat.FRAMED, new byte[]{(byte) 0xFB, 0, 0, 0, 2, 0, 0, 0, 1, 7});
+        checkPassedOn(BatchFormat.FRAMED, json("plain text"));
+    }
+
+    private static void checkPassedOn(BatchFormat format, byte[] payload) {
+        List<ReceivedMessage> received = new ArrayList<>();
+        new BatchSplittingCallback(new RecordingCallback(received), format).onMessage(new ReceivedMessage(TOPIC, payload, 1, false, false, 0));
+        check(received.size() == 1 && Arrays.equals(bytes(received.get(0)), payload),
+                "payload " + Arrays.toString(payload) + " which is not a " + format + " batch was not passed on as it is");
+    }
+
+    private static void checkSplit(List<Published> published, BatchFormat format, List<byte[]> expected) {
+        List<ReceivedMessage> received = new ArrayList<>();
+        BatchSplittingCallback callback = new BatchSplittingCallback(new RecordingCallback(received), format);
+        for (Published batch : published) {
+            check(batch.topic.equals(TOPIC), "batch published to " + batch.topic);
+            callback.onMessage(new ReceivedMessage(batch.topic, batch.payload, batch.qos, false, false, 0));
+        }
+        check(received.size() == expected.size(), "split " + received.size() + " records, expected " + expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            check(Arrays.equals(bytes(received.get(i)), expected.get(i)),
+                    "record " + i + " split as " + new String(bytes(received.get(i)), StandardCharsets.UTF_8) + ", expected "
+                            + new String(expected.get(i), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Returns a client recording the payloads published with publishAsync and completing them right away.
+     */
+    private static FacilioMqttClient client(List<Published> published) {
+        return (FacilioMqttClient) Proxy.newProxyInstance(BatchSplittingCheck.class.getClassLoader(), new Class<?>[]{FacilioMqttClient.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("publishAsync") && args.length == 3 && args[1] instanceof byte[]) {
+                        published.add(new Published((String) args[0], (byte[]) args[1], (Integer) args[2]));
+                        return CompletableFuture.completedFuture(new DeliveryReceipt((String) args[0], published.size(), 0));
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private static byte[] bytes(ReceivedMessage message) {
+        return Arrays.copyOfRange(message.getPayloadArray(), message.getPayloadOffset(), message.getPayloadOffset() + message.getPayloadLength());
+    }
+
+    private static byte[] json(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private static class Published {
+        private final String topic;
+        private final byte[] payload;
+        private final int qos;
+
+        Published(String topic, byte[] payload, int qos) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+        }
+    }
+
+    private static class RecordingCallback implements FacilioMqttCallback {
+        private final List<ReceivedMessage> received;
+
+        RecordingCallback(List<ReceivedMessage> received) {
+            this.received = received;
+        }
+
+        public void onSuccess() {
+        }
+
+        public void onFailure() {
+        }
+
+        public void onTimeout(Throwable cause) {
+        }
+
+        public void onMessage(String topic, MqttMessage message) {
+            onMessage(new ReceivedMessage(topic, message));
+        }
+
+        public void onMessage(ReceivedMessage message) {
+            received.add(message);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.facilio.mqtt.client;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks the demand of the Reactive Streams adapters. {@link SubscriptionPublisher} passes messages only as they are
+ * requested, acknowledges a message with manual acknowledgements once it was passed on, parks the dispatching thread
+ * while its buffer is full, rejects a second subscriber, fails a non-positive request and unsubscribes the filter when
+ * the subscriber cancels. {@link PublishingSubscriber} requests max inflight messages and one more per acknowledged
+ * publish, completes once every publish is acknowledged and cancels the stream at the first failed publish.
+ * The client is a proxy recording the calls. Throws an AssertionError on the first failure.
+ * Like the other programs in src/java/test this is run by hand, the build does not run it.
+ * Usage: ReactiveStreamsCheck
+ */
+public class ReactiveStreamsCheck {
+
+    private static final String TOPIC = "reactive/check";
+    private static final long TIMEOUT = 2000;
+
+    public static void main(String[] args) throws InterruptedException {
+        checkPublisherDemand();
+        checkPublisherBackpressure();
+        checkPublisherRejects();
+        checkSubscriberDemand();
+        checkSubscriberFailure();
+        System.out.println("Reactive Streams demand ok");
+    }
+
+    private static void checkPublisherDemand() throws InterruptedException {
+        RecordingClient client = new RecordingClient(true);
+        SubscriptionPublisher publisher = new SubscriptionPublisher(client.proxy, TOPIC, 1, 16);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        check(client.handler.get() != null, "filter not subscribed when the subscriber subscribed");
+        AtomicInteger acks = new AtomicInteger();
+        for (int i = 0; i < 5; i++) {
+            client.handler.get().onMessage(message(i, acks));
+        }
+        check(subscriber.received.isEmpty(), "passed " + subscriber.received.size() + " messages before any request");
+        check(acks.get() == 0, "acknowledged " + acks.get() + " messages before any was passed on");
+        subscriber.subscription.request(2);
+        check(subscriber.received.equals(payloads(0, 2)), "passed " + subscriber.received + " for a request of 2");
+        check(acks.get() == 2, "acknowledged " + acks.get() + " messages after 2 were passed on");
+        subscriber.subscription.request(10);
+        check(subscriber.received.equals(payloads(0, 5)), "passed " + subscriber.received + " for a request of 12");
+        client.handler.get().onMessage(message(5, acks));
+        client.handler.get().onMessage(message(6, acks));
+        check(subscriber.received.equals(payloads(0, 7)), "passed " + subscriber.received + " with outstanding demand");
+        check(acks.get() == 7, "acknowledged " + acks.get() + " messages after 7 were passed on");
+        subscriber.subscription.cancel();
+        await(() -> client.unsubscribed.contains(TOPIC), "filter not unsubscribed after cancel");
+        client.handler.get().onMessage(message(7, acks));
+        check(subscriber.received.size() == 7, "passed a message after cancel");
+        check(acks.get() == 8, "message dispatched after cancel was not acknowledged");
+        check(subscriber.error.get() == null, "subscriber failed with " + subscriber.error.get());
+    }
+
+    private static void checkPublisherBackpressure() throws InterruptedException {
+        RecordingClient client = new RecordingClient(false);
+        SubscriptionPublisher publisher = new SubscriptionPublisher(client.proxy, TOPIC, 1, 3);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        AtomicInteger dispatched = new AtomicInteger();
+        Thread dispatcher = new Thread(() -> {
+            for (int i = 0; i < 6; i++) {
+                client.handler.get().onMessage(message(i, null));
+                dispatched.incrementAndGet();
+            }
+        });
+        dispatcher.start();
+        await(() -> dispatched.get() == 3, "dispatched " + dispatched.get() + " messages into a buffer of 3");
+        Thread.sleep(100);
+        check(dispatched.get() == 3 && dispatcher.getState() == Thread.State.WAITING,
+                "dispatching thread not parked with a full buffer, dispatched " + dispatched.get());
+        subscriber.subscription.request(2);
+        await(() -> dispatched.get() == 5, "dispatched " + dispatched.get() + " messages after a request of 2, expected 5");
+        Thread.sleep(100);
+        check(dispatched.get() == 5, "dispatched " + dispatched.get() + " messages after a request of 2, expected 5");
+        subscriber.subscription.request(Long.MAX_VALUE);
+        dispatcher.join(TIMEOUT);
+        check(!dispatcher.isAlive(), "dispatching thread still parked after an unbounded request");
+        check(subscriber.received.equals(payloads(0, 6)), "passed " + subscriber.received + " in place of 6 messages in order");
+
+        Thread blocked = new Thread(() -> {
+            for (int i = 6; i < 20; i++) {
+                client.handler.get().onMessage(message(i, null));
+            }
+        });
+        RecordingSubscriber slow = new RecordingSubscriber();
+        subscriber.subscription.cancel();
+        await(() -> client.unsubscribed.size() == 1, "filter not unsubscribed after cancel");
+        Thread.sleep(50);
+        publisher.subscribe(slow);
+        check(slow.error.get() == null, "subscriber after a cancelled one failed with " + slow.error.get());
+        blocked.start();
+        await(() -> blocked.getState() == Thread.State.WAITING, "dispatching thread not parked with a full buffer");
+        slow.subscription.cancel();
+        blocked.join(TIMEOUT);
+        check(!blocked.isAlive(), "dispatching thread still parked after cancel");
+        check(slow.received.isEmpty(), "passed " + slow.received + " to a subscriber which requested nothing");
+    }
+
+    private static void checkPublisherRejects() throws InterruptedException {
+        RecordingClient client = new RecordingClient(false);
+        SubscriptionPublisher publisher = new SubscriptionPublisher(client.proxy, TOPIC, 1, 4);
+        RecordingSubscriber first = new RecordingSubscriber();
+        RecordingSubscriber second = new RecordingSubscriber();
+        publisher.subscribe(first);
+        publisher.subscribe(second);
+        check(second.error.get() instanceof IllegalStateException, "second subscriber failed with " + second.error.get());
+        check(first.error.get() == null, "first subscriber failed with " + first.error.get());
+        first.subscription.request(0);
+        check(first.error.get() instanceof IllegalArgumentException, "request of 0 failed with " + first.error.get());
+        await(() -> client.unsubscribed.contains(TOPIC), "filter not unsubscribed after a non-positive request");
+    }
+
+    private static void checkSubscriberDemand() {
+        RecordingClient client = new RecordingClient(false);
+        PublishingSubscriber sink = new PublishingSubscriber(client.proxy, 3);
+        RecordingSubscription subscription = new RecordingSubscription();
+        sink.onSubscribe(subscription);
+        check(subscription.requested.get() == 3, "requested " + subscription.requested.get() + " on subscribe, expected max inflight 3");
+        for (int i = 0; i < 3; i++) {
+            sink.onNext(new OutboundMessage(TOPIC, payload(i), 1));
+        }
+        check(client.published.size() == 3, "published " + client.published.size() + " messages, expected 3");
+        client.published.get(1).complete(new DeliveryReceipt(TOPIC, 2, 0));
+        check(subscription.requested.get() == 4, "requested " + subscription.requested.get() + " after one acknowledgement, expected 4");
+        sink.onNext(new OutboundMessage(TOPIC, payload(3), 1));
+        sink.onComplete();
+        check(!sink.getCompletion().isDone(), "completed with 3 publishes in flight");
+        for (CompletableFuture<DeliveryReceipt> future : client.published) {
+            future.complete(new DeliveryReceipt(TOPIC, 1, 0));
+        }
+        check(sink.getCompletion().isDone() && !sink.getCompletion().isCompletedExceptionally(), "not completed once every publish was acknowledged");
+        check(sink.getPublishedCount() == 4, "published count " + sink.getPublishedCount() + ", expected 4");
+        check(!subscription.cancelled.get(), "cancelled a stream which did not fail");
+    }
+
+    private static void checkSubscriberFailure() {
+        RecordingClient client = new RecordingClient(false);
+        PublishingSubscriber sink = new PublishingSubscriber(client.proxy, 2);
+        RecordingSubscription subscription = new RecordingSubscription();
+        sink.onSubscribe(subscription);
+        sink.onNext(new OutboundMessage(TOPIC, payload(0), 1));
+        sink.onNext(new OutboundMessage(TOPIC, payload(1), 1));
+        FacilioMqttException failure = new FacilioMqttException(FacilioMqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+        client.published.get(0).completeExceptionally(new CompletionException(failure));
+        check(subscription.cancelled.get(), "stream not cancelled at the first failed publish");
+        check(subscription.requested.get() == 2, "requested " + subscription.requested.get() + " after a failed publish, expected 2");
+        check(sink.getCompletion().isCompletedExceptionally(), "completion not failed at the first failed publish");
+        Throwable cause = null;
+        try {
+            sink.getCompletion().join();
+        } catch (CompletionException e) {
+            cause = e.getCause();
+        }
+        check(cause == failure, "completion failed with " + cause + ", expected the publish failure");
+        sink.onNext(new OutboundMessage(TOPIC, payload(2), 1));
+        check(client.published.size() == 2, "published a message after the stream was cancelled");
+    }
+
+    private static ReceivedMessage message(int index, AtomicInteger acks) {
+        return new ReceivedMessage(TOPIC, payload(index), 1, false, false, index + 1) {
+            public Acknowledgement getAcknowledgement() {
+                return () -> {
+                    if (acks != null) {
+                        acks.incrementAndGet();
+                    }
+                    return CompletableFuture.completedFuture(null);
+                };
+            }
+        };
+    }
+
+    private static byte[] payload(int index) {
+        return ("m" + index).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> payloads(int from, int to) {
+        List<String> payloads = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            payloads.add("m" + i);
+        }
+        return payloads;
+    }
+
+    private static void await(Condition condition, String message) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.holds()) {
+            check(System.currentTimeMillis() < deadline, message);
+            Thread.sleep(5);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    /**
+     * Proxy client recording the handler of the subscribed filter, the unsubscribed filters and the futures of the
+     * publishes, which are left for the check to complete.
+     */
+    private static class RecordingClient {
+        private final AtomicReference<MessageHandler> handler = new AtomicReference<>();
+        private final List<String> unsubscribed = Collections.synchronizedList(new ArrayList<>());
+        private final List<CompletableFuture<DeliveryReceipt>> published = new ArrayList<>();
+        private final FacilioMqttClient proxy;
+
+        RecordingClient(boolean manualAcks) {
+            FacilioMqttConnectOptions options = new FacilioMqttConnectOptions();
+            options.setManualAcks(manualAcks);
+            proxy = (FacilioMqttClient) Proxy.newProxyInstance(ReactiveStreamsCheck.class.getClassLoader(), new Class<?>[]{FacilioMqttClient.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "getConnectOptions":
+                                return options;
+                            case "subscribe":
+                                if (args.length == 3 && args[2] instanceof MessageHandler) {
+                                    handler.set((MessageHandler) args[2]);
+                                    return null;
+                                }
+                                break;
+                            case "unsubscribe":
+                                if (args.length == 1 && args[0] instanceof String) {
+                                    unsubscribed.add((String) args[0]);
+                                    return null;
+                                }
+                                break;
+                            case "publishAsync":
+                                if (args.length == 4 && args[1] instanceof byte[]) {
+                                    CompletableFuture<DeliveryReceipt> future = new CompletableFuture<>();
+                                    published.add(future);
+                                    return future;
+                                }
+                                break;
+                            default:
+                                break;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    });
+        }
+    }
+
+    private static class RecordingSubscriber implements Subscriber<ReceivedMessage> {
+        private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+        private volatile Subscription subscription;
+
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        public void onNext(ReceivedMessage message) {
+            received.add(StandardCharsets.UTF_8.decode(message.getPayload()).toString());
+        }
+
+        public void onError(Throwable throwable) {
+            error.set(throwable);
+        }
+
+        public void onComplete() {
+            throw new AssertionError("stream of " + TOPIC + " completed");
+        }
+    }
+
+    private static class RecordingSubscription implements Subscription {
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+
+        public void request(long n) {
+            requested.addAndGet(n);
+        }
+
+        public void cancel() {
+            cancelled.set(true);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.ContentFilter;
+import com.facilio.mqtt.client.DeliveryReceipt;
+import com.facilio.mqtt.client.FacilioMqttCallback;
+import com.facilio.mqtt.client.MessageHandler;
+import com.facilio.mqtt.client.ReceivedMessage;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks the {@link ContentFilter}s on raw JSON bytes: string, number and boolean equality, ranges and presence
+ * along dotted paths, combined filters, payloads inside a larger array and malformed payloads, and that matching
+ * does not allocate. Checks that {@link TopicRouter#rejects(String, byte[], int, int)} discards a message only when
+ * every handler of the matching filters rejects it, that {@link MessageDispatcher} counts the discarded messages as
+ * filtered, and that {@link MqttCallbackListener} acknowledges a discarded message without dispatching it.
+ * Throws an AssertionError on the first failure. Like the other programs in src/java/test this is run by hand,
+ * the build does not run it.
+ * Usage: ContentFilterCheck
+ */
+public class ContentFilterCheck {
+
+    private static final String READING = "{ \"type\" : \"alarm\", \"site\":{\"id\":7,\"name\":\"a \\\"b\\\" {c}\",\"tags\":[\"x\",{\"id\":8}]},"
+            + " \"temperature\":42.5, \"count\":42, \"exp\":4.2e1, \"max\":9223372036854775807, \"huge\":123456789012345678901234,"
+            + " \"small\":1.5e-3, \"active\":true, \"text\":\"42\", \"none\":null, \"neg\":-30}";
+
+    public static void main(String[] args) throws Exception {
+        checkEquality();
+        checkRanges();
+        checkPaths();
+        checkCombined();
+        checkMalformed();
+        checkAllocation();
+        checkRouter();
+        checkDispatcher();
+        checkListener();
+        System.out.println("Content filters ok");
+    }
+
+    private static void checkEquality() {
+        check(matches(ContentFilter.equalTo("type", "alarm"), READING), "type equal to alarm not matched");
+        check(!matches(ContentFilter.equalTo("type", "alar"), READING), "prefix of a string matched");
+        check(!matches(ContentFilter.equalTo("type", "alarms"), READING), "longer string matched");
+        check(matches(ContentFilter.equalTo("site.name", "a \"b\" {c}"), READING), "string with escaped quotes not matched");
+        check(matches(ContentFilter.equalTo("count", 42), READING), "count equal to 42 not matched");
+        check(!matches(ContentFilter.equalTo("count", 4), READING), "count matched 4");
+        check(matches(ContentFilter.equalTo("exp", 42), READING), "4.2e1 not equal to 42");
+        check(matches(ContentFilter.equalTo("max", Long.MAX_VALUE), READING), "Long.MAX_VALUE not matched");
+        check(matches(ContentFilter.equalTo("neg", -30), READING), "negative number not matched");
+        check(!matches(ContentFilter.equalTo("text", 42), READING), "string \"42\" matched the number 42");
+        check(!matches(ContentFilter.equalTo("count", "42"), READING), "number 42 matched the string \"42\"");
+        check(matches(ContentFilter.equalTo("active", true), READING) && !matches(ContentFilter.equalTo("active", false), READING),
+                "boolean not compared");
+        check(!matches(ContentFilter.equalTo("none", false), READING), "null matched false");
+    }
+
+    private static void checkRanges() {
+        check(matches(ContentFilter.between("temperature", 30, 120), READING), "42.5 not within 30 and 120");
+        check(matches(ContentFilter.between("temperature", 42.5, 42.5), READING), "range bounds not included");
+        check(!matches(ContentFilter.between("temperature", 42.6, 120), READING), "42.5 within 42.6 and 120");
+        check(matches(ContentFilter.between("small", 0.0014, 0.0016), READING), "1.5e-3 not within 0.0014 and 0.0016");
+        check(matches(ContentFilter.between("huge", 1.2e23, 1.3e23), READING), "number with 24 digits not parsed");
+        check(matches(ContentFilter.between("neg", -30, -30), READING), "negative number not within its own range");
+        check(!matches(ContentFilter.between("text", 0, 100), READING), "string within a range");
+        check(!matches(ContentFilter.between("none", Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY), READING), "null within a range");
+        try {
+            ContentFilter.between("temperature", 2, 1);
+            check(false, "range with min over max accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void checkPaths() {
+        check(matches(ContentFilter.equalTo("site.id", 7), READING), "nested field site.id not matched");
+        check(!matches(ContentFilter.exists("id"), READING), "nested field found at the top level");
+        check(!matches(ContentFilter.exists("site.tags.id"), READING), "field inside an array found as an object field");
+        check(!matches(ContentFilter.exists("type.id"), READING), "field of a string value found");
+        check(matches(ContentFilter.exists("none"), READING), "field with a null value not found");
+        check(!matches(ContentFilter.exists("missing"), READING), "missing field found");
+        for (String path : new String[]{"", "site.", ".id", "site..id"}) {
+            try {
+                ContentFilter.exists(path);
+                check(false, "path '" + path + "' with an empty field name accepted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    private static void checkCombined() {
+        ContentFilter alarm = ContentFilter.equalTo("type", "alarm");
+        ContentFilter cold = ContentFilter.between("temperature", -50, 10);
+        check(!matches(alarm.and(cold), READING), "and matched with one filter failing");
+        check(matches(alarm.or(cold), READING) && matches(cold.or(alarm), READING), "or not matched with one filter matching");
+        check(matches(cold.negate(), READING) && !matches(alarm.negate(), READING), "negate not inverted");
+        check(matches(alarm.and(cold.negate()).and(ContentFilter.exists("site.tags")), READING), "chained filters not matched");
+    }
+
+    private static void checkMalformed() {
+        ContentFilter id = ContentFilter.equalTo("id", 1);
+        check(matches(id, "{\"id\":1,\"rest\":[1,2"), "field before a truncated value not matched");
+        check(!matches(ContentFilter.exists("later"), "{\"id\":1,\"rest\":[1,2"), "field after a truncated value matched");
+        for (String payload : new String[]{"", "  ", "[{\"id\":1}]", "\"id\"", "1", "{\"id\" 1}", "{\"id\":}", "{\"id\":1e}", "{\"id\":-}", "not json"}) {
+            check(!matches(id, payload), "payload " + payload + " matched");
+        }
+        byte[] record = bytes("{\"id\":1}");
+        byte[] batch = bytes("{\"id\":2,\"records\":[{\"id\":1},{\"id\":3}]}");
+        int offset = new String(batch, StandardCharsets.UTF_8).indexOf("{\"id\":1}");
+        check(id.matches(batch, offset, record.length), "record inside a larger array not matched");
+        check(!id.matches(batch, 0, batch.length), "whole batch matched the record");
+        check(!ContentFilter.equalTo("id", 10).matches(bytes("{\"id\":10}"), 0, 7) && id.matches(bytes("{\"id\":10}"), 0, 7),
+                "value past the given length read");
+        ReceivedMessage message = new ReceivedMessage("t", batch, offset, record.length, 0, false, false, 0);
+        check(id.matches(message), "record of a received message not matched");
+    }
+
+    /**
+     * Matches a set of filters a number of times once they are compiled, and checks the thread allocated nothing, where
+     * the runtime reports the allocated bytes of a thread. A shorter warm up leaves a few kilobytes of the compilation.
+     */
+    private static void checkAllocation() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            System.out.println("Allocated bytes of a thread are not reported, allocation not checked");
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        ContentFilter[] filters = {
+                ContentFilter.equalTo("type", "alarm"), ContentFilter.equalTo("site.id", 7), ContentFilter.between("temperature", 30, 120),
+                ContentFilter.between("small", 0, 1), ContentFilter.equalTo("active", true), ContentFilter.exists("none")
+        };
+        byte[] payload = bytes(READING);
+        int matched = 0;
+        for (int i = 0; i < 200000; i++) {
+            matched += filters[i % filters.length].matches(payload, 0, payload.length) ? 1 : 0;
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 600000; i++) {
+            matched += filters[i % filters.length].matches(payload, 0, payload.length) ? 1 : 0;
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        check(matched == 800000, "matched " + matched + " of 800000");
+        check(allocated < 1024, "matching 600000 payloads allocated " + allocated + " bytes");
+    }
+
+    private static void checkRouter() {
+        TopicRouter router = new TopicRouter();
+        List<String> handled = new ArrayList<>();
+        MessageHandler alarms = new FilteredMessageHandler(ContentFilter.equalTo("type", "alarm"), message -> handled.add("alarms"));
+        MessageHandler hot = new FilteredMessageHandler(ContentFilter.between("temperature", 30, 120), message -> handled.add("hot"));
+        MessageHandler all = message -> handled.add("all");
+        router.add("site/+/readings", alarms);
+        check(rejects(router, "site/1/readings", "{\"type\":\"reading\"}"), "payload rejected by the only handler not rejected");
+        check(!rejects(router, "site/1/readings", "{\"type\":\"alarm\"}"), "payload matched by the only handler rejected");
+        check(!rejects(router, "site/1/status", "{\"type\":\"reading\"}"), "topic without a matching filter rejected, it goes to the callback");
+        router.add("site/#", hot);
+        check(rejects(router, "site/1/readings", "{\"type\":\"reading\",\"temperature\":20}"), "payload rejected by both handlers not rejected");
+        check(!rejects(router, "site/1/readings", "{\"type\":\"reading\",\"temperature\":40}"), "payload matched by one handler rejected");
+        router.add("site/1/#", all);
+        check(!rejects(router, "site/1/readings", "{\"type\":\"reading\"}"), "payload rejected with a handler without a content filter");
+        check(rejects(router, "site/2/readings", "{\"type\":\"reading\"}"), "handler of another filter kept the payload");
+        router.route(new ReceivedMessage("site/1/readings", bytes("{\"type\":\"alarm\",\"temperature\":20}"), 1, false, false, 1));
+        check(handled.size() == 2 && handled.contains("alarms") && handled.contains("all"), "routed to " + handled + ", expected alarms and all");
+        router.remove("site/1/#", all);
+        check(rejects(router, "site/1/readings", "{\"type\":\"reading\"}"), "payload not rejected once the plain handler was removed");
+        TopicRouter system = new TopicRouter();
+        system.add("#", alarms);
+        check(!rejects(system, "$SYS/broker/load", "{}"), "$ topic rejected by a filter starting with a wildcard");
+    }
+
+    private static void checkDispatcher() {
+        TopicRouter router = new TopicRouter();
+        router.add("site/+/alarms", new FilteredMessageHandler(ContentFilter.equalTo("severity", "high"), message -> { }));
+        MessageDispatcher dispatcher = new MessageDispatcher(() -> null, () -> null, router);
+        try {
+            check(dispatcher.rejects("site/1/alarms", bytes("{\"severity\":\"low\"}")), "low severity not rejected");
+            check(!dispatcher.rejects("site/1/alarms", bytes("{\"severity\":\"high\"}")), "high severity rejected");
+            check(dispatcher.rejects("site/2/alarms", bytes("not json")), "payload which is not JSON not rejected");
+            check(!dispatcher.rejects("site/2/status", bytes("not json")), "topic without a matching filter rejected");
+            long filtered = dispatcher.getMetrics().getFilteredCount();
+            check(filtered == 2, "filtered count " + filtered + ", expected 2");
+        } finally {
+            dispatcher.close();
+        }
+    }
+
+    private static void checkListener() throws Exception {
+        for (boolean manualAcks : new boolean[]{true, false}) {
+            TopicRouter router = new TopicRouter();
+            List<String> handled = new ArrayList<>();
+            router.add("site/+/alarms", new FilteredMessageHandler(ContentFilter.equalTo("severity", "high"),
+                    message -> handled.add(new String(message.getMqttMessage().getPayload(), StandardCharsets.UTF_8))));
+            RecordingCallback callback = new RecordingCallback();
+            MessageDispatcher dispatcher = new MessageDispatcher(() -> callback, () -> null, router);
+            PublishPipeline pipeline = new PublishPipeline((topic, payload, qos, pooled, future) -> future.complete(new DeliveryReceipt(topic, 1, 0)),
+                    () -> true, () -> null, () -> "filter-check");
+            List<Integer> acknowledged = new ArrayList<>();
+            MqttCallbackListener listener = new MqttCallbackListener(callback, pipeline, new ConnectionNotifier(), dispatcher,
+                    new MqttCallbackListener.Acknowledger() {
+                        public void messageArrivedComplete(int messageId, int qos) {
+                            acknowledged.add(messageId);
+                        }
+
+                        public void setManualAcks(boolean manualAcks) {
+                        }
+                    }, manualAcks);
+            try {
+                listener.messageArrived("site/1/alarms", message("{\"severity\":\"low\"}", 11));
+                check(handled.isEmpty() && callback.received == 0, "rejected message dispatched");
+                check(acknowledged.equals(manualAcks ? Collections.singletonList(11) : Collections.emptyList()),
+                        "rejected message acknowledged " + acknowledged + " with manual acks " + manualAcks);
+                listener.messageArrived("site/1/alarms", message("{\"severity\":\"high\"}", 12));
+                check(handled.size() == 1 && handled.get(0).equals("{\"severity\":\"high\"}"), "matched message not handled, handled " + handled);
+                listener.messageArrived("site/1/status", message("{}", 13));
+                check(callback.received == 1, "message without a matching filter not passed to the callback");
+                check(dispatcher.getMetrics().getFilteredCount() == 1, "filtered count " + dispatcher.getMetrics().getFilteredCount() + ", expected 1");
+            } finally {
+                dispatcher.close();
+                pipeline.close();
+            }
+        }
+    }
+
+    private static MqttMessage message(String payload, int id) {
+        MqttMessage message = new MqttMessage(bytes(payload));
+        message.setQos(1);
+        message.setId(id);
+        return message;
+    }
+
+    private static boolean rejects(TopicRouter router, String topic, String payload) {
+        byte[] bytes = bytes(payload);
+        return router.rejects(topic, bytes, 0, bytes.length);
+    }
+
+    private static boolean matches(ContentFilter filter, String payload) {
+        byte[] bytes = bytes(payload);
+        return filter.matches(bytes, 0, bytes.length);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private static class RecordingCallback implements FacilioMqttCallback {
+        private int received;
+
+        public void onSuccess() {
+        }
+
+        public void onFailure() {
+        }
+
+        public void onTimeout(Throwable cause) {
+        }
+
+        public void onMessage(String topic, MqttMessage message) {
+            received++;
+        }
+    }
+}
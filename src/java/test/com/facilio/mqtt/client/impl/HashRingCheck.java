@@ -0,0 +1,63 @@
+package com.facilio.mqtt.client.impl;
+
+import java.util.Arrays;
+
+/**
+ * Checks that the {@link HashRing} spreads topics over its members and that a member leaving the ring only moves
+ * the topics it owned. Throws an AssertionError on the first failure.
+ * The build does not run it, run its main method by hand after changing the ring.
+ * Usage: HashRingCheck [members] [topics]
+ */
+public class HashRingCheck {
+
+    public static void main(String[] args) {
+        int members = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int topics = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        boolean[] included = new boolean[members];
+        Arrays.fill(included, true);
+        HashRing ring = new HashRing(included);
+        int[] owners = new int[topics];
+        int[] counts = new int[members];
+        for (int i = 0; i < topics; i++) {
+            owners[i] = ring.owner(topic(i));
+            counts[owners[i]]++;
+        }
+        for (int member = 0; member < members; member++) {
+            double share = (double) counts[member] / topics;
+            if (share < 0.5 / members || share > 1.5 / members) {
+                throw new AssertionError("Member " + member + " owns " + share + " of the topics");
+            }
+        }
+        System.out.println("Topics per member " + Arrays.toString(counts));
+
+        int leaving = members / 2;
+        included[leaving] = false;
+        HashRing shrunk = new HashRing(included);
+        int moved = 0;
+        for (int i = 0; i < topics; i++) {
+            int owner = shrunk.owner(topic(i));
+            if (owner == leaving) {
+                throw new AssertionError(topic(i) + " still belongs to the member which left");
+            }
+            if (owners[i] != leaving && owner != owners[i]) {
+                throw new AssertionError(topic(i) + " moved from " + owners[i] + " to " + owner + " although its member stayed");
+            }
+            if (owner != owners[i]) {
+                moved++;
+            }
+        }
+        if (moved != counts[leaving]) {
+            throw new AssertionError(moved + " topics moved, expected " + counts[leaving]);
+        }
+
+        if (new HashRing(new boolean[members]).owner(topic(0)) != -1) {
+            throw new AssertionError("An empty ring has an owner");
+        }
+        System.out.println("HashRing stability ok, " + moved + " topics moved with member " + leaving);
+    }
+
+    private static String topic(int i) {
+        return "site/" + (i % 97) + "/device/" + i;
+    }
+}
@@ -0,0 +1,179 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.DispatchMetrics;
+import com.facilio.mqtt.client.DispatchMode;
+import com.facilio.mqtt.client.FacilioMqttCallback;
+import com.facilio.mqtt.client.FacilioMqttConnectOptions;
+import com.facilio.mqtt.client.InboundQueuePolicy;
+import com.facilio.mqtt.client.ReceivedMessage;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checks the eviction of the {@link InboundQueuePolicy}s of a {@link MessageDispatcher} whose single dispatch thread
+ * is held by a gate message: with {@link InboundQueuePolicy#DROP_OLDEST} the messages queued longest are evicted
+ * whatever stripe they are queued on, and with {@link InboundQueuePolicy#CONFLATE} a queued message is replaced by
+ * the newer message of its topic, while a message of a topic with nothing queued parks the receiving thread until
+ * there is room. The dispatch metrics must count the dropped and conflated messages.
+ * Throws an AssertionError on the first failure. Like the other programs in src/java/test this is run by hand,
+ * the build does not run it.
+ * Usage: InboundQueueCheck
+ */
+public class InboundQueueCheck {
+
+    private static final int QUEUE_SIZE = 4;
+    private static final String GATE = "gate";
+
+    public static void main(String[] args) throws InterruptedException {
+        checkDropOldest();
+        checkConflate();
+        System.out.println("Inbound queue eviction ok");
+    }
+
+    private static void checkDropOldest() throws InterruptedException {
+        Gate gate = new Gate();
+        MessageDispatcher dispatcher = dispatcher(InboundQueuePolicy.DROP_OLDEST, gate);
+        try {
+            gate.hold(dispatcher);
+            for (int i = 1; i <= QUEUE_SIZE + 2; i++) {
+                dispatcher.dispatch(message("oldest/" + i, "v" + i));
+            }
+            DispatchMetrics metrics = dispatcher.getMetrics();
+            check(metrics.getDroppedCount() == 2, "dropped " + metrics.getDroppedCount() + " messages, expected 2");
+            check(metrics.getQueueDepth() == QUEUE_SIZE, "queue depth " + metrics.getQueueDepth() + ", expected " + QUEUE_SIZE);
+            check(metrics.getQueueDepths().length > 1, "expected several stripes, found " + metrics.getQueueDepths().length);
+
+            gate.open();
+            gate.await(QUEUE_SIZE + 1);
+            Set<String> delivered = new HashSet<>(gate.delivered);
+            Set<String> expected = new HashSet<>(Arrays.asList(GATE, "oldest/3=v3", "oldest/4=v4", "oldest/5=v5", "oldest/6=v6"));
+            check(delivered.equals(expected), "delivered " + delivered + ", expected " + expected);
+        } finally {
+            dispatcher.close();
+        }
+    }
+
+    private static void checkConflate() throws InterruptedException {
+        Gate gate = new Gate();
+        MessageDispatcher dispatcher = dispatcher(InboundQueuePolicy.CONFLATE, gate);
+        try {
+            gate.hold(dispatcher);
+            for (String topic : new String[]{"a", "b", "c", "d"}) {
+                dispatcher.dispatch(message("latest/" + topic, "1"));
+            }
+            dispatcher.dispatch(message("latest/a", "2"));
+            dispatcher.dispatch(message("latest/b", "2"));
+            dispatcher.dispatch(message("latest/a", "3"));
+            DispatchMetrics metrics = dispatcher.getMetrics();
+            check(metrics.getConflatedCount() == 3, "conflated " + metrics.getConflatedCount() + " messages, expected 3");
+            check(metrics.getQueueDepth() == QUEUE_SIZE, "queue depth " + metrics.getQueueDepth() + ", expected " + QUEUE_SIZE);
+
+            Thread receiver = new Thread(() -> dispatcher.dispatch(message("latest/e", "1")));
+            receiver.start();
+            receiver.join(200);
+            check(receiver.isAlive(), "message of a topic with nothing queued was not parked while the queue is full");
+
+            gate.open();
+            receiver.join(5000);
+            check(!receiver.isAlive(), "receiving thread still parked after the queue was drained");
+            gate.await(QUEUE_SIZE + 2);
+            List<String> delivered = new ArrayList<>(gate.delivered);
+            Collections.sort(delivered);
+            List<String> expected = Arrays.asList(GATE, "latest/a=3", "latest/b=2", "latest/c=1", "latest/d=1", "latest/e=1");
+            check(delivered.equals(expected), "delivered " + delivered + ", expected " + expected);
+            check(dispatcher.getMetrics().getBlockedCount() == 1, "blocked " + dispatcher.getMetrics().getBlockedCount() + " times, expected 1");
+        } finally {
+            dispatcher.close();
+        }
+    }
+
+    /**
+     * Returns a dispatcher delivering on one fork join thread, so the gate message holds back every stripe.
+     */
+    private static MessageDispatcher dispatcher(InboundQueuePolicy policy, Gate gate) {
+        FacilioMqttConnectOptions options = new FacilioMqttConnectOptions();
+        options.setDispatchMode(DispatchMode.FORK_JOIN);
+        options.setDispatchThreads(1);
+        options.setInboundQueueSize(QUEUE_SIZE);
+        options.setInboundQueuePolicy(policy);
+        return new MessageDispatcher(() -> gate, () -> options, new TopicRouter());
+    }
+
+    private static ReceivedMessage message(String topic, String value) {
+        return new ReceivedMessage(topic, value.getBytes(StandardCharsets.UTF_8), 0, false, false, 0);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * Callback recording the delivered messages, which keeps the dispatch thread on the gate message until opened.
+     * It sleeps rather than parks, so the fork join pool does not start a compensating thread.
+     */
+    private static class Gate implements FacilioMqttCallback {
+        private final List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+        private volatile boolean entered;
+        private volatile boolean open;
+
+        void hold(MessageDispatcher dispatcher) throws InterruptedException {
+            dispatcher.dispatch(new ReceivedMessage(GATE, new byte[0], 0, false, false, 0));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!entered && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            check(entered, "gate message not delivered");
+        }
+
+        void open() {
+            open = true;
+        }
+
+        void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (delivered.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(50);
+            check(delivered.size() == count, "delivered " + delivered + ", expected " + count + " messages");
+        }
+
+        public void onSuccess() {
+        }
+
+        public void onFailure() {
+        }
+
+        public void onTimeout(Throwable cause) {
+        }
+
+        public void onMessage(String topic, MqttMessage message) {
+        }
+
+        public void onMessage(ReceivedMessage message) {
+            if (message.getTopic().equals(GATE)) {
+                delivered.add(GATE);
+                entered = true;
+                while (!open) {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                return;
+            }
+            delivered.add(message.getTopic() + "=" + StandardCharsets.UTF_8.decode(message.getPayload()));
+        }
+    }
+}
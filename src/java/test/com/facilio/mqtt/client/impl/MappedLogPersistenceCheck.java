@@ -0,0 +1,241 @@
+package com.facilio.mqtt.client.impl;
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Checks that a {@link MappedLogPersistence} reopened after a restart holds exactly the records put and not removed,
+ * with the latest data of a key put twice, that a torn record at the end of the log is discarded and appended over,
+ * that compacting a log full of removed records keeps the live ones without growing the file, and that an open
+ * instance refuses a second client.
+ * The log is written to a temporary directory which is deleted afterwards. Throws an AssertionError on the first failure.
+ * Like the other programs in src/java/test this is run by hand, the build does not run it.
+ * Usage: MappedLogPersistenceCheck
+ */
+public class MappedLogPersistenceCheck {
+
+    private static final String CLIENT_ID = "persistence-check";
+    private static final String SERVER_URI = "tcp://localhost:1883";
+    private static final int RECORDS = 50;
+
+    public static void main(String[] args) throws Exception {
+        File directory = Files.createTempDirectory("facilio-persistence-check").toFile();
+        try {
+            checkReopen(directory);
+            checkTornRecord(directory);
+            checkCompaction(directory);
+            checkOwner(directory);
+        } finally {
+            delete(directory);
+        }
+        System.out.println("MappedLogPersistence recovery ok");
+    }
+
+    private static void checkReopen(File directory) throws MqttPersistenceException {
+        MappedLogPersistence persistence = open(directory);
+        try {
+            persistence.clear();
+            for (int i = 0; i < RECORDS; i++) {
+                persistence.put("s-" + i, new Data("header-" + i, "payload-" + i));
+            }
+            for (int i = 0; i < RECORDS; i += 2) {
+                persistence.remove("s-" + i);
+            }
+            persistence.put("s-1", new Data("header-1b", "payload-1b"));
+        } finally {
+            persistence.close();
+        }
+
+        persistence = open(directory);
+        try {
+            checkOddKeys(persistence);
+            checkData(persistence, "s-1", "header-1b", "payload-1b");
+            checkData(persistence, "s-3", "header-3", "payload-3");
+            check(persistence.get("s-2") == null, "removed record s-2 recovered");
+        } finally {
+            persistence.close();
+        }
+    }
+
+    private static void checkTornRecord(File directory) throws IOException, MqttPersistenceException {
+        File log = logFile(directory);
+        int end = endOfLog(log);
+        // a crash after the length of the next record was written, with bytes not matching its crc
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            file.seek(end);
+            file.writeInt(40);
+            file.writeInt(0x5eed);
+            file.write(new byte[]{0, 0, 0, 3, 's', '-', '9'});
+        }
+        MappedLogPersistence persistence = open(directory);
+        try {
+            checkOddKeys(persistence);
+            persistence.put("after", new Data("header-after", "payload-after"));
+        } finally {
+            persistence.close();
+        }
+        check(endOfLog(log) > end, "record appended after recovery did not replace the torn record at " + end);
+        persistence = open(directory);
+        try {
+            checkData(persistence, "after", "header-after", "payload-after");
+            persistence.remove("after");
+        } finally {
+            persistence.close();
+        }
+    }
+
+    private static void checkCompaction(File directory) throws IOException, MqttPersistenceException {
+        long size = logFile(directory).length();
+        byte[] large = new byte[16 * 1024];
+        MappedLogPersistence persistence = open(directory);
+        try {
+            for (int i = 0; i < 4 * size / large.length; i++) {
+                persistence.put("large", new Data(new byte[4], large));
+                persistence.remove("large");
+            }
+            checkOddKeys(persistence);
+        } finally {
+            persistence.close();
+        }
+        check(logFile(directory).length() == size, "log grew from " + size + " to " + logFile(directory).length() + " bytes instead of compacting");
+        persistence = open(directory);
+        try {
+            checkOddKeys(persistence);
+            checkData(persistence, "s-1", "header-1b", "payload-1b");
+        } finally {
+            persistence.close();
+        }
+    }
+
+    private static void checkOwner(File directory) throws MqttPersistenceException {
+        MappedLogPersistence persistence = open(directory);
+        try {
+            persistence.open(CLIENT_ID, SERVER_URI);
+            try {
+                persistence.open(CLIENT_ID + "-1", SERVER_URI);
+                throw new AssertionError("persistence opened for a second client");
+            } catch (MqttPersistenceException expected) {
+                // every client needs its own instance
+            }
+        } finally {
+            persistence.close();
+        }
+    }
+
+    private static MappedLogPersistence open(File directory) throws MqttPersistenceException {
+        MappedLogPersistence persistence = new MappedLogPersistence(directory.getPath(), 100);
+        persistence.open(CLIENT_ID, SERVER_URI);
+        return persistence;
+    }
+
+    private static void checkOddKeys(MappedLogPersistence persistence) throws MqttPersistenceException {
+        List<String> keys = new ArrayList<>();
+        Enumeration<?> enumeration = persistence.keys();
+        while (enumeration.hasMoreElements()) {
+            keys.add((String) enumeration.nextElement());
+        }
+        List<String> expected = new ArrayList<>();
+        for (int i = 1; i < RECORDS; i += 2) {
+            expected.add("s-" + i);
+        }
+        Collections.sort(keys);
+        Collections.sort(expected);
+        check(keys.equals(expected), "recovered keys " + keys + ", expected " + expected);
+    }
+
+    private static void checkData(MappedLogPersistence persistence, String key, String header, String payload) throws MqttPersistenceException {
+        MqttPersistable data = persistence.get(key);
+        check(data != null, "record " + key + " not recovered");
+        check(Arrays.equals(data.getHeaderBytes(), header.getBytes(StandardCharsets.UTF_8)), "header of " + key + " differs");
+        check(Arrays.equals(data.getPayloadBytes(), payload.getBytes(StandardCharsets.UTF_8)), "payload of " + key + " differs");
+    }
+
+    private static File logFile(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".mlog"));
+        check(files != null && files.length == 1, "expected one log file in " + directory);
+        return files[0];
+    }
+
+    /**
+     * Returns the offset following the last record, walking the lengths of the records without checking their crc.
+     */
+    private static int endOfLog(File log) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(log, "r")) {
+            int position = 0;
+            while (position + 8 <= file.length()) {
+                file.seek(position);
+                int length = file.readInt();
+                if (length < 8) {
+                    break;
+                }
+                position += 8 + length;
+            }
+            return position;
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static class Data implements MqttPersistable {
+        private final byte[] header;
+        private final byte[] payload;
+
+        Data(String header, String payload) {
+            this(header.getBytes(StandardCharsets.UTF_8), payload.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Data(byte[] header, byte[] payload) {
+            this.header = header;
+            this.payload = payload;
+        }
+
+        public byte[] getHeaderBytes() {
+            return header;
+        }
+
+        public int getHeaderLength() {
+            return header.length;
+        }
+
+        public int getHeaderOffset() {
+            return 0;
+        }
+
+        public byte[] getPayloadBytes() {
+            return payload;
+        }
+
+        public int getPayloadLength() {
+            return payload.length;
+        }
+
+        public int getPayloadOffset() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.DeliveryReceipt;
+import com.facilio.mqtt.client.FacilioMqttConnectOptions;
+import com.facilio.mqtt.client.FacilioMqttException;
+import com.facilio.mqtt.client.OfflineBufferPolicy;
+import com.facilio.mqtt.client.Priority;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks that the messages held by the offline buffer of a {@link PublishPipeline} are drained in the order they
+ * were published once the client connects, that messages failing because the connection was lost during the drain
+ * are put back and drained again in their original order, and that a full buffer fails the publish with
+ * DISCONNECTED_BUFFER_FULL under {@link OfflineBufferPolicy#DROP_NEWEST}.
+ * Throws an AssertionError on the first failure. Like the other programs in src/java/test this is run by hand,
+ * the build does not run it.
+ * Usage: OfflineBufferCheck
+ */
+public class OfflineBufferCheck {
+
+    private static final int MESSAGES = 10;
+
+    public static void main(String[] args) throws Exception {
+        checkDrainOrder();
+        checkPutBackOrder();
+        checkBufferFull();
+        System.out.println("Offline buffer drain ok");
+    }
+
+    private static void checkDrainOrder() throws Exception {
+        AtomicBoolean connected = new AtomicBoolean();
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        PublishPipeline pipeline = new PublishPipeline((topic, payload, qos, pooled, future) -> {
+            sent.add(topic);
+            future.complete(new DeliveryReceipt(topic, sent.size(), 0));
+        }, connected::get, () -> options(100, OfflineBufferPolicy.BLOCK), () -> "offline-check");
+
+        List<CompletableFuture<DeliveryReceipt>> futures = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            futures.add(pipeline.publishAsync("offline/" + i, new byte[]{(byte) i}, 1));
+        }
+        check(sent.isEmpty(), "messages sent while offline " + sent);
+        check(pipeline.getBufferedCount() == MESSAGES, "buffered " + pipeline.getBufferedCount() + ", expected " + MESSAGES);
+
+        connected.set(true);
+        pipeline.connectComplete();
+        awaitAll(futures);
+        check(sent.equals(topics(0, MESSAGES)), "drained " + sent + ", expected " + topics(0, MESSAGES));
+        check(pipeline.getBufferedCount() == 0, "buffered " + pipeline.getBufferedCount() + " after the drain");
+    }
+
+    private static void checkPutBackOrder() throws Exception {
+        AtomicBoolean connected = new AtomicBoolean();
+        AtomicBoolean acknowledge = new AtomicBoolean();
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<DeliveryReceipt>> pending = Collections.synchronizedList(new ArrayList<>());
+        PublishPipeline pipeline = new PublishPipeline((topic, payload, qos, pooled, future) -> {
+            sent.add(topic);
+            if (acknowledge.get()) {
+                future.complete(new DeliveryReceipt(topic, sent.size(), 0));
+            } else {
+                pending.add(future);
+            }
+        }, connected::get, () -> options(100, OfflineBufferPolicy.BLOCK), () -> "offline-check");
+
+        List<CompletableFuture<DeliveryReceipt>> futures = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            futures.add(pipeline.publishAsync("offline/" + i, new byte[]{(byte) i}, 1));
+        }
+        connected.set(true);
+        pipeline.connectComplete();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pending.size() < MESSAGES && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        check(pending.size() == MESSAGES, "sent " + pending.size() + " messages before the connection was lost, expected " + MESSAGES);
+
+        // the connection is lost with every message in flight, and they fail in reverse order
+        connected.set(false);
+        for (int i = MESSAGES - 1; i >= 0; i--) {
+            pending.get(i).completeExceptionally(new FacilioMqttException(MqttException.REASON_CODE_CONNECTION_LOST));
+        }
+        check(pipeline.getBufferedCount() == MESSAGES, "put back " + pipeline.getBufferedCount() + ", expected " + MESSAGES);
+
+        sent.clear();
+        acknowledge.set(true);
+        connected.set(true);
+        pipeline.connectComplete();
+        awaitAll(futures);
+        check(sent.equals(topics(0, MESSAGES)), "drained again " + sent + ", expected " + topics(0, MESSAGES));
+    }
+
+    private static void checkBufferFull() throws Exception {
+        PublishPipeline pipeline = new PublishPipeline((topic, payload, qos, pooled, future) -> {
+            throw new AssertionError("message sent while offline");
+        }, () -> false, () -> options(3, OfflineBufferPolicy.DROP_NEWEST), () -> "offline-check");
+        for (int i = 0; i < 3; i++) {
+            pipeline.publish("offline/" + i, new byte[]{(byte) i}, 1, Priority.NORMAL, false, false);
+        }
+        try {
+            pipeline.publish("offline/3", new byte[]{3}, 1, Priority.NORMAL, false, false);
+            throw new AssertionError("publish to a full buffer did not fail");
+        } catch (FacilioMqttException e) {
+            check(e.getReasonCode() == MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL, "publish to a full buffer failed with " + e.getReasonCode());
+        }
+        CompletableFuture<DeliveryReceipt> future = pipeline.publishAsync("offline/4", new byte[]{4}, 1);
+        check(future.isCompletedExceptionally(), "publishAsync to a full buffer did not fail");
+        check(pipeline.getBufferedCount() == 3, "buffered " + pipeline.getBufferedCount() + ", expected 3");
+    }
+
+    private static FacilioMqttConnectOptions options(int bufferSize, OfflineBufferPolicy policy) {
+        FacilioMqttConnectOptions options = new FacilioMqttConnectOptions();
+        options.setMaxInflight(MESSAGES * 2);
+        options.setOfflineBufferSize(bufferSize);
+        options.setOfflineBufferPolicy(policy);
+        return options;
+    }
+
+    private static List<String> topics(int from, int to) {
+        List<String> topics = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            topics.add("offline/" + i);
+        }
+        return topics;
+    }
+
+    private static void awaitAll(List<CompletableFuture<DeliveryReceipt>> futures) throws InterruptedException, ExecutionException {
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            throw new AssertionError("buffered messages not delivered within 5 seconds");
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.facilio.mqtt.client.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that an {@link OutboundJournal} reopened after a crash keeps its intact records and discards a torn one:
+ * a record whose length was written without its bytes, and a record whose bytes do not match its crc.
+ * The journal is written to a temporary directory which is deleted afterwards. Throws an AssertionError on the first failure.
+ * Like the other programs in src/java/test this is run by hand, the build does not run it.
+ * Usage: OutboundJournalCheck
+ */
+public class OutboundJournalCheck {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+    private static final int RECORDS = 10;
+
+    public static void main(String[] args) throws IOException {
+        File directory = Files.createTempDirectory("facilio-journal-check").toFile();
+        try {
+            long[] offsets = new long[RECORDS + 1];
+            long writeOffset;
+            OutboundJournal journal = new OutboundJournal(directory, SEGMENT_SIZE);
+            try {
+                for (int i = 0; i < RECORDS; i++) {
+                    offsets[i] = journal.append("journal/" + i, payload(i), 1);
+                }
+                writeOffset = journal.getWriteOffset();
+            } finally {
+                journal.close();
+            }
+
+            // a crash after the length of the next record was written, before its bytes
+            try (RandomAccessFile segment = new RandomAccessFile(segmentFile(directory), "rw")) {
+                segment.seek(writeOffset);
+                segment.writeInt(40);
+                segment.writeInt(0x5eed);
+                segment.write(new byte[]{1, 0, 7});
+            }
+            journal = new OutboundJournal(directory, SEGMENT_SIZE);
+            try {
+                check(journal.getWriteOffset() == writeOffset, "write offset " + journal.getWriteOffset() + " after recovery, expected " + writeOffset);
+                check(readAll(journal), RECORDS);
+                offsets[RECORDS] = journal.append("journal/" + RECORDS, payload(RECORDS), 1);
+                check(offsets[RECORDS] == writeOffset, "record appended after recovery at " + offsets[RECORDS] + ", expected " + writeOffset);
+                check(readAll(journal), RECORDS + 1);
+            } finally {
+                journal.close();
+            }
+
+            // a crash which left the last record with bytes not matching its crc
+            try (RandomAccessFile segment = new RandomAccessFile(segmentFile(directory), "rw")) {
+                segment.seek(offsets[RECORDS] + 12);
+                segment.write('X');
+            }
+            journal = new OutboundJournal(directory, SEGMENT_SIZE);
+            try {
+                check(journal.getWriteOffset() == offsets[RECORDS], "write offset " + journal.getWriteOffset() + " after recovery, expected " + offsets[RECORDS]);
+                check(readAll(journal), RECORDS);
+            } finally {
+                journal.close();
+            }
+            System.out.println("OutboundJournal torn record recovery ok");
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    private static byte[] payload(int i) {
+        return ("{\"sequence\":" + i + "}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static File segmentFile(File directory) {
+        return new File(directory, String.format("%020d", 0) + ".log");
+    }
+
+    private static List<OutboundJournal.Record> readAll(OutboundJournal journal) {
+        List<OutboundJournal.Record> records = new ArrayList<>();
+        long offset = journal.getCheckpoint();
+        OutboundJournal.Record record = new OutboundJournal.Record();
+        while (journal.read(offset, record)) {
+            records.add(record);
+            offset = record.nextOffset;
+            record = new OutboundJournal.Record();
+        }
+        return records;
+    }
+
+    private static void check(List<OutboundJournal.Record> records, int expected) {
+        check(records.size() == expected, records.size() + " records read, expected " + expected);
+        for (int i = 0; i < expected; i++) {
+            OutboundJournal.Record record = records.get(i);
+            check(record.topic.equals("journal/" + i) && new String(record.payload, StandardCharsets.UTF_8).equals(new String(payload(i), StandardCharsets.UTF_8)) && record.qos == 1,
+                    "record " + i + " read back as " + record.topic);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
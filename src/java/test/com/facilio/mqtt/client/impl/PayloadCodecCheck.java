@@ -0,0 +1,105 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.DeflateCodec;
+import com.facilio.mqtt.client.DeliveryReceipt;
+import com.facilio.mqtt.client.FacilioMqttConnectOptions;
+import com.facilio.mqtt.client.PayloadCodec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks the framing of the payloads encoded by a {@link PayloadCodec}: a payload published through the
+ * {@link PublishPipeline} is framed with the magic byte, the codec id and the original length, and decodes back to
+ * the same bytes, also with a preset dictionary. Payloads below the threshold, payloads which do not get smaller,
+ * plain JSON, payloads framed by another codec and corrupted payloads are passed through as they are.
+ * Throws an AssertionError on the first failure. Like the other programs in src/java/test this is run by hand,
+ * the build does not run it.
+ * Usage: PayloadCodecCheck
+ */
+public class PayloadCodecCheck {
+
+    private static final int THRESHOLD = 512;
+
+    private static byte[] lastSent;
+
+    public static void main(String[] args) {
+        byte[] json = telemetry(40);
+        check(json.length > THRESHOLD, "telemetry payload of " + json.length + " bytes is below the threshold");
+
+        PublishPipeline pipeline = pipeline(new DeflateCodec());
+        byte[] sent = publish(pipeline, json);
+        checkFrame(sent, DeflateCodec.ID, json.length);
+        check(sent.length < json.length, "encoded payload of " + sent.length + " bytes is not smaller than " + json.length);
+        check(Arrays.equals(pipeline.decode(sent), json), "decoded payload differs from the published one");
+
+        byte[] dictionary = "{\"name\":\"point-\",\"value\":,\"unit\":\"C\",\"alarm\":false}".getBytes(StandardCharsets.UTF_8);
+        PublishPipeline dictionaryPipeline = pipeline(new DeflateCodec(9, dictionary));
+        byte[] withDictionary = publish(dictionaryPipeline, json);
+        checkFrame(withDictionary, DeflateCodec.ID, json.length);
+        check(Arrays.equals(dictionaryPipeline.decode(withDictionary), json), "payload encoded with a dictionary differs once decoded");
+
+        byte[] small = Arrays.copyOf(json, THRESHOLD - 1);
+        check(publish(pipeline, small) == small, "payload below the threshold was encoded");
+
+        byte[] random = new byte[4096];
+        new Random(7).nextBytes(random);
+        random[0] = '{';
+        check(publish(pipeline, random) == random, "payload which does not get smaller was encoded");
+
+        check(pipeline.decode(json) == json, "plain JSON payload was decoded");
+        byte[] otherCodec = sent.clone();
+        otherCodec[1] = (byte) (DeflateCodec.ID + 1);
+        check(pipeline.decode(otherCodec) == otherCodec, "payload framed by another codec was decoded");
+        byte[] corrupted = sent.clone();
+        Arrays.fill(corrupted, PayloadCompressor.HEADER_SIZE, corrupted.length, (byte) 0x55);
+        check(pipeline.decode(corrupted) == corrupted, "corrupted payload was not passed through");
+        check(pipeline(null).decode(sent) == sent, "payload decoded without a codec");
+
+        System.out.println("Payload codec framing ok, " + json.length + " bytes encoded to " + sent.length);
+    }
+
+    /**
+     * Returns a pipeline with the given codec whose sender keeps the last payload handed to it.
+     */
+    private static PublishPipeline pipeline(PayloadCodec codec) {
+        FacilioMqttConnectOptions options = new FacilioMqttConnectOptions();
+        options.setPayloadCodec(codec);
+        options.setCompressionThreshold(THRESHOLD);
+        return new PublishPipeline((topic, payload, qos, pooled, future) -> {
+            lastSent = payload;
+            future.complete(new DeliveryReceipt(topic, 1, 0));
+        }, () -> true, () -> options, () -> "codec-check");
+    }
+
+    /**
+     * Publishes the payload through the pipeline and returns the bytes handed to the sender.
+     */
+    private static byte[] publish(PublishPipeline pipeline, byte[] payload) {
+        pipeline.publishAsync("codec/check", payload, 1).join();
+        return lastSent;
+    }
+
+    private static void checkFrame(byte[] encoded, int codecId, int length) {
+        check(encoded[0] == PayloadCompressor.MAGIC, "encoded payload starts with " + encoded[0]);
+        check((encoded[1] & 0xFF) == codecId, "encoded payload has codec id " + (encoded[1] & 0xFF));
+        int framed = ((encoded[2] & 0xFF) << 24) | ((encoded[3] & 0xFF) << 16) | ((encoded[4] & 0xFF) << 8) | (encoded[5] & 0xFF);
+        check(framed == length, "encoded payload frames a length of " + framed + ", expected " + length);
+    }
+
+    private static byte[] telemetry(int points) {
+        StringBuilder builder = new StringBuilder("{\"deviceId\":\"ahu-001\",\"points\":[");
+        for (int i = 0; i < points; i++) {
+            builder.append(i == 0 ? "" : ",").append("{\"name\":\"point-").append(i).append("\",\"value\":").append(20.5 + i)
+                    .append(",\"unit\":\"C\",\"alarm\":").append(i % 5 == 0).append('}');
+        }
+        return builder.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.FacilioMqttClient;
+import com.facilio.mqtt.client.FacilioMqttConnectOptions;
+import com.facilio.mqtt.client.FacilioMqttException;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Checks the bulk subscribe and unsubscribe requests of {@link AsyncMqttClient} and {@link MQTTClient} against a
+ * minimal MQTT 3.1.1 server on a local socket. The filters of a bulk request must be sent in one SUBSCRIBE packet.
+ * A request the server does not answer must fail with {@link MqttException#REASON_CODE_CLIENT_TIMEOUT} once the
+ * subscribe timeout has passed and not before, and a request with one refused filter must fail with
+ * {@link MqttException#REASON_CODE_SUBSCRIBE_FAILED}. Requests of a client which is not connected and invalid
+ * arguments must fail without reaching the server. The unanswered requests are still outstanding in Paho when the
+ * clients disconnect, so disconnecting the {@link MQTTClient} waits for the quiesce timeout of Paho, 30 seconds.
+ * Throws an AssertionError on the first failure. Like the other programs in src/java/test this is run by hand,
+ * the build does not run it.
+ * Usage: SubscribeTimeoutCheck
+ */
+public class SubscribeTimeoutCheck {
+
+    private static final long SUBSCRIBE_TIMEOUT = 300;
+    private static final String SILENT = "silent/";
+    private static final String REFUSED = "refused/";
+
+    public static void main(String[] args) throws Exception {
+        checkNotConnected(new AsyncMqttClient());
+        checkNotConnected(new MQTTClient());
+        try (Broker broker = new Broker()) {
+            check(broker, new AsyncMqttClient(), "async-check");
+            check(broker, new MQTTClient(), "sync-check");
+        }
+        System.out.println("Bulk subscribe timeouts ok");
+    }
+
+    private static void checkNotConnected(FacilioMqttClient client) {
+        checkFails(client.subscribeAsync(new String[]{"a/1"}, new int[]{1}), MqttException.REASON_CODE_CLIENT_NOT_CONNECTED, "subscribe while not connected");
+        checkFails(client.unsubscribeAsync(new String[]{"a/1"}), MqttException.REASON_CODE_CLIENT_NOT_CONNECTED, "unsubscribe while not connected");
+    }
+
+    private static void check(Broker broker, FacilioMqttClient client, String clientId) throws Exception {
+        FacilioMqttConnectOptions options = new FacilioMqttConnectOptions();
+        options.setServerURI("tcp://127.0.0.1:" + broker.getPort());
+        options.setPersistence(new MemoryPersistence());
+        options.setSubscribeTimeout(SUBSCRIBE_TIMEOUT);
+        options.setAutomaticReconnect(false);
+        client.setClientId(clientId);
+        client.setConnectOptions(options);
+        client.connect();
+        try {
+            check(client.isConnected(), clientId + " not connected to the check server");
+
+            int before = broker.subscribeRequests.size();
+            client.subscribeAsync(new String[]{"a/1", "a/2", "a/+/3"}, new int[]{1, 0, 1}).get(5, TimeUnit.SECONDS);
+            check(broker.subscribeRequests.size() == before + 1, clientId + " sent " + (broker.subscribeRequests.size() - before) + " requests for one bulk subscribe");
+            List<String> sent = broker.subscribeRequests.get(before);
+            check(sent.equals(Arrays.asList("a/1", "a/2", "a/+/3")), clientId + " sent the filters " + sent + " in the bulk subscribe");
+
+            long start = System.nanoTime();
+            CompletableFuture<Void> silent = client.subscribeAsync(new String[]{"a/4", SILENT + "1"}, new int[]{1, 1});
+            checkFails(silent, MqttException.REASON_CODE_CLIENT_TIMEOUT, clientId + " subscribe the server does not answer");
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            check(elapsed >= SUBSCRIBE_TIMEOUT - 20 && elapsed < SUBSCRIBE_TIMEOUT + 2000,
+                    clientId + " subscribe timed out after " + elapsed + " ms, timeout is " + SUBSCRIBE_TIMEOUT);
+
+            try {
+                client.subscribe(new String[]{SILENT + "2"}, new int[]{0});
+                check(false, clientId + " blocking subscribe the server does not answer returned");
+            } catch (FacilioMqttException e) {
+                check(e.getReasonCode() == MqttException.REASON_CODE_CLIENT_TIMEOUT, clientId + " blocking subscribe failed with " + e);
+            }
+
+            checkFails(client.subscribeAsync(new String[]{"a/5", REFUSED + "1", "a/6"}, new int[]{1, 1, 1}),
+                    MqttException.REASON_CODE_SUBSCRIBE_FAILED, clientId + " subscribe with a refused filter");
+            client.subscribe(new String[]{"a/7"}, new int[]{1});
+
+            client.unsubscribeAsync(new String[]{"a/1", "a/2"}).get(5, TimeUnit.SECONDS);
+            checkFails(client.unsubscribeAsync(new String[]{SILENT + "1"}), MqttException.REASON_CODE_CLIENT_TIMEOUT,
+                    clientId + " unsubscribe the server does not answer");
+
+            check(client.subscribeAsync(new String[0], new int[0]).isDone(), clientId + " empty subscribe not completed at once");
+            int requests = broker.subscribeRequests.size();
+            checkInvalid(() -> client.subscribeAsync(new String[]{"a/8", null}, new int[]{1, 1}), clientId + " subscribe of a null filter");
+            checkInvalid(() -> client.subscribeAsync(new String[]{"a/8", "a/9"}, new int[]{1}), clientId + " subscribe with fewer qos than filters");
+            checkInvalid(() -> client.unsubscribeAsync(null), clientId + " unsubscribe of null");
+            check(broker.subscribeRequests.size() == requests, clientId + " sent an invalid request to the server");
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    private static void checkFails(CompletableFuture<Void> future, int reasonCode, String request) {
+        try {
+            future.get(SUBSCRIBE_TIMEOUT + 5000, TimeUnit.MILLISECONDS);
+            check(false, request + " completed");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            check(cause instanceof FacilioMqttException && ((FacilioMqttException) cause).getReasonCode() == reasonCode,
+                    request + " failed with " + cause + ", expected reason code " + reasonCode);
+        } catch (InterruptedException | TimeoutException e) {
+            throw new AssertionError(request + " not completed", e);
+        }
+    }
+
+    private static void checkInvalid(Runnable request, String description) {
+        try {
+            request.run();
+            check(false, description + " accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * Minimal MQTT 3.1.1 server accepting every connection. It records the filters of each SUBSCRIBE, grants them,
+     * refuses the filters starting with "refused/" and leaves a SUBSCRIBE or UNSUBSCRIBE holding a filter starting
+     * with "silent/" unanswered. Published messages are not routed.
+     */
+    private static class Broker implements AutoCloseable {
+        private final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        private final List<List<String>> subscribeRequests = Collections.synchronizedList(new ArrayList<>());
+        private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<>());
+
+        Broker() throws IOException {
+            Thread acceptor = new Thread(this::accept, "subscribe-check-broker");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void accept() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    sockets.add(socket);
+                    Thread connection = new Thread(() -> serve(socket), "subscribe-check-connection");
+                    connection.setDaemon(true);
+                    connection.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (Socket closed = socket) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                while (true) {
+                    int header = in.read();
+                    if (header < 0) {
+                        return;
+                    }
+                    byte[] body = new byte[readLength(in)];
+                    in.readFully(body);
+                    switch (header >> 4) {
+                        case 1:
+                            write(out, 0x20, 0, 0);
+                            break;
+                        case 3:
+                            int qos = (header >> 1) & 3;
+                            if (qos > 0) {
+                                int topicLength = ((body[0] & 0xFF) << 8) | (body[1] & 0xFF);
+                                write(out, qos == 1 ? 0x40 : 0x50, body[2 + topicLength], body[3 + topicLength]);
+                            }
+                            break;
+                        case 6:
+                            write(out, 0x70, body[0], body[1]);
+                            break;
+                        case 8:
+                            subscribe(out, body);
+                            break;
+                        case 10:
+                            if (!filters(body, false).stream().anyMatch(filter -> filter.startsWith(SILENT))) {
+                                write(out, 0xB0, body[0], body[1]);
+                            }
+                            break;
+                        case 12:
+                            write(out, 0xD0);
+                            break;
+                        case 14:
+                            return;
+                        default:
+                            break;
+                    }
+                }
+            } catch (IOException e) {
+                // connection closed
+            }
+        }
+
+        private void subscribe(OutputStream out, byte[] body) throws IOException {
+            List<String> filters = filters(body, true);
+            subscribeRequests.add(filters);
+            if (filters.stream().anyMatch(filter -> filter.startsWith(SILENT))) {
+                return;
+            }
+            int[] packet = new int[2 + filters.size()];
+            packet[0] = body[0];
+            packet[1] = body[1];
+            int position = 2;
+            for (int i = 0; i < filters.size(); i++) {
+                position += 2 + ((body[position] & 0xFF) << 8 | (body[position + 1] & 0xFF));
+                packet[2 + i] = filters.get(i).startsWith(REFUSED) ? 0x80 : body[position];
+                position++;
+            }
+            write(out, 0x90, packet);
+        }
+
+        /**
+         * Returns the filters of a SUBSCRIBE or UNSUBSCRIBE body, after its packet identifier.
+         */
+        private static List<String> filters(byte[] body, boolean withQos) {
+            List<String> filters = new ArrayList<>();
+            int position = 2;
+            while (position < body.length) {
+                int length = ((body[position] & 0xFF) << 8) | (body[position + 1] & 0xFF);
+                filters.add(new String(body, position + 2, length, StandardCharsets.UTF_8));
+                position += 2 + length + (withQos ? 1 : 0);
+            }
+            return filters;
+        }
+
+        private static int readLength(DataInputStream in) throws IOException {
+            int length = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = in.readUnsignedByte();
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return length;
+        }
+
+        private static synchronized void write(OutputStream out, int header, int... body) throws IOException {
+            byte[] packet = new byte[2 + body.length];
+            packet[0] = (byte) header;
+            packet[1] = (byte) body.length;
+            for (int i = 0; i < body.length; i++) {
+                packet[2 + i] = (byte) body[i];
+            }
+            out.write(packet);
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            serverSocket.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+    }
+}
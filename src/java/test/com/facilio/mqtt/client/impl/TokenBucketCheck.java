@@ -0,0 +1,46 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.RateLimit;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that a {@link TokenBucket} lets a full burst through without waiting, then paces the following permits
+ * one emission interval apart, and fills up again while it is idle. Throws an AssertionError on the first failure.
+ * It is a manual check, not run by the build.
+ * Usage: TokenBucketCheck
+ */
+public class TokenBucketCheck {
+
+    private static final double PERMITS_PER_SECOND = 100;
+    private static final int BURST = 10;
+    private static final long INTERVAL = (long) (TimeUnit.SECONDS.toNanos(1) / PERMITS_PER_SECOND);
+    private static final long SLACK = TimeUnit.MILLISECONDS.toNanos(5);
+
+    public static void main(String[] args) throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(new RateLimit(PERMITS_PER_SECOND, BURST));
+        reserveBurst(bucket);
+        for (int i = 1; i <= 20; i++) {
+            long wait = bucket.reserve();
+            if (Math.abs(wait - i * INTERVAL) > SLACK) {
+                throw new AssertionError("Permit " + i + " after the burst waits " + wait + " ns, expected " + (i * INTERVAL));
+            }
+        }
+
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis((20 + BURST) * INTERVAL) + 50);
+        reserveBurst(bucket);
+        if (bucket.reserve() == 0) {
+            throw new AssertionError("Permit after the refilled burst does not wait");
+        }
+        System.out.println("TokenBucket burst and pacing ok");
+    }
+
+    private static void reserveBurst(TokenBucket bucket) {
+        for (int i = 0; i < BURST; i++) {
+            long wait = bucket.reserve();
+            if (wait > SLACK) {
+                throw new AssertionError("Permit " + i + " of the burst waits " + wait + " ns");
+            }
+        }
+    }
+}
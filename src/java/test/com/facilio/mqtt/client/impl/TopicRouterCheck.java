@@ -0,0 +1,62 @@
+package com.facilio.mqtt.client.impl;
+
+import com.facilio.mqtt.client.MessageHandler;
+import com.facilio.mqtt.client.ReceivedMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the topic filter matching of the {@link TopicRouter}: the '+' and '#' wildcards, '#' matching its parent
+ * level, and filters starting with a wildcard not matching topics starting with '$'.
+ * Throws an AssertionError on the first mismatch. This is a manual check: the build has no test runner and does
+ * not compile or run the programs in src/java/test.
+ * Usage: TopicRouterCheck
+ */
+public class TopicRouterCheck {
+
+    private static final String[] FILTERS = {"a/b/c", "a/+/c", "a/#", "+/b/+", "#", "+", "$SYS/#", "$SYS/+/uptime"};
+
+    public static void main(String[] args) {
+        List<String> matched = new ArrayList<>();
+        TopicRouter router = new TopicRouter();
+        for (String filter : FILTERS) {
+            router.add(filter, message -> matched.add(filter));
+        }
+
+        check(router, matched, "a/b/c", "a/b/c", "a/+/c", "a/#", "+/b/+", "#");
+        check(router, matched, "a/x/c", "a/+/c", "a/#", "#");
+        check(router, matched, "a/b/c/d", "a/#", "#");
+        check(router, matched, "a", "a/#", "#", "+");
+        check(router, matched, "x/b/y", "+/b/+", "#");
+        check(router, matched, "x/y", "#");
+        check(router, matched, "/b/", "+/b/+", "#");
+        check(router, matched, "$SYS/broker/uptime", "$SYS/#", "$SYS/+/uptime");
+        check(router, matched, "$SYS", "$SYS/#");
+        check(router, matched, "$other/b/c");
+
+        MessageHandler handler = message -> matched.add("second a/+/c");
+        router.add("a/+/c", handler);
+        check(router, matched, "a/x/c", "a/+/c", "second a/+/c", "a/#", "#");
+        router.remove("a/+/c", handler);
+        check(router, matched, "a/x/c", "a/+/c", "a/#", "#");
+        router.remove("a/+/c", null);
+        router.remove("#", null);
+        check(router, matched, "a/x/c", "a/#");
+
+        System.out.println("TopicRouter matching ok");
+    }
+
+    private static void check(TopicRouter router, List<String> matched, String topic, String... expected) {
+        matched.clear();
+        boolean routed = router.route(new ReceivedMessage(topic, new byte[0], 0, false, false, 0));
+        List<String> actual = new ArrayList<>(matched);
+        actual.sort(null);
+        List<String> wanted = new ArrayList<>(Arrays.asList(expected));
+        wanted.sort(null);
+        if (!actual.equals(wanted) || routed != (expected.length > 0)) {
+            throw new AssertionError(topic + " matched " + actual + ", expected " + wanted);
+        }
+    }
+}
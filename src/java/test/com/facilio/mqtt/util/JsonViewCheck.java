@@ -0,0 +1,153 @@
+package com.facilio.mqtt.util;
+
+import com.facilio.mqtt.client.ReceivedMessage;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Checks that {@link JsonView} reads top level fields straight from the raw bytes: the decoded types match json-simple,
+ * strings and names with escapes and non ASCII characters are decoded, nested values hold brackets and quotes inside
+ * strings, fields before a malformed part are still found, a view over a part of an array does not read past it, and
+ * {@link ReceivedMessage#getJson()} shares one view per message. {@link JsonScanner#findField} is checked on the same
+ * payloads. Throws an AssertionError on the first failure.
+ * Like the other programs in src/java/test this is run by hand, the build does not run it.
+ * Usage: JsonViewCheck
+ */
+public class JsonViewCheck {
+
+    private static final String READING = "{ \"deviceId\" : \"ahu-7\", \"note\":\"a \\\"quoted\\\" {b} [c], \\u00e9\\n\",\n"
+            + "\t\"temperature\":21.5, \"count\":42, \"exp\":1e3, \"on\":true, \"off\":false,"
+            + " \"none\":null, \"nested\":{\"a\":[1,\"}\",{\"b\":\"]\"}]}, \"list\":[\"x\",{\"y\":2}], \"caf\\u00e9\":1,"
+            + " \"naïve\":\"über\", \"last\":-0.25}";
+
+    public static void main(String[] args) throws ParseException {
+        checkTypes();
+        checkEscapes();
+        checkNested();
+        checkMalformed();
+        checkRange();
+        checkReceivedMessage();
+        checkScanner();
+        System.out.println("JsonView ok");
+    }
+
+    private static void checkTypes() throws ParseException {
+        JsonView json = new JsonView(bytes(READING));
+        check("ahu-7".equals(json.getString("deviceId")), "deviceId " + json.get("deviceId"));
+        check(json.get("count") instanceof Long && json.getLong("count", 0) == 42, "count " + json.get("count"));
+        check(json.get("temperature") instanceof Double && json.getDouble("temperature", 0) == 21.5, "temperature " + json.get("temperature"));
+        JsonView big = new JsonView(bytes("{\"big\":12345678901234567890}"));
+        check(big.get("big") instanceof Double, "number too large for a long decoded as " + big.get("big"));
+        check(json.getDouble("exp", 0) == 1000, "exp " + json.get("exp"));
+        check(json.getDouble("last", 0) == -0.25, "last " + json.get("last"));
+        check(json.getBoolean("on", false) && !json.getBoolean("off", true), "booleans " + json.get("on") + ", " + json.get("off"));
+        check(json.has("none") && json.get("none") == null, "null field has " + json.has("none") + ", value " + json.get("none"));
+        check(!json.has("missing") && json.get("missing") == null, "missing field found");
+        check(json.getLong("deviceId", -1) == -1 && json.getString("count") == null && !json.getBoolean("count", false),
+                "value of another type not reported as missing");
+        JSONObject tree = (JSONObject) json.getTree();
+        for (Object name : tree.keySet()) {
+            Object expected = tree.get(name);
+            Object actual = json.get((String) name);
+            check(expected == null ? actual == null : expected.equals(actual), "field " + name + " decoded as " + actual + ", json-simple decodes " + expected);
+        }
+        check(json.getTree() == tree, "tree parsed twice");
+    }
+
+    private static void checkEscapes() {
+        JsonView json = new JsonView(bytes(READING));
+        check("a \"quoted\" {b} [c], é\n".equals(json.getString("note")), "escaped string decoded as " + json.getString("note"));
+        check(json.getLong("café", 0) == 1, "escaped name not matched");
+        check("über".equals(json.getString("naïve")), "non ASCII name or value decoded as " + json.get("naïve"));
+        check(json.get("caf") == null && json.get("na") == null, "prefix of a name matched");
+    }
+
+    private static void checkNested() {
+        JsonView json = new JsonView(bytes(READING));
+        check(json.getDouble("last", 0) == -0.25, "last field not found past the nested values");
+        JSONObject nested = (JSONObject) json.get("nested");
+        JSONArray a = (JSONArray) nested.get("a");
+        check(a.size() == 3 && "}".equals(a.get(1)) && "]".equals(((JSONObject) a.get(2)).get("b")), "nested object decoded as " + nested);
+        JSONArray list = (JSONArray) json.get("list");
+        check(list.size() == 2 && Long.valueOf(2).equals(((JSONObject) list.get(1)).get("y")), "nested array decoded as " + list);
+        check(json.get("nested") == nested, "nested value decoded twice");
+        check(json.get("a") == null && json.get("y") == null, "nested field found at the top level");
+    }
+
+    private static void checkMalformed() {
+        JsonView truncated = new JsonView(bytes("{\"id\":1,\"name\":\"x\",\"broken\":[1,2"));
+        check(truncated.getLong("id", 0) == 1 && "x".equals(truncated.getString("name")), "fields before the malformed value not found");
+        check(!truncated.has("broken") && !truncated.has("later"), "malformed value reported as present");
+        check(truncated.getLong("id", 0) == 1, "indexed field lost after scanning the malformed value");
+        JsonView missingColon = new JsonView(bytes("{\"id\":1,\"name\" \"x\",\"later\":2}"));
+        check(missingColon.getLong("id", 0) == 1 && !missingColon.has("name") && !missingColon.has("later"), "field after a missing colon found");
+        for (String payload : new String[]{"", "   ", "[1,2]", "\"text\"", "42", "null", "not json", "{"}) {
+            JsonView json = new JsonView(bytes(payload));
+            check(!json.has("id") && json.get("id") == null, "field found in " + payload);
+        }
+        JsonView empty = new JsonView(bytes(" { } "));
+        check(!empty.has(""), "field found in an empty object");
+    }
+
+    private static void checkRange() {
+        byte[] record = bytes("{\"id\":7,\"v\":\"in\"}");
+        byte[] batch = new byte[record.length + 40];
+        Arrays.fill(batch, (byte) ' ');
+        byte[] before = bytes("{\"id\":1,");
+        byte[] after = bytes(",\"after\":3}");
+        System.arraycopy(before, 0, batch, 0, before.length);
+        System.arraycopy(record, 0, batch, 12, record.length);
+        System.arraycopy(after, 0, batch, 12 + record.length, after.length);
+        JsonView json = new JsonView(batch, 12, record.length);
+        check(json.getLong("id", 0) == 7 && "in".equals(json.getString("v")), "fields of a record in an array " + json.get("id") + ", " + json.get("v"));
+        check(!json.has("after"), "field past the end of the record found");
+        JsonView cut = new JsonView(record, 0, record.length - 6);
+        check(cut.getLong("id", 0) == 7 && !cut.has("v"), "value past the given length read");
+        try {
+            new JsonView(record, 4, record.length);
+            check(false, "range past the end of the array accepted");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    private static void checkReceivedMessage() {
+        byte[] payload = bytes("xx{\"deviceId\":\"fcu-2\",\"value\":3}yy");
+        ReceivedMessage message = new ReceivedMessage("readings", payload, 2, payload.length - 4, 1, false, false, 1);
+        JsonView json = message.getJson();
+        check(json == message.getJson(), "view of the message created twice");
+        check("fcu-2".equals(json.getString("deviceId")) && json.getLong("value", 0) == 3, "fields of the message " + json.get("deviceId") + ", " + json.get("value"));
+    }
+
+    private static void checkScanner() {
+        byte[] json = bytes(READING);
+        int value = JsonScanner.findField(json, 0, json.length, bytes("last"));
+        check(value > 0 && "-0.25".equals(text(json, value, JsonScanner.skipValue(json, value, json.length))), "scanner did not find last");
+        value = JsonScanner.findField(json, 0, json.length, bytes("nested"));
+        int valueEnd = JsonScanner.skipValue(json, value, json.length);
+        check("{\"a\":[1,\"}\",{\"b\":\"]\"}]}".equals(text(json, value, valueEnd)), "scanner skipped nested value as " + text(json, value, valueEnd));
+        check(JsonScanner.findField(json, 0, json.length, bytes("a")) < 0, "scanner found a nested field at the top level");
+        check(JsonScanner.findField(json, 0, json.length, bytes("café")) < 0, "scanner matched an escaped name with its unescaped form");
+        byte[] truncated = bytes("{\"id\":1,\"broken\":[1,2");
+        check(JsonScanner.findField(truncated, 0, truncated.length, bytes("id")) == 6, "scanner did not find the field before the malformed value");
+        check(JsonScanner.skipValue(truncated, 17, truncated.length) < 0, "scanner skipped a truncated array");
+    }
+
+    private static String text(byte[] json, int start, int end) {
+        return start < 0 || end < 0 ? null : new String(json, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}